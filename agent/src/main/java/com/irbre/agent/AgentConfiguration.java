@@ -6,6 +6,8 @@ package com.irbre.agent;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -29,25 +31,120 @@ public class AgentConfiguration {
     }
 
     private static final String DEFAULT_COLLECTOR_URL = "http://localhost:8080/api/v1/traces/ingest";
-    private static final int DEFAULT_BATCH_SIZE = 50;
-    private static final long DEFAULT_BATCH_INTERVAL_MS = 5000;
-    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String DEFAULT_INCLUDED_PACKAGES = "com.example.";
+    private static final String DEFAULT_EXCLUDED_PACKAGES =
+            "java.,javax.,sun.,com.sun.,jdk.,org.slf4j.,ch.qos.logback.,com.irbre.agent.";
+    private static final long DEFAULT_BATCH_INTERVAL_MS = 1000;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_RETRY_BACKOFF_INITIAL_MS = 100;
+    private static final long DEFAULT_RETRY_BACKOFF_MAX_MS = 5000;
+    private static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_BREAKER_OPEN_MS = 10_000;
+    private static final long DEFAULT_TELEMETRY_INTERVAL_MS = 60_000;
+    private static final int DEFAULT_THREAD_BUFFER_SIZE = 1024;
+    private static final long DEFAULT_THREAD_BUFFER_MAX_BYTES = 1024 * 1024;
+    private static final int DEFAULT_BACKPRESSURE_SAMPLE_KEEP = 4;
+    private static final long DEFAULT_BACKPRESSURE_SPIN_WAIT_MICROS = 50;
+    private static final int DEFAULT_RING_SIZE_BYTES = 64 * 1024;
+    private static final int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+    private static final long DEFAULT_SPOOL_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int DEFAULT_SPOOL_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_BYTECODE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final double DEFAULT_SAMPLING_RATE = 1.0;
+    private static final long DEFAULT_TAIL_LATENCY_MS = 500;
+    private static final int DEFAULT_TAIL_MAX_BUFFERED_EVENTS = 100_000;
+    private static final double DEFAULT_DEINSTRUMENT_CALLS_PER_SEC = 100_000;
+    private static final long DEFAULT_DEINSTRUMENT_MAX_AVG_NANOS = 1_000;
+    private static final long DEFAULT_DEINSTRUMENT_INTERVAL_MS = 10_000;
 
     private final String collectorUrl;
-    private final int batchSize;
-    private final long batchIntervalMs;
-    private final int queueSize;
-    private final Set<String> includedPackages;
-    private final Set<String> excludedPackages;
-
-    public AgentConfiguration(String collectorUrl, int batchSize, long batchIntervalMs,
-                              int queueSize, Set<String> includedPackages, Set<String> excludedPackages) {
-        this.collectorUrl = collectorUrl;
-        this.batchSize = batchSize;
-        this.batchIntervalMs = batchIntervalMs;
-        this.queueSize = queueSize;
-        this.includedPackages = includedPackages;
-        this.excludedPackages = excludedPackages;
+    // Adjustable at runtime through IrbreControl
+    private volatile int batchSize;
+    private volatile long batchIntervalMs;
+    private final int maxInFlight;
+    private final int threadBufferSize;
+    private final long threadBufferMaxBytes;
+    // Adjustable at runtime through IrbreControl
+    private volatile BackpressurePolicy backpressurePolicy;
+    private final int backpressureSampleKeep;
+    private final long backpressureSpinWaitMicros;
+    private final boolean binaryRecording;
+    private final int ringSizeBytes;
+    private final boolean binaryWireFormat;
+    private final String compression;
+    private final int compressionMinBytes;
+    private final String spoolDir;
+    private final long spoolMaxBytes;
+    private final int spoolSegmentBytes;
+    private final String bytecodeCacheDir;
+    private final long bytecodeCacheMaxBytes;
+    private final int retryMaxAttempts;
+    private final long retryBackoffInitialMs;
+    private final long retryBackoffMaxMs;
+    private final int breakerFailureThreshold;
+    private final long breakerOpenMs;
+    private final long telemetryIntervalMs;
+    private final String contextStore;
+    private final double samplingRate;
+    private final Map<String, Integer> samplingRateLimits;
+    private final boolean tailSampling;
+    private final long tailLatencyMs;
+    private final boolean tailKeepErrors;
+    private final Map<String, Integer> tailQuotas;
+    private final int tailMaxBufferedEvents;
+    private final boolean deinstrumentHotMethods;
+    private final double deinstrumentCallsPerSec;
+    private final long deinstrumentMaxAvgNanos;
+    private final long deinstrumentIntervalMs;
+    private volatile Set<String> includedPackages;
+    private volatile Set<String> excludedPackages;
+    private volatile PackageMatcher packageMatcher;
+
+    private AgentConfiguration(Builder builder) {
+        this.collectorUrl = builder.collectorUrl;
+        this.batchSize = builder.batchSize;
+        this.batchIntervalMs = builder.batchIntervalMs;
+        this.maxInFlight = builder.maxInFlight;
+        this.threadBufferSize = builder.threadBufferSize;
+        this.threadBufferMaxBytes = builder.threadBufferMaxBytes;
+        this.backpressurePolicy = builder.backpressurePolicy;
+        this.backpressureSampleKeep = builder.backpressureSampleKeep;
+        this.backpressureSpinWaitMicros = builder.backpressureSpinWaitMicros;
+        this.binaryRecording = builder.binaryRecording;
+        this.ringSizeBytes = builder.ringSizeBytes;
+        this.binaryWireFormat = builder.binaryWireFormat;
+        this.compression = builder.compression;
+        this.compressionMinBytes = builder.compressionMinBytes;
+        this.spoolDir = builder.spoolDir;
+        this.spoolMaxBytes = builder.spoolMaxBytes;
+        this.spoolSegmentBytes = builder.spoolSegmentBytes;
+        this.bytecodeCacheDir = builder.bytecodeCacheDir;
+        this.bytecodeCacheMaxBytes = builder.bytecodeCacheMaxBytes;
+        this.retryMaxAttempts = builder.retryMaxAttempts;
+        this.retryBackoffInitialMs = builder.retryBackoffInitialMs;
+        this.retryBackoffMaxMs = builder.retryBackoffMaxMs;
+        this.breakerFailureThreshold = builder.breakerFailureThreshold;
+        this.breakerOpenMs = builder.breakerOpenMs;
+        this.telemetryIntervalMs = builder.telemetryIntervalMs;
+        this.contextStore = builder.contextStore;
+        this.samplingRate = builder.samplingRate;
+        this.samplingRateLimits = builder.samplingRateLimits;
+        this.tailSampling = builder.tailSampling;
+        this.tailLatencyMs = builder.tailLatencyMs;
+        this.tailKeepErrors = builder.tailKeepErrors;
+        this.tailQuotas = builder.tailQuotas;
+        this.tailMaxBufferedEvents = builder.tailMaxBufferedEvents;
+        this.deinstrumentHotMethods = builder.deinstrumentHotMethods;
+        this.deinstrumentCallsPerSec = builder.deinstrumentCallsPerSec;
+        this.deinstrumentMaxAvgNanos = builder.deinstrumentMaxAvgNanos;
+        this.deinstrumentIntervalMs = builder.deinstrumentIntervalMs;
+        setPackages(builder.includedPackages, builder.excludedPackages);
+    }
+
+    public static Builder builder() {
+        return new Builder();
     }
 
     /**
@@ -70,28 +167,195 @@ public class AgentConfiguration {
 
         String collectorUrl = props.getProperty("irbre.collector.url", DEFAULT_COLLECTOR_URL);
         int batchSize = Integer.parseInt(props.getProperty("irbre.batch.size", String.valueOf(DEFAULT_BATCH_SIZE)));
+        // Longest time an event waits for its batch to fill before the batch is sent anyway
         long batchIntervalMs = Long.parseLong(props.getProperty("irbre.batch.interval.ms", String.valueOf(DEFAULT_BATCH_INTERVAL_MS)));
-        int queueSize = Integer.parseInt(props.getProperty("irbre.queue.size", String.valueOf(DEFAULT_QUEUE_SIZE)));
-
-        // Parse included packages
-        Set<String> includedPackages = new HashSet<>();
-        String includedProp = props.getProperty("irbre.include.packages", "");
-        if (!includedProp.isEmpty()) {
-            for (String pkg : includedProp.split(",")) {
-                includedPackages.add(pkg.trim());
-            }
+        // Concurrent batch requests; traces are spread over this many ordered send lanes
+        int maxInFlight = Math.max(1, Integer.parseInt(props.getProperty("irbre.max.in.flight",
+                String.valueOf(DEFAULT_MAX_IN_FLIGHT))));
+        if (props.getProperty("irbre.queue.size") != null) {
+            logWarn("irbre.queue.size is no longer used; events are bounded per thread by irbre.thread.buffer.size");
+        }
+        int threadBufferSize = Integer.parseInt(props.getProperty("irbre.thread.buffer.size", String.valueOf(DEFAULT_THREAD_BUFFER_SIZE)));
+        // Approximate heap held by one thread's buffered events
+        long threadBufferMaxBytes = Long.parseLong(props.getProperty("irbre.thread.buffer.max.bytes",
+                String.valueOf(DEFAULT_THREAD_BUFFER_MAX_BYTES)));
+        // What to do when a thread buffer is full: "drop-newest" (default), "drop-oldest", "sample" or "spin-wait"
+        BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+        String policy = props.getProperty("irbre.backpressure.policy", "drop-newest");
+        try {
+            backpressurePolicy = BackpressurePolicy.parse(policy);
+        } catch (IllegalArgumentException e) {
+            logWarn("Unknown irbre.backpressure.policy '" + policy + "', using drop-newest");
+        }
+        // "sample" policy: events kept per event offered above the high-water mark, as 1 in N
+        int backpressureSampleKeep = Math.max(1, Integer.parseInt(props.getProperty("irbre.backpressure.sample.keep",
+                String.valueOf(DEFAULT_BACKPRESSURE_SAMPLE_KEEP))));
+        // "spin-wait" policy: longest time an application thread spins before dropping
+        long backpressureSpinWaitMicros = Long.parseLong(props.getProperty("irbre.backpressure.spin.wait.micros",
+                String.valueOf(DEFAULT_BACKPRESSURE_SPIN_WAIT_MICROS)));
+        // "object" (TraceEvent objects, default) or "binary" (off-heap record rings)
+        boolean binaryRecording = "binary".equalsIgnoreCase(props.getProperty("irbre.recording.mode", "object").trim());
+        int ringSizeBytes = Integer.parseInt(props.getProperty("irbre.ring.size.bytes", String.valueOf(DEFAULT_RING_SIZE_BYTES)));
+        // "json" (default) or "binary" (compact batch encoding). Binary needs a collector that
+        // reads it; until the two negotiate the format, it is opt-in
+        boolean binaryWireFormat = "binary".equalsIgnoreCase(props.getProperty("irbre.wire.format", "json").trim());
+        // Request body Content-Encoding: "gzip" (default), "deflate" or "none"
+        String compression = props.getProperty("irbre.compression", "gzip").trim().toLowerCase();
+        if (compression.isEmpty() || "none".equals(compression)) {
+            compression = null;
+        } else if (!"gzip".equals(compression) && !"deflate".equals(compression)) {
+            logWarn("Unknown irbre.compression '" + compression + "', sending batches uncompressed");
+            compression = null;
+        }
+        // Batches smaller than this are sent uncompressed
+        int compressionMinBytes = Integer.parseInt(props.getProperty("irbre.compression.min.bytes",
+                String.valueOf(DEFAULT_COMPRESSION_MIN_BYTES)));
+        // Directory for the on-disk spool of undeliverable batches; unset disables spooling
+        String spoolDir = props.getProperty("irbre.spool.dir", "").trim();
+        if (spoolDir.isEmpty()) {
+            spoolDir = null;
+        }
+        long spoolMaxBytes = Long.parseLong(props.getProperty("irbre.spool.max.bytes",
+                String.valueOf(DEFAULT_SPOOL_MAX_BYTES)));
+        int spoolSegmentBytes = Integer.parseInt(props.getProperty("irbre.spool.segment.bytes",
+                String.valueOf(DEFAULT_SPOOL_SEGMENT_BYTES)));
+        // Directory for instrumented class files kept across restarts; unset disables the cache
+        String bytecodeCacheDir = props.getProperty("irbre.bytecode.cache.dir", "").trim();
+        if (bytecodeCacheDir.isEmpty()) {
+            bytecodeCacheDir = null;
+        }
+        long bytecodeCacheMaxBytes = Long.parseLong(props.getProperty("irbre.bytecode.cache.max.bytes",
+                String.valueOf(DEFAULT_BYTECODE_CACHE_MAX_BYTES)));
+        // Attempts per batch on connection errors, timeouts and 5xx/429/408, with jittered exponential backoff
+        int retryMaxAttempts = Math.max(1, Integer.parseInt(props.getProperty("irbre.retry.max.attempts",
+                String.valueOf(DEFAULT_RETRY_MAX_ATTEMPTS))));
+        long retryBackoffInitialMs = Long.parseLong(props.getProperty("irbre.retry.backoff.initial.ms",
+                String.valueOf(DEFAULT_RETRY_BACKOFF_INITIAL_MS)));
+        long retryBackoffMaxMs = Long.parseLong(props.getProperty("irbre.retry.backoff.max.ms",
+                String.valueOf(DEFAULT_RETRY_BACKOFF_MAX_MS)));
+        // Consecutive failed requests after which sending pauses, and for how long
+        int breakerFailureThreshold = Math.max(1, Integer.parseInt(props.getProperty("irbre.breaker.failure.threshold",
+                String.valueOf(DEFAULT_BREAKER_FAILURE_THRESHOLD))));
+        long breakerOpenMs = Long.parseLong(props.getProperty("irbre.breaker.open.ms",
+                String.valueOf(DEFAULT_BREAKER_OPEN_MS)));
+        // How often a self-telemetry summary rides along with a batch; 0 disables
+        long telemetryIntervalMs = Long.parseLong(props.getProperty("irbre.telemetry.interval.ms",
+                String.valueOf(DEFAULT_TELEMETRY_INTERVAL_MS)));
+        // Per-request context: "pooled" (default; reused across requests and virtual threads) or "thread-local"
+        String contextStore = props.getProperty("irbre.context.store", TraceContextStore.POOLED).trim().toLowerCase();
+        if (!TraceContextStore.POOLED.equals(contextStore) && !TraceContextStore.THREAD_LOCAL.equals(contextStore)) {
+            logWarn("Unknown irbre.context.store '" + contextStore + "', using pooled");
+            contextStore = TraceContextStore.POOLED;
+        }
+        // Fraction of requests traced, 0.0 to 1.0
+        double samplingRate = Double.parseDouble(props.getProperty("irbre.sampling.rate", String.valueOf(DEFAULT_SAMPLING_RATE)));
+
+        // Per-URI rate limits: "/api/orders*=10,/health=0" (sampled traces per second)
+        Map<String, Integer> samplingRateLimits = parseRateLimits(props.getProperty("irbre.sampling.rate.limits", ""));
+
+        // Tail sampling: buffer each request's events and keep only slow or failed traces
+        boolean tailSampling = Boolean.parseBoolean(props.getProperty("irbre.sampling.tail.enabled", "false"));
+        long tailLatencyMs = Long.parseLong(props.getProperty("irbre.sampling.tail.latency.ms", String.valueOf(DEFAULT_TAIL_LATENCY_MS)));
+        boolean tailKeepErrors = Boolean.parseBoolean(props.getProperty("irbre.sampling.tail.keep.errors", "true"));
+        // Traces per second kept per endpoint regardless of latency/errors, same format as the rate limits
+        Map<String, Integer> tailQuotas = parseRateLimits(props.getProperty("irbre.sampling.tail.quota", ""));
+        int tailMaxBufferedEvents = Integer.parseInt(props.getProperty("irbre.sampling.tail.max.buffered.events",
+                String.valueOf(DEFAULT_TAIL_MAX_BUFFERED_EVENTS)));
+
+        // Opt-in (irbre.deinstrument.enabled=true): remove probes from methods called at least this
+        // often that run faster than the floor. Off by default, since removed methods silently drop
+        // out of every trace and their classes are retransformed at runtime
+        boolean deinstrumentHotMethods = Boolean.parseBoolean(props.getProperty("irbre.deinstrument.enabled", "false"));
+        double deinstrumentCallsPerSec = Double.parseDouble(props.getProperty("irbre.deinstrument.calls.per.sec",
+                String.valueOf(DEFAULT_DEINSTRUMENT_CALLS_PER_SEC)));
+        long deinstrumentMaxAvgNanos = Long.parseLong(props.getProperty("irbre.deinstrument.max.avg.nanos",
+                String.valueOf(DEFAULT_DEINSTRUMENT_MAX_AVG_NANOS)));
+        long deinstrumentIntervalMs = Long.parseLong(props.getProperty("irbre.deinstrument.interval.ms",
+                String.valueOf(DEFAULT_DEINSTRUMENT_INTERVAL_MS)));
+
+        // Parse included packages (application packages default to com.example.)
+        Set<String> includedPackages = parsePackages(props.getProperty("irbre.include.packages", DEFAULT_INCLUDED_PACKAGES));
+        if (includedPackages.isEmpty()) {
+            logWarn("Empty irbre.include.packages, instrumenting " + DEFAULT_INCLUDED_PACKAGES);
+            includedPackages = parsePackages(DEFAULT_INCLUDED_PACKAGES);
         }
 
         // Parse excluded packages (with defaults)
-        Set<String> excludedPackages = new HashSet<>();
-        String excludedProp = props.getProperty("irbre.exclude.packages",
-                "java.,javax.,sun.,com.sun.,jdk.,org.slf4j.,ch.qos.logback.,com.irbre.agent.");
-        for (String pkg : excludedProp.split(",")) {
-            excludedPackages.add(pkg.trim());
+        Set<String> excludedPackages = parsePackages(props.getProperty("irbre.exclude.packages", DEFAULT_EXCLUDED_PACKAGES));
+
+        return builder()
+                .collectorUrl(collectorUrl)
+                .batchSize(batchSize)
+                .batchIntervalMs(batchIntervalMs)
+                .maxInFlight(maxInFlight)
+                .threadBufferSize(threadBufferSize)
+                .threadBufferMaxBytes(threadBufferMaxBytes)
+                .backpressurePolicy(backpressurePolicy)
+                .backpressureSampleKeep(backpressureSampleKeep)
+                .backpressureSpinWaitMicros(backpressureSpinWaitMicros)
+                .binaryRecording(binaryRecording)
+                .ringSizeBytes(ringSizeBytes)
+                .binaryWireFormat(binaryWireFormat)
+                .compression(compression)
+                .compressionMinBytes(compressionMinBytes)
+                .spoolDir(spoolDir)
+                .spoolMaxBytes(spoolMaxBytes)
+                .spoolSegmentBytes(spoolSegmentBytes)
+                .bytecodeCacheDir(bytecodeCacheDir)
+                .bytecodeCacheMaxBytes(bytecodeCacheMaxBytes)
+                .retryMaxAttempts(retryMaxAttempts)
+                .retryBackoffInitialMs(retryBackoffInitialMs)
+                .retryBackoffMaxMs(retryBackoffMaxMs)
+                .breakerFailureThreshold(breakerFailureThreshold)
+                .breakerOpenMs(breakerOpenMs)
+                .telemetryIntervalMs(telemetryIntervalMs)
+                .contextStore(contextStore)
+                .samplingRate(samplingRate)
+                .samplingRateLimits(samplingRateLimits)
+                .tailSampling(tailSampling)
+                .tailLatencyMs(tailLatencyMs)
+                .tailKeepErrors(tailKeepErrors)
+                .tailQuotas(tailQuotas)
+                .tailMaxBufferedEvents(tailMaxBufferedEvents)
+                .deinstrumentHotMethods(deinstrumentHotMethods)
+                .deinstrumentCallsPerSec(deinstrumentCallsPerSec)
+                .deinstrumentMaxAvgNanos(deinstrumentMaxAvgNanos)
+                .deinstrumentIntervalMs(deinstrumentIntervalMs)
+                .includedPackages(includedPackages)
+                .excludedPackages(excludedPackages)
+                .build();
+    }
+
+    /**
+     * Parse a comma-separated package prefix list, ignoring blanks.
+     */
+    public static Set<String> parsePackages(String value) {
+        Set<String> packages = new HashSet<>();
+        for (String pkg : value.split(",")) {
+            if (!pkg.isBlank()) {
+                packages.add(pkg.trim());
+            }
         }
+        return packages;
+    }
 
-        return new AgentConfiguration(collectorUrl, batchSize, batchIntervalMs, queueSize,
-                includedPackages, excludedPackages);
+    /**
+     * Parse "pattern=count" rules separated by commas, keeping their order.
+     */
+    private static Map<String, Integer> parseRateLimits(String value) {
+        Map<String, Integer> limits = new LinkedHashMap<>();
+        if (value.isEmpty()) {
+            return limits;
+        }
+        for (String rule : value.split(",")) {
+            int eq = rule.lastIndexOf('=');
+            if (eq <= 0) {
+                logWarn("Ignoring malformed rate limit rule: " + rule);
+                continue;
+            }
+            limits.put(rule.substring(0, eq).trim(), Integer.parseInt(rule.substring(eq + 1).trim()));
+        }
+        return limits;
     }
 
     public String getCollectorUrl() {
@@ -106,8 +370,170 @@ public class AgentConfiguration {
         return batchIntervalMs;
     }
 
-    public int getQueueSize() {
-        return queueSize;
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchIntervalMs(long batchIntervalMs) {
+        if (batchIntervalMs <= 0) {
+            throw new IllegalArgumentException("Batch interval must be positive: " + batchIntervalMs);
+        }
+        this.batchIntervalMs = batchIntervalMs;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getThreadBufferSize() {
+        return threadBufferSize;
+    }
+
+    public long getThreadBufferMaxBytes() {
+        return threadBufferMaxBytes;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        if (backpressurePolicy == null) {
+            throw new IllegalArgumentException("Backpressure policy must not be null");
+        }
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public int getBackpressureSampleKeep() {
+        return backpressureSampleKeep;
+    }
+
+    public long getBackpressureSpinWaitMicros() {
+        return backpressureSpinWaitMicros;
+    }
+
+    public boolean isBinaryRecording() {
+        return binaryRecording;
+    }
+
+    public int getRingSizeBytes() {
+        return ringSizeBytes;
+    }
+
+    public boolean isBinaryWireFormat() {
+        return binaryWireFormat;
+    }
+
+    /**
+     * Request body compression, "gzip" or "deflate", or null for none.
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    /**
+     * Spool directory, or null if spooling is disabled.
+     */
+    public String getSpoolDir() {
+        return spoolDir;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public int getSpoolSegmentBytes() {
+        return spoolSegmentBytes;
+    }
+
+    /**
+     * Bytecode cache directory, or null if the cache is disabled.
+     */
+    public String getBytecodeCacheDir() {
+        return bytecodeCacheDir;
+    }
+
+    public long getBytecodeCacheMaxBytes() {
+        return bytecodeCacheMaxBytes;
+    }
+
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    public long getRetryBackoffInitialMs() {
+        return retryBackoffInitialMs;
+    }
+
+    public long getRetryBackoffMaxMs() {
+        return retryBackoffMaxMs;
+    }
+
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    public long getBreakerOpenMs() {
+        return breakerOpenMs;
+    }
+
+    public long getTelemetryIntervalMs() {
+        return telemetryIntervalMs;
+    }
+
+    public String getContextStore() {
+        return contextStore;
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    public Map<String, Integer> getSamplingRateLimits() {
+        return samplingRateLimits;
+    }
+
+    public boolean isTailSampling() {
+        return tailSampling;
+    }
+
+    public long getTailLatencyMs() {
+        return tailLatencyMs;
+    }
+
+    public boolean isTailKeepErrors() {
+        return tailKeepErrors;
+    }
+
+    public Map<String, Integer> getTailQuotas() {
+        return tailQuotas;
+    }
+
+    public int getTailMaxBufferedEvents() {
+        return tailMaxBufferedEvents;
+    }
+
+    public boolean isDeinstrumentHotMethods() {
+        return deinstrumentHotMethods;
+    }
+
+    public double getDeinstrumentCallsPerSec() {
+        return deinstrumentCallsPerSec;
+    }
+
+    public long getDeinstrumentMaxAvgNanos() {
+        return deinstrumentMaxAvgNanos;
+    }
+
+    public long getDeinstrumentIntervalMs() {
+        return deinstrumentIntervalMs;
     }
 
     public Set<String> getIncludedPackages() {
@@ -118,30 +544,277 @@ public class AgentConfiguration {
         return excludedPackages;
     }
 
+    public synchronized void setIncludedPackages(Set<String> includedPackages) {
+        setPackages(includedPackages, excludedPackages);
+    }
+
+    public synchronized void setExcludedPackages(Set<String> excludedPackages) {
+        setPackages(includedPackages, excludedPackages);
+    }
+
+    /**
+     * Replace both package lists, and the matcher compiled from them, in one step.
+     * Callers that change one list based on the other hold this configuration's lock.
+     *
+     * @throws IllegalArgumentException if no package is included
+     */
+    public synchronized void setPackages(Set<String> includedPackages, Set<String> excludedPackages) {
+        PackageMatcher matcher = new PackageMatcher(includedPackages, excludedPackages);
+        this.includedPackages = Set.copyOf(includedPackages);
+        this.excludedPackages = Set.copyOf(excludedPackages);
+        this.packageMatcher = matcher;
+    }
+
+    /**
+     * Whether a class is instrumented, given its internal or binary name.
+     * Built-in exclusions apply too.
+     */
     public boolean shouldInstrument(String className) {
-        // Check excluded packages first
-        if (this.includedPackages.isEmpty()) {
-            return className.startsWith("com.example.");
+        return packageMatcher.matches(className);
+    }
+
+    /**
+     * Builds a configuration; every setting not given keeps its default.
+     */
+    public static class Builder {
+        private String collectorUrl = DEFAULT_COLLECTOR_URL;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private long batchIntervalMs = DEFAULT_BATCH_INTERVAL_MS;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private int threadBufferSize = DEFAULT_THREAD_BUFFER_SIZE;
+        private long threadBufferMaxBytes = DEFAULT_THREAD_BUFFER_MAX_BYTES;
+        private BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+        private int backpressureSampleKeep = DEFAULT_BACKPRESSURE_SAMPLE_KEEP;
+        private long backpressureSpinWaitMicros = DEFAULT_BACKPRESSURE_SPIN_WAIT_MICROS;
+        private boolean binaryRecording;
+        private int ringSizeBytes = DEFAULT_RING_SIZE_BYTES;
+        private boolean binaryWireFormat = false;
+        private String compression = "gzip";
+        private int compressionMinBytes = DEFAULT_COMPRESSION_MIN_BYTES;
+        private String spoolDir;
+        private long spoolMaxBytes = DEFAULT_SPOOL_MAX_BYTES;
+        private int spoolSegmentBytes = DEFAULT_SPOOL_SEGMENT_BYTES;
+        private String bytecodeCacheDir;
+        private long bytecodeCacheMaxBytes = DEFAULT_BYTECODE_CACHE_MAX_BYTES;
+        private int retryMaxAttempts = DEFAULT_RETRY_MAX_ATTEMPTS;
+        private long retryBackoffInitialMs = DEFAULT_RETRY_BACKOFF_INITIAL_MS;
+        private long retryBackoffMaxMs = DEFAULT_RETRY_BACKOFF_MAX_MS;
+        private int breakerFailureThreshold = DEFAULT_BREAKER_FAILURE_THRESHOLD;
+        private long breakerOpenMs = DEFAULT_BREAKER_OPEN_MS;
+        private long telemetryIntervalMs = DEFAULT_TELEMETRY_INTERVAL_MS;
+        private String contextStore = TraceContextStore.POOLED;
+        private double samplingRate = DEFAULT_SAMPLING_RATE;
+        private Map<String, Integer> samplingRateLimits = new LinkedHashMap<>();
+        private boolean tailSampling;
+        private long tailLatencyMs = DEFAULT_TAIL_LATENCY_MS;
+        private boolean tailKeepErrors = true;
+        private Map<String, Integer> tailQuotas = new LinkedHashMap<>();
+        private int tailMaxBufferedEvents = DEFAULT_TAIL_MAX_BUFFERED_EVENTS;
+        private boolean deinstrumentHotMethods = false;
+        private double deinstrumentCallsPerSec = DEFAULT_DEINSTRUMENT_CALLS_PER_SEC;
+        private long deinstrumentMaxAvgNanos = DEFAULT_DEINSTRUMENT_MAX_AVG_NANOS;
+        private long deinstrumentIntervalMs = DEFAULT_DEINSTRUMENT_INTERVAL_MS;
+        private Set<String> includedPackages = parsePackages(DEFAULT_INCLUDED_PACKAGES);
+        private Set<String> excludedPackages = parsePackages(DEFAULT_EXCLUDED_PACKAGES);
+
+        public Builder collectorUrl(String collectorUrl) {
+            this.collectorUrl = collectorUrl;
+            return this;
         }
-        for (String excluded : excludedPackages) {
-            if (className.startsWith(excluded)) {
-                return false;
-            }
+
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
         }
 
-        // If no included packages specified, instrument everything not excluded
-        if (includedPackages.isEmpty()) {
-            return true;
+        public Builder batchIntervalMs(long batchIntervalMs) {
+            this.batchIntervalMs = batchIntervalMs;
+            return this;
         }
 
-        // Check if class is in included packages
-        for (String included : includedPackages) {
-            if (className.startsWith(included)) {
-                return true;
-            }
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
         }
 
-        return false;
+        public Builder threadBufferSize(int threadBufferSize) {
+            this.threadBufferSize = threadBufferSize;
+            return this;
+        }
+
+        public Builder threadBufferMaxBytes(long threadBufferMaxBytes) {
+            this.threadBufferMaxBytes = threadBufferMaxBytes;
+            return this;
+        }
+
+        public Builder backpressurePolicy(BackpressurePolicy backpressurePolicy) {
+            this.backpressurePolicy = backpressurePolicy;
+            return this;
+        }
+
+        public Builder backpressureSampleKeep(int backpressureSampleKeep) {
+            this.backpressureSampleKeep = backpressureSampleKeep;
+            return this;
+        }
+
+        public Builder backpressureSpinWaitMicros(long backpressureSpinWaitMicros) {
+            this.backpressureSpinWaitMicros = backpressureSpinWaitMicros;
+            return this;
+        }
+
+        public Builder binaryRecording(boolean binaryRecording) {
+            this.binaryRecording = binaryRecording;
+            return this;
+        }
+
+        public Builder ringSizeBytes(int ringSizeBytes) {
+            this.ringSizeBytes = ringSizeBytes;
+            return this;
+        }
+
+        public Builder binaryWireFormat(boolean binaryWireFormat) {
+            this.binaryWireFormat = binaryWireFormat;
+            return this;
+        }
+
+        public Builder compression(String compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder compressionMinBytes(int compressionMinBytes) {
+            this.compressionMinBytes = compressionMinBytes;
+            return this;
+        }
+
+        public Builder spoolDir(String spoolDir) {
+            this.spoolDir = spoolDir;
+            return this;
+        }
+
+        public Builder spoolMaxBytes(long spoolMaxBytes) {
+            this.spoolMaxBytes = spoolMaxBytes;
+            return this;
+        }
+
+        public Builder spoolSegmentBytes(int spoolSegmentBytes) {
+            this.spoolSegmentBytes = spoolSegmentBytes;
+            return this;
+        }
+
+        public Builder bytecodeCacheDir(String bytecodeCacheDir) {
+            this.bytecodeCacheDir = bytecodeCacheDir;
+            return this;
+        }
+
+        public Builder bytecodeCacheMaxBytes(long bytecodeCacheMaxBytes) {
+            this.bytecodeCacheMaxBytes = bytecodeCacheMaxBytes;
+            return this;
+        }
+
+        public Builder retryMaxAttempts(int retryMaxAttempts) {
+            this.retryMaxAttempts = retryMaxAttempts;
+            return this;
+        }
+
+        public Builder retryBackoffInitialMs(long retryBackoffInitialMs) {
+            this.retryBackoffInitialMs = retryBackoffInitialMs;
+            return this;
+        }
+
+        public Builder retryBackoffMaxMs(long retryBackoffMaxMs) {
+            this.retryBackoffMaxMs = retryBackoffMaxMs;
+            return this;
+        }
+
+        public Builder breakerFailureThreshold(int breakerFailureThreshold) {
+            this.breakerFailureThreshold = breakerFailureThreshold;
+            return this;
+        }
+
+        public Builder breakerOpenMs(long breakerOpenMs) {
+            this.breakerOpenMs = breakerOpenMs;
+            return this;
+        }
+
+        public Builder telemetryIntervalMs(long telemetryIntervalMs) {
+            this.telemetryIntervalMs = telemetryIntervalMs;
+            return this;
+        }
+
+        public Builder contextStore(String contextStore) {
+            this.contextStore = contextStore;
+            return this;
+        }
+
+        public Builder samplingRate(double samplingRate) {
+            this.samplingRate = samplingRate;
+            return this;
+        }
+
+        public Builder samplingRateLimits(Map<String, Integer> samplingRateLimits) {
+            this.samplingRateLimits = samplingRateLimits;
+            return this;
+        }
+
+        public Builder tailSampling(boolean tailSampling) {
+            this.tailSampling = tailSampling;
+            return this;
+        }
+
+        public Builder tailLatencyMs(long tailLatencyMs) {
+            this.tailLatencyMs = tailLatencyMs;
+            return this;
+        }
+
+        public Builder tailKeepErrors(boolean tailKeepErrors) {
+            this.tailKeepErrors = tailKeepErrors;
+            return this;
+        }
+
+        public Builder tailQuotas(Map<String, Integer> tailQuotas) {
+            this.tailQuotas = tailQuotas;
+            return this;
+        }
+
+        public Builder tailMaxBufferedEvents(int tailMaxBufferedEvents) {
+            this.tailMaxBufferedEvents = tailMaxBufferedEvents;
+            return this;
+        }
+
+        public Builder deinstrumentHotMethods(boolean deinstrumentHotMethods) {
+            this.deinstrumentHotMethods = deinstrumentHotMethods;
+            return this;
+        }
+
+        public Builder deinstrumentCallsPerSec(double deinstrumentCallsPerSec) {
+            this.deinstrumentCallsPerSec = deinstrumentCallsPerSec;
+            return this;
+        }
+
+        public Builder deinstrumentMaxAvgNanos(long deinstrumentMaxAvgNanos) {
+            this.deinstrumentMaxAvgNanos = deinstrumentMaxAvgNanos;
+            return this;
+        }
+
+        public Builder deinstrumentIntervalMs(long deinstrumentIntervalMs) {
+            this.deinstrumentIntervalMs = deinstrumentIntervalMs;
+            return this;
+        }
+
+        public Builder includedPackages(Set<String> includedPackages) {
+            this.includedPackages = includedPackages;
+            return this;
+        }
+
+        public Builder excludedPackages(Set<String> excludedPackages) {
+            this.excludedPackages = excludedPackages;
+            return this;
+        }
+
+        public AgentConfiguration build() {
+            return new AgentConfiguration(this);
+        }
     }
 
     @Override
@@ -150,7 +823,40 @@ public class AgentConfiguration {
                 "collectorUrl='" + collectorUrl + '\'' +
                 ", batchSize=" + batchSize +
                 ", batchIntervalMs=" + batchIntervalMs +
-                ", queueSize=" + queueSize +
+                ", maxInFlight=" + maxInFlight +
+                ", threadBufferSize=" + threadBufferSize +
+                ", threadBufferMaxBytes=" + threadBufferMaxBytes +
+                ", backpressurePolicy=" + backpressurePolicy +
+                ", backpressureSampleKeep=" + backpressureSampleKeep +
+                ", backpressureSpinWaitMicros=" + backpressureSpinWaitMicros +
+                ", binaryRecording=" + binaryRecording +
+                ", ringSizeBytes=" + ringSizeBytes +
+                ", binaryWireFormat=" + binaryWireFormat +
+                ", compression=" + compression +
+                ", compressionMinBytes=" + compressionMinBytes +
+                ", spoolDir='" + spoolDir + '\'' +
+                ", spoolMaxBytes=" + spoolMaxBytes +
+                ", spoolSegmentBytes=" + spoolSegmentBytes +
+                ", bytecodeCacheDir='" + bytecodeCacheDir + '\'' +
+                ", bytecodeCacheMaxBytes=" + bytecodeCacheMaxBytes +
+                ", retryMaxAttempts=" + retryMaxAttempts +
+                ", retryBackoffInitialMs=" + retryBackoffInitialMs +
+                ", retryBackoffMaxMs=" + retryBackoffMaxMs +
+                ", breakerFailureThreshold=" + breakerFailureThreshold +
+                ", breakerOpenMs=" + breakerOpenMs +
+                ", telemetryIntervalMs=" + telemetryIntervalMs +
+                ", contextStore=" + contextStore +
+                ", samplingRate=" + samplingRate +
+                ", samplingRateLimits=" + samplingRateLimits +
+                ", tailSampling=" + tailSampling +
+                ", tailLatencyMs=" + tailLatencyMs +
+                ", tailKeepErrors=" + tailKeepErrors +
+                ", tailQuotas=" + tailQuotas +
+                ", tailMaxBufferedEvents=" + tailMaxBufferedEvents +
+                ", deinstrumentHotMethods=" + deinstrumentHotMethods +
+                ", deinstrumentCallsPerSec=" + deinstrumentCallsPerSec +
+                ", deinstrumentMaxAvgNanos=" + deinstrumentMaxAvgNanos +
+                ", deinstrumentIntervalMs=" + deinstrumentIntervalMs +
                 ", includedPackages=" + includedPackages +
                 ", excludedPackages=" + excludedPackages +
                 '}';
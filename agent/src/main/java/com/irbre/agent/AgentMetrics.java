@@ -0,0 +1,104 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.EventType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms the agent keeps about itself: what it recorded,
+ * what it cost to encode and send, and what it lost. Updated from
+ * application threads and the sender without locks; read by
+ * {@link AgentTelemetry}.
+ */
+class AgentMetrics {
+    private final LongAdder[] eventsRecorded = new LongAdder[EventType.values().length];
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram serializationNanos = new Histogram();
+    private final Histogram roundTripMicros = new Histogram();
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder batchesSpooled = new LongAdder();
+    private final LongAdder batchesDropped = new LongAdder();
+
+    AgentMetrics() {
+        for (int i = 0; i < eventsRecorded.length; i++) {
+            eventsRecorded[i] = new LongAdder();
+        }
+    }
+
+    void eventRecorded(EventType type) {
+        eventsRecorded[type.ordinal()].increment();
+    }
+
+    /**
+     * A batch of {@code events} events was encoded into {@code bytes} bytes in {@code nanos}.
+     */
+    void batchEncoded(int events, int bytes, long nanos) {
+        batchSizes.record(events);
+        bytesEncoded.add(bytes);
+        serializationNanos.record(nanos);
+    }
+
+    /**
+     * A request body of {@code bytes} bytes went out and was answered after {@code nanos}.
+     */
+    void requestCompleted(long bytes, long nanos) {
+        bytesSent.add(bytes);
+        roundTripMicros.record(nanos / 1000);
+    }
+
+    void batchSent() {
+        batchesSent.increment();
+    }
+
+    void batchSpooled() {
+        batchesSpooled.increment();
+    }
+
+    void batchDropped() {
+        batchesDropped.increment();
+    }
+
+    Map<String, Long> getEventsRecorded() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (EventType type : EventType.values()) {
+            counts.put(type.name(), eventsRecorded[type.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    Histogram getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    Histogram getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    long getBytesEncoded() {
+        return bytesEncoded.sum();
+    }
+
+    long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    long getBatchesSent() {
+        return batchesSent.sum();
+    }
+
+    long getBatchesSpooled() {
+        return batchesSpooled.sum();
+    }
+
+    long getBatchesDropped() {
+        return batchesDropped.sum();
+    }
+}
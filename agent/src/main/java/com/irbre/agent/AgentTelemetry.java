@@ -0,0 +1,143 @@
+package com.irbre.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports the agent's self-telemetry over JMX and builds the summary that
+ * {@link EventSender} attaches to a batch every telemetry interval, so the
+ * collector sees agent overhead and loss without a JMX connection.
+ */
+public class AgentTelemetry implements AgentTelemetryMBean {
+
+    public static final String OBJECT_NAME = "com.irbre:type=AgentTelemetry";
+
+    private final AgentMetrics metrics;
+    private final EventBatcher batcher;
+    private final EventSender sender;
+
+    public AgentTelemetry(AgentMetrics metrics, EventBatcher batcher, EventSender sender) {
+        this.metrics = metrics;
+        this.batcher = batcher;
+        this.sender = sender;
+    }
+
+    @Override
+    public Map<String, Long> getEventsRecorded() {
+        return metrics.getEventsRecorded();
+    }
+
+    @Override
+    public Map<String, Long> getEventsShed() {
+        return batcher.getShedCounts();
+    }
+
+    @Override
+    public long getBatchesSent() {
+        return metrics.getBatchesSent();
+    }
+
+    @Override
+    public long getBatchesDropped() {
+        return metrics.getBatchesDropped();
+    }
+
+    @Override
+    public long getBatchesSpooled() {
+        return metrics.getBatchesSpooled();
+    }
+
+    @Override
+    public long getSpoolEvictedBatches() {
+        return sender.getSpoolEvictedBatches();
+    }
+
+    @Override
+    public long getBufferedEvents() {
+        return batcher.getBufferedEvents();
+    }
+
+    @Override
+    public long getRingPendingBytes() {
+        return batcher.getRingPendingBytes();
+    }
+
+    @Override
+    public long getSpoolBytes() {
+        return sender.getSpoolBytes();
+    }
+
+    @Override
+    public Map<String, Long> getBatchSizeHistogram() {
+        return metrics.getBatchSizes().buckets();
+    }
+
+    @Override
+    public long getSerializationNanosTotal() {
+        return metrics.getSerializationNanos().sum();
+    }
+
+    @Override
+    public long getSerializationNanosP99() {
+        return metrics.getSerializationNanos().percentile(99);
+    }
+
+    @Override
+    public Map<String, Long> getRoundTripMicrosHistogram() {
+        return metrics.getRoundTripMicros().buckets();
+    }
+
+    @Override
+    public long getRoundTripMicrosP50() {
+        return metrics.getRoundTripMicros().percentile(50);
+    }
+
+    @Override
+    public long getRoundTripMicrosP99() {
+        return metrics.getRoundTripMicros().percentile(99);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return metrics.getBytesSent();
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return metrics.getBytesEncoded();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return sender.getCircuitBreakerState().name();
+    }
+
+    @Override
+    public Map<String, Long> getSummary() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        metrics.getEventsRecorded().forEach((type, count) -> summary.put("events.recorded." + type, count));
+        batcher.getShedCounts().forEach((policy, count) -> summary.put("events.shed." + policy, count));
+        summary.put("events.buffered", getBufferedEvents());
+        summary.put("ring.pending.bytes", getRingPendingBytes());
+        summary.put("batches.sent", getBatchesSent());
+        summary.put("batches.spooled", getBatchesSpooled());
+        summary.put("batches.dropped", getBatchesDropped());
+        summary.put("spool.evicted.batches", getSpoolEvictedBatches());
+        summary.put("spool.bytes", getSpoolBytes());
+        Histogram batchSizes = metrics.getBatchSizes();
+        summary.put("batch.events.mean", batchSizes.mean());
+        summary.put("batch.events.max", batchSizes.max());
+        Histogram serialization = metrics.getSerializationNanos();
+        summary.put("serialization.nanos.total", serialization.sum());
+        summary.put("serialization.nanos.p99", serialization.percentile(99));
+        Histogram roundTrip = metrics.getRoundTripMicros();
+        summary.put("rtt.micros.count", roundTrip.count());
+        summary.put("rtt.micros.p50", roundTrip.percentile(50));
+        summary.put("rtt.micros.p99", roundTrip.percentile(99));
+        summary.put("rtt.micros.max", roundTrip.max());
+        summary.put("bytes.encoded", getBytesEncoded());
+        summary.put("bytes.sent", getBytesSent());
+        summary.put("breaker.open", sender.getCircuitBreakerState() == CircuitBreaker.State.CLOSED ? 0L : 1L);
+        return summary;
+    }
+}
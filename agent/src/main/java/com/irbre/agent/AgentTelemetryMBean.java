@@ -0,0 +1,77 @@
+package com.irbre.agent;
+
+import java.util.Map;
+
+/**
+ * JMX view of the agent's own cost and losses, registered as {@code com.irbre:type=AgentTelemetry}.
+ *
+ * Counters are totals since the agent started. Histograms are keyed by
+ * bucket upper bound ("&lt;1024" counts values below 1024).
+ */
+public interface AgentTelemetryMBean {
+
+    /**
+     * Events recorded into a thread buffer or ring, by event type.
+     */
+    Map<String, Long> getEventsRecorded();
+
+    /**
+     * Events dropped by full thread buffers or rings, by backpressure policy.
+     */
+    Map<String, Long> getEventsShed();
+
+    long getBatchesSent();
+
+    /**
+     * Batches the collector rejected, or that failed after their retries with no spool to take them.
+     */
+    long getBatchesDropped();
+
+    long getBatchesSpooled();
+
+    /**
+     * Spooled batches discarded because the spool exceeded its disk budget.
+     */
+    long getSpoolEvictedBatches();
+
+    /**
+     * Events waiting in thread buffers and in the batcher's send lanes.
+     */
+    long getBufferedEvents();
+
+    /**
+     * Bytes of records waiting in the binary recording rings.
+     */
+    long getRingPendingBytes();
+
+    long getSpoolBytes();
+
+    Map<String, Long> getBatchSizeHistogram();
+
+    long getSerializationNanosTotal();
+
+    long getSerializationNanosP99();
+
+    Map<String, Long> getRoundTripMicrosHistogram();
+
+    long getRoundTripMicrosP50();
+
+    long getRoundTripMicrosP99();
+
+    /**
+     * Request body bytes put on the wire, after compression, including retries.
+     */
+    long getBytesSent();
+
+    /**
+     * Encoded batch bytes before compression.
+     */
+    long getBytesEncoded();
+
+    String getCircuitBreakerState();
+
+    /**
+     * All of the above flattened into one map; the same summary is periodically sent with a batch.
+     */
+    Map<String, Long> getSummary();
+}
@@ -0,0 +1,118 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.TraceEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The trace of a request, captured when work is handed to another thread
+ * and attached to that thread while the work runs.
+ *
+ * Immutable, so one snapshot can be shared by every task submitted from the
+ * same span; {@link EventCollector#captureContext()} reuses it until the
+ * current span changes. What the request and its tasks update together, the
+ * span sequence and the tail sampling buffer, is referenced, not copied.
+ */
+final class AsyncContext {
+    final String traceId;
+    // Parent of the task's first span: the span that submitted it
+    final long parentSpanId;
+    final boolean sampled;
+    // Sequence numbers of the request's spans, shared with every task it submits
+    final AtomicInteger sequence;
+    // Where tasks hold their spans while the request is tail-buffered, else null
+    final TailBuffer tail;
+
+    AsyncContext(String traceId, long parentSpanId, boolean sampled, AtomicInteger sequence, TailBuffer tail) {
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+        this.sampled = sampled;
+        this.sequence = sequence;
+        this.tail = tail;
+    }
+
+    /**
+     * Spans recorded by the tasks of a tail-buffered request, held until the
+     * request's own thread decides whether the trace is kept. Spans that
+     * arrive after the decision follow it directly.
+     */
+    static final class TailBuffer {
+        // Null once decided
+        private List<TraceEvent> held = new ArrayList<>();
+        private boolean kept;
+        // Set by tasks: one failed, or could not reserve room, which keeps the trace
+        volatile boolean failed;
+        volatile boolean overflowed;
+
+        /**
+         * @return false if the request has already decided; see {@link #isKept}
+         */
+        synchronized boolean hold(TraceEvent event) {
+            if (held == null) {
+                return false;
+            }
+            held.add(event);
+            return true;
+        }
+
+        synchronized boolean isDecided() {
+            return held == null;
+        }
+
+        synchronized boolean isKept() {
+            return kept;
+        }
+
+        /**
+         * Record the request's decision and take the spans held so far.
+         */
+        synchronized List<TraceEvent> decide(boolean keep) {
+            List<TraceEvent> events = held != null ? held : Collections.emptyList();
+            held = null;
+            kept = keep;
+            return events;
+        }
+    }
+
+    /**
+     * What the running thread had before a context was attached, restored when the task ends.
+     */
+    static final class Scope {
+        final String traceId;
+        final boolean sampled;
+        final boolean requestTrace;
+        final int depth;
+        final int sequenceNumber;
+        final AtomicInteger sharedSequence;
+        final TailBuffer taskTail;
+        final boolean tailBuffered;
+        // False when the task continues the thread's own trace, e.g. a fork/join task run inline
+        final boolean switched;
+        // The thread's ring, set aside while a task of another trace runs because its
+        // request is tail-buffered and the records at its end may yet be discarded
+        final BinaryEventRing deferredRing;
+
+        Scope(TraceContext ctx, boolean switched, BinaryEventRing deferredRing) {
+            this.traceId = ctx.traceId;
+            this.sampled = ctx.sampled;
+            this.requestTrace = ctx.requestTrace;
+            this.depth = ctx.depth;
+            this.sequenceNumber = ctx.sequenceNumber;
+            this.sharedSequence = ctx.sharedSequence;
+            this.taskTail = ctx.taskTail;
+            this.tailBuffered = ctx.tailBuffered;
+            this.switched = switched;
+            this.deferredRing = deferredRing;
+        }
+
+        /**
+         * Whether the thread had no trace of its own, like an idle pool worker.
+         */
+        boolean isIdle() {
+            return traceId == null && depth == 0;
+        }
+    }
+}
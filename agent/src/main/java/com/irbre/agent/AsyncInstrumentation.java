@@ -0,0 +1,222 @@
+package com.irbre.agent;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+import java.lang.reflect.Field;
+import java.util.Set;
+
+/**
+ * Bytecode that carries a request's trace over to the threads its work is
+ * handed to.
+ *
+ * The JDK's executors live in the boot class loader and cannot see the
+ * agent, so they are left alone; instead the application's own classes are
+ * changed where they hand work over:
+ * <ul>
+ * <li>Calls to {@code Executor.execute}/{@code submit}, CompletableFuture's
+ * {@code *Async} stages and {@code ForkJoinTask.adapt} get their task
+ * argument passed through {@link IrbreProbe}'s {@code wrap}, which returns a
+ * {@link TracedTask} when the caller is in a request.</li>
+ * <li>Subclasses of RecursiveTask, RecursiveAction and CountedCompleter get a
+ * field holding the trace captured when the task is constructed, and run
+ * {@code compute()} inside it, so fork(), invoke() and join() all work.</li>
+ * </ul>
+ * Tasks submitted through other executor types, such as an application's own
+ * Executor implementation called through its class rather than the JDK
+ * interface, are not wrapped; nor are tasks that implement more than their
+ * functional interface, such as Comparable tasks for a priority queue.
+ */
+final class AsyncInstrumentation {
+    static final String CONTEXT_FIELD = "irbre$context";
+
+    private static final String PROBE = "com/irbre/agent/IrbreProbe";
+    private static final String OBJECT = "Ljava/lang/Object;";
+
+    private static final Set<String> EXECUTORS = Set.of(
+            "java/util/concurrent/Executor",
+            "java/util/concurrent/ExecutorService",
+            "java/util/concurrent/ScheduledExecutorService",
+            "java/util/concurrent/AbstractExecutorService",
+            "java/util/concurrent/ThreadPoolExecutor",
+            "java/util/concurrent/ScheduledThreadPoolExecutor",
+            "java/util/concurrent/ForkJoinPool",
+            "org/springframework/core/task/TaskExecutor",
+            "org/springframework/core/task/AsyncTaskExecutor",
+            "org/springframework/scheduling/concurrent/ThreadPoolTaskExecutor");
+
+    private static final Set<String> COMPLETION_STAGES = Set.of(
+            "java/util/concurrent/CompletableFuture",
+            "java/util/concurrent/CompletionStage");
+
+    private static final Set<String> FORK_JOIN_TASKS = Set.of(
+            "java/util/concurrent/RecursiveTask",
+            "java/util/concurrent/RecursiveAction",
+            "java/util/concurrent/CountedCompleter");
+
+    // Task types with a wrap overload in IrbreProbe
+    private static final Set<String> TASK_TYPES = Set.of(
+            "java/lang/Runnable",
+            "java/util/concurrent/Callable",
+            "java/util/function/Supplier",
+            "java/util/function/Function",
+            "java/util/function/Consumer",
+            "java/util/function/BiFunction",
+            "java/util/function/BiConsumer");
+
+    private AsyncInstrumentation() {
+    }
+
+    /**
+     * Whether a class with this superclass gets a context field.
+     */
+    static boolean isForkJoinTask(String superName) {
+        return FORK_JOIN_TASKS.contains(superName);
+    }
+
+    /**
+     * Whether a loaded class already has a context field. Retransformation
+     * cannot add or remove fields, so this decides for classes already loaded.
+     */
+    static boolean hasContextField(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            if (field.getName().equals(CONTEXT_FIELD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isCompute(int access, String name, String descriptor) {
+        return name.equals("compute") && descriptor.startsWith("()")
+                && (access & (Opcodes.ACC_BRIDGE | Opcodes.ACC_STATIC | Opcodes.ACC_ABSTRACT)) == 0;
+    }
+
+    /**
+     * Which argument of a call is a task to wrap: 1 for the last, 2 for the
+     * one before a trailing reference (an Executor or a result), 0 for none.
+     */
+    static int taskArgument(String owner, String name, String descriptor) {
+        boolean handsOver = (EXECUTORS.contains(owner) && (name.equals("execute") || name.equals("submit")))
+                || (COMPLETION_STAGES.contains(owner) && name.endsWith("Async"))
+                || (owner.equals("java/util/concurrent/ForkJoinTask") && name.equals("adapt"));
+        if (!handsOver) {
+            return 0;
+        }
+        Type[] arguments = Type.getArgumentTypes(descriptor);
+        int n = arguments.length;
+        if (n >= 1 && isTaskType(arguments[n - 1])) {
+            return 1;
+        }
+        if (n >= 2 && isTaskType(arguments[n - 2]) && arguments[n - 1].getSort() == Type.OBJECT) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static boolean isTaskType(Type type) {
+        return type.getSort() == Type.OBJECT && TASK_TYPES.contains(type.getInternalName());
+    }
+
+    /**
+     * Wraps the task argument of calls that hand work to another thread.
+     */
+    static final class CallSiteVisitor extends MethodVisitor {
+
+        CallSiteVisitor(MethodVisitor mv) {
+            super(Opcodes.ASM9, mv);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            int argument = taskArgument(owner, name, descriptor);
+            if (argument != 0) {
+                Type[] arguments = Type.getArgumentTypes(descriptor);
+                String task = arguments[arguments.length - argument].getDescriptor();
+                // The task is on top of the stack, or just below a one-slot reference
+                if (argument == 2) {
+                    super.visitInsn(Opcodes.SWAP);
+                }
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, PROBE, "wrap", "(" + task + ")" + task, false);
+                if (argument == 2) {
+                    super.visitInsn(Opcodes.SWAP);
+                }
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+    }
+
+    /**
+     * Captures the current trace into the context field at the end of a fork/join task's constructor.
+     */
+    static final class ConstructorVisitor extends MethodVisitor {
+        private final String owner;
+
+        ConstructorVisitor(MethodVisitor mv, String owner) {
+            super(Opcodes.ASM9, mv);
+            this.owner = owner;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode == Opcodes.RETURN) {
+                super.visitVarInsn(Opcodes.ALOAD, 0);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, PROBE, "capture", "()" + OBJECT, false);
+                super.visitFieldInsn(Opcodes.PUTFIELD, owner, CONTEXT_FIELD, OBJECT);
+            }
+            super.visitInsn(opcode);
+        }
+    }
+
+    /**
+     * Runs a fork/join task's {@code compute()} in the trace held by its
+     * context field, detaching on every exit, exceptional ones included.
+     * Applied inside the span probe, so the compute span itself belongs to the trace.
+     */
+    static final class ComputeVisitor extends AdviceAdapter {
+        private final String owner;
+        private final Label tryStart = new Label();
+        private int scopeLocal = -1;
+
+        ComputeVisitor(MethodVisitor mv, String owner, int access, String name, String descriptor) {
+            super(Opcodes.ASM9, mv, access, name, descriptor);
+            this.owner = owner;
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            loadThis();
+            mv.visitFieldInsn(GETFIELD, owner, CONTEXT_FIELD, OBJECT);
+            mv.visitMethodInsn(INVOKESTATIC, PROBE, "attach", "(" + OBJECT + ")" + OBJECT, false);
+            scopeLocal = newLocal(Type.getType(Object.class));
+            storeLocal(scopeLocal);
+            mv.visitLabel(tryStart);
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            // Exceptions, including explicit throws, are handled by the handler added in visitMaxs
+            if (opcode == ATHROW) {
+                return;
+            }
+            loadLocal(scopeLocal);
+            mv.visitMethodInsn(INVOKESTATIC, PROBE, "detach", "(" + OBJECT + ")V", false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (scopeLocal >= 0) {
+                Label handler = new Label();
+                mv.visitTryCatchBlock(tryStart, handler, handler, null);
+                mv.visitLabel(handler);
+                loadLocal(scopeLocal);
+                mv.visitMethodInsn(INVOKESTATIC, PROBE, "detach", "(" + OBJECT + ")V", false);
+                mv.visitInsn(ATHROW);
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.irbre.agent;
+
+/**
+ * What {@link EventBatcher#addEvent} does when the calling thread's buffer is
+ * full. None of the policies block the application thread for longer than
+ * the configured spin time.
+ */
+public enum BackpressurePolicy {
+    DROP_NEWEST,  // Discard the event being added
+    DROP_OLDEST,  // Evict the oldest buffered events to make room
+    SAMPLE,       // Above the high-water mark keep one event in N; drop when full
+    SPIN_WAIT;    // Spin briefly for the batch processor to make room, then drop
+
+    /**
+     * Parse a policy name such as "drop-oldest" or "DROP_OLDEST".
+     */
+    public static BackpressurePolicy parse(String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase());
+    }
+}
@@ -0,0 +1,114 @@
+package com.irbre.agent;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses outgoing batch bodies for the Content-Encoding request header.
+ *
+ * One Deflater is reused for every batch instead of allocating a
+ * GZIPOutputStream (and its native zlib state) per send; gzip framing is
+ * written by hand around the raw deflate stream. Input is read chunk by
+ * chunk and output goes into a pooled {@link BodyBuffer}, so no contiguous
+ * copy of either body is made. Calls are
+ * synchronized because a shutdown flush can send while the batch processor
+ * is still running; there is no contention otherwise.
+ *
+ * Bodies below the size threshold are sent as is, since the framing and the
+ * CPU cost outweigh the savings. So are bodies that do not shrink by at
+ * least {@link #MIN_SAVING_PERCENT} percent.
+ */
+class BatchCompressor {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int MIN_SAVING_PERCENT = 10;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final String encoding;
+    private final int minBytes;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[16 * 1024];
+
+    /**
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param minBytes bodies smaller than this are not compressed
+     */
+    BatchCompressor(String encoding, int minBytes) {
+        if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported compression: " + encoding);
+        }
+        this.encoding = encoding;
+        this.minBytes = minBytes;
+        // gzip carries its own header and CRC, so it uses the raw deflate stream
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, GZIP.equals(encoding));
+    }
+
+    /**
+     * The Content-Encoding header value for compressed bodies.
+     */
+    String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Compress a batch body, or return null if it should be sent uncompressed.
+     * The caller owns, and releases, both bodies.
+     */
+    synchronized BodyBuffer compress(BodyBuffer body) {
+        if (body.size() < minBytes) {
+            return null;
+        }
+        boolean gzip = GZIP.equals(encoding);
+        BodyBuffer out = new BodyBuffer();
+        if (gzip) {
+            out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            crc.reset();
+        }
+
+        deflater.reset();
+        for (int i = 0; i < body.chunkCount(); i++) {
+            byte[] chunk = body.chunk(i);
+            int length = body.chunkLength(i);
+            if (gzip) {
+                crc.update(chunk, 0, length);
+            }
+            deflater.setInput(chunk, 0, length);
+            while (!deflater.needsInput()) {
+                out.write(scratch, 0, deflater.deflate(scratch));
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(scratch, 0, deflater.deflate(scratch));
+        }
+
+        if (gzip) {
+            putIntLE(scratch, 0, (int) crc.getValue());
+            putIntLE(scratch, 4, (int) body.size());
+            out.write(scratch, 0, GZIP_TRAILER_SIZE);
+        }
+
+        if (out.size() > body.size() * (100 - MIN_SAVING_PERCENT) / 100) {
+            out.release();
+            return null;
+        }
+        return out;
+    }
+
+    private static int putIntLE(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) value;
+        buf[pos + 1] = (byte) (value >>> 8);
+        buf[pos + 2] = (byte) (value >>> 16);
+        buf[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchCompressor{encoding=" + encoding + ", minBytes=" + minBytes + '}';
+    }
+}
@@ -0,0 +1,311 @@
+package com.irbre.agent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Write-ahead spool for encoded batches the collector could not take.
+ *
+ * Batches are appended to memory-mapped segment files in a directory and
+ * read back oldest-first for replay. Each segment starts with an 8-byte
+ * header holding the replay position, so batches already delivered are not
+ * replayed again after a restart, and how many times the collector failed
+ * on the batch at that position ({@link #recordFailure}), so a batch it
+ * can never take is eventually dropped rather than blocking the spool.
+ * Records follow the header:
+ *
+ * <pre>
+ * record := int bodyLength, byte format, int dictionaryEnd, body
+ * </pre>
+ *
+ * The length is written last, and an unwritten length reads as 0, which
+ * marks the end of a segment. A record cut off by a crash is therefore never
+ * replayed. When a record does not fit, a new segment is started. When the
+ * spool grows past its disk budget, whole segments are evicted oldest first.
+ * Data reaches the page cache on append and the disk when the OS flushes it
+ * or on {@link #force()}.
+ *
+ * All methods are synchronized. Writers are the batch processor, HTTP
+ * completion threads and, on buffer overflow, application threads.
+ */
+class BatchSpool {
+    private static void logInfo(String msg) {
+        System.out.println("[IRBRE] " + msg);
+    }
+
+    private static void logWarn(String msg) {
+        System.err.println("[IRBRE WARN] " + msg);
+    }
+
+    static final byte FORMAT_JSON = 0;
+    static final byte FORMAT_BINARY = 1;
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int FAILURES_OFFSET = 4;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentNumber;
+    private long totalBytes;
+    private long evictedRecords;
+
+    /**
+     * An encoded batch read back from the spool.
+     */
+    static final class Record {
+        final byte format;
+        final int dictionaryEnd;
+        final byte[] body;
+        private final long segmentNumber;
+        private final int position;
+
+        Record(byte format, int dictionaryEnd, byte[] body, long segmentNumber, int position) {
+            this.format = format;
+            this.dictionaryEnd = dictionaryEnd;
+            this.body = body;
+            this.segmentNumber = segmentNumber;
+            this.position = position;
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long number;
+        final MappedByteBuffer buffer;
+        int readPos;
+        int writePos;
+
+        Segment(Path path, long number, MappedByteBuffer buffer) {
+            this.path = path;
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * Open the spool in {@code directory}, picking up segments left by a previous run.
+     */
+    BatchSpool(Path directory, long maxBytes, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            files.forEach(existing::add);
+        }
+        existing.sort(null); // zero-padded numbers sort in creation order
+        int pending = 0;
+        for (Path path : existing) {
+            Segment segment = map(path, segmentNumber(path), (int) Files.size(path));
+            segment.readPos = Math.max(segment.buffer.getInt(0), SEGMENT_HEADER_SIZE);
+            segment.writePos = scanEnd(segment);
+            segments.addLast(segment);
+            totalBytes += segment.capacity();
+            nextSegmentNumber = segment.number + 1;
+            pending += countRecords(segment);
+        }
+        if (pending > 0) {
+            logInfo("Spool " + directory + " holds " + pending + " undelivered batch(es)");
+        }
+        discardConsumedSegments();
+    }
+
+    /**
+     * Append an encoded batch. Evicts the oldest segments if the disk budget is exceeded.
+     */
+    synchronized void append(byte format, int dictionaryEnd, BodyBuffer body) throws IOException {
+        int size = RECORD_HEADER_SIZE + (int) body.size();
+        Segment tail = segments.peekLast();
+        // Keep 4 bytes after each record for the zero end marker
+        if (tail == null || tail.writePos + size + 4 > tail.capacity()) {
+            tail = newSegment(Math.max(segmentBytes, SEGMENT_HEADER_SIZE + size + 4));
+        }
+        MappedByteBuffer buf = tail.buffer;
+        int pos = tail.writePos;
+        buf.put(pos + 4, format);
+        buf.putInt(pos + 5, dictionaryEnd);
+        body.copyTo(buf, pos + RECORD_HEADER_SIZE);
+        buf.putInt(pos + size, 0);
+        // Publish: the record becomes visible once its length is set
+        buf.putInt(pos, (int) body.size());
+        tail.writePos = pos + size;
+        evictOverBudget();
+    }
+
+    /**
+     * The oldest undelivered batch, or null if the spool is empty.
+     */
+    synchronized Record peek() {
+        discardConsumedSegments();
+        Segment head = segments.peekFirst();
+        if (head == null || head.readPos >= head.writePos) {
+            return null;
+        }
+        MappedByteBuffer buf = head.buffer;
+        int pos = head.readPos;
+        int length = buf.getInt(pos);
+        byte[] body = new byte[length];
+        buf.get(pos + RECORD_HEADER_SIZE, body);
+        return new Record(buf.get(pos + 4), buf.getInt(pos + 5), body, head.number, pos);
+    }
+
+    /**
+     * Mark a batch returned by {@link #peek()} as delivered. Does nothing if it
+     * was evicted in the meantime.
+     */
+    synchronized void advance(Record record) {
+        Segment head = segments.peekFirst();
+        if (head == null || head.number != record.segmentNumber || head.readPos != record.position) {
+            return;
+        }
+        head.readPos += RECORD_HEADER_SIZE + head.buffer.getInt(head.readPos);
+        head.buffer.putInt(0, head.readPos);
+        head.buffer.putInt(FAILURES_OFFSET, 0);
+        discardConsumedSegments();
+    }
+
+    /**
+     * Count a failed delivery of a batch returned by {@link #peek()}.
+     *
+     * @return failures of that batch so far, across restarts; 0 if it was evicted in the meantime
+     */
+    synchronized int recordFailure(Record record) {
+        Segment head = segments.peekFirst();
+        if (head == null || head.number != record.segmentNumber || head.readPos != record.position) {
+            return 0;
+        }
+        int failures = head.buffer.getInt(FAILURES_OFFSET) + 1;
+        head.buffer.putInt(FAILURES_OFFSET, failures);
+        return failures;
+    }
+
+    synchronized boolean isEmpty() {
+        discardConsumedSegments();
+        Segment head = segments.peekFirst();
+        return head == null || head.readPos >= head.writePos;
+    }
+
+    /**
+     * Disk space taken by the spool's segments.
+     */
+    synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Batches dropped because the spool exceeded its disk budget.
+     */
+    synchronized long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    /**
+     * Flush mapped segments to disk.
+     */
+    synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private Segment newSegment(int capacity) throws IOException {
+        long number = nextSegmentNumber++;
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Segment segment = map(path, number, capacity);
+        segment.buffer.putInt(0, SEGMENT_HEADER_SIZE);
+        segment.buffer.putInt(FAILURES_OFFSET, 0);
+        segment.buffer.putInt(SEGMENT_HEADER_SIZE, 0);
+        segment.readPos = SEGMENT_HEADER_SIZE;
+        segment.writePos = SEGMENT_HEADER_SIZE;
+        segments.addLast(segment);
+        totalBytes += capacity;
+        return segment;
+    }
+
+    private static Segment map(Path path, long number, int capacity) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new Segment(path, number, buffer);
+        }
+    }
+
+    /**
+     * Position after the last complete record of a segment written by a previous run.
+     */
+    private static int scanEnd(Segment segment) {
+        int pos = SEGMENT_HEADER_SIZE;
+        while (pos + 4 <= segment.capacity()) {
+            int length = segment.buffer.getInt(pos);
+            if (length <= 0 || pos + RECORD_HEADER_SIZE + length > segment.capacity()) {
+                break;
+            }
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    private static int countRecords(Segment segment) {
+        int count = 0;
+        for (int pos = segment.readPos; pos < segment.writePos; pos += RECORD_HEADER_SIZE + segment.buffer.getInt(pos)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Delete fully replayed segments, except the one being written.
+     */
+    private void discardConsumedSegments() {
+        while (segments.size() > 1 && segments.peekFirst().readPos >= segments.peekFirst().writePos) {
+            delete(segments.removeFirst());
+        }
+    }
+
+    private void evictOverBudget() {
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            int lost = countRecords(oldest);
+            evictedRecords += lost;
+            delete(oldest);
+            logWarn("Spool over its " + maxBytes + " byte budget, evicted " + lost + " oldest batch(es)");
+        }
+    }
+
+    private void delete(Segment segment) {
+        totalBytes -= segment.capacity();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logWarn("Could not delete spool segment " + segment.path + ": " + e);
+        }
+    }
+}
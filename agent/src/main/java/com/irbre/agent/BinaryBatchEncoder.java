@@ -0,0 +1,346 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.ClockAnchor;
+import com.irbre.agent.model.EventBatch;
+import com.irbre.agent.model.EventType;
+import com.irbre.agent.model.MethodInfo;
+import com.irbre.agent.model.RequestMetadata;
+import com.irbre.agent.model.SpanOutcome;
+import com.irbre.agent.model.TraceEvent;
+import com.irbre.agent.model.TraceSection;
+import com.irbre.agent.util.StringTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Encodes an event batch in the compact binary wire format
+ * ({@value #CONTENT_TYPE}), the alternative to the JSON batch body.
+ *
+ * Integers are LEB128 varints, signed values zigzag-encoded. Strings are
+ * collected into a per-batch dictionary and events refer to them by index;
+ * request metadata is written once per distinct instance. Start times,
+ * sequence numbers, span IDs and Lamport clocks are deltas from the
+ * previous event in the batch.
+ *
+ * Start times are {@link System#nanoTime()} readings. The header carries the
+ * batch's {@link ClockAnchor}, which the collector uses to turn them into
+ * epoch time; the first event's start time is a delta from the anchor's nanoTime.
+ *
+ * Events are grouped into per-trace sections: only the first event of a
+ * section carries the trace ID (flag TRACE), later events inherit it. Callers
+ * add each trace's events contiguously; a trace that reappears later simply
+ * opens another section, which the collector merges.
+ *
+ * <pre>
+ * batch    := magic "IRBB", version byte, string agentId,
+ *             zigzag anchor epochNanos, zigzag anchor nanoTime,
+ *             varint methodCount, (varint methodId, string className, string methodName, string descriptor)*,
+ *             varint stringCount, string*,
+ *             varint metadataCount, (ref httpMethod, ref requestUri, varint headerCount, (ref, ref)*, ref clientIp)*,
+ *             varint eventCount, event*,
+ *             [varint statCount, (string name, zigzag value)*]
+ * event    := byte flags, [TRACE] ref traceId, ref eventType,
+ *             zigzag startNanos delta, zigzag sequenceNumber delta,
+ *             zigzag methodId, zigzag spanId delta,
+ *             [PARENT] zigzag (parentSpanId - spanId), [DURATION] varint durationNanos,
+ *             [OUTCOME] ref outcome, [THREAD] ref threadName + varint threadId,
+ *             [EXCEPTION] ref exceptionType + ref exceptionMessage,
+ *             [METADATA] varint metadata index, [LAMPORT] zigzag lamportClock delta
+ * string   := varint (UTF-8 length + 1), bytes; 0 = null
+ * ref      := varint (dictionary index + 1); 0 = null
+ * </pre>
+ *
+ * The trailing agent statistics are optional: they are only written when a
+ * telemetry summary is due, and a collector that does not know them ignores
+ * the bytes after the last event.
+ *
+ * The collector's BinaryBatchDecoder mirrors this layout.
+ */
+class BinaryBatchEncoder implements BinaryEventRing.RecordVisitor {
+    static final String CONTENT_TYPE = "application/x-irbre-batch";
+
+    static final int FLAG_PARENT = 1;
+    static final int FLAG_DURATION = 1 << 1;
+    static final int FLAG_OUTCOME = 1 << 2;
+    static final int FLAG_THREAD = 1 << 3;
+    static final int FLAG_EXCEPTION = 1 << 4;
+    static final int FLAG_METADATA = 1 << 5;
+    static final int FLAG_LAMPORT = 1 << 6;
+    static final int FLAG_TRACE = 1 << 7;
+
+    private static final byte[] MAGIC = {'I', 'R', 'B', 'B'};
+    private static final int VERSION = 2;
+
+    private final String agentId;
+    private final List<MethodInfo> methods;
+    private final StringTable exceptionTypes;
+    private final ClockAnchor anchor = ClockAnchor.now();
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final Buffer strings = new Buffer(1024);
+    private final Map<RequestMetadata, Integer> metadataIds = new IdentityHashMap<>();
+    private final Buffer metadata = new Buffer(256);
+    private final Buffer events = new Buffer(4096);
+    private int eventCount;
+
+    private String lastTraceId;
+    private long lastStartNanos;
+    private long lastSequence;
+    private long lastSpanId;
+    private long lastLamport;
+    private Map<String, Long> agentStats;
+
+    /**
+     * @param exceptionTypes resolves exception type IDs of ring records; may be null
+     *                       when only TraceEvent objects are added
+     */
+    BinaryBatchEncoder(String agentId, List<MethodInfo> methods, StringTable exceptionTypes) {
+        this.agentId = agentId;
+        this.methods = methods;
+        this.exceptionTypes = exceptionTypes;
+        this.lastStartNanos = anchor.getNanoTime();
+    }
+
+    /**
+     * Telemetry summary to append after the events; null for none.
+     */
+    void setAgentStats(Map<String, Long> agentStats) {
+        this.agentStats = agentStats;
+    }
+
+    /**
+     * Add every event of a batch, one trace section after another.
+     */
+    void add(EventBatch batch) {
+        for (TraceSection trace : batch.getTraces()) {
+            for (TraceEvent event : trace.getEvents()) {
+                add(event);
+            }
+        }
+    }
+
+    void add(TraceEvent event) {
+        long startNanos = event.getStartNanos();
+        if (startNanos == 0 && event.getTimestamp() != null) {
+            startNanos = anchor.toNanoTime(event.getTimestamp());
+        }
+        add(event.getTraceId(), event.getEventType(), startNanos, event.getDurationNanos(), event.getOutcome(),
+                event.getMethodId(), event.getThreadName(), event.getThreadId(),
+                event.getSequenceNumber() != null ? event.getSequenceNumber() : 0,
+                event.getExceptionType(), event.getExceptionMessage(), event.getRequestMetadata(),
+                event.getSpanId(), event.getParentSpanId(), event.getLamportClock());
+    }
+
+    @Override
+    public void onEvent(BinaryEventRing ring, int offset) {
+        add(ring.traceId(), ring.eventType(offset), ring.startNanos(offset), ring.durationNanos(offset),
+                ring.outcome(offset), ring.methodId(offset), ring.threadName(), ring.threadId(),
+                ring.sequenceNumber(offset),
+                exceptionTypes != null ? exceptionTypes.get(ring.exceptionTypeId(offset)) : null,
+                ring.exceptionMessage(offset), ring.requestMetadata(),
+                ring.spanId(offset), ring.parentSpanId(offset), ring.lamportClock(offset));
+    }
+
+    void add(String traceId, EventType eventType, long startNanos, Long durationNanos, SpanOutcome outcome,
+             int methodId, String threadName, Long threadId, int sequenceNumber,
+             String exceptionType, String exceptionMessage, RequestMetadata requestMetadata,
+             long spanId, long parentSpanId, Long lamportClock) {
+        int flags = 0;
+        if (eventCount == 0 || !Objects.equals(traceId, lastTraceId)) flags |= FLAG_TRACE;
+        if (parentSpanId != 0) flags |= FLAG_PARENT;
+        if (durationNanos != null) flags |= FLAG_DURATION;
+        if (outcome != null) flags |= FLAG_OUTCOME;
+        if (threadName != null || threadId != null) flags |= FLAG_THREAD;
+        if (exceptionType != null || exceptionMessage != null) flags |= FLAG_EXCEPTION;
+        if (requestMetadata != null) flags |= FLAG_METADATA;
+        if (lamportClock != null) flags |= FLAG_LAMPORT;
+
+        Buffer out = events;
+        out.writeByte(flags);
+        if ((flags & FLAG_TRACE) != 0) out.writeVarint(ref(traceId));
+        out.writeVarint(ref(eventType != null ? eventType.name() : null));
+        out.writeZigzag(startNanos - lastStartNanos);
+        out.writeZigzag(sequenceNumber - lastSequence);
+        out.writeZigzag(methodId);
+        out.writeZigzag(spanId - lastSpanId);
+        if ((flags & FLAG_PARENT) != 0) out.writeZigzag(parentSpanId - spanId);
+        if ((flags & FLAG_DURATION) != 0) out.writeVarint(durationNanos);
+        if ((flags & FLAG_OUTCOME) != 0) out.writeVarint(ref(outcome.name()));
+        if ((flags & FLAG_THREAD) != 0) {
+            out.writeVarint(ref(threadName));
+            out.writeVarint(threadId != null ? threadId : 0L);
+        }
+        if ((flags & FLAG_EXCEPTION) != 0) {
+            out.writeVarint(ref(exceptionType));
+            out.writeVarint(ref(exceptionMessage));
+        }
+        if ((flags & FLAG_METADATA) != 0) out.writeVarint(metadataRef(requestMetadata));
+        if ((flags & FLAG_LAMPORT) != 0) {
+            out.writeZigzag(lamportClock - lastLamport);
+            lastLamport = lamportClock;
+        }
+
+        lastTraceId = traceId;
+        lastStartNanos = startNanos;
+        lastSequence = sequenceNumber;
+        lastSpanId = spanId;
+        eventCount++;
+    }
+
+    int size() {
+        return eventCount;
+    }
+
+    /**
+     * Write the batch to {@code sink}. The string, metadata and event sections
+     * are written from their own buffers, so the batch is never assembled in one array.
+     */
+    void writeTo(OutputStream sink) throws IOException {
+        Buffer out = new Buffer(64 + 64 * methods.size());
+        out.writeBytes(MAGIC, 0, MAGIC.length);
+        out.writeByte(VERSION);
+        out.writeString(agentId);
+        out.writeZigzag(anchor.getEpochNanos());
+        out.writeZigzag(anchor.getNanoTime());
+        out.writeVarint(methods.size());
+        for (MethodInfo method : methods) {
+            out.writeVarint(method.getMethodId());
+            out.writeString(method.getClassName());
+            out.writeString(method.getMethodName());
+            out.writeString(method.getDescriptor());
+        }
+        out.writeVarint(stringIds.size());
+        out.writeTo(sink);
+        strings.writeTo(sink);
+        out.reset();
+        out.writeVarint(metadataIds.size());
+        out.writeTo(sink);
+        metadata.writeTo(sink);
+        out.reset();
+        out.writeVarint(eventCount);
+        out.writeTo(sink);
+        events.writeTo(sink);
+        if (agentStats != null) {
+            out.reset();
+            out.writeVarint(agentStats.size());
+            for (Map.Entry<String, Long> stat : agentStats.entrySet()) {
+                out.writeString(stat.getKey());
+                out.writeZigzag(stat.getValue());
+            }
+            out.writeTo(sink);
+        }
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + strings.size + metadata.size + events.size);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private int ref(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(value, id);
+            strings.writeString(value);
+        }
+        return id + 1;
+    }
+
+    private int metadataRef(RequestMetadata value) {
+        Integer id = metadataIds.get(value);
+        if (id == null) {
+            id = metadataIds.size();
+            metadataIds.put(value, id);
+            metadata.writeVarint(ref(value.getHttpMethod()));
+            metadata.writeVarint(ref(value.getRequestUri()));
+            Map<String, String> headers = value.getHeaders();
+            metadata.writeVarint(headers != null ? headers.size() : 0);
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    metadata.writeVarint(ref(header.getKey()));
+                    metadata.writeVarint(ref(header.getValue()));
+                }
+            }
+            metadata.writeVarint(ref(value.getClientIp()));
+        }
+        return id;
+    }
+
+    /**
+     * Growable byte array with varint helpers.
+     */
+    private static final class Buffer {
+        byte[] bytes;
+        int size;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        void writeTo(OutputStream sink) throws IOException {
+            sink.write(bytes, 0, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, bytes, size, length);
+            size += length;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length + 1L);
+            writeBytes(utf8, 0, utf8.length);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.EventType;
+import com.irbre.agent.model.RequestMetadata;
+import com.irbre.agent.model.SpanOutcome;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Off-heap single-producer/single-consumer ring of fixed-layout event records,
+ * owned by one application thread, or leased to one request at a time when
+ * contexts are pooled (see {@link EventBatcher#leaseRing}).
+ *
+ * The producer encodes events straight into a preallocated direct
+ * ByteBuffer, so recording an event allocates nothing. A TRACE record, which
+ * also names the producing thread, is written whenever the producer switches
+ * to another trace or thread; the EVENT records that follow belong to it. Records are 8-byte aligned and never wrap: when
+ * a record does not fit before the end of the buffer a PADDING record fills
+ * the remainder and the record is written at offset 0.
+ *
+ * EVENT layout (little-endian offsets), one record per completed span:
+ * <pre>
+ *  0 int  length         4 byte type         5 byte eventType    6 byte flags
+ *  8 int  sequenceNumber 12 int methodId     16 int exceptionTypeId 20 (reserved)
+ * 24 long start System.nanoTime()           32 long spanId
+ * 40 long parentSpanId                       48 long lamportClock
+ * 56 long durationNanos
+ * 64 [short length + UTF-8 exception message, when FLAG_EXCEPTION_MESSAGE]
+ * </pre>
+ *
+ * TRACE layout: int length, byte type, 3 bytes padding, long threadId, then
+ * the thread name, trace ID, HTTP method and request URI as short-length
+ * UTF-8 strings, a short header count and the header names and values.
+ * A TRACE record never takes more than half the ring.
+ */
+class BinaryEventRing {
+    static final byte TYPE_PADDING = 0;
+    static final byte TYPE_TRACE = 1;
+    static final byte TYPE_EVENT = 2;
+
+    static final int FLAG_EXCEPTION_MESSAGE = 1;
+    static final int FLAG_EXCEPTION = 2;
+
+    static final int EVENT_HEADER_SIZE = 64;
+    // Type, thread ID, the four string length prefixes and the header count
+    private static final int TRACE_HEADER_SIZE = 16 + 4 * 2 + 2;
+    private static final int MAX_STRING_BYTES = 1024;
+    private static final int NULL_STRING = -1;
+
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(BinaryEventRing.class, "head", long.class);
+            TAIL = lookup.findVarHandle(BinaryEventRing.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    // Null for a leased ring, which is reclaimed once retired instead
+    private final WeakReference<Thread> owner;
+    private volatile boolean retired;
+    // Run when published records first reach batchBytes, to wake the consumer early
+    private final long batchBytes;
+    private final Runnable batchReady;
+
+    // Written by the consumer only
+    private volatile long head;
+    // Written by the producer only
+    private volatile long tail;
+
+    // Producer state
+    private long headCache;
+    private long writeTail;
+    private String lastTraceId;
+    private long lastThreadId = -1;
+    // Tail sampling: records are written but not published until the request is decided
+    private boolean deferred;
+
+    // Consumer state, decoded from the most recent TRACE record
+    private String traceId;
+    private RequestMetadata requestMetadata;
+    private long threadId;
+    private String threadName;
+
+    /**
+     * @param owner the thread that writes to the ring, or null for a ring leased per request
+     */
+    BinaryEventRing(int capacityBytes, Thread owner) {
+        this(capacityBytes, owner, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param batchBytes pending bytes at which {@code batchReady} is run, capped at half the ring
+     * @param batchReady run by the producer when a publish takes the pending bytes up to {@code batchBytes}
+     */
+    BinaryEventRing(int capacityBytes, Thread owner, long batchBytes, Runnable batchReady) {
+        int size = capacityBytes <= 4096 ? 4096 : Integer.highestOneBit(capacityBytes - 1) << 1;
+        this.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = size;
+        this.mask = size - 1;
+        this.owner = owner != null ? new WeakReference<>(owner) : null;
+        this.batchBytes = Math.min(batchBytes, size / 2);
+        this.batchReady = batchReady;
+    }
+
+    // ---- Producer side (owning thread only) ----
+
+    /**
+     * True if the next event belongs to a different trace or thread than the
+     * last one written, in which case {@link #writeTrace} must be called first.
+     */
+    boolean needsTrace(String traceId, long threadId) {
+        return traceId != lastTraceId || threadId != lastThreadId;
+    }
+
+    /**
+     * Start a trace section. The record is kept to half the ring, so the
+     * events after it still have room: strings are cut to the space left,
+     * the trace ID first, and headers that no longer fit are left out.
+     * Returns false if the ring is full.
+     */
+    boolean writeTrace(String traceId, RequestMetadata metadata, long threadId, String threadName) {
+        String httpMethod = metadata != null ? metadata.getHttpMethod() : null;
+        String requestUri = metadata != null ? metadata.getRequestUri() : null;
+        Map<String, String> headers = metadata != null ? metadata.getHeaders() : null;
+
+        // String bytes left once the fixed fields and four length prefixes are counted
+        int budget = capacity / 2 - TRACE_HEADER_SIZE;
+        int traceIdBytes = utf8Length(traceId, budget);
+        budget -= traceIdBytes;
+        int threadNameBytes = utf8Length(threadName, budget);
+        budget -= threadNameBytes;
+        int httpMethodBytes = utf8Length(httpMethod, budget);
+        budget -= httpMethodBytes;
+        int requestUriBytes = utf8Length(requestUri, budget);
+        budget -= requestUriBytes;
+        int headerCount = 0;
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                int entry = stringSize(header.getKey()) + stringSize(header.getValue());
+                if (entry > budget || headerCount == Short.MAX_VALUE) {
+                    break;
+                }
+                budget -= entry;
+                headerCount++;
+            }
+        }
+        int size = align(capacity / 2 - budget);
+
+        int offset = claim(size);
+        if (offset < 0) {
+            return false;
+        }
+        buffer.putInt(offset, size);
+        buffer.put(offset + 4, TYPE_TRACE);
+        buffer.putLong(offset + 8, threadId);
+        int pos = offset + 16;
+        pos = putString(pos, threadName, threadNameBytes);
+        pos = putString(pos, traceId, traceIdBytes);
+        pos = putString(pos, httpMethod, httpMethodBytes);
+        pos = putString(pos, requestUri, requestUriBytes);
+        buffer.putShort(pos, (short) headerCount);
+        pos += 2;
+        if (headerCount > 0) {
+            int written = 0;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (written++ == headerCount) {
+                    break;
+                }
+                pos = putString(pos, header.getKey());
+                pos = putString(pos, header.getValue());
+            }
+        }
+        publish();
+        lastTraceId = traceId;
+        lastThreadId = threadId;
+        return true;
+    }
+
+    /**
+     * Encode one completed span. An exception type ID of -1 means the method
+     * returned normally. Returns false if the ring is full.
+     */
+    boolean writeSpan(int sequenceNumber, int methodId, long startNanos, long durationNanos,
+                      long spanId, long parentSpanId, long lamportClock,
+                      int exceptionTypeId, String exceptionMessage) {
+        int size = EVENT_HEADER_SIZE;
+        if (exceptionMessage != null) {
+            size = align(size + stringSize(exceptionMessage));
+        }
+        int offset = claim(size);
+        if (offset < 0) {
+            return false;
+        }
+        buffer.putInt(offset, size);
+        buffer.put(offset + 4, TYPE_EVENT);
+        buffer.put(offset + 5, (byte) EventType.SPAN.ordinal());
+        buffer.put(offset + 6, (byte) ((exceptionTypeId >= 0 ? FLAG_EXCEPTION : 0)
+                | (exceptionMessage != null ? FLAG_EXCEPTION_MESSAGE : 0)));
+        buffer.putInt(offset + 8, sequenceNumber);
+        buffer.putInt(offset + 12, methodId);
+        buffer.putInt(offset + 16, exceptionTypeId);
+        buffer.putLong(offset + 24, startNanos);
+        buffer.putLong(offset + 32, spanId);
+        buffer.putLong(offset + 40, parentSpanId);
+        buffer.putLong(offset + 48, lamportClock);
+        buffer.putLong(offset + 56, durationNanos);
+        if (exceptionMessage != null) {
+            putString(offset + EVENT_HEADER_SIZE, exceptionMessage);
+        }
+        publish();
+        return true;
+    }
+
+    /**
+     * Reserve {@code size} contiguous bytes, padding to the end of the buffer
+     * if needed. Returns the offset, or -1 if the consumer has not freed enough space.
+     */
+    private int claim(int size) {
+        long t = writeTail;
+        int offset = (int) (t & mask);
+        int contiguous = capacity - offset;
+        long needed = size <= contiguous ? size : (long) contiguous + size;
+        if (t + needed - headCache > capacity) {
+            headCache = (long) HEAD.getAcquire(this);
+            if (t + needed - headCache > capacity) {
+                return -1;
+            }
+        }
+        if (size > contiguous) {
+            buffer.putInt(offset, contiguous);
+            buffer.put(offset + 4, TYPE_PADDING);
+            offset = 0;
+        }
+        writeTail = t + needed;
+        return offset;
+    }
+
+    private void publish() {
+        if (deferred) {
+            return;
+        }
+        long t = (long) TAIL.getOpaque(this);
+        TAIL.setRelease(this, writeTail);
+        if (batchReady != null) {
+            long h = (long) HEAD.getOpaque(this);
+            if (t - h < batchBytes && writeTail - h >= batchBytes) {
+                batchReady.run();
+            }
+        }
+    }
+
+    /**
+     * Hold back subsequent records from the consumer until {@link #commitDeferred}
+     * or {@link #discardDeferred}. Unpublished records count against the ring's
+     * capacity, so a full ring is what caps a buffered trace in binary mode.
+     */
+    void beginDeferred() {
+        deferred = true;
+    }
+
+    /**
+     * Publish everything written since {@link #beginDeferred}.
+     */
+    void commitDeferred() {
+        deferred = false;
+        publish();
+    }
+
+    /**
+     * Drop everything written since {@link #beginDeferred}.
+     */
+    void discardDeferred() {
+        deferred = false;
+        writeTail = (long) TAIL.getOpaque(this);
+        // The discarded region may have held the current TRACE record
+        lastTraceId = null;
+    }
+
+    boolean isDeferred() {
+        return deferred;
+    }
+
+    // ---- Consumer side (batch processor thread only) ----
+
+    /**
+     * Callback for each EVENT record drained from the ring. The record is only
+     * valid for the duration of the call.
+     */
+    interface RecordVisitor {
+        void onEvent(BinaryEventRing ring, int offset) throws IOException;
+    }
+
+    /**
+     * Visit up to {@code maxEvents} EVENT records, then release their space.
+     *
+     * @return number of events visited
+     */
+    int drain(RecordVisitor visitor, int maxEvents) throws IOException {
+        long h = (long) HEAD.getOpaque(this);
+        long t = (long) TAIL.getAcquire(this);
+        int count = 0;
+        try {
+            while (h < t && count < maxEvents) {
+                int offset = (int) (h & mask);
+                int length = buffer.getInt(offset);
+                byte type = buffer.get(offset + 4);
+                if (type == TYPE_TRACE) {
+                    readTrace(offset);
+                } else if (type == TYPE_EVENT) {
+                    visitor.onEvent(this, offset);
+                    count++;
+                }
+                h += length;
+            }
+        } finally {
+            HEAD.setRelease(this, h);
+        }
+        return count;
+    }
+
+    private void readTrace(int offset) {
+        threadId = buffer.getLong(offset + 8);
+        int[] pos = {offset + 16};
+        threadName = getString(pos);
+        traceId = getString(pos);
+        String httpMethod = getString(pos);
+        String requestUri = getString(pos);
+        int headerCount = buffer.getShort(pos[0]);
+        pos[0] += 2;
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(getString(pos), getString(pos));
+        }
+        requestMetadata = httpMethod == null && requestUri == null && headers.isEmpty()
+                ? null
+                : new RequestMetadata(httpMethod, requestUri, headers);
+    }
+
+    /**
+     * Bytes of published records waiting to be drained.
+     */
+    long pendingBytes() {
+        return (long) TAIL.getAcquire(this) - (long) HEAD.getOpaque(this);
+    }
+
+    boolean isEmpty() {
+        return (long) TAIL.getAcquire(this) == (long) HEAD.getOpaque(this);
+    }
+
+    /**
+     * Let a leased ring be reclaimed once drained, rather than go back to the pool.
+     */
+    void retire() {
+        retired = true;
+    }
+
+    /**
+     * A ring can be reclaimed once drained and no longer written to: its
+     * thread has terminated or, for a leased ring, it has been retired.
+     */
+    boolean isReclaimable() {
+        if (owner == null) {
+            return retired && isEmpty();
+        }
+        Thread thread = owner.get();
+        return (thread == null || !thread.isAlive()) && isEmpty();
+    }
+
+    String traceId() {
+        return traceId;
+    }
+
+    RequestMetadata requestMetadata() {
+        return requestMetadata;
+    }
+
+    long threadId() {
+        return threadId;
+    }
+
+    String threadName() {
+        return threadName;
+    }
+
+    EventType eventType(int offset) {
+        return EVENT_TYPES[buffer.get(offset + 5)];
+    }
+
+    int sequenceNumber(int offset) {
+        return buffer.getInt(offset + 8);
+    }
+
+    int methodId(int offset) {
+        return buffer.getInt(offset + 12);
+    }
+
+    int exceptionTypeId(int offset) {
+        return buffer.getInt(offset + 16);
+    }
+
+    long startNanos(int offset) {
+        return buffer.getLong(offset + 24);
+    }
+
+    long spanId(int offset) {
+        return buffer.getLong(offset + 32);
+    }
+
+    long parentSpanId(int offset) {
+        return buffer.getLong(offset + 40);
+    }
+
+    long lamportClock(int offset) {
+        return buffer.getLong(offset + 48);
+    }
+
+    long durationNanos(int offset) {
+        return buffer.getLong(offset + 56);
+    }
+
+    SpanOutcome outcome(int offset) {
+        return (buffer.get(offset + 6) & FLAG_EXCEPTION) != 0 ? SpanOutcome.EXCEPTION : SpanOutcome.OK;
+    }
+
+    String exceptionMessage(int offset) {
+        if ((buffer.get(offset + 6) & FLAG_EXCEPTION_MESSAGE) == 0) {
+            return null;
+        }
+        return getString(new int[]{offset + EVENT_HEADER_SIZE});
+    }
+
+    // ---- String encoding: short length (-1 = null) followed by UTF-8, truncated to MAX_STRING_BYTES ----
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static int stringSize(String value) {
+        return 2 + utf8Length(value, MAX_STRING_BYTES);
+    }
+
+    /**
+     * Encoded length of {@code value}, cut at a character boundary to at
+     * most {@code maxBytes} and MAX_STRING_BYTES; 0 for null.
+     */
+    private static int utf8Length(String value, int maxBytes) {
+        if (value == null) {
+            return 0;
+        }
+        int limit = Math.min(Math.max(maxBytes, 0), MAX_STRING_BYTES);
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int n = utf8Bytes(value.charAt(i));
+            if (length + n > limit) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    private static int utf8Bytes(char c) {
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        // Surrogates are encoded individually (3 bytes each), which the decoder replaces
+        return 3;
+    }
+
+    private int putString(int pos, String value) {
+        return putString(pos, value, MAX_STRING_BYTES);
+    }
+
+    /**
+     * Write {@code value} cut to {@code maxBytes}, as sized by {@link #utf8Length}.
+     */
+    private int putString(int pos, String value, int maxBytes) {
+        if (value == null) {
+            buffer.putShort(pos, (short) NULL_STRING);
+            return pos + 2;
+        }
+        int start = pos + 2;
+        int p = start;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int n = utf8Bytes(c);
+            if (p - start + n > maxBytes) {
+                break;
+            }
+            if (n == 1) {
+                buffer.put(p++, (byte) c);
+            } else if (n == 2) {
+                buffer.put(p++, (byte) (0xC0 | (c >> 6)));
+                buffer.put(p++, (byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put(p++, (byte) (0xE0 | (c >> 12)));
+                buffer.put(p++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.putShort(pos, (short) (p - start));
+        return p;
+    }
+
+    private String getString(int[] pos) {
+        int length = buffer.getShort(pos[0]);
+        pos[0] += 2;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(pos[0], bytes);
+        pos[0] += length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
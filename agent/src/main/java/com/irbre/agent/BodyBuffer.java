@@ -0,0 +1,241 @@
+package com.irbre.agent;
+
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request body written by the encoders and read by the HTTP client without
+ * intermediate copies.
+ *
+ * The body is a list of fixed-size chunks taken from a shared pool. Jackson
+ * and the binary encoder stream into it as an {@link OutputStream};
+ * {@link #publisher()} hands the chunks to the HTTP client as wrapped
+ * ByteBuffers, and a new publisher can be made for every retry. Once the
+ * batch is delivered, spooled or dropped, {@link #release()} returns the
+ * chunks to the pool, so steady-state sending allocates no body memory.
+ *
+ * Not thread-safe while being written. After that the content is read-only
+ * and may be published concurrently.
+ */
+class BodyBuffer extends OutputStream {
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Up to 16 MiB of idle chunks are kept for reuse
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final boolean pooled;
+    private final AtomicBoolean released = new AtomicBoolean();
+    // Chunks of an abandoned body may still be read by the HTTP client, so they are not reused
+    private volatile boolean abandoned;
+    private byte[] current;
+    private int position;
+    private long size;
+
+    BodyBuffer() {
+        this.pooled = true;
+    }
+
+    private BodyBuffer(byte[] bytes) {
+        this.pooled = false;
+        this.chunks.add(bytes);
+        this.current = bytes;
+        this.position = bytes.length;
+        this.size = bytes.length;
+    }
+
+    /**
+     * A body over an existing array, e.g. a batch read back from the spool. Never pooled.
+     */
+    static BodyBuffer wrap(byte[] bytes) {
+        return new BodyBuffer(bytes);
+    }
+
+    private static byte[] takeChunk() {
+        byte[] chunk = POOL.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        pooledChunks.decrementAndGet();
+        return chunk;
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void nextChunk() {
+        if (!pooled) {
+            throw new IllegalStateException("Wrapped body is read-only");
+        }
+        current = takeChunk();
+        chunks.add(current);
+        position = 0;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int chunkCount() {
+        return chunks.size();
+    }
+
+    byte[] chunk(int index) {
+        return chunks.get(index);
+    }
+
+    int chunkLength(int index) {
+        return index == chunks.size() - 1 ? position : chunks.get(index).length;
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[(int) size];
+        int offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunkLength(i);
+            System.arraycopy(chunks.get(i), 0, bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Copy the content into {@code target} starting at {@code index}.
+     */
+    void copyTo(ByteBuffer target, int index) {
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunkLength(i);
+            target.put(index, chunks.get(i), 0, length);
+            index += length;
+        }
+    }
+
+    /**
+     * A publisher of the content for one request. The chunks are wrapped, not copied.
+     */
+    HttpRequest.BodyPublisher publisher() {
+        return new Publisher();
+    }
+
+    /**
+     * Keep the chunks out of the pool, because a failed request may still hold them.
+     */
+    void abandon() {
+        abandoned = true;
+    }
+
+    /**
+     * Return the chunks to the pool. The body must not be used afterwards.
+     */
+    void release() {
+        if (!pooled || abandoned || !released.compareAndSet(false, true)) {
+            return;
+        }
+        for (byte[] chunk : chunks) {
+            if (pooledChunks.incrementAndGet() > MAX_POOLED_CHUNKS) {
+                pooledChunks.decrementAndGet();
+                return;
+            }
+            POOL.offer(chunk);
+        }
+    }
+
+    private final class Publisher implements HttpRequest.BodyPublisher {
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Subscription(subscriber));
+        }
+    }
+
+    /**
+     * Emits one read-only ByteBuffer per chunk as the subscriber requests them.
+     */
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean emitting = new AtomicBoolean();
+        private int next;
+        private volatile boolean done;
+
+        Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                done = true;
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            emit();
+        }
+
+        // Only one thread emits at a time; a request made during onNext is picked up by the loop
+        private void emit() {
+            while (emitting.compareAndSet(false, true)) {
+                try {
+                    while (!done && demand.get() > 0 && next < chunks.size()) {
+                        demand.decrementAndGet();
+                        int index = next++;
+                        subscriber.onNext(ByteBuffer.wrap(chunks.get(index), 0, chunkLength(index)).asReadOnlyBuffer());
+                    }
+                    if (!done && next == chunks.size()) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                } finally {
+                    emitting.set(false);
+                }
+                if (done || demand.get() == 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+    }
+}
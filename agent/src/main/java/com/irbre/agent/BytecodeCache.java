@@ -0,0 +1,401 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.MethodInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On-disk cache of instrumented class files, so a restarted JVM skips the
+ * ASM round trip for classes it has instrumented before.
+ *
+ * Entries are keyed by a SHA-256 of the original class bytes and live in a
+ * memory-mapped file of fixed size:
+ *
+ * <pre>
+ * header := int magic, int format, long fingerprint, int full
+ * entry  := int length, int methodsRequired, long keyHigh, long keyLow, bytes
+ * </pre>
+ *
+ * As in {@link BatchSpool}, the length is written last and a zero length
+ * ends the file, so an entry cut off by a crash is never read. The
+ * fingerprint covers the agent build and the package configuration; a
+ * mismatch clears the cache.
+ *
+ * Instrumented bytes embed method IDs, so the {@link MethodRegistry} is
+ * persisted alongside in an append-only log and replayed on open, before
+ * any class is transformed, which gives every method the ID it had in the
+ * previous run. An entry records how many methods it needs and is dropped
+ * if the log came back shorter. Methods of classes not loaded in this run
+ * are still registered, and sent to the collector once.
+ *
+ * When the file is full, nothing more is added and the cache is cleared on
+ * the next start, so entries for old versions of the application's classes
+ * do not hold the space forever. A directory already used by another JVM
+ * is left alone.
+ *
+ * Lookups are lock-free; additions are synchronized.
+ */
+class BytecodeCache {
+    private static void logInfo(String msg) {
+        System.out.println("[IRBRE] " + msg);
+    }
+
+    private static void logWarn(String msg) {
+        System.err.println("[IRBRE WARN] " + msg);
+    }
+
+    private static final int MAGIC = 0x49524243; // "IRBC"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int FULL_OFFSET = 16;
+    private static final int ENTRY_HEADER_SIZE = 24;
+    private static final String CLASSES_FILE = "classes.cache";
+    private static final String METHODS_FILE = "methods.log";
+    private static final String LOCK_FILE = "cache.lock";
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * Identity of a class file: the first 128 bits of its SHA-256.
+     */
+    static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+
+    private final Path directory;
+    private final MappedByteBuffer buffer;
+    private final FileChannel methodsLog;
+    // Held open until close(); the lock goes with the channel
+    private final FileChannel lockChannel;
+    private final MethodRegistry registry;
+    // Offset of each entry's header
+    private final Map<Key, Integer> index = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private int writePos;
+    private int persistedMethods;
+    private boolean full;
+
+    /**
+     * Open the cache in {@code directory} and restore the previous run's
+     * method IDs into {@code registry}, which must still be empty.
+     *
+     * @throws IOException if the directory cannot be used, including when another JVM holds it
+     */
+    BytecodeCache(Path directory, long maxBytes, long fingerprint, MethodRegistry registry) throws IOException {
+        if (registry.size() != 0) {
+            throw new IllegalStateException("Method registry must be empty when the bytecode cache is opened");
+        }
+        this.directory = directory;
+        this.registry = registry;
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Bytecode cache " + directory + " is already in use");
+        }
+
+        int capacity = (int) Math.min(Math.max(maxBytes, HEADER_SIZE + 4), Integer.MAX_VALUE);
+        Path classesPath = directory.resolve(CLASSES_FILE);
+        Path methodsPath = directory.resolve(METHODS_FILE);
+        ByteBuffer previous = Files.exists(classesPath) ? mapExisting(classesPath) : null;
+        boolean reusable = previous != null && previous.capacity() == capacity
+                && previous.getInt(0) == MAGIC && previous.getInt(4) == FORMAT
+                && previous.getLong(8) == fingerprint && previous.getInt(FULL_OFFSET) == 0;
+        if (!reusable) {
+            if (previous != null) {
+                logInfo("Clearing bytecode cache " + directory);
+            }
+            Files.deleteIfExists(classesPath);
+            Files.deleteIfExists(methodsPath);
+        }
+
+        this.methodsLog = FileChannel.open(methodsPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.persistedMethods = restoreMethods();
+        this.buffer = map(classesPath, capacity);
+        if (!reusable) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT);
+            buffer.putLong(8, fingerprint);
+            buffer.putInt(FULL_OFFSET, 0);
+            buffer.putInt(HEADER_SIZE, 0);
+        }
+        this.writePos = scanEntries();
+        logInfo("Bytecode cache " + directory + ": " + index.size() + " class(es), "
+                + persistedMethods + " method(s) restored");
+    }
+
+    /**
+     * Key of an original class file.
+     */
+    static Key key(byte[] classfileBuffer) {
+        MessageDigest digest = DIGEST.get();
+        byte[] hash = digest.digest(classfileBuffer);
+        ByteBuffer bytes = ByteBuffer.wrap(hash);
+        return new Key(bytes.getLong(0), bytes.getLong(8));
+    }
+
+    /**
+     * Fingerprint of everything besides the class bytes that shapes the
+     * instrumented output: the agent build and the package configuration.
+     */
+    static long fingerprint(AgentConfiguration config) {
+        StringBuilder identity = new StringBuilder().append(FORMAT);
+        Package agentPackage = IrbreAgent.class.getPackage();
+        identity.append('|').append(agentPackage != null ? agentPackage.getImplementationVersion() : null);
+        try {
+            // A rebuilt agent jar with an unchanged version still invalidates the cache
+            Path jar = Path.of(IrbreAgent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            identity.append('|').append(Files.size(jar)).append('|').append(Files.getLastModifiedTime(jar).toMillis());
+        } catch (Exception e) {
+            identity.append("|unknown");
+        }
+        identity.append('|').append(new TreeSet<>(config.getIncludedPackages()));
+        identity.append('|').append(new TreeSet<>(config.getExcludedPackages()));
+        byte[] hash = DIGEST.get().digest(identity.toString().getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(hash).getLong();
+    }
+
+    /**
+     * The instrumented class file cached for {@code key}, or null.
+     */
+    byte[] get(Key key) {
+        Integer offset = index.get(key);
+        if (offset == null) {
+            misses.increment();
+            return null;
+        }
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        buffer.get(offset + ENTRY_HEADER_SIZE, bytes);
+        hits.increment();
+        return bytes;
+    }
+
+    /**
+     * Add an instrumented class file. {@code methodsRequired} is the registry
+     * size once the class was instrumented, covering every ID it embeds.
+     */
+    synchronized void put(Key key, byte[] instrumented, int methodsRequired) {
+        if (full || index.containsKey(key)) {
+            return;
+        }
+        int size = ENTRY_HEADER_SIZE + instrumented.length;
+        // Keep 4 bytes after each entry for the zero end marker
+        if (writePos + size + 4 > buffer.capacity()) {
+            full = true;
+            buffer.putInt(FULL_OFFSET, 1);
+            logWarn("Bytecode cache " + directory + " is full; it will be rebuilt on the next start");
+            return;
+        }
+        try {
+            // The IDs an entry embeds are on disk before the entry
+            persistMethods(methodsRequired);
+        } catch (IOException e) {
+            full = true;
+            logWarn("Could not write method registry to " + directory + ", bytecode cache disabled: " + e);
+            return;
+        }
+        int pos = writePos;
+        buffer.putInt(pos + 4, methodsRequired);
+        buffer.putLong(pos + 8, key.high);
+        buffer.putLong(pos + 16, key.low);
+        buffer.put(pos + ENTRY_HEADER_SIZE, instrumented);
+        buffer.putInt(pos + size, 0);
+        // Publish: the entry becomes visible once its length is set
+        buffer.putInt(pos, instrumented.length);
+        writePos = pos + size;
+        index.put(key, pos);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Flush the mapped file and the method log to disk.
+     */
+    synchronized void force() {
+        buffer.force();
+        try {
+            methodsLog.force(false);
+        } catch (IOException e) {
+            logWarn("Could not flush method registry in " + directory + ": " + e);
+        }
+    }
+
+    /**
+     * Flush and release the directory. Lookups keep working; nothing more is added.
+     */
+    synchronized void close() {
+        force();
+        full = true;
+        try {
+            methodsLog.close();
+            lockChannel.close();
+        } catch (IOException e) {
+            logWarn("Could not close bytecode cache " + directory + ": " + e);
+        }
+    }
+
+    /**
+     * Append the registry entries the log does not hold yet, up to {@code upTo}.
+     */
+    private void persistMethods(int upTo) throws IOException {
+        if (upTo <= persistedMethods) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int id = persistedMethods; id < upTo; id++) {
+            MethodInfo method = registry.get(id);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream fields = new DataOutputStream(record);
+            fields.writeUTF(method.getClassName());
+            fields.writeUTF(method.getMethodName());
+            fields.writeUTF(method.getDescriptor());
+            // Length-prefixed, so a record cut off by a crash is recognized and dropped
+            out.writeInt(record.size());
+            record.writeTo(out);
+        }
+        ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+        while (data.hasRemaining()) {
+            methodsLog.write(data);
+        }
+        persistedMethods = upTo;
+    }
+
+    /**
+     * Replay the method log into the registry, dropping a torn last record.
+     *
+     * @return the number of methods restored
+     */
+    private int restoreMethods() throws IOException {
+        long length = methodsLog.size();
+        if (length == 0) {
+            return 0;
+        }
+        MappedByteBuffer log = methodsLog.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        int count = 0;
+        int pos = 0;
+        while (pos + 4 <= length) {
+            int recordLength = log.getInt(pos);
+            if (recordLength <= 0 || pos + 4 + recordLength > length) {
+                break;
+            }
+            byte[] record = new byte[recordLength];
+            log.get(pos + 4, record);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            try {
+                int id = registry.register(in.readUTF(), in.readUTF(), in.readUTF());
+                if (id != count) {
+                    throw new IOException("Method log entry " + count + " restored as ID " + id);
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            count++;
+            pos += 4 + recordLength;
+        }
+        // Appends continue after the last complete record
+        methodsLog.truncate(pos);
+        methodsLog.position(pos);
+        return count;
+    }
+
+    /**
+     * Index the entries left by a previous run; returns the position after the last usable one.
+     */
+    private int scanEntries() {
+        int pos = HEADER_SIZE;
+        while (pos + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + ENTRY_HEADER_SIZE + length + 4 > buffer.capacity()) {
+                break;
+            }
+            if (buffer.getInt(pos + 4) > persistedMethods) {
+                // Its method IDs did not reach the disk; neither this entry nor later ones can be trusted
+                buffer.putInt(pos, 0);
+                break;
+            }
+            index.put(new Key(buffer.getLong(pos + 8), buffer.getLong(pos + 16)), pos);
+            pos += ENTRY_HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    private static ByteBuffer mapExisting(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return ByteBuffer.allocate(0);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+}
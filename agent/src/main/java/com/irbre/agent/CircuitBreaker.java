@@ -0,0 +1,91 @@
+package com.irbre.agent;
+
+/**
+ * Circuit breaker in front of the collector.
+ *
+ * Closed, every request is allowed. After {@code failureThreshold} failures
+ * in a row it opens and refuses requests for {@code openMillis}; the sender
+ * then stops encoding and sending batches. The first request afterwards is
+ * a trial (half-open): success closes the breaker, failure opens it again.
+ *
+ * Failures are connection errors, timeouts and 5xx/429/408 answers; any other
+ * answer shows the collector is reachable and counts as a success.
+ */
+class CircuitBreaker {
+    private static void logInfo(String msg) {
+        System.out.println("[IRBRE] " + msg);
+    }
+
+    private static void logWarn(String msg) {
+        System.err.println("[IRBRE WARN] " + msg);
+    }
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1_000_000L;
+    }
+
+    /**
+     * Whether a request would be allowed now. Does not claim the half-open trial,
+     * so callers can check before spending work on a request.
+     */
+    synchronized boolean isAvailable() {
+        return state == State.CLOSED || (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos);
+    }
+
+    /**
+     * Claim permission for a request; when the open period is over, the first
+     * caller gets the half-open trial and later callers are refused until it completes.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a failed request may be retried: only while the breaker is closed.
+     */
+    synchronized boolean allowsRetry() {
+        return state == State.CLOSED;
+    }
+
+    synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            logInfo("Collector reachable again, resuming sends");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+            logWarn("Collector failing (" + consecutiveFailures + " failures in a row), pausing sends for "
+                    + openNanos / 1_000_000 + " ms");
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
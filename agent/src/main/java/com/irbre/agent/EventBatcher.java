@@ -4,14 +4,43 @@ package com.irbre.agent;
 
 import com.irbre.agent.model.EventBatch;
 import com.irbre.agent.model.TraceEvent;
+import com.irbre.agent.model.TraceSection;
+import com.irbre.agent.util.StringTable;
 
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Batches trace events and sends them asynchronously to the collector.
+ * Each application thread appends to its own {@link ThreadEventBuffer}, or in
+ * binary recording mode to its own off-heap {@link BinaryEventRing};
+ * the batch processor thread merges those buffers into batches. When
+ * contexts are pooled, as for a virtual thread per request, buffers and rings
+ * are instead leased to a request and pooled between requests, so their
+ * number follows the requests in flight rather than the threads started.
+ *
+ * The batch processor sends a batch as soon as it holds {@code batchSize}
+ * events, and the batch interval only bounds how long events linger in a
+ * batch that does not fill. Between passes it parks until the earliest such
+ * deadline; a producer whose buffer or ring reaches a batch, and every
+ * completed request, wakes it early. Traces are hashed onto
+ * {@code maxInFlight} lanes, each with at most one request in flight, so up
+ * to that many requests run concurrently while the events of any one trace
+ * still reach the collector in order. Binary recording mode sends through a
+ * single lane, since ring records are encoded before their traces are known.
+ * While the sender reports the collector unavailable, draining pauses.
  */
 public class EventBatcher {
     //private static final Logger logger = LoggerFactory.getLogger(EventBatcher.class);
@@ -34,122 +63,613 @@ public class EventBatcher {
 
     private final AgentConfiguration config;
     private final EventSender sender;
-    private final BlockingQueue<TraceEvent> eventQueue;
-    private final ScheduledExecutorService scheduler;
-    private final ExecutorService batchProcessor;
+    private final Registry<ThreadEventBuffer> buffers =
+            new Registry<>(ThreadEventBuffer::isReclaimable, ThreadEventBuffer::retire);
+    private final ThreadLocal<ThreadEventBuffer> localBuffer =
+            ThreadLocal.withInitial(() -> buffers.register(newBuffer(Thread.currentThread())));
+    private final Registry<BinaryEventRing> rings =
+            new Registry<>(BinaryEventRing::isReclaimable, BinaryEventRing::retire);
+    private final ThreadLocal<BinaryEventRing> localRing =
+            ThreadLocal.withInitial(() -> rings.register(newRing(Thread.currentThread())));
+    private final StringTable strings;
+    private final AgentMetrics metrics;
+    // Events that overflowed a full thread buffer, spooled in groups of SPILL_BATCH_SIZE
+    private final List<TraceEvent> overflow = new ArrayList<>();
+    // Events dropped under each backpressure policy, indexed by ordinal
+    private final LongAdder[] shedCounts = new LongAdder[BackpressurePolicy.values().length];
+    private final AtomicBoolean shedWarned = new AtomicBoolean();
+    private final Thread batchProcessor;
+    // Owned by the batch processor thread until it stops, then by flush()
+    private final Lane[] lanes;
+    private CompletableFuture<Integer> ringSend = CompletableFuture.completedFuture(0);
+    private boolean ringPending;
+    private long ringPendingSinceNanos;
+    private long lastReplayNanos;
+    // Start of the last pass that drained the buffers or rings; what a later pass finds arrived since
+    private long lastDrainNanos = System.nanoTime();
+    // When the batch processor next has something to do, set by each pass
+    private long parkDeadlineNanos;
+    // Events drained onto lanes but not yet sent, published for telemetry
+    private volatile int laneBacklog;
+
+    private static final int SPILL_BATCH_SIZE = 256;
+    // A lane stops taking events while this many batches wait behind its request
+    private static final int MAX_LANE_BACKLOG_BATCHES = 2;
+    private static final long FLUSH_TIMEOUT_SECONDS = 10;
+    // Idle leased buffers (and rings) kept for reuse; beyond this a burst's extras are reclaimed once drained
+    private static final int MAX_IDLE_BUFFERS = 256;
 
     private volatile boolean running = true;
+    // Round-robin start position so no thread's buffer is always drained last
+    private int drainStart;
+
+    /**
+     * Events of the traces hashed to one lane, and the lane's request in flight.
+     */
+    private static final class Lane {
+        final List<TraceEvent> pending = new ArrayList<>();
+        long pendingSinceNanos;
+        CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Buffers or rings of every producer. Producers register on a lock-free
+     * queue that the consumer moves into its own list, so registering costs
+     * the same however many buffers exist. Leased buffers wait in the idle
+     * queue between requests, and stay registered there.
+     */
+    private static final class Registry<B> {
+        private final Queue<B> registered = new ConcurrentLinkedQueue<>();
+        // Guarded by the batcher
+        private final List<B> active = new ArrayList<>();
+        private final Queue<B> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final Predicate<B> reclaimable;
+        private final Consumer<B> retire;
+
+        Registry(Predicate<B> reclaimable, Consumer<B> retire) {
+            this.reclaimable = reclaimable;
+            this.retire = retire;
+        }
+
+        B register(B buffer) {
+            registered.add(buffer);
+            return buffer;
+        }
+
+        /**
+         * An idle leased buffer, or null if there is none.
+         */
+        B lease() {
+            B buffer = idle.poll();
+            if (buffer != null) {
+                idleCount.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        void release(B buffer) {
+            if (idleCount.incrementAndGet() > MAX_IDLE_BUFFERS) {
+                idleCount.decrementAndGet();
+                retire.accept(buffer);
+                return;
+            }
+            idle.offer(buffer);
+        }
+
+        /**
+         * Every registered buffer. Caller holds the batcher's lock.
+         */
+        List<B> active() {
+            for (B buffer = registered.poll(); buffer != null; buffer = registered.poll()) {
+                active.add(buffer);
+            }
+            return active;
+        }
+
+        /**
+         * Drop drained buffers that will not be written to again. Caller holds the batcher's lock.
+         */
+        void reclaim() {
+            active.removeIf(reclaimable);
+        }
+    }
 
-    public EventBatcher(AgentConfiguration config, EventSender sender) {
+    public EventBatcher(AgentConfiguration config, EventSender sender, StringTable strings, AgentMetrics metrics) {
         this.config = config;
         this.sender = sender;
-        this.eventQueue = new ArrayBlockingQueue<>(config.getQueueSize());
-        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "irbre-batch-scheduler");
-            t.setDaemon(true);
-            return t;
-        });
-        this.batchProcessor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "irbre-batch-processor");
-            t.setDaemon(true);
-            return t;
-        });
-
-        startBatchingTimer();
+        this.strings = strings;
+        this.metrics = metrics;
+        for (int i = 0; i < shedCounts.length; i++) {
+            shedCounts[i] = new LongAdder();
+        }
+        this.lanes = new Lane[config.getMaxInFlight()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        this.batchProcessor = new Thread(this::drainLoop, "irbre-batch-processor");
+        this.batchProcessor.setDaemon(true);
+        this.batchProcessor.start();
     }
 
     /**
-     * Add an event to the batch queue.
+     * Add an event to the calling thread's buffer. When the buffer is full the
+     * configured {@link BackpressurePolicy} decides what is given up; the call
+     * never blocks, except for the policy's bounded spin or a brief spool
+     * append when spooling is enabled.
      */
     public void addEvent(TraceEvent event) {
+        addEvent(event, localBuffer.get());
+    }
+
+    /**
+     * Add an event to {@code buffer}, which the calling thread owns or has leased.
+     * The event counts as recorded once it is in the buffer, as a span written
+     * to a ring does in binary recording mode; shed events are counted by policy instead.
+     */
+    void addEvent(TraceEvent event, ThreadEventBuffer buffer) {
         if (!running) {
             return;
         }
 
-        try {
-            boolean added = eventQueue.offer(event, 100, TimeUnit.MILLISECONDS);
-            if (!added) {
-                logWarn("Event queue full, dropping event");
+        BackpressurePolicy policy = config.getBackpressurePolicy();
+        if (policy == BackpressurePolicy.SAMPLE && buffer.isAboveHighWater()
+                && !buffer.sample(config.getBackpressureSampleKeep())) {
+            shed(event, policy);
+            return;
+        }
+        int size = ThreadEventBuffer.estimateBytes(event);
+        if (buffer.offer(event, size)) {
+            metrics.eventRecorded(event.getEventType());
+            // Only the producer grows the buffer, so it alone sees it reach the threshold
+            if (buffer.size() == Math.min(config.getBatchSize(), config.getThreadBufferSize() / 2)) {
+                wakeBatchProcessor();
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            logWarn("Interrupted while adding event to queue");
+            return;
+        }
+        switch (policy) {
+            case DROP_OLDEST -> {
+                // Terminates: an empty buffer accepts any event
+                do {
+                    TraceEvent evicted = buffer.evictOldest();
+                    if (evicted != null) {
+                        shed(evicted, policy);
+                    }
+                } while (!buffer.offer(event, size));
+                metrics.eventRecorded(event.getEventType());
+            }
+            case SPIN_WAIT -> {
+                long deadline = System.nanoTime() + config.getBackpressureSpinWaitMicros() * 1000;
+                while (!buffer.offer(event, size)) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        shed(event, policy);
+                        return;
+                    }
+                    Thread.onSpinWait();
+                }
+                metrics.eventRecorded(event.getEventType());
+            }
+            default -> shed(event, policy);
         }
     }
 
     /**
-     * Start periodic batch flushing.
+     * Give up on an event: spill it to the spool if there is one, otherwise
+     * count it against the policy that dropped it.
      */
-    private void startBatchingTimer() {
-        scheduler.scheduleAtFixedRate(
-                this::processBatch,
-                config.getBatchIntervalMs(),
-                config.getBatchIntervalMs(),
-                TimeUnit.MILLISECONDS
-        );
+    private void shed(TraceEvent event, BackpressurePolicy policy) {
+        if (sender.isSpooling()) {
+            spill(event);
+            return;
+        }
+        recordShed(policy);
     }
 
     /**
-     * Process and send a batch of events.
+     * Count an event dropped under {@code policy}; warns once rather than per event.
      */
-    private void processBatch() {
-        if (!running) {
+    void recordShed(BackpressurePolicy policy) {
+        shedCounts[policy.ordinal()].increment();
+        if (shedWarned.compareAndSet(false, true)) {
+            logWarn("Thread event buffer full, shedding events (" + policy
+                    + "); further drops are only counted");
+        }
+    }
+
+    public long getShedCount(BackpressurePolicy policy) {
+        return shedCounts[policy.ordinal()].sum();
+    }
+
+    /**
+     * Events dropped so far, by the policy in effect when they were dropped.
+     */
+    public Map<String, Long> getShedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (BackpressurePolicy policy : BackpressurePolicy.values()) {
+            counts.put(policy.name(), getShedCount(policy));
+        }
+        return counts;
+    }
+
+    /**
+     * Keep an overflowing event instead of dropping it. Overflow is collected
+     * in memory and written to the spool every {@link #SPILL_BATCH_SIZE}
+     * events; the batch processor picks up whatever is left on each run.
+     */
+    private void spill(TraceEvent event) {
+        List<TraceEvent> full = null;
+        synchronized (overflow) {
+            overflow.add(event);
+            if (overflow.size() >= SPILL_BATCH_SIZE) {
+                full = new ArrayList<>(overflow);
+                overflow.clear();
+            }
+        }
+        if (full != null) {
+            sender.spool(new EventBatch(groupByTrace(full)));
+        }
+    }
+
+    private void drainOverflow(List<TraceEvent> out) {
+        synchronized (overflow) {
+            out.addAll(overflow);
+            overflow.clear();
+        }
+    }
+
+    AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Events waiting in thread buffers, the overflow list and the send lanes.
+     */
+    public synchronized long getBufferedEvents() {
+        long buffered = laneBacklog;
+        for (ThreadEventBuffer buffer : buffers.active()) {
+            buffered += buffer.size();
+        }
+        synchronized (overflow) {
+            buffered += overflow.size();
+        }
+        return buffered;
+    }
+
+    /**
+     * Bytes of records waiting in the binary recording rings.
+     */
+    public synchronized long getRingPendingBytes() {
+        long pending = 0;
+        for (BinaryEventRing ring : rings.active()) {
+            pending += ring.pendingBytes();
+        }
+        return pending;
+    }
+
+    public boolean isBinaryRecording() {
+        return config.isBinaryRecording();
+    }
+
+    /**
+     * The calling thread's own buffer, for threads that keep their context.
+     */
+    ThreadEventBuffer localBuffer() {
+        return localBuffer.get();
+    }
+
+    /**
+     * The calling thread's off-heap ring (binary recording mode).
+     */
+    BinaryEventRing localRing() {
+        return localRing.get();
+    }
+
+    /**
+     * A buffer for one request on a pooled context, reused from an earlier
+     * request when one is idle. Events still in it are drained as usual.
+     * Hand it back with {@link #release(ThreadEventBuffer)} when the request ends.
+     */
+    ThreadEventBuffer leaseBuffer() {
+        ThreadEventBuffer buffer = buffers.lease();
+        return buffer != null ? buffer : buffers.register(newBuffer(null));
+    }
+
+    void release(ThreadEventBuffer buffer) {
+        buffers.release(buffer);
+    }
+
+    /**
+     * The ring counterpart of {@link #leaseBuffer}, for binary recording mode.
+     */
+    BinaryEventRing leaseRing() {
+        BinaryEventRing ring = rings.lease();
+        return ring != null ? ring : rings.register(newRing(null));
+    }
+
+    void release(BinaryEventRing ring) {
+        rings.release(ring);
+    }
+
+    private ThreadEventBuffer newBuffer(Thread owner) {
+        return new ThreadEventBuffer(config.getThreadBufferSize(), config.getThreadBufferMaxBytes(), owner);
+    }
+
+    private BinaryEventRing newRing(Thread owner) {
+        return new BinaryEventRing(config.getRingSizeBytes(), owner,
+                (long) config.getBatchSize() * BinaryEventRing.EVENT_HEADER_SIZE, this::wakeBatchProcessor);
+    }
+
+    private void wakeBatchProcessor() {
+        LockSupport.unpark(batchProcessor);
+    }
+
+    /**
+     * Encode up to {@code max} ring records into one batch and send it.
+     * The future completes with the number of records sent once the request is done.
+     * Synchronized for the same single-consumer reason as {@link #drainBuffers}.
+     */
+    private synchronized CompletableFuture<Integer> sendRings(int max) {
+        CompletableFuture<Integer> sent = sender.sendRecords(rings.active(), strings, max);
+        rings.reclaim();
+        return sent;
+    }
+
+    /**
+     * Merge up to {@code max} events from the per-thread buffers into {@code out},
+     * and drop buffers whose threads have died once they are empty.
+     * Synchronized so the processor and a shutdown flush never consume
+     * concurrently; producers never take this lock.
+     */
+    private synchronized void drainBuffers(List<TraceEvent> out, int max) {
+        List<ThreadEventBuffer> active = buffers.active();
+        int count = active.size();
+        if (count == 0) {
             return;
         }
+        int start = drainStart++ % count;
+        for (int i = 0; i < count && out.size() < max; i++) {
+            ThreadEventBuffer buffer = active.get((start + i) % count);
+            buffer.drainTo(out, max - out.size());
+        }
+        buffers.reclaim();
+    }
 
-        batchProcessor.submit(() -> {
-            try {
-                List<TraceEvent> events = new ArrayList<>(config.getBatchSize());
-                eventQueue.drainTo(events, config.getBatchSize());
+    /**
+     * Split drained events into one section per trace. Buffers are drained one
+     * thread at a time, so traces arrive interleaved; each section keeps its
+     * events in drain order, and sections are in order of first appearance.
+     */
+    static List<TraceSection> groupByTrace(List<TraceEvent> events) {
+        Map<String, List<TraceEvent>> byTrace = new LinkedHashMap<>();
+        for (TraceEvent event : events) {
+            byTrace.computeIfAbsent(event.getTraceId(), id -> new ArrayList<>()).add(event);
+        }
+        List<TraceSection> sections = new ArrayList<>(byTrace.size());
+        for (Map.Entry<String, List<TraceEvent>> trace : byTrace.entrySet()) {
+            sections.add(new TraceSection(trace.getKey(), trace.getValue()));
+        }
+        return sections;
+    }
 
-                if (!events.isEmpty()) {
-                    EventBatch batch = new EventBatch(events);
-                    sender.sendBatch(batch);
-                    logDebug("Sent batch of "+events.size()+" events" );
+    /**
+     * Body of the batch processor thread. Whenever a pass finds less than a
+     * full batch to drain and nothing to send, parks until pending events
+     * have lingered for the batch interval, or at most one interval.
+     */
+    private void drainLoop() {
+        while (running) {
+            try {
+                replaySpool();
+                parkDeadlineNanos = System.nanoTime() + lingerNanos();
+                boolean busy = config.isBinaryRecording() ? drainRings() : drainToLanes();
+                long wait = parkDeadlineNanos - System.nanoTime();
+                if (!busy && wait > 0) {
+                    LockSupport.parkNanos(this, wait);
                 }
             } catch (Exception e) {
                 logError("Error processing batch", e);
+                LockSupport.parkNanos(this, lingerNanos());
+            }
+        }
+    }
+
+    private long lingerNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(config.getBatchIntervalMs());
+    }
+
+    /**
+     * Resend spooled batches, older than anything still buffered, once per batch interval.
+     */
+    private void replaySpool() {
+        long now = System.nanoTime();
+        if (sender.isSpooling() && now - lastReplayNanos >= lingerNanos()) {
+            lastReplayNanos = now;
+            sender.replaySpool();
+        }
+    }
+
+    /**
+     * One pass in object mode: move events from the thread buffers onto their
+     * lanes, then start a request on every idle lane holding a full batch or
+     * events older than the batch interval. While the collector is unavailable
+     * nothing is drained or encoded; events wait in the thread buffers.
+     *
+     * @return whether a full batch was drained or a request was started
+     */
+    private boolean drainToLanes() {
+        if (!sender.isAvailable()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        int batchSize = config.getBatchSize();
+        boolean busy = false;
+        if (!isBacklogged(batchSize)) {
+            List<TraceEvent> events = new ArrayList<>(batchSize);
+            drainBuffers(events, batchSize);
+            drainOverflow(events);
+            // Anything drained now was buffered after the last drain, and has waited since at most then
+            long bufferedSince = lastDrainNanos;
+            lastDrainNanos = now;
+            for (TraceEvent event : events) {
+                Lane lane = laneOf(event);
+                if (lane.pending.isEmpty()) {
+                    lane.pendingSinceNanos = bufferedSince;
+                }
+                lane.pending.add(event);
+            }
+            busy = events.size() >= batchSize;
+        }
+        long linger = lingerNanos();
+        int backlog = 0;
+        for (Lane lane : lanes) {
+            if (!lane.pending.isEmpty() && lane.inFlight.isDone()
+                    && (lane.pending.size() >= batchSize || now - lane.pendingSinceNanos >= linger)
+                    && sender.isAvailable()) {
+                lane.inFlight = sendBatch(takeBatch(lane, batchSize));
+                busy = true;
             }
-        });
+            // A lane waiting on its request is woken when the request completes
+            if (!lane.pending.isEmpty() && lane.inFlight.isDone()) {
+                parkDeadlineNanos = Math.min(parkDeadlineNanos, lane.pendingSinceNanos + linger);
+            }
+            backlog += lane.pending.size();
+        }
+        laneBacklog = backlog;
+        return busy;
     }
 
     /**
-     * Flush any remaining events.
+     * Whether a lane has fallen so far behind that draining should pause, leaving
+     * new events in the thread buffers where the backpressure policy applies.
+     */
+    private boolean isBacklogged(int batchSize) {
+        for (Lane lane : lanes) {
+            if (lane.pending.size() >= batchSize * MAX_LANE_BACKLOG_BATCHES) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Lane laneOf(TraceEvent event) {
+        return lanes[Math.floorMod(Objects.hashCode(event.getTraceId()), lanes.length)];
+    }
+
+    private static List<TraceEvent> takeBatch(Lane lane, int batchSize) {
+        List<TraceEvent> head = lane.pending.subList(0, Math.min(batchSize, lane.pending.size()));
+        List<TraceEvent> batch = new ArrayList<>(head);
+        head.clear();
+        return batch;
+    }
+
+    private CompletableFuture<Void> sendBatch(List<TraceEvent> events) {
+        CompletableFuture<Void> sent = sender.sendBatch(new EventBatch(groupByTrace(events)));
+        sent.whenComplete((v, e) -> wakeBatchProcessor());
+        logDebug("Sent batch of " + events.size() + " events");
+        return sent;
+    }
+
+    /**
+     * One pass in binary recording mode: once the previous request is done, send
+     * the rings' records if they likely fill a batch or have waited out the batch interval.
+     *
+     * @return whether a request was started with at least a batch worth of records pending
+     */
+    private boolean drainRings() {
+        if (!ringSend.isDone() || !sender.isAvailable()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long pendingBytes = getRingPendingBytes();
+        if (pendingBytes == 0) {
+            ringPending = false;
+            lastDrainNanos = now;
+            return false;
+        }
+        if (!ringPending) {
+            // Published after the last pass that found the rings empty
+            ringPending = true;
+            ringPendingSinceNanos = lastDrainNanos;
+        }
+        // Records are at least EVENT_HEADER_SIZE bytes, so this underestimates the events pending
+        boolean full = pendingBytes >= (long) config.getBatchSize() * BinaryEventRing.EVENT_HEADER_SIZE;
+        if (!full && now - ringPendingSinceNanos < lingerNanos()) {
+            parkDeadlineNanos = Math.min(parkDeadlineNanos, ringPendingSinceNanos + lingerNanos());
+            return false;
+        }
+        ringSend = sendRings(config.getBatchSize());
+        ringSend.whenComplete((sent, e) -> wakeBatchProcessor());
+        ringSend.thenAccept(sent -> logDebug("Sent batch of " + sent + " records"));
+        ringPendingSinceNanos = now;
+        return full;
+    }
+
+    /**
+     * Send everything still buffered and wait for the requests to complete.
+     * Stops the batch processor first, so this is the only consumer; called on shutdown.
      */
     public void flush() {
         logInfo("Flushing remaining events...");
+        stopBatchProcessor();
 
         try {
+            if (config.isBinaryRecording()) {
+                ringSend.handle((sent, e) -> null).get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                int flushed = sendRings(Integer.MAX_VALUE).get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                logInfo("Flushed "+flushed+" records" );
+                return;
+            }
             List<TraceEvent> events = new ArrayList<>();
-            eventQueue.drainTo(events);
+            drainBuffers(events, Integer.MAX_VALUE);
+            drainOverflow(events);
+            for (TraceEvent event : events) {
+                laneOf(event).pending.add(event);
+            }
 
-            if (!events.isEmpty()) {
-                EventBatch batch = new EventBatch(events);
-                sender.sendBatch(batch);
-                logInfo("Flushed "+events.size()+" events" );
+            List<CompletableFuture<Void>> sends = new ArrayList<>();
+            int flushed = 0;
+            for (Lane lane : lanes) {
+                if (!lane.pending.isEmpty()) {
+                    // Behind the lane's request in flight, to keep each trace in order
+                    List<TraceEvent> batch = takeBatch(lane, Integer.MAX_VALUE);
+                    flushed += batch.size();
+                    lane.inFlight = lane.inFlight.handle((v, e) -> null)
+                            .thenCompose(v -> sender.sendBatch(new EventBatch(groupByTrace(batch))));
+                }
+                sends.add(lane.inFlight.handle((v, e) -> null));
+            }
+            CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0]))
+                    .get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (flushed > 0) {
+                logInfo("Flushed "+flushed+" events" );
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logWarn("Interrupted while flushing events");
+        } catch (TimeoutException e) {
+            logWarn("Collector did not confirm flushed batches within " + FLUSH_TIMEOUT_SECONDS + " s");
         } catch (Exception e) {
             logError("Error flushing events", e);
         }
     }
 
-    /**
-     * Shutdown the batcher.
-     */
-    public void shutdown() {
-        logInfo("Shutting down event batcher...");
+    private void stopBatchProcessor() {
         running = false;
-
+        LockSupport.unpark(batchProcessor);
         try {
-            scheduler.shutdown();
-            scheduler.awaitTermination(5, TimeUnit.SECONDS);
-
-            batchProcessor.shutdown();
-            batchProcessor.awaitTermination(5, TimeUnit.SECONDS);
+            batchProcessor.join(TimeUnit.SECONDS.toMillis(5));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             logWarn("Interrupted during shutdown");
         }
+    }
+
+    /**
+     * Shutdown the batcher.
+     */
+    public void shutdown() {
+        logInfo("Shutting down event batcher...");
+        stopBatchProcessor();
 
         logInfo("Event batcher shutdown complete");
     }
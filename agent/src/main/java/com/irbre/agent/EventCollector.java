@@ -2,16 +2,19 @@ package com.irbre.agent;
 
 import com.irbre.agent.model.EventType;
 import com.irbre.agent.model.RequestMetadata;
+import com.irbre.agent.model.SpanOutcome;
 import com.irbre.agent.model.TraceEvent;
-import com.irbre.agent.util.LamportClock;
+import com.irbre.agent.util.IdGenerator;
+import com.irbre.agent.util.HybridLogicalClock;
+import com.irbre.agent.util.StringTable;
 
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Collects trace events from instrumented code.
- * Thread-safe singleton that maintains context per thread.
+ * Thread-safe singleton that maintains context per thread, through a {@link TraceContextStore}.
  */
 public class EventCollector {
     private static void logInfo(String msg) {
@@ -29,9 +32,16 @@ public class EventCollector {
 
     private static final EventCollector INSTANCE = new EventCollector();
 
-    private final ThreadLocal<TraceContext> traceContext = ThreadLocal.withInitial(TraceContext::new);
+    private TraceContextStore contexts = new ThreadLocalContextStore();
+    private boolean sharedContexts;
     private final Map<String, RequestMetadata> activeTraces = new ConcurrentHashMap<>();
+    private final StringTable strings = new StringTable();
+    private final MethodRegistry methodRegistry = new MethodRegistry();
     private EventBatcher batcher;
+    private boolean binaryRecording;
+    private TraceSampler sampler;
+    private TailSamplingPolicy tailPolicy;
+    private MethodStats methodStats;
 
     private EventCollector() {
     }
@@ -40,15 +50,55 @@ public class EventCollector {
         return INSTANCE;
     }
 
+    /**
+     * Where per-request context is kept; {@link PooledContextStore} suits
+     * servers that run each request on its own (virtual) thread.
+     */
+    void setContextStore(TraceContextStore contexts) {
+        this.contexts = contexts;
+        this.sharedContexts = contexts.sharesContexts();
+    }
+
     public void setBatcher(EventBatcher batcher) {
         this.batcher = batcher;
+        this.binaryRecording = batcher != null && batcher.isBinaryRecording();
+    }
+
+    /**
+     * Sampler consulted once per request in {@link #startRequest}. Without one every request is traced.
+     */
+    public void setSampler(TraceSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Enable tail sampling: each request's events are buffered until
+     * {@link #endRequest}, where the policy decides whether they are sent.
+     */
+    public void setTailSamplingPolicy(TailSamplingPolicy tailPolicy) {
+        this.tailPolicy = tailPolicy;
+    }
+
+    /**
+     * Count calls and durations per method, for hot method de-instrumentation.
+     */
+    public void setMethodStats(MethodStats methodStats) {
+        this.methodStats = methodStats;
+    }
+
+    public StringTable getStringTable() {
+        return strings;
+    }
+
+    public MethodRegistry getMethodRegistry() {
+        return methodRegistry;
     }
 
 //    /**
 //     * Called when an HTTP request starts (would be called by servlet filter in real app).
 //     */
 //    public void startRequest(String httpMethod, String url, Map<String, String> headers) {
-//        TraceContext ctx = traceContext.get();
+//        TraceContext ctx = contexts.get();
 //        String traceId = UUID.randomUUID().toString();
 //        ctx.traceId = traceId;
 //        ctx.sequenceNumber = 0;
@@ -64,12 +114,136 @@ public class EventCollector {
      * Called when an HTTP request ends.
      */
     public void endRequest() {
-        TraceContext ctx = traceContext.get();
+        TraceContext ctx = contexts.get();
+        if (ctx.tailBuffered) {
+            // Tasks the request handed off count too: a failure, or spans past the buffer cap
+            AsyncContext.TailBuffer taskTail = ctx.taskTail;
+            boolean keep = (taskTail != null && taskTail.overflowed)
+                    || tailPolicy.keep(ctx.requestUri, System.nanoTime() - ctx.requestStartNanos,
+                            ctx.failed || (taskTail != null && taskTail.failed));
+            completeTailBuffer(ctx, keep);
+            logDebug("Tail sampling " + (keep ? "kept" : "dropped") + " trace: " + ctx.traceId);
+        }
         if (ctx.traceId != null) {
             activeTraces.remove(ctx.traceId);
             logDebug("Ended trace: " + ctx.traceId);
         }
-        traceContext.remove();
+        releaseBuffers(ctx);
+        contexts.release();
+    }
+
+    /**
+     * The buffer the current request appends to: the thread's own, or one
+     * leased until the request ends when contexts move between threads.
+     */
+    private ThreadEventBuffer buffer(TraceContext ctx) {
+        if (ctx.buffer == null) {
+            ctx.buffer = sharedContexts ? batcher.leaseBuffer() : batcher.localBuffer();
+        }
+        return ctx.buffer;
+    }
+
+    private BinaryEventRing ring(TraceContext ctx) {
+        if (ctx.ring == null) {
+            ctx.ring = sharedContexts ? batcher.leaseRing() : batcher.localRing();
+        }
+        return ctx.ring;
+    }
+
+    /**
+     * Give leased buffers back before the context is released to the pool.
+     */
+    private void releaseBuffers(TraceContext ctx) {
+        if (!sharedContexts || batcher == null) {
+            return;
+        }
+        if (ctx.buffer != null) {
+            batcher.release(ctx.buffer);
+            ctx.buffer = null;
+        }
+        if (ctx.ring != null) {
+            batcher.release(ctx.ring);
+            ctx.ring = null;
+        }
+    }
+
+    /**
+     * Forward or discard the events buffered for the current request, and
+     * those its tasks held, and stop buffering. Task spans that arrive later
+     * follow the same decision.
+     */
+    private void completeTailBuffer(TraceContext ctx, boolean keep) {
+        ctx.tailBuffered = false;
+        List<TraceEvent> taskSpans = ctx.taskTail != null
+                ? ctx.taskTail.decide(keep)
+                : Collections.emptyList();
+        if (binaryRecording) {
+            if (ctx.ring != null) {
+                if (keep) {
+                    ctx.ring.commitDeferred();
+                } else {
+                    ctx.ring.discardDeferred();
+                }
+            }
+            if (keep && batcher != null) {
+                BinaryEventRing ring = ring(ctx);
+                for (TraceEvent event : taskSpans) {
+                    writeTaskSpan(ring, event);
+                }
+            }
+            tailPolicy.release(taskSpans.size());
+            return;
+        }
+        List<TraceEvent> pending = ctx.pending != null ? ctx.pending : Collections.emptyList();
+        if (keep && batcher != null) {
+            ThreadEventBuffer buffer = buffer(ctx);
+            for (TraceEvent event : pending) {
+                batcher.addEvent(event, buffer);
+            }
+            for (TraceEvent event : taskSpans) {
+                batcher.addEvent(event, buffer);
+            }
+        }
+        tailPolicy.release(pending.size() + taskSpans.size());
+        ctx.pending = null;
+    }
+
+    /**
+     * Hold a span a task recorded while its request is tail-buffered, until the request decides.
+     *
+     * @return false if the span is to be recorded now: the trace is already
+     *         kept, or the buffer is full, which keeps the trace
+     */
+    private boolean holdTaskSpan(AsyncContext.TailBuffer tail, TraceEvent event) {
+        if (tail.isDecided()) {
+            return !tail.isKept();
+        }
+        if (!tailPolicy.reserve()) {
+            tail.overflowed = true;
+            return false;
+        }
+        if (tail.hold(event)) {
+            return true;
+        }
+        // Decided meanwhile
+        tailPolicy.release(1);
+        return !tail.isKept();
+    }
+
+    /**
+     * Write a span a task held for the request into the request's ring, now
+     * that the trace is kept. Called on the request's thread, which owns the ring.
+     */
+    private void writeTaskSpan(BinaryEventRing ring, TraceEvent event) {
+        int exceptionTypeId = event.getExceptionType() != null ? strings.intern(event.getExceptionType()) : -1;
+        if (writeSpan(ring, event.getTraceId(), event.getThreadId(), event.getThreadName(),
+                event.getSequenceNumber(), event.getMethodId(), event.getStartNanos(), event.getDurationNanos(),
+                event.getSpanId(), event.getParentSpanId(), event.getLamportClock(),
+                exceptionTypeId, event.getExceptionMessage())) {
+            batcher.getMetrics().eventRecorded(EventType.SPAN);
+        } else {
+            batcher.recordShed(BackpressurePolicy.DROP_NEWEST);
+        }
     }
 
     /**
@@ -77,7 +251,7 @@ public class EventCollector {
      */
 //    public void onMethodEntry(String className, String methodName) {
 //        try {
-//            TraceContext ctx = traceContext.get();
+//            TraceContext ctx = contexts.get();
 //
 //            // If no trace context, create one (for non-HTTP threads)
 //            if (ctx.traceId == null) {
@@ -119,88 +293,87 @@ public class EventCollector {
 //            logError("Error collecting method entry event", e);
 //        }
 //    }
-    public void onMethodEntry(String className, String methodName) {
+    public long onMethodEntry(int methodId) {
         try {
-            TraceContext ctx = traceContext.get();
+            TraceContext ctx = contexts.get();
 
+            // Unsampled request: one thread-local flag check, nothing else
+            if (!ctx.sampled) {
+                return 0L;
+            }
+
+            // Neither in a request nor in a task submitted by one: the thread gets a trace of its own
             if (ctx.traceId == null) {
                 ctx.traceId = "thread-" + Thread.currentThread().getId();
                 ctx.sequenceNumber = 0;
             }
 
-            RequestMetadata metadata = activeTraces.get(ctx.traceId);
-
-            // Get parent span ID:
-            // - If this is the first span in a distributed trace, use distributedParentSpanId
-            // - Otherwise use the top of the stack
-            String parentSpanId = null;
-            if (ctx.spanStack.isEmpty() && ctx.distributedParentSpanId != null) {
-                parentSpanId = ctx.distributedParentSpanId;
-            } else if (!ctx.spanStack.isEmpty()) {
-                parentSpanId = ctx.spanStack.peek();
-            }
-
-            String currentSpanId = UUID.randomUUID().toString();
-
-            TraceEvent event = TraceEvent.builder()
-                    .traceId(ctx.traceId)
-                    .eventType(EventType.METHOD_ENTRY)
-                    .timestamp(Instant.now())
-                    .className(className)
-                    .methodName(methodName)
-                    .threadName(Thread.currentThread().getName())
-                    .threadId(Thread.currentThread().getId())
-                    .sequenceNumber(ctx.sequenceNumber++)
-                    .requestMetadata(metadata)
-                    .spanId(currentSpanId)
-                    .parentSpanId(parentSpanId)  // Now includes distributed parent
-                    .lamportClock(LamportClock.next())
-                    .build();
-
-            ctx.spanStack.push(currentSpanId);
-
-            if (batcher != null) {
-                batcher.addEvent(event);
-            }
+            // Nothing is recorded on entry: the span is reported once, when the method completes
+            ctx.pushSpan(ctx.spanIds.nextSpanId());
+            return System.nanoTime();
         } catch (Exception e) {
             logError("Error collecting method entry event", e);
+            return 0L;
         }
     }
+
     /**
-     * Called when a method exits (ADD THIS METHOD).
-     * This is crucial for maintaining the span hierarchy.
+     * Called when a method completes, normally or by throwing.
+     * Emits a single SPAN event carrying the start time, duration and outcome.
+     *
+     * @param startNanos {@link System#nanoTime()} taken by the probe on entry
+     * @param thrown     the exception leaving the method, or null on a normal return
      */
-    public void onMethodExit(String className, String methodName) {
+    public void onMethodExit(int methodId, long startNanos, Throwable thrown) {
         try {
-            TraceContext ctx = traceContext.get();
+            long endNanos = System.nanoTime();
+            long durationNanos = endNanos - startNanos;
+            TraceContext ctx = contexts.get();
 
-            if (ctx.traceId == null || ctx.spanStack.isEmpty()) {
+            if (ctx.traceId == null || ctx.depth == 0) {
                 return; // No active trace or mismatched entry/exit
             }
 
-            // Pop the current span from the stack
-            String currentSpanId = ctx.spanStack.pop();
-
-            RequestMetadata metadata = activeTraces.get(ctx.traceId);
-            String parentSpanId = ctx.spanStack.isEmpty() ? null : ctx.spanStack.peek();
-
-            TraceEvent event = TraceEvent.builder()
-                    .traceId(ctx.traceId)
-                    .eventType(EventType.METHOD_EXIT)
-                    .timestamp(Instant.now())
-                    .className(className)
-                    .methodName(methodName)
-                    .threadName(Thread.currentThread().getName())
-                    .threadId(Thread.currentThread().getId())
-                    .sequenceNumber(ctx.sequenceNumber++)
-                    .requestMetadata(metadata)
-                    .spanId(currentSpanId)
-                    .parentSpanId(parentSpanId)
-                    .lamportClock(LamportClock.next())
-                    .build();
+            // Pop the current span; its parent is the span below it, or the
+            // distributed parent for the first span of the request
+            long currentSpanId = ctx.spanStack[--ctx.depth];
+            long parentSpanId = ctx.depth == 0
+                    ? ctx.distributedParentSpanId
+                    : ctx.spanStack[ctx.depth - 1];
+            if (thrown != null) {
+                ctx.failed = true;
+                if (ctx.taskTail != null) {
+                    ctx.taskTail.failed = true;
+                }
+            }
+            if (methodStats != null) {
+                if (ctx.counters == null) {
+                    ctx.counters = methodStats.local();
+                }
+                ctx.counters.record(methodId, durationNanos);
+            }
 
+            if (binaryRecording) {
+                recordBinary(ctx, methodId, startNanos, durationNanos,
+                        currentSpanId, parentSpanId, thrown);
+                return;
+            }
+
+            TraceEvent event = spanEvent(ctx, methodId, startNanos, durationNanos, ctx.nextSequence(),
+                    currentSpanId, parentSpanId, ctx.clock.tick(endNanos), thrown);
+
+            if (ctx.tailBuffered) {
+                if (tailPolicy.reserve()) {
+                    ctx.pending.add(event);
+                    return;
+                }
+                // Buffer cap reached: keep this trace and record the rest of it directly
+                completeTailBuffer(ctx, true);
+            } else if (ctx.taskTail != null && holdTaskSpan(ctx.taskTail, event)) {
+                return;
+            }
             if (batcher != null) {
-                batcher.addEvent(event);
+                batcher.addEvent(event, buffer(ctx));
             }
         } catch (Exception e) {
             logError("Error collecting method exit event", e);
@@ -208,82 +381,163 @@ public class EventCollector {
     }
 
     /**
-     * Called when an exception is thrown.
+     * Encode a completed span into the off-heap ring instead of building a TraceEvent.
      */
-    public void onException(String className, String methodName, Throwable exception) {
-        try {
-            TraceContext ctx = traceContext.get();
-
-            if (ctx.traceId == null) {
-                return; // No active trace
+    private void recordBinary(TraceContext ctx, int methodId, long startNanos, long durationNanos,
+                              long spanId, long parentSpanId, Throwable thrown) {
+        if (batcher == null) {
+            return;
+        }
+        BinaryEventRing ring = ring(ctx);
+        int sequenceNumber = ctx.nextSequence();
+        long lamportClock = ctx.clock.tick(startNanos + durationNanos);
+        if (ctx.taskTail != null && !ctx.tailBuffered) {
+            // A task's span: its request's ring is out of reach, so it is held as an object instead
+            TraceEvent event = spanEvent(ctx, methodId, startNanos, durationNanos, sequenceNumber,
+                    spanId, parentSpanId, lamportClock, thrown);
+            if (holdTaskSpan(ctx.taskTail, event)) {
+                return;
             }
-
-            RequestMetadata metadata = activeTraces.get(ctx.traceId);
-
-            // Get current span (the one where exception occurred)
-            String currentSpanId = ctx.spanStack.isEmpty() ? null : ctx.spanStack.peek();
-
-            // Parent is the one below current in stack
-            String parentSpanId = null;
-            if (ctx.spanStack.size() > 1) {
-                // Temporarily pop to see parent
-                String temp = ctx.spanStack.pop();
-                parentSpanId = ctx.spanStack.isEmpty() ? null : ctx.spanStack.peek();
-                ctx.spanStack.push(temp); // Push back
+        }
+        int exceptionTypeId = thrown != null ? strings.intern(thrown.getClass().getName()) : -1;
+        String exceptionMessage = thrown != null ? thrown.getMessage() : null;
+        if (writeSpan(ctx, ring, sequenceNumber, methodId, startNanos, durationNanos,
+                spanId, parentSpanId, lamportClock, exceptionTypeId, exceptionMessage)) {
+            batcher.getMetrics().eventRecorded(EventType.SPAN);
+            return;
+        }
+        if (ctx.tailBuffered) {
+            // Ring full of this request's deferred records: keep the trace and publish
+            // them so the consumer can make room, then record the rest directly
+            completeTailBuffer(ctx, true);
+            if (writeSpan(ctx, ring, sequenceNumber, methodId, startNanos, durationNanos,
+                    spanId, parentSpanId, lamportClock, exceptionTypeId, exceptionMessage)) {
+                batcher.getMetrics().eventRecorded(EventType.SPAN);
+                return;
             }
+        }
+        // Records already in the ring cannot be taken back, so a full ring drops the newest
+        batcher.recordShed(BackpressurePolicy.DROP_NEWEST);
+    }
 
-            TraceEvent event = TraceEvent.builder()
-                    .traceId(ctx.traceId)
-                    .eventType(EventType.EXCEPTION)
-                    .timestamp(Instant.now())
-                    .className(className)
-                    .methodName(methodName)
-                    .threadName(Thread.currentThread().getName())
-                    .threadId(Thread.currentThread().getId())
-                    .sequenceNumber(ctx.sequenceNumber++)
-                    .exceptionType(exception.getClass().getName())
-                    .exceptionMessage(exception.getMessage())
-                    .requestMetadata(metadata)
-                    .spanId(currentSpanId)
-                    .parentSpanId(parentSpanId)
-                    .lamportClock(LamportClock.next())
-                    .build();
+    private boolean writeSpan(TraceContext ctx, BinaryEventRing ring, int sequenceNumber, int methodId,
+                              long startNanos, long durationNanos, long spanId, long parentSpanId,
+                              long lamportClock, int exceptionTypeId, String exceptionMessage) {
+        Thread thread = Thread.currentThread();
+        return writeSpan(ring, ctx.traceId, thread.getId(), thread.getName(), sequenceNumber, methodId,
+                startNanos, durationNanos, spanId, parentSpanId, lamportClock, exceptionTypeId, exceptionMessage);
+    }
 
-            if (batcher != null) {
-                batcher.addEvent(event);
-            }
-        } catch (Exception e) {
-            logError("Error collecting exception event", e);
+    private boolean writeSpan(BinaryEventRing ring, String traceId, long threadId, String threadName,
+                              int sequenceNumber, int methodId, long startNanos, long durationNanos,
+                              long spanId, long parentSpanId, long lamportClock,
+                              int exceptionTypeId, String exceptionMessage) {
+        if (ring.needsTrace(traceId, threadId)
+                && !ring.writeTrace(traceId, activeTraces.get(traceId), threadId, threadName)) {
+            return false;
         }
+        return ring.writeSpan(sequenceNumber, methodId, startNanos, durationNanos,
+                spanId, parentSpanId, lamportClock, exceptionTypeId, exceptionMessage);
     }
+
+    private TraceEvent spanEvent(TraceContext ctx, int methodId, long startNanos, long durationNanos,
+                                 int sequenceNumber, long spanId, long parentSpanId, long lamportClock,
+                                 Throwable thrown) {
+        Thread thread = Thread.currentThread();
+        return TraceEvent.builder()
+                .traceId(ctx.traceId)
+                .eventType(EventType.SPAN)
+                .startNanos(startNanos)
+                .durationNanos(durationNanos)
+                .outcome(thrown == null ? SpanOutcome.OK : SpanOutcome.EXCEPTION)
+                .methodId(methodId)
+                .threadName(thread.getName())
+                .threadId(thread.getId())
+                .sequenceNumber(sequenceNumber)
+                .exceptionType(thrown != null ? thrown.getClass().getName() : null)
+                .exceptionMessage(thrown != null ? thrown.getMessage() : null)
+                .requestMetadata(activeTraces.get(ctx.traceId))
+                .spanId(spanId)
+                .parentSpanId(parentSpanId)  // Includes the distributed parent
+                .lamportClock(lamportClock)
+                .build();
+    }
+
     /**
      * Enhanced startRequest that accepts incoming correlation IDs for distributed tracing.
      */
     public void startRequest(String httpMethod, String url, Map<String, String> headers,
                              String incomingTraceId, String incomingParentSpanId) {
-        TraceContext ctx = traceContext.get();
+        startRequest(httpMethod, url, headers, incomingTraceId, incomingParentSpanId, null);
+    }
+
+    /**
+     * Start a request, honoring the upstream sampling decision when there is one.
+     *
+     * @param incomingSampled decision propagated by the caller, or null to sample locally
+     */
+    public void startRequest(String httpMethod, String url, Map<String, String> headers,
+                             String incomingTraceId, String incomingParentSpanId, Boolean incomingSampled) {
+        TraceContext ctx = contexts.get();
+        if (ctx.tailBuffered) {
+            // The previous request on this thread never ended; its trace is incomplete
+            completeTailBuffer(ctx, false);
+        }
 
         // Use incoming trace ID if present (for distributed tracing), otherwise create new
         String traceId = (incomingTraceId != null && !incomingTraceId.isEmpty())
                 ? incomingTraceId
-                : UUID.randomUUID().toString();
+                : IdGenerator.newTraceId();
 
         ctx.traceId = traceId;
+        ctx.requestTrace = true;
         ctx.sequenceNumber = 0;
-        ctx.spanStack.clear();
+        ctx.sharedSequence = null;
+        ctx.taskTail = null;
+        ctx.captured = null;
+        ctx.depth = 0;
 
         // If there's an incoming parent span ID, it means this request is part of a larger trace
-        if (incomingParentSpanId != null && !incomingParentSpanId.isEmpty()) {
-            ctx.distributedParentSpanId = incomingParentSpanId;
+        ctx.distributedParentSpanId = IdGenerator.parseSpanId(incomingParentSpanId);
+
+        // Decided once per request; unsampled requests keep their IDs for propagation only
+        ctx.sampled = incomingSampled != null
+                ? incomingSampled
+                : sampler == null || sampler.sample(url);
+        if (!ctx.sampled) {
+            return;
         }
 
         RequestMetadata metadata = new RequestMetadata(httpMethod, url, headers);
         activeTraces.put(traceId, metadata);
 
+        if (tailPolicy != null) {
+            startTailBuffer(ctx, url);
+        }
+
         logDebug("Started trace: " + traceId +
                 (incomingTraceId != null ? " (propagated)" : " (new)"));
     }
 
+    /**
+     * Buffer the request's events until {@link #endRequest} decides their fate.
+     */
+    private void startTailBuffer(TraceContext ctx, String url) {
+        ctx.tailBuffered = true;
+        ctx.requestUri = url;
+        ctx.requestStartNanos = System.nanoTime();
+        ctx.failed = false;
+        if (binaryRecording) {
+            if (batcher == null) {
+                ctx.tailBuffered = false;
+                return;
+            }
+            ring(ctx).beginDeferred();
+        } else {
+            ctx.pending = new ArrayList<>();
+        }
+    }
+
     /**
      * Backward compatible startRequest.
      */
@@ -295,26 +549,129 @@ public class EventCollector {
      * Get current trace ID (useful for response headers).
      */
     public String getCurrentTraceId() {
-        TraceContext ctx = traceContext.get();
+        TraceContext ctx = contexts.get();
         return ctx.traceId;
     }
 
     /**
-     * Get current span ID (useful for outgoing HTTP calls).
+     * Whether the current request is traced (propagate on outgoing HTTP calls).
      */
-    public String getCurrentSpanId() {
-        TraceContext ctx = traceContext.get();
-        return ctx.spanStack.isEmpty() ? null : ctx.spanStack.peek();
+    public boolean isCurrentTraceSampled() {
+        return contexts.get().sampled;
+    }
+
+    /**
+     * Merge the hybrid logical clock received from the caller, so the events
+     * of this request are ordered after the caller's.
+     */
+    public void receiveClock(String value) {
+        long remote = HybridLogicalClock.parse(value);
+        if (remote != 0 && HybridLogicalClock.receive(remote)) {
+            contexts.get().clock.reset();
+        }
+    }
+
+    /**
+     * Next hybrid logical clock value, to send with responses and outgoing calls.
+     */
+    public String nextClock() {
+        return HybridLogicalClock.format(contexts.get().clock.tick());
+    }
+
+    /**
+     * Snapshot of the current request's trace for a task handed to another
+     * thread, or null when the thread is not working for a request.
+     */
+    AsyncContext captureContext() {
+        TraceContext ctx = contexts.get();
+        if (!ctx.requestTrace) {
+            return null;
+        }
+        long parentSpanId = ctx.depth == 0 ? ctx.distributedParentSpanId : ctx.spanStack[ctx.depth - 1];
+        // From here on the request and its tasks number their spans from one counter
+        if (ctx.sharedSequence == null) {
+            ctx.sharedSequence = new AtomicInteger(ctx.sequenceNumber);
+        }
+        if (ctx.tailBuffered && ctx.taskTail == null) {
+            ctx.taskTail = new AsyncContext.TailBuffer();
+        }
+        AsyncContext captured = ctx.captured;
+        if (captured == null || captured.traceId != ctx.traceId
+                || captured.parentSpanId != parentSpanId || captured.sampled != ctx.sampled
+                || captured.sequence != ctx.sharedSequence || captured.tail != ctx.taskTail) {
+            captured = new AsyncContext(ctx.traceId, parentSpanId, ctx.sampled, ctx.sharedSequence, ctx.taskTail);
+            ctx.captured = captured;
+        }
+        return captured;
     }
 
     /**
-     * Context maintained per thread.
-     * Now includes a stack to track the span hierarchy.
+     * Continue a captured trace on the current thread until {@link #detachContext}.
+     *
+     * The submitting span is pushed as a placeholder, so the task's first
+     * span becomes its child and whatever the thread was doing is left
+     * underneath, untouched. The task's spans take sequence numbers from the
+     * request's shared counter, and while the request is tail-buffered they
+     * are held for its decision.
+     *
+     * A thread whose own request is tail-buffered in binary mode records into
+     * a deferred ring region that its request's decision may discard, so a
+     * task of another trace run there, e.g. inline by a caller-runs executor,
+     * records into a leased ring instead.
      */
-    private static class TraceContext {
-        String traceId;
-        int sequenceNumber;
-        Deque<String> spanStack = new ArrayDeque<>();
-        String distributedParentSpanId;  // ADD THIS: For cross-service tracing
+    AsyncContext.Scope attachContext(AsyncContext captured) {
+        TraceContext ctx = contexts.get();
+        boolean switched = !captured.traceId.equals(ctx.traceId);
+        BinaryEventRing deferredRing = switched && ctx.ring != null && ctx.ring.isDeferred() ? ctx.ring : null;
+        AsyncContext.Scope scope = new AsyncContext.Scope(ctx, switched, deferredRing);
+        if (switched) {
+            ctx.traceId = captured.traceId;
+            // The thread's own request, if any, must not buffer another request's spans
+            ctx.tailBuffered = false;
+        }
+        if (deferredRing != null) {
+            ctx.ring = batcher != null ? batcher.leaseRing() : null;
+        }
+        ctx.sharedSequence = captured.sequence;
+        ctx.taskTail = captured.tail;
+        ctx.sampled = captured.sampled;
+        ctx.requestTrace = true;
+        ctx.pushSpan(captured.parentSpanId);
+        return scope;
+    }
+
+    /**
+     * Give the thread back what it had before {@link #attachContext}.
+     */
+    void detachContext(AsyncContext.Scope scope) {
+        TraceContext ctx = contexts.get();
+        ctx.traceId = scope.traceId;
+        ctx.sampled = scope.sampled;
+        ctx.requestTrace = scope.requestTrace;
+        ctx.depth = scope.depth;
+        ctx.sharedSequence = scope.sharedSequence;
+        ctx.taskTail = scope.taskTail;
+        if (scope.switched) {
+            ctx.sequenceNumber = scope.sequenceNumber;
+            ctx.tailBuffered = scope.tailBuffered;
+        }
+        if (scope.deferredRing != null) {
+            if (ctx.ring != null && batcher != null) {
+                batcher.release(ctx.ring);
+            }
+            ctx.ring = scope.deferredRing;
+        }
+        if (scope.isIdle()) {
+            releaseBuffers(ctx);
+            contexts.releaseIdle();
+        }
+    }
+
+    /**
+     * Get current span ID (useful for outgoing HTTP calls).
+     */
+    public String getCurrentSpanId() {
+        TraceContext ctx = contexts.get();
+        return ctx.depth == 0 ? null : IdGenerator.toHex(ctx.spanStack[ctx.depth - 1]);
     }
 }
\ No newline at end of file
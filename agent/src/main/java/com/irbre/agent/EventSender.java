@@ -1,19 +1,62 @@
 package com.irbre.agent;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.irbre.agent.model.ClockAnchor;
 import com.irbre.agent.model.EventBatch;
+import com.irbre.agent.model.MethodInfo;
+import com.irbre.agent.util.IdGenerator;
+import com.irbre.agent.util.StringTable;
 
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Sends event batches to the collector service asynchronously.
+ *
+ * Batches are sent as JSON unless the compact binary encoding
+ * ({@link BinaryBatchEncoder}) is configured. A collector that answers 415 Unsupported Media Type to a
+ * binary batch switches the sender to JSON for the rest of its lifetime; the
+ * rejected batch is dropped like any other failed send.
+ *
+ * Bodies are compressed with the configured Content-Encoding when large
+ * enough to benefit ({@link BatchCompressor}). Until the collector has taken
+ * a compressed batch, one it rejects (4xx, or a 5xx other than 502-504) is
+ * resent uncompressed at once: a collector without request decompression
+ * fails to parse the body rather than answering 415. If the uncompressed
+ * copy is taken, compression is turned off for the rest of the sender's lifetime.
+ *
+ * Batches that fail because the collector is unreachable, times out or
+ * answers 5xx/429/408 are retried with exponential backoff and full jitter.
+ * Consecutive failures open a {@link CircuitBreaker}; while it is open no
+ * requests are made, and the batcher stops encoding batches ({@link #isAvailable()}).
+ * At most {@code maxInFlight} requests are outstanding at a time, sharing
+ * connections through one HTTP/2-capable client.
+ *
+ * With a spool directory configured, batches still failing after their
+ * retries are appended to a {@link BatchSpool} instead of being lost. While
+ * the spool holds batches, new ones are appended behind them, and
+ * {@link #replaySpool()} sends them back in order. A spooled batch the
+ * collector fails on {@link #REPLAY_MAX_FAILURES} times is dropped, so one
+ * batch it cannot take does not hold back everything behind it.
+ *
+ * Encoding and sending are measured in {@link AgentMetrics}; once per
+ * telemetry interval the next batch also carries the {@link AgentTelemetry} summary.
  */
 public class EventSender {
 
@@ -24,60 +67,588 @@ public class EventSender {
         System.out.println("[IRBRE DEBUG] " + msg);
     }
 
+    private static void logWarn(String msg) {
+        System.err.println("[IRBRE WARN] " + msg);
+    }
+
     private static void logError(String msg, Throwable t) {
         System.err.println("[IRBRE ERROR] " + msg);
         t.printStackTrace();
     }
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final int REPLAY_BATCHES_PER_RUN = 50;
+    static final int REPLAY_MAX_FAILURES = 10;
+
     private final AgentConfiguration config;
+    private final MethodRegistry methodRegistry;
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
+    private volatile boolean binaryWireFormat;
+    private volatile BatchCompressor compressor;
+    // Set once the collector took a compressed batch; rejections after that are the batch's own
+    private volatile boolean compressionAccepted;
+    private final BatchSpool spool;
+    private final Semaphore inFlight;
+    private final CircuitBreaker breaker;
+    private final AgentMetrics metrics;
+    private volatile AgentTelemetry telemetry;
+    private final AtomicLong lastStatsNanos = new AtomicLong(System.nanoTime());
 
-    public EventSender(AgentConfiguration config) {
+    public EventSender(AgentConfiguration config, MethodRegistry methodRegistry, AgentMetrics metrics) {
         this.config = config;
+        this.methodRegistry = methodRegistry;
+        this.metrics = metrics;
+        // HTTP/2 multiplexes concurrent batches over one connection; the client falls
+        // back to HTTP/1.1 keep-alive connections if the collector does not upgrade
         this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
                 .connectTimeout(Duration.ofSeconds(10))
                 .build();
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
+        // Names are resolved through the method dictionary, so omit the empty fields
+        this.objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        this.binaryWireFormat = config.isBinaryWireFormat();
+        if (config.getCompression() != null) {
+            this.compressor = new BatchCompressor(config.getCompression(), config.getCompressionMinBytes());
+        }
+        this.spool = openSpool(config);
+        this.inFlight = new Semaphore(config.getMaxInFlight());
+        this.breaker = new CircuitBreaker(config.getBreakerFailureThreshold(), config.getBreakerOpenMs());
+    }
+
+    private static BatchSpool openSpool(AgentConfiguration config) {
+        if (config.getSpoolDir() == null) {
+            return null;
+        }
+        try {
+            BatchSpool spool = new BatchSpool(Path.of(config.getSpoolDir()),
+                    config.getSpoolMaxBytes(), config.getSpoolSegmentBytes());
+            logInfo("Spooling undeliverable batches to " + config.getSpoolDir());
+            return spool;
+        } catch (Exception e) {
+            logError("Could not open spool directory " + config.getSpoolDir() + ", spooling disabled", e);
+            return null;
+        }
+    }
+
+    /**
+     * Source of the summary sent with a batch every telemetry interval.
+     */
+    public void setTelemetry(AgentTelemetry telemetry) {
+        this.telemetry = telemetry;
     }
 
     /**
-     * Send a batch of events to the collector asynchronously.
+     * The telemetry summary if one is due, claiming the interval; null otherwise.
+     */
+    private Map<String, Long> dueAgentStats() {
+        AgentTelemetry source = telemetry;
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getTelemetryIntervalMs());
+        if (source == null || intervalNanos <= 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long last = lastStatsNanos.get();
+        if (now - last < intervalNanos || !lastStatsNanos.compareAndSet(last, now)) {
+            return null;
+        }
+        return source.getSummary();
+    }
+
+    /**
+     * Send a batch of events to the collector asynchronously, together with
+     * the method dictionary entries the collector has not acknowledged yet.
      */
     public CompletableFuture<Void> sendBatch(EventBatch batch) {
         try {
-            String json = objectMapper.writeValueAsString(batch);
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(config.getCollectorUrl()))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(json))
-                    .timeout(Duration.ofSeconds(30))
-                    .build();
-
-            return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                    .thenAccept(response -> {
-                        if (response.statusCode() >= 200 && response.statusCode() < 300) {
-                            logDebug("Successfully sent batch to collector");
-                        } else {
-                            logDebug("Failed to send batch, status: "+response.statusCode()+", body: "+response.body());
-                        }
-                    })
-                    .exceptionally(ex -> {
-                        logError("Error sending batch to collector", ex);
-                        return null;
-                    });
+            List<MethodInfo> methods = methodRegistry.unacknowledged();
+            EncodedBatch encoded = encode(batch, methods);
+            return deliver(encoded.body, encoded.contentType, dictionaryEnd(methods));
         } catch (Exception e) {
             logError("Error preparing batch for sending", e);
             return CompletableFuture.failedFuture(e);
         }
     }
 
+    private EncodedBatch encode(EventBatch batch, List<MethodInfo> methods) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Long> agentStats = dueAgentStats();
+        EncodedBatch encoded;
+        if (binaryWireFormat) {
+            BinaryBatchEncoder encoder = new BinaryBatchEncoder(IdGenerator.agentId(), methods, null);
+            encoder.add(batch);
+            encoder.setAgentStats(agentStats);
+            BodyBuffer body = new BodyBuffer();
+            encoder.writeTo(body);
+            encoded = new EncodedBatch(body, BinaryBatchEncoder.CONTENT_TYPE);
+        } else {
+            EventBatch outgoing = new EventBatch(batch.getTraces(), IdGenerator.agentId(), methods, agentStats,
+                    ClockAnchor.now());
+            BodyBuffer body = new BodyBuffer();
+            objectMapper.writeValue(body, outgoing);
+            encoded = new EncodedBatch(body, JSON_CONTENT_TYPE);
+        }
+        metrics.batchEncoded(batch.size(), (int) encoded.body.size(), System.nanoTime() - start);
+        return encoded;
+    }
+
+    private static final class EncodedBatch {
+        final BodyBuffer body;
+        final String contentType;
+
+        EncodedBatch(BodyBuffer body, String contentType) {
+            this.body = body;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * Encode up to {@code maxEvents} records from the binary rings straight into
+     * an outgoing batch and send it. Runs on the batch processor thread, which is the
+     * only consumer of the rings.
+     *
+     * @return completes with the number of events sent once the request is done
+     */
+    public CompletableFuture<Integer> sendRecords(List<BinaryEventRing> rings, StringTable strings, int maxEvents) {
+        try {
+            long start = System.nanoTime();
+            List<MethodInfo> methods = methodRegistry.unacknowledged();
+            if (binaryWireFormat) {
+                BinaryBatchEncoder encoder = new BinaryBatchEncoder(IdGenerator.agentId(), methods, strings);
+                for (BinaryEventRing ring : rings) {
+                    if (encoder.size() >= maxEvents) {
+                        break;
+                    }
+                    ring.drain(encoder, maxEvents - encoder.size());
+                }
+                int count = encoder.size();
+                if (count == 0) {
+                    return CompletableFuture.completedFuture(0);
+                }
+                encoder.setAgentStats(dueAgentStats());
+                BodyBuffer body = new BodyBuffer();
+                encoder.writeTo(body);
+                metrics.batchEncoded(count, (int) body.size(), System.nanoTime() - start);
+                return deliver(body, BinaryBatchEncoder.CONTENT_TYPE, dictionaryEnd(methods))
+                        .thenApply(v -> count);
+            }
+            BodyBuffer body = new BodyBuffer();
+            int count = 0;
+            try (JsonGenerator gen = objectMapper.getFactory().createGenerator(body)) {
+                gen.setCodec(objectMapper);
+                RecordJsonWriter writer = new RecordJsonWriter(gen, strings);
+                gen.writeStartObject();
+                gen.writeStringField("agentId", IdGenerator.agentId());
+                gen.writeFieldName("clockAnchor");
+                gen.writeObject(ClockAnchor.now());
+                gen.writeFieldName("methods");
+                gen.writeObject(methods);
+                gen.writeArrayFieldStart("traces");
+                for (BinaryEventRing ring : rings) {
+                    if (count >= maxEvents) {
+                        break;
+                    }
+                    count += ring.drain(writer, maxEvents - count);
+                }
+                writer.finish();
+                gen.writeEndArray();
+                gen.writeNumberField("size", count);
+                Map<String, Long> agentStats = count > 0 ? dueAgentStats() : null;
+                if (agentStats != null) {
+                    gen.writeFieldName("agentStats");
+                    gen.writeObject(agentStats);
+                }
+                gen.writeEndObject();
+            }
+            if (count == 0) {
+                body.release();
+                return CompletableFuture.completedFuture(0);
+            }
+            metrics.batchEncoded(count, (int) body.size(), System.nanoTime() - start);
+            int sent = count;
+            return deliver(body, JSON_CONTENT_TYPE, dictionaryEnd(methods)).thenApply(v -> sent);
+        } catch (Exception e) {
+            logError("Error encoding binary records for sending", e);
+            return CompletableFuture.completedFuture(0);
+        }
+    }
+
+    /**
+     * The dictionary watermark a successful send acknowledges, or -1 if it carried no entries.
+     */
+    private static int dictionaryEnd(List<MethodInfo> methods) {
+        return methods.isEmpty() ? -1 : methods.get(methods.size() - 1).getMethodId() + 1;
+    }
+
+    /**
+     * Send an encoded batch, or append it to the spool while older spooled
+     * batches are still waiting, so batches reach the collector in order.
+     * Takes ownership of the body and releases it once it is no longer needed.
+     */
+    private CompletableFuture<Void> deliver(BodyBuffer body, String contentType, int dictionaryEnd) {
+        if (spool != null && !spool.isEmpty()) {
+            spoolBatch(body, contentType, dictionaryEnd);
+            body.release();
+            return CompletableFuture.completedFuture(null);
+        }
+        return post(body, contentType, dictionaryEnd);
+    }
+
+    /**
+     * Send a batch, retrying until it is answered, and take one of the
+     * in-flight permits for as long as that takes. The future completes once
+     * the batch was answered, spooled or given up on.
+     */
+    private CompletableFuture<Void> post(BodyBuffer body, String contentType, int dictionaryEnd) {
+        if (!breaker.tryAcquire()) {
+            giveUp(body, contentType, dictionaryEnd, "collector unavailable");
+            body.release();
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            giveUp(body, contentType, dictionaryEnd, "interrupted");
+            body.release();
+            return CompletableFuture.completedFuture(null);
+        }
+        PreparedRequest prepared = buildRequest(body, contentType, false);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        done.whenComplete((v, e) -> {
+            inFlight.release();
+            prepared.release();
+            body.release();
+        });
+        attempt(prepared, body, contentType, dictionaryEnd, 1, done);
+        return done;
+    }
+
+    private void attempt(PreparedRequest prepared, BodyBuffer body, String contentType, int dictionaryEnd,
+                         int attempt, CompletableFuture<Void> done) {
+        HttpRequest request = prepared.request;
+        long start = System.nanoTime();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, ex) -> {
+            try {
+                if (ex != null) {
+                    // The client may not have let go of the body's buffers yet
+                    prepared.abandon();
+                    body.abandon();
+                }
+                if (response != null) {
+                    metrics.requestCompleted(bodyLength(request), System.nanoTime() - start);
+                }
+                if (ex == null && rejectsCompression(prepared, response.statusCode())) {
+                    logDebug("Compressed batch rejected with status " + response.statusCode()
+                            + ", resending it uncompressed");
+                    // The compressed copy is released with the batch once done completes
+                    attempt(buildRequest(body, contentType, true), body, contentType, dictionaryEnd, attempt, done);
+                    return;
+                }
+                if (ex == null && !isRetryable(response.statusCode())) {
+                    breaker.onSuccess();
+                    handleResponse(prepared, response, dictionaryEnd);
+                    done.complete(null);
+                    return;
+                }
+                breaker.onFailure();
+                String reason = ex != null ? ex.toString() : "status " + response.statusCode();
+                if (attempt < config.getRetryMaxAttempts() && breaker.allowsRetry()) {
+                    long delay = backoffMillis(attempt);
+                    logDebug("Batch send failed (" + reason + "), retry " + attempt + " in " + delay + " ms");
+                    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() ->
+                            attempt(prepared, body, contentType, dictionaryEnd, attempt + 1, done));
+                    return;
+                }
+                giveUp(body, contentType, dictionaryEnd, reason + " after " + attempt + " attempt(s)");
+                done.complete(null);
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static long bodyLength(HttpRequest request) {
+        return request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L);
+    }
+
+    /**
+     * Full-jitter exponential backoff: uniform between 0 and the capped exponential delay.
+     */
+    private long backoffMillis(int attempt) {
+        long ceiling = config.getRetryBackoffInitialMs() << Math.min(attempt - 1, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(ceiling, config.getRetryBackoffMaxMs()) + 1);
+    }
+
+    /**
+     * Keep a batch that could not be delivered in the spool, or drop it if there is none.
+     */
+    private void giveUp(BodyBuffer body, String contentType, int dictionaryEnd, String reason) {
+        if (spool != null) {
+            logDebug("Could not send batch (" + reason + "), spooling it");
+            spoolBatch(body, contentType, dictionaryEnd);
+        } else {
+            metrics.batchDropped();
+            logWarn("Could not send batch (" + reason + "), dropping it");
+        }
+    }
+
+    /**
+     * Build the request for a body, compressing it if configured and this is
+     * not the uncompressed resend of a rejected compressed batch. The request
+     * publishes the chunks of the body, or of its compressed copy, without copying them.
+     */
+    private PreparedRequest buildRequest(BodyBuffer body, String contentType, boolean uncompressedResend) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(config.getCollectorUrl()))
+                .header("Content-Type", contentType)
+                .timeout(Duration.ofSeconds(30));
+        BatchCompressor batchCompressor = uncompressedResend ? null : compressor;
+        BodyBuffer compressed = batchCompressor != null ? batchCompressor.compress(body) : null;
+        if (compressed != null) {
+            builder.header("Content-Encoding", batchCompressor.getEncoding());
+            body = compressed;
+        }
+        return new PreparedRequest(builder.POST(body.publisher()).build(), compressed, uncompressedResend);
+    }
+
+    /**
+     * Whether a compressed batch's rejection may be the collector failing to
+     * read compressed bodies, so that the batch is worth resending uncompressed.
+     */
+    private boolean rejectsCompression(PreparedRequest prepared, int status) {
+        if (prepared.compressed == null || compressionAccepted) {
+            return false;
+        }
+        return status >= 400 && !isRetryable(status) || failsOnBatch(status);
+    }
+
+    /**
+     * A request together with the compressed body it owns, if any.
+     */
+    private static final class PreparedRequest {
+        final HttpRequest request;
+        final BodyBuffer compressed;
+        final boolean uncompressedResend;
+
+        PreparedRequest(HttpRequest request, BodyBuffer compressed, boolean uncompressedResend) {
+            this.request = request;
+            this.compressed = compressed;
+            this.uncompressedResend = uncompressedResend;
+        }
+
+        void abandon() {
+            if (compressed != null) {
+                compressed.abandon();
+            }
+        }
+
+        void release() {
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+    }
+
+    /**
+     * Act on a final (non-retryable) response to a batch.
+     */
+    private void handleResponse(PreparedRequest prepared, HttpResponse<String> response, int dictionaryEnd) {
+        int status = response.statusCode();
+        String contentType = prepared.request.headers().firstValue("Content-Type").orElse(JSON_CONTENT_TYPE);
+        boolean compressed = prepared.compressed != null;
+        if (status < 200 || status >= 300) {
+            metrics.batchDropped();
+        }
+        if (status >= 200 && status < 300) {
+            metrics.batchSent();
+            if (dictionaryEnd > 0) {
+                methodRegistry.acknowledge(dictionaryEnd);
+            }
+            if (compressed) {
+                compressionAccepted = true;
+            } else if (prepared.uncompressedResend && compressor != null && !compressionAccepted) {
+                compressor = null;
+                logWarn("Collector rejected a compressed batch but took it uncompressed, "
+                        + "sending batches uncompressed");
+            }
+            logDebug("Successfully sent batch to collector");
+        } else if (status == 415 && binaryWireFormat && BinaryBatchEncoder.CONTENT_TYPE.equals(contentType)) {
+            binaryWireFormat = false;
+            logWarn("Collector does not accept binary batches, falling back to JSON");
+        } else if (status == 415 && compressed && compressor != null) {
+            compressor = null;
+            logWarn("Collector does not accept compressed batches, sending them uncompressed");
+        } else {
+            logDebug("Failed to send batch, status: "+status+", body: "+response.body());
+        }
+    }
+
+    /**
+     * Whether a failed send should be retried: the collector is down,
+     * overloaded or timed out, rather than rejecting the batch itself.
+     */
+    private static boolean isRetryable(int status) {
+        return status >= 500 || status == 429 || status == 408;
+    }
+
+    /**
+     * Whether a retryable answer may be caused by the batch itself: the
+     * collector took it and failed. 502-504, 429 and 408 only say the
+     * collector is unreachable or busy, whatever the batch.
+     */
+    private static boolean failsOnBatch(int status) {
+        return status >= 500 && status != 502 && status != 503 && status != 504;
+    }
+
+    /**
+     * Whether the collector is currently accepting requests. While it is not,
+     * callers should keep events buffered rather than encode batches.
+     */
+    public boolean isAvailable() {
+        return breaker.isAvailable();
+    }
+
+    /**
+     * Whether undeliverable batches and overflowing events are kept on disk.
+     */
+    public boolean isSpooling() {
+        return spool != null;
+    }
+
+    private void spoolBatch(BodyBuffer body, String contentType, int dictionaryEnd) {
+        byte format = BinaryBatchEncoder.CONTENT_TYPE.equals(contentType)
+                ? BatchSpool.FORMAT_BINARY : BatchSpool.FORMAT_JSON;
+        try {
+            spool.append(format, dictionaryEnd, body);
+            metrics.batchSpooled();
+        } catch (Exception e) {
+            metrics.batchDropped();
+            logError("Error spooling batch, dropping it", e);
+        }
+    }
+
+    /**
+     * Encode a batch and append it to the spool without trying to send it.
+     * Used for events that overflowed their thread's buffer.
+     */
+    public void spool(EventBatch batch) {
+        try {
+            List<MethodInfo> methods = methodRegistry.unacknowledged();
+            EncodedBatch encoded = encode(batch, methods);
+            spoolBatch(encoded.body, encoded.contentType, dictionaryEnd(methods));
+            encoded.body.release();
+        } catch (Exception e) {
+            logError("Error spooling overflow events, dropping them", e);
+        }
+    }
+
+    /**
+     * Resend spooled batches, oldest first, until the spool is empty, the
+     * collector fails again, or {@link #REPLAY_BATCHES_PER_RUN} were sent.
+     * Runs on the batch processor thread and blocks on each send, so order
+     * is kept. A failure is not retried here; the spooled batch simply waits
+     * for the next run. A batch the collector rejects outright is dropped, and
+     * so is one it keeps failing on ({@link #failsOnBatch}).
+     */
+    public void replaySpool() {
+        if (spool == null) {
+            return;
+        }
+        for (int i = 0; i < REPLAY_BATCHES_PER_RUN; i++) {
+            BatchSpool.Record record = spool.peek();
+            if (record == null || !breaker.tryAcquire()) {
+                return;
+            }
+            String contentType = record.format == BatchSpool.FORMAT_BINARY
+                    ? BinaryBatchEncoder.CONTENT_TYPE : JSON_CONTENT_TYPE;
+            BodyBuffer body = BodyBuffer.wrap(record.body);
+            PreparedRequest prepared = buildRequest(body, contentType, false);
+            HttpResponse<String> response = sendNow(prepared);
+            if (response != null && rejectsCompression(prepared, response.statusCode())) {
+                logDebug("Compressed spooled batch rejected with status " + response.statusCode()
+                        + ", resending it uncompressed");
+                prepared = buildRequest(body, contentType, true);
+                response = sendNow(prepared);
+            }
+            if (response == null) {
+                return;
+            }
+            int status = response.statusCode();
+            if (isRetryable(status)) {
+                breaker.onFailure();
+                if (failsOnBatch(status)) {
+                    int failures = spool.recordFailure(record);
+                    if (failures >= REPLAY_MAX_FAILURES) {
+                        metrics.batchDropped();
+                        logWarn("Dropping spooled batch after " + failures + " failed deliveries (status "
+                                + status + ")");
+                        spool.advance(record);
+                    }
+                }
+                return;
+            }
+            breaker.onSuccess();
+            handleResponse(prepared, response, record.dictionaryEnd);
+            spool.advance(record);
+            if (spool.isEmpty()) {
+                logInfo("Replayed all spooled batches");
+            }
+        }
+    }
+
+    /**
+     * Send a request on the calling thread, within the in-flight limit.
+     * Returns null if the collector could not be reached.
+     */
+    private HttpResponse<String> sendNow(PreparedRequest prepared) {
+        HttpRequest request = prepared.request;
+        try {
+            inFlight.acquire();
+            try {
+                long start = System.nanoTime();
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                metrics.requestCompleted(bodyLength(request), System.nanoTime() - start);
+                return response;
+            } finally {
+                inFlight.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prepared.abandon();
+            breaker.onFailure();
+            return null;
+        } catch (Exception e) {
+            prepared.abandon();
+            breaker.onFailure();
+            logDebug("Collector still unavailable, keeping spooled batches: " + e);
+            return null;
+        } finally {
+            prepared.release();
+        }
+    }
+
+    public long getSpoolBytes() {
+        return spool != null ? spool.getSizeBytes() : 0;
+    }
+
+    public long getSpoolEvictedBatches() {
+        return spool != null ? spool.getEvictedRecords() : 0;
+    }
+
+    CircuitBreaker.State getCircuitBreakerState() {
+        return breaker.getState();
+    }
+
     /**
      * Shutdown the HTTP client.
      */
     public void shutdown() {
         logInfo("Shutting down event sender...");
+        if (spool != null) {
+            spool.force();
+        }
         // HttpClient doesn't need explicit shutdown in Java 11+
     }
 }
@@ -0,0 +1,142 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.MethodInfo;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically looks for hot trivial methods and removes their probes.
+ *
+ * A method whose recorded call rate over the last interval is at least the
+ * calls/sec threshold while its average duration stays under the duration
+ * floor costs more to probe than to run. It is added to the transformer's
+ * exclusion set and its class is retransformed without that probe.
+ *
+ * Disabled unless {@code irbre.deinstrument.enabled=true}: a removed method
+ * no longer appears in any trace, and its probe only returns after a restart.
+ */
+public class HotMethodMonitor implements Runnable {
+    private static void logInfo(String msg) {
+        System.out.println("[IRBRE] " + msg);
+    }
+
+    private static void logError(String msg, Throwable t) {
+        System.err.println("[IRBRE ERROR] " + msg);
+        t.printStackTrace();
+    }
+
+    private final Instrumentation inst;
+    private final IrbreTransformer transformer;
+    private final MethodRegistry methodRegistry;
+    private final MethodStats methodStats;
+    private final double callsPerSecThreshold;
+    private final long maxAvgNanos;
+    private final long intervalMs;
+    private final ScheduledExecutorService scheduler;
+    private final List<String> deinstrumented = new CopyOnWriteArrayList<>();
+
+    private long[] lastCalls = new long[0];
+    private long[] lastNanos = new long[0];
+    private long lastCheckNanos = System.nanoTime();
+
+    public HotMethodMonitor(Instrumentation inst, IrbreTransformer transformer, MethodRegistry methodRegistry,
+                            MethodStats methodStats, double callsPerSecThreshold, long maxAvgNanos, long intervalMs) {
+        this.inst = inst;
+        this.transformer = transformer;
+        this.methodRegistry = methodRegistry;
+        this.methodStats = methodStats;
+        this.callsPerSecThreshold = callsPerSecThreshold;
+        this.maxAvgNanos = maxAvgNanos;
+        this.intervalMs = intervalMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "irbre-hot-method-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(this, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Methods whose probes were removed, with the rate that triggered it.
+     */
+    public List<String> getDeinstrumentedMethods() {
+        return Collections.unmodifiableList(deinstrumented);
+    }
+
+    @Override
+    public void run() {
+        try {
+            check();
+        } catch (Throwable t) {
+            logError("Hot method check failed", t);
+        }
+    }
+
+    private void check() throws Exception {
+        long now = System.nanoTime();
+        double seconds = (now - lastCheckNanos) / 1_000_000_000.0;
+        lastCheckNanos = now;
+
+        long[][] totals = methodStats.snapshot(new long[lastCalls.length], new long[lastNanos.length]);
+        long[] calls = totals[0];
+        long[] nanos = totals[1];
+
+        Set<String> classNames = new HashSet<>();
+        for (int id = 0; id < calls.length; id++) {
+            long deltaCalls = calls[id] - (id < lastCalls.length ? lastCalls[id] : 0);
+            long deltaNanos = nanos[id] - (id < lastNanos.length ? lastNanos[id] : 0);
+            if (deltaCalls == 0 || transformer.isExcluded(id)) {
+                continue;
+            }
+            double callsPerSec = deltaCalls / seconds;
+            long avgNanos = deltaNanos / deltaCalls;
+            if (callsPerSec >= callsPerSecThreshold && avgNanos < maxAvgNanos) {
+                MethodInfo method = methodRegistry.get(id);
+                if (method == null) {
+                    continue;
+                }
+                transformer.excludeMethod(id);
+                classNames.add(method.getClassName());
+                String report = method.getClassName() + "." + method.getMethodName() + method.getDescriptor()
+                        + String.format(" (%.0f calls/s, avg %d ns)", callsPerSec, avgNanos);
+                deinstrumented.add(report);
+                logInfo("De-instrumenting hot trivial method " + report);
+            }
+        }
+        lastCalls = calls;
+        lastNanos = nanos;
+
+        if (!classNames.isEmpty()) {
+            retransform(classNames);
+        }
+    }
+
+    private void retransform(Set<String> classNames) throws Exception {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            if (classNames.contains(loaded.getName()) && inst.isModifiableClass(loaded)) {
+                classes.add(loaded);
+            }
+        }
+        if (!classes.isEmpty()) {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+            logInfo("Retransformed " + classes.size() + " class(es) to remove hot probes");
+        }
+    }
+}
@@ -4,7 +4,10 @@ package com.irbre.agent;
 
 
 
+import javax.management.ObjectName;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
 
 /**
  * Main entry point for the IRBRE Java Agent.
@@ -16,6 +19,8 @@ public class IrbreAgent {
     private static EventCollector eventCollector;
     private static EventBatcher eventBatcher;
     private static EventSender eventSender;
+    private static HotMethodMonitor hotMethodMonitor;
+    private static BytecodeCache bytecodeCache;
 
     private static void logInfo(String msg) {
         System.out.println("[IRBRE] " + msg);
@@ -41,20 +46,61 @@ public class IrbreAgent {
 
             // Initialize components
             eventCollector = EventCollector.getInstance();
-            eventSender = new EventSender(config);
-            eventBatcher = new EventBatcher(config, eventSender);
+            AgentMetrics metrics = new AgentMetrics();
+            eventSender = new EventSender(config, eventCollector.getMethodRegistry(), metrics);
+            eventBatcher = new EventBatcher(config, eventSender, eventCollector.getStringTable(), metrics);
+            AgentTelemetry telemetry = new AgentTelemetry(metrics, eventBatcher, eventSender);
+            eventSender.setTelemetry(telemetry);
 
             // Set the batcher in the collector
+            eventCollector.setContextStore(TraceContextStore.create(config.getContextStore()));
             eventCollector.setBatcher(eventBatcher);
+            eventCollector.setSampler(new TraceSampler(config.getSamplingRate(), config.getSamplingRateLimits()));
+            if (config.isTailSampling()) {
+                TailSamplingPolicy tailPolicy = new TailSamplingPolicy(config.getTailLatencyMs(),
+                        config.isTailKeepErrors(), config.getTailQuotas(), config.getTailMaxBufferedEvents());
+                eventCollector.setTailSamplingPolicy(tailPolicy);
+                logInfo("Tail sampling enabled: " + tailPolicy);
+            }
+            IrbreProbe.setEnabled(true);
+
+            // Opened before the transformer: it restores the method IDs the cached classes embed
+            bytecodeCache = openBytecodeCache(config, eventCollector.getMethodRegistry());
+
+            // Add transformer; retransform-capable so hot methods can have their probes removed
+            IrbreTransformer transformer = new IrbreTransformer(config, eventCollector.getMethodRegistry(),
+                    bytecodeCache);
+            inst.addTransformer(transformer, true);
+
+            if (config.isDeinstrumentHotMethods()) {
+                if (inst.isRetransformClassesSupported()) {
+                    MethodStats methodStats = new MethodStats();
+                    eventCollector.setMethodStats(methodStats);
+                    hotMethodMonitor = new HotMethodMonitor(inst, transformer, eventCollector.getMethodRegistry(),
+                            methodStats, config.getDeinstrumentCallsPerSec(), config.getDeinstrumentMaxAvgNanos(),
+                            config.getDeinstrumentIntervalMs());
+                    hotMethodMonitor.start();
+                } else {
+                    logInfo("Class retransformation not supported by this JVM, hot method removal disabled");
+                }
+            }
 
-            // Add transformer
-            IrbreTransformer transformer = new IrbreTransformer(config);
-            inst.addTransformer(transformer, false);
+            registerControl(inst, config);
+            registerTelemetry(telemetry);
 
             // Add shutdown hook
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 logInfo("Shutting down IRBRE Agent...");
+                IrbreProbe.setEnabled(false);
                 try {
+                    if (hotMethodMonitor != null) {
+                        hotMethodMonitor.shutdown();
+                    }
+                    if (bytecodeCache != null) {
+                        bytecodeCache.close();
+                        logInfo("Bytecode cache: " + bytecodeCache.getHits() + " hit(s), "
+                                + bytecodeCache.getMisses() + " miss(es)");
+                    }
                     eventBatcher.flush();
                     eventBatcher.shutdown();
                     eventSender.shutdown();
@@ -70,7 +116,50 @@ public class IrbreAgent {
         }
     }
 
+    private static BytecodeCache openBytecodeCache(AgentConfiguration config, MethodRegistry registry) {
+        if (config.getBytecodeCacheDir() == null) {
+            return null;
+        }
+        try {
+            return new BytecodeCache(Path.of(config.getBytecodeCacheDir()), config.getBytecodeCacheMaxBytes(),
+                    BytecodeCache.fingerprint(config), registry);
+        } catch (Exception e) {
+            logError("Could not open bytecode cache " + config.getBytecodeCacheDir() + ", classes will not be cached", e);
+            return null;
+        }
+    }
+
+    /**
+     * Expose runtime reconfiguration over JMX. Failure only disables live reconfiguration.
+     */
+    private static void registerControl(Instrumentation inst, AgentConfiguration config) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new IrbreControl(inst, config), new ObjectName(IrbreControl.OBJECT_NAME));
+            logInfo("Registered JMX control " + IrbreControl.OBJECT_NAME);
+        } catch (Exception e) {
+            logError("Failed to register JMX control, live reconfiguration disabled", e);
+        }
+    }
+
+    /**
+     * Expose self-telemetry over JMX. Failure only loses the JMX view; summaries still go out with batches.
+     */
+    private static void registerTelemetry(AgentTelemetry telemetry) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    telemetry, new ObjectName(AgentTelemetry.OBJECT_NAME));
+            logInfo("Registered JMX telemetry " + AgentTelemetry.OBJECT_NAME);
+        } catch (Exception e) {
+            logError("Failed to register JMX telemetry", e);
+        }
+    }
+
     public static EventCollector getEventCollector() {
         return eventCollector;
     }
+
+    public static HotMethodMonitor getHotMethodMonitor() {
+        return hotMethodMonitor;
+    }
 }
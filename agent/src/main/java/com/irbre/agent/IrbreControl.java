@@ -0,0 +1,125 @@
+package com.irbre.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Applies runtime configuration changes made through JMX.
+ *
+ * Package changes take effect for classes loaded afterwards through the
+ * transformer, and for already loaded classes through retransformation:
+ * every loaded class whose include/exclude decision flips is retransformed,
+ * so tracing can be narrowed or widened during an incident without a restart.
+ */
+public class IrbreControl implements IrbreControlMBean {
+    private static void logInfo(String msg) {
+        System.out.println("[IRBRE] " + msg);
+    }
+
+    private static void logError(String msg, Throwable t) {
+        System.err.println("[IRBRE ERROR] " + msg);
+        t.printStackTrace();
+    }
+
+    public static final String OBJECT_NAME = "com.irbre:type=AgentControl";
+
+    private final Instrumentation inst;
+    private final AgentConfiguration config;
+
+    public IrbreControl(Instrumentation inst, AgentConfiguration config) {
+        this.inst = inst;
+        this.config = config;
+    }
+
+    @Override
+    public String getIncludedPackages() {
+        return String.join(",", new TreeSet<>(config.getIncludedPackages()));
+    }
+
+    @Override
+    public void setIncludedPackages(String packages) {
+        Set<String> included = AgentConfiguration.parsePackages(packages);
+        synchronized (config) {
+            updatePackages(included, config.getExcludedPackages());
+        }
+    }
+
+    @Override
+    public String getExcludedPackages() {
+        return String.join(",", new TreeSet<>(config.getExcludedPackages()));
+    }
+
+    @Override
+    public void setExcludedPackages(String packages) {
+        Set<String> excluded = AgentConfiguration.parsePackages(packages);
+        synchronized (config) {
+            updatePackages(config.getIncludedPackages(), excluded);
+        }
+    }
+
+    @Override
+    public int getBatchSize() {
+        return config.getBatchSize();
+    }
+
+    @Override
+    public void setBatchSize(int batchSize) {
+        config.setBatchSize(batchSize);
+        logInfo("Batch size set to " + batchSize);
+    }
+
+    @Override
+    public long getBatchIntervalMs() {
+        return config.getBatchIntervalMs();
+    }
+
+    @Override
+    public void setBatchIntervalMs(long batchIntervalMs) {
+        config.setBatchIntervalMs(batchIntervalMs);
+        logInfo("Batch interval set to " + batchIntervalMs + " ms");
+    }
+
+    @Override
+    public String getBackpressurePolicy() {
+        return config.getBackpressurePolicy().name();
+    }
+
+    @Override
+    public void setBackpressurePolicy(String policy) {
+        config.setBackpressurePolicy(BackpressurePolicy.parse(policy));
+        logInfo("Backpressure policy set to " + config.getBackpressurePolicy());
+    }
+
+    /**
+     * Called holding the configuration's lock, so a concurrent change to the
+     * other list, through JMX or the configuration, is not lost.
+     */
+    private void updatePackages(Set<String> included, Set<String> excluded) {
+        // Find loaded classes whose decision flips before switching the configuration;
+        // an empty include set is rejected here, before anything changes
+        PackageMatcher pending = new PackageMatcher(included, excluded);
+        List<Class<?>> affected = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            String name = loaded.getName();
+            if (config.shouldInstrument(name) != pending.matches(name) && inst.isModifiableClass(loaded)) {
+                affected.add(loaded);
+            }
+        }
+
+        config.setPackages(included, excluded);
+        logInfo("Instrumented packages updated: include=" + included + ", exclude=" + excluded);
+
+        if (affected.isEmpty()) {
+            return;
+        }
+        try {
+            inst.retransformClasses(affected.toArray(new Class<?>[0]));
+            logInfo("Retransformed " + affected.size() + " loaded class(es)");
+        } catch (Exception e) {
+            logError("Failed to retransform classes after package update", e);
+        }
+    }
+}
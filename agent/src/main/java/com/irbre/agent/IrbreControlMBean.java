@@ -0,0 +1,47 @@
+package com.irbre.agent;
+
+/**
+ * JMX control surface of the agent, registered as {@code com.irbre:type=AgentControl}.
+ *
+ * Package lists are comma-separated class name prefixes, e.g. "com.example.,com.acme.orders.".
+ */
+public interface IrbreControlMBean {
+
+    String getIncludedPackages();
+
+    /**
+     * Replace the included packages and retransform loaded classes whose
+     * instrumentation status changes. At least one package is required.
+     */
+    void setIncludedPackages(String packages);
+
+    String getExcludedPackages();
+
+    /**
+     * Replace the excluded packages and retransform loaded classes whose
+     * instrumentation status changes.
+     */
+    void setExcludedPackages(String packages);
+
+    int getBatchSize();
+
+    void setBatchSize(int batchSize);
+
+    long getBatchIntervalMs();
+
+    /**
+     * Change the batch interval, the longest time events wait for a batch to fill.
+     * Takes effect on the batch processor's next pass.
+     */
+    void setBatchIntervalMs(long batchIntervalMs);
+
+    /**
+     * Policy applied when a thread's event buffer is full, e.g. "DROP_NEWEST".
+     */
+    String getBackpressurePolicy();
+
+    /**
+     * Switch the backpressure policy; accepts "drop-oldest", "sample", "spin-wait", etc.
+     */
+    void setBackpressurePolicy(String policy);
+}
@@ -13,6 +13,10 @@ import java.util.Map;
 public class IrbreHttpFilter implements Filter {
     public static final String TRACE_ID_HEADER = "X-Trace-Id";
     public static final String PARENT_SPAN_ID_HEADER = "X-Parent-Span-Id";
+    // "1" or "0": the upstream head sampling decision, honored so whole traces are kept or dropped
+    public static final String SAMPLED_HEADER = "X-Trace-Sampled";
+    // Hybrid logical clock: merged from the caller, returned so the caller can merge ours
+    public static final String CLOCK_HEADER = "X-Irbre-Clock";
 
     private final EventCollector collector = EventCollector.getInstance();
 
@@ -37,6 +41,7 @@ public class IrbreHttpFilter implements Filter {
         Map<String, String> headers = new HashMap<>();
         String incomingTraceId = httpRequest.getHeader(TRACE_ID_HEADER);
         String incomingParentSpanId = httpRequest.getHeader(PARENT_SPAN_ID_HEADER);
+        Boolean incomingSampled = parseSampled(httpRequest.getHeader(SAMPLED_HEADER));
 
         if (incomingTraceId != null) {
             headers.put(TRACE_ID_HEADER, incomingTraceId);
@@ -45,13 +50,17 @@ public class IrbreHttpFilter implements Filter {
             headers.put(PARENT_SPAN_ID_HEADER, incomingParentSpanId);
         }
 
+        // Order this request's events after the caller's
+        collector.receiveClock(httpRequest.getHeader(CLOCK_HEADER));
+
         // Start trace with correlation info
         collector.startRequest(
                 httpRequest.getMethod(),
                 httpRequest.getRequestURI(),
                 headers,
                 incomingTraceId,  // Pass incoming trace ID
-                incomingParentSpanId  // Pass incoming parent span ID
+                incomingParentSpanId,  // Pass incoming parent span ID
+                incomingSampled  // Null when the caller made no sampling decision
         );
 
         try {
@@ -59,14 +68,35 @@ public class IrbreHttpFilter implements Filter {
             String currentTraceId = collector.getCurrentTraceId();
             if (currentTraceId != null) {
                 httpResponse.setHeader(TRACE_ID_HEADER, currentTraceId);
+                httpResponse.setHeader(SAMPLED_HEADER, collector.isCurrentTraceSampled() ? "1" : "0");
             }
+            httpResponse.setHeader(CLOCK_HEADER, collector.nextClock());
 
             chain.doFilter(request, response);
         } finally {
+            // Once the response is committed the caller gets the clock set above;
+            // otherwise send one that follows every event of this request
+            if (!httpResponse.isCommitted()) {
+                httpResponse.setHeader(CLOCK_HEADER, collector.nextClock());
+            }
             collector.endRequest();
         }
     }
 
+    private static Boolean parseSampled(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.equals("1") || value.equalsIgnoreCase("true")) {
+            return Boolean.TRUE;
+        }
+        if (value.equals("0") || value.equalsIgnoreCase("false")) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
     @Override
     public void destroy() {
         System.out.println("[IRBRE] HTTP Filter destroyed");
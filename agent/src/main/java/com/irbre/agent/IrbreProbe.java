@@ -0,0 +1,173 @@
+package com.irbre.agent;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Static entry points called by instrumented code.
+ *
+ * Each injected probe is a constant method ID followed by a single
+ * INVOKESTATIC into this class. The methods here are kept well below the
+ * JIT's inlining size limit: they only check whether recording is enabled
+ * and hand off to {@link EventCollector}, where the out-of-line slow path lives.
+ *
+ * The start time returned by {@link #enter} is kept in a local of the
+ * instrumented frame and passed back on exit, so the span duration is
+ * measured without any per-thread timing state. A start of 0 means the
+ * call was not recorded (recording off, or the request was not sampled),
+ * and the matching exit returns without touching any thread-local state.
+ *
+ * The {@code wrap} methods are inserted around tasks passed to executors and
+ * CompletableFuture async stages, and {@link #capture}, {@link #attach} and
+ * {@link #detach} into fork/join tasks, so work handed to another thread
+ * stays in the submitting request's trace. Contexts and scopes are typed
+ * Object here so instrumented classes only ever reference this class.
+ */
+public final class IrbreProbe {
+
+    private static final EventCollector COLLECTOR = EventCollector.getInstance();
+
+    private static volatile boolean enabled;
+
+    // Interfaces a task may implement and still be replaced by a TracedTask
+    private static final Set<Class<?>> TASK_INTERFACES = Set.of(Runnable.class, Callable.class, Supplier.class,
+            Function.class, Consumer.class, BiFunction.class, BiConsumer.class, Serializable.class);
+
+    /**
+     * Whether instances of a class can be wrapped: a wrapper only has the
+     * task's functional interface, so a task that is also Comparable (in a
+     * PriorityBlockingQueue), a Future, or anything else an executor or its
+     * queue may check for or compare by identity keeps its own type instead,
+     * and runs outside the trace.
+     */
+    private static final ClassValue<Boolean> WRAPPABLE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Class<?> implemented : c.getInterfaces()) {
+                    if (!TASK_INTERFACES.contains(implemented)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    };
+
+    private IrbreProbe() {
+    }
+
+    /**
+     * Called at the start of every instrumented method.
+     *
+     * @return the {@link System#nanoTime()} start of the span, or 0 if the call is not recorded
+     */
+    public static long enter(int methodId) {
+        if (!enabled) {
+            return 0L;
+        }
+        return COLLECTOR.onMethodEntry(methodId);
+    }
+
+    /**
+     * Called before every normal return of an instrumented method.
+     */
+    public static void exit(int methodId, long startNanos) {
+        if (startNanos != 0L) {
+            COLLECTOR.onMethodExit(methodId, startNanos, null);
+        }
+    }
+
+    /**
+     * Called from the catch-all handler wrapped around an instrumented method,
+     * before the exception is rethrown.
+     */
+    public static void exitExceptionally(Throwable thrown, int methodId, long startNanos) {
+        if (startNanos != 0L) {
+            COLLECTOR.onMethodExit(methodId, startNanos, thrown);
+        }
+    }
+
+    public static Runnable wrap(Runnable task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfRunnable(task, context);
+    }
+
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfCallable<>(task, context);
+    }
+
+    public static <T> Supplier<T> wrap(Supplier<T> task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfSupplier<>(task, context);
+    }
+
+    public static <T, R> Function<T, R> wrap(Function<T, R> task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfFunction<>(task, context);
+    }
+
+    public static <T> Consumer<T> wrap(Consumer<T> task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfConsumer<>(task, context);
+    }
+
+    public static <T, U, R> BiFunction<T, U, R> wrap(BiFunction<T, U, R> task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfBiFunction<>(task, context);
+    }
+
+    public static <T, U> BiConsumer<T, U> wrap(BiConsumer<T, U> task) {
+        AsyncContext context = captureFor(task);
+        return context == null ? task : new TracedTask.OfBiConsumer<>(task, context);
+    }
+
+    // Null when there is nothing to carry over, the task already carries it, or cannot be wrapped
+    private static AsyncContext captureFor(Object task) {
+        if (!enabled || task == null || task instanceof TracedTask || !WRAPPABLE.get(task.getClass())) {
+            return null;
+        }
+        return COLLECTOR.captureContext();
+    }
+
+    /**
+     * Called when a fork/join task is constructed.
+     *
+     * @return the current request's trace, or null if there is none
+     */
+    public static Object capture() {
+        return enabled ? COLLECTOR.captureContext() : null;
+    }
+
+    /**
+     * Called when a fork/join task starts computing, with what {@link #capture} returned.
+     *
+     * @return the scope to pass to {@link #detach}
+     */
+    public static Object attach(Object context) {
+        return context == null ? null : COLLECTOR.attachContext((AsyncContext) context);
+    }
+
+    /**
+     * Called when a fork/join task is done computing, normally or by throwing.
+     */
+    public static void detach(Object scope) {
+        if (scope != null) {
+            COLLECTOR.detachContext((AsyncContext.Scope) scope);
+        }
+    }
+
+    /**
+     * Turn recording on once the agent is wired, and off during shutdown.
+     */
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+}
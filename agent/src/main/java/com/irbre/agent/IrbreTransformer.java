@@ -1,14 +1,19 @@
 package com.irbre.agent;
 
+import com.irbre.agent.model.MethodInfo;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.AdviceAdapter;
 
 
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Transformer that instruments classes to capture method entry and exceptions.
+ * Transformer that instruments classes to record one span per method call,
+ * and to carry the current trace over to tasks they hand to other threads
+ * (see {@link AsyncInstrumentation}).
  */
 public class IrbreTransformer implements ClassFileTransformer {
 
@@ -21,9 +26,39 @@ public class IrbreTransformer implements ClassFileTransformer {
         t.printStackTrace();
     }
     private final AgentConfiguration config;
+    private final MethodRegistry methodRegistry;
+    private final BytecodeCache cache;
+    // Method IDs whose probes were removed; honored on the next (re)transform of their class
+    private final Set<Integer> excludedMethods = ConcurrentHashMap.newKeySet();
+    // Dotted names of the classes those methods belong to; their cached bytes still have the probes
+    private final Set<String> excludedClasses = ConcurrentHashMap.newKeySet();
+
+    public IrbreTransformer(AgentConfiguration config, MethodRegistry methodRegistry) {
+        this(config, methodRegistry, null);
+    }
 
-    public IrbreTransformer(AgentConfiguration config) {
+    /**
+     * @param cache instrumented class files from earlier runs, or null
+     */
+    IrbreTransformer(AgentConfiguration config, MethodRegistry methodRegistry, BytecodeCache cache) {
         this.config = config;
+        this.methodRegistry = methodRegistry;
+        this.cache = cache;
+    }
+
+    /**
+     * Stop instrumenting a method. Takes effect when its class is retransformed.
+     */
+    public void excludeMethod(int methodId) {
+        MethodInfo method = methodRegistry.get(methodId);
+        if (method != null) {
+            excludedClasses.add(method.getClassName());
+        }
+        excludedMethods.add(methodId);
+    }
+
+    public boolean isExcluded(int methodId) {
+        return excludedMethods.contains(methodId);
     }
 
     @Override
@@ -32,38 +67,41 @@ public class IrbreTransformer implements ClassFileTransformer {
         try {
             if (className == null) return null;
 
-            String dottedClassName = className.replace('/', '.');
-            if (dottedClassName.startsWith("org.springframework.") ||
-                    dottedClassName.startsWith("org.apache.") ||
-                    dottedClassName.startsWith("com.fasterxml.jackson.") ||
-                    dottedClassName.startsWith("org.slf4j.") ||
-                    dottedClassName.startsWith("ch.qos.logback.") ||
-                    dottedClassName.startsWith("java.") ||
-                    dottedClassName.startsWith("javax.") ||
-                    dottedClassName.startsWith("sun.") ||
-                    dottedClassName.startsWith("com.sun.") ||
-                    dottedClassName.startsWith("jdk.") ||
-                    dottedClassName.startsWith("com.irbre.") ||
-                    // Add any other framework you see in logs
-                    dottedClassName.contains("$$EnhancerBySpringCGLIB$$") ||
-                    dottedClassName.contains("$$FastClassBySpringCGLIB$$")) {
-                return null;
-            }
+            // Decided on the internal name, before anything is allocated for the class
+            boolean instrument = config.shouldInstrument(className);
+            if (!instrument && classBeingRedefined == null) return null;
+            // A loaded class keeps its fields whatever the configuration says now
+            boolean loadedWithContextField = classBeingRedefined != null
+                    && AsyncInstrumentation.hasContextField(classBeingRedefined);
+            if (!instrument && !loadedWithContextField) return null;
 
-            // ✅ Only allow your app packages
-            if (!dottedClassName.startsWith("com.example.")) {
-                return null;
+            String dottedClassName = className.replace('/', '.');
+            // First loads only, and only of classes with no excluded methods: a retransformation
+            // may be removing probes, which the cached bytes still have
+            BytecodeCache.Key cacheKey = null;
+            if (cache != null && classBeingRedefined == null && !excludedClasses.contains(dottedClassName)) {
+                cacheKey = BytecodeCache.key(classfileBuffer);
+                byte[] cached = cache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
             }
 
-            if (!config.shouldInstrument(dottedClassName)) return null;
-
             ClassReader reader = new ClassReader(classfileBuffer);
             ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES);
 
-            ClassVisitor visitor = new IrbreClassVisitor(writer, dottedClassName);
+            boolean contextField = classBeingRedefined == null
+                    ? instrument && AsyncInstrumentation.isForkJoinTask(reader.getSuperName())
+                    : loadedWithContextField;
+            ClassVisitor visitor = new IrbreClassVisitor(writer, dottedClassName, methodRegistry,
+                    excludedMethods, instrument, contextField);
             reader.accept(visitor, ClassReader.EXPAND_FRAMES);
 
-            return writer.toByteArray();
+            byte[] instrumented = writer.toByteArray();
+            if (cacheKey != null) {
+                cache.put(cacheKey, instrumented, methodRegistry.size());
+            }
+            return instrumented;
         } catch (Throwable t) {
 //            logger.error("Error transforming class: " + className, t);
 //            return null;
@@ -73,59 +111,128 @@ public class IrbreTransformer implements ClassFileTransformer {
         }
     }
 
+    /**
+     * Adds span probes and context propagation to the methods of an included
+     * class. A fork/join task also gets its context field, which is kept, on
+     * its own, if the class is retransformed after being excluded.
+     */
     private static class IrbreClassVisitor extends ClassVisitor {
         private final String className;
+        private final MethodRegistry methodRegistry;
+        private final Set<Integer> excludedMethods;
+        private final boolean instrument;
+        private final boolean contextField;
+
+        private String internalName;
 
-        public IrbreClassVisitor(ClassVisitor cv, String className) {
+        public IrbreClassVisitor(ClassVisitor cv, String className, MethodRegistry methodRegistry,
+                                 Set<Integer> excludedMethods, boolean instrument, boolean contextField) {
             super(Opcodes.ASM9, cv);
             this.className = className;
+            this.methodRegistry = methodRegistry;
+            this.excludedMethods = excludedMethods;
+            this.instrument = instrument;
+            this.contextField = contextField;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature,
+                          String superName, String[] interfaces) {
+            this.internalName = name;
+            super.visit(version, access, name, signature, superName, interfaces);
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String descriptor,
                                          String signature, String[] exceptions) {
             MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
-
-            if (mv == null || name.equals("<init>") || name.equals("<clinit>") ||
-                    (access & Opcodes.ACC_SYNTHETIC) != 0) {
+            if (mv == null || !instrument) {
                 return mv;
             }
 
-            return new IrbreMethodVisitor(mv, access, name, descriptor, className);
+            // Visitors are applied outermost last: call sites, then the span probe, then the compute scope
+            if (contextField) {
+                if (name.equals("<init>")) {
+                    mv = new AsyncInstrumentation.ConstructorVisitor(mv, internalName);
+                } else if (AsyncInstrumentation.isCompute(access, name, descriptor)) {
+                    mv = new AsyncInstrumentation.ComputeVisitor(mv, internalName, access, name, descriptor);
+                }
+            }
+            if (!name.equals("<init>") && !name.equals("<clinit>") &&
+                    (access & Opcodes.ACC_SYNTHETIC) == 0) {
+                int methodId = methodRegistry.register(className, name, descriptor);
+                if (!excludedMethods.contains(methodId)) {
+                    mv = new IrbreMethodVisitor(mv, access, name, descriptor, methodId);
+                }
+            }
+            // Lambda bodies and constructors hand work over too, so every method gets its call sites wrapped
+            return new AsyncInstrumentation.CallSiteVisitor(mv);
+        }
+
+        @Override
+        public void visitEnd() {
+            if (contextField) {
+                super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT | Opcodes.ACC_SYNTHETIC,
+                        AsyncInstrumentation.CONTEXT_FIELD, "Ljava/lang/Object;", null, null).visitEnd();
+            }
+            super.visitEnd();
         }
     }
 
+    /**
+     * Wraps each method body in try/finally. The entry probe returns a
+     * nanoTime start that is kept in a local; every normal return and the
+     * catch-all handler pass it back so a single SPAN is recorded per call.
+     */
     private static class IrbreMethodVisitor extends AdviceAdapter {
-        private final String methodName;
-        private final String className;
+        private static final String PROBE = "com/irbre/agent/IrbreProbe";
+
+        private final int methodId;
+        private final Label tryStart = new Label();
+        private int startLocal = -1;
 
         protected IrbreMethodVisitor(MethodVisitor mv, int access, String name,
-                                     String descriptor, String className) {
+                                     String descriptor, int methodId) {
             super(Opcodes.ASM9, mv, access, name, descriptor);
-            this.methodName = name;
-            this.className = className;
+            this.methodId = methodId;
         }
 
         @Override
         protected void onMethodEnter() {
-            // Call EventCollector.getInstance().onMethodEntry(className, methodName);
-            mv.visitMethodInsn(INVOKESTATIC,
-                    "com/irbre/agent/EventCollector",
-                    "getInstance",
-                    "()Lcom/irbre/agent/EventCollector;",
-                    false);
-            mv.visitLdcInsn(className);
-            mv.visitLdcInsn(methodName);
-            mv.visitMethodInsn(INVOKEVIRTUAL,
-                    "com/irbre/agent/EventCollector",
-                    "onMethodEntry",
-                    "(Ljava/lang/String;Ljava/lang/String;)V",
-                    false);
+            // long start = IrbreProbe.enter(methodId): one constant push and one static call
+            push(methodId);
+            mv.visitMethodInsn(INVOKESTATIC, PROBE, "enter", "(I)J", false);
+            startLocal = newLocal(Type.LONG_TYPE);
+            storeLocal(startLocal);
+            mv.visitLabel(tryStart);
         }
 
         @Override
         protected void onMethodExit(int opcode) {
-            // Handle exceptions automatically if opcode == ATHROW
+            // Exceptions, including explicit throws, are reported by the handler added in visitMaxs
+            if (opcode == ATHROW) {
+                return;
+            }
+            push(methodId);
+            loadLocal(startLocal);
+            mv.visitMethodInsn(INVOKESTATIC, PROBE, "exit", "(IJ)V", false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (startLocal >= 0) {
+                // Registered last so that the method's own handlers take precedence
+                Label handler = new Label();
+                mv.visitTryCatchBlock(tryStart, handler, handler, null);
+                mv.visitLabel(handler);
+                mv.visitInsn(DUP);
+                push(methodId);
+                loadLocal(startLocal);
+                mv.visitMethodInsn(INVOKESTATIC, PROBE, "exitExceptionally",
+                        "(Ljava/lang/Throwable;IJ)V", false);
+                mv.visitInsn(ATHROW);
+            }
+            super.visitMaxs(maxStack, maxLocals);
         }
     }
 }
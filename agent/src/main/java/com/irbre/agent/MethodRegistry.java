@@ -0,0 +1,82 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.MethodInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Method dictionary of the agent. Each instrumented method gets a dense int ID
+ * when its class is transformed; probes and events carry only that ID.
+ *
+ * Entries are shipped to the collector incrementally: every batch carries the
+ * entries the collector has not acknowledged yet, and a successful send moves
+ * the acknowledged watermark forward.
+ */
+public class MethodRegistry {
+
+    private final Map<String, Integer> idsByKey = new HashMap<>();
+    private volatile MethodInfo[] methods = new MethodInfo[1024];
+    private volatile int size;
+    private volatile int acknowledged;
+
+    /**
+     * Return the ID of a method, assigning the next free one on first sight.
+     * Re-transforming a class yields the same IDs.
+     */
+    public synchronized int register(String className, String methodName, String descriptor) {
+        String key = className + '.' + methodName + descriptor;
+        Integer existing = idsByKey.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        MethodInfo[] current = methods;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        int id = size;
+        current[id] = new MethodInfo(id, className, methodName, descriptor);
+        methods = current;
+        idsByKey.put(key, id);
+        size = id + 1;
+        return id;
+    }
+
+    /**
+     * Look up a method by ID, or null if unknown.
+     */
+    public MethodInfo get(int methodId) {
+        MethodInfo[] current = methods;
+        return methodId >= 0 && methodId < current.length ? current[methodId] : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Entries registered since the last acknowledged send, in ID order.
+     */
+    public List<MethodInfo> unacknowledged() {
+        int end = size;
+        int start = acknowledged;
+        MethodInfo[] current = methods;
+        List<MethodInfo> pending = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            pending.add(current[i]);
+        }
+        return pending;
+    }
+
+    /**
+     * Mark every entry below {@code upTo} as known to the collector.
+     */
+    public synchronized void acknowledge(int upTo) {
+        if (upTo > acknowledged) {
+            acknowledged = upTo;
+        }
+    }
+}
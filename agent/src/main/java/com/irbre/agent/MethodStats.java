@@ -0,0 +1,71 @@
+package com.irbre.agent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Invocation count and total duration per method ID, for recorded calls.
+ *
+ * Each thread updates its own {@link Counters} with plain writes, so the hot
+ * path has no shared cache lines. {@link #snapshot} sums all threads'
+ * counters; values read from other threads may be slightly stale, which
+ * is fine for rate estimates.
+ */
+public class MethodStats {
+
+    private final List<Counters> counters = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Counters> local = ThreadLocal.withInitial(this::register);
+
+    /**
+     * The calling thread's counters. Callers cache the result per request.
+     */
+    Counters local() {
+        return local.get();
+    }
+
+    private Counters register() {
+        Counters c = new Counters();
+        counters.add(c);
+        return c;
+    }
+
+    /**
+     * Sum calls and nanos over all threads into {@code calls} and {@code nanos},
+     * which are grown to cover every method seen so far. Returns the arrays.
+     */
+    long[][] snapshot(long[] calls, long[] nanos) {
+        for (Counters c : counters) {
+            long[] threadCalls = c.calls;
+            long[] threadNanos = c.nanos;
+            int n = Math.min(threadCalls.length, threadNanos.length);
+            if (n > calls.length) {
+                calls = Arrays.copyOf(calls, n);
+                nanos = Arrays.copyOf(nanos, n);
+            }
+            for (int i = 0; i < n; i++) {
+                calls[i] += threadCalls[i];
+                nanos[i] += threadNanos[i];
+            }
+        }
+        return new long[][]{calls, nanos};
+    }
+
+    /**
+     * Per-thread counters, indexed by method ID. Written only by the owning thread.
+     */
+    static final class Counters {
+        private long[] calls = new long[256];
+        private long[] nanos = new long[256];
+
+        void record(int methodId, long durationNanos) {
+            if (methodId >= calls.length) {
+                int size = Math.max(methodId + 1, calls.length * 2);
+                nanos = Arrays.copyOf(nanos, size);
+                calls = Arrays.copyOf(calls, size);
+            }
+            calls[methodId]++;
+            nanos[methodId] += durationNanos;
+        }
+    }
+}
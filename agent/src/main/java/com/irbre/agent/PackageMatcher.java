@@ -0,0 +1,224 @@
+package com.irbre.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which classes are instrumented, for every class the JVM loads.
+ *
+ * The built-in ignore list and the configured include and exclude prefixes
+ * are compiled into one character trie, stored as a flat transition table
+ * over ASCII. A lookup walks the class name once, one array read per
+ * character, accepting internal ({@code com/example/Foo}) and binary
+ * ({@code com.example.Foo}) names alike. It stops at the first excluded
+ * prefix or where the name leaves the trie, so most JDK and library classes
+ * are rejected after a few characters. Nothing is allocated. Prefixes with
+ * characters outside ASCII, legal but unheard of in package names, are
+ * checked one by one instead.
+ *
+ * Semantics are those of {@code startsWith} on the binary name: any
+ * matching exclude wins, otherwise any matching include accepts the class.
+ * There is no "everything" setting: an empty include set is rejected, so a
+ * cleared list cannot retransform every library class in the JVM.
+ *
+ * Immutable; a configuration change builds a new matcher.
+ */
+final class PackageMatcher {
+
+    /**
+     * Never instrumented, whatever the configuration: JDK, agent and framework internals.
+     */
+    static final Set<String> IGNORED_PACKAGES = Set.of(
+            "org.springframework.",
+            "org.apache.",
+            "com.fasterxml.jackson.",
+            "org.slf4j.",
+            "ch.qos.logback.",
+            "java.",
+            "javax.",
+            "sun.",
+            "com.sun.",
+            "jdk.",
+            "com.irbre.");
+
+    // Generated proxies, recognized anywhere in the name
+    private static final String[] GENERATED_MARKERS = {
+            "$$EnhancerBySpringCGLIB$$",
+            "$$FastClassBySpringCGLIB$$"
+    };
+
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private static final int ALPHABET = 128;
+    private static final int OTHER = -1;
+    private static final String[] NONE_OUTSIDE = new String[0];
+
+    // transitions[state * ALPHABET + c] is the next state, or 0 (the root, never a target) for none
+    private final int[] transitions;
+    private final byte[] verdicts;
+    // Prefixes with characters outside ASCII, checked one by one; empty in practice
+    private final String[] includedOutside;
+    private final String[] excludedOutside;
+
+    /**
+     * @throws IllegalArgumentException if no package is included
+     */
+    PackageMatcher(Set<String> includedPackages, Set<String> excludedPackages) {
+        if (includedPackages.isEmpty()) {
+            throw new IllegalArgumentException("At least one included package is required");
+        }
+        Builder builder = new Builder();
+        for (String prefix : includedPackages) {
+            builder.add(prefix, INCLUDE);
+        }
+        for (String prefix : IGNORED_PACKAGES) {
+            builder.add(prefix, EXCLUDE);
+        }
+        for (String prefix : excludedPackages) {
+            builder.add(prefix, EXCLUDE);
+        }
+        this.transitions = builder.transitions();
+        this.verdicts = builder.verdicts();
+        this.includedOutside = builder.outside(INCLUDE);
+        this.excludedOutside = builder.outside(EXCLUDE);
+    }
+
+    /**
+     * Whether a class is instrumented.
+     *
+     * @param className internal or binary class name
+     */
+    boolean matches(String className) {
+        int[] transitions = this.transitions;
+        byte[] verdicts = this.verdicts;
+        if (verdicts[0] == EXCLUDE) {
+            return false;
+        }
+        boolean included = verdicts[0] == INCLUDE;
+        int state = 0;
+        for (int i = 0, n = className.length(); i < n; i++) {
+            int c = symbol(className.charAt(i));
+            if (c == OTHER) {
+                break;
+            }
+            state = transitions[state * ALPHABET + c];
+            if (state == 0) {
+                break;
+            }
+            byte verdict = verdicts[state];
+            if (verdict == EXCLUDE) {
+                return false;
+            }
+            if (verdict == INCLUDE) {
+                included = true;
+            }
+        }
+        if (excludedOutside.length > 0 || includedOutside.length > 0) {
+            for (String prefix : excludedOutside) {
+                if (startsWith(className, prefix)) {
+                    return false;
+                }
+            }
+            for (String prefix : includedOutside) {
+                included |= startsWith(className, prefix);
+            }
+        }
+        return included && !isGenerated(className);
+    }
+
+    private static boolean startsWith(String className, String prefix) {
+        if (className.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = className.charAt(i);
+            if ((c == '.' ? '/' : c) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isGenerated(String className) {
+        if (className.indexOf("$$") < 0) {
+            return false;
+        }
+        for (String marker : GENERATED_MARKERS) {
+            if (className.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int symbol(char c) {
+        if (c == '.') {
+            return '/';
+        }
+        return c < ALPHABET ? c : OTHER;
+    }
+
+    /**
+     * Builds the trie one state at a time; state 0 is the root.
+     */
+    private static final class Builder {
+        private final List<int[]> rows = new ArrayList<>();
+        private final List<Byte> verdicts = new ArrayList<>();
+        private final List<String> includedOutside = new ArrayList<>();
+        private final List<String> excludedOutside = new ArrayList<>();
+
+        Builder() {
+            newState();
+        }
+
+        private int newState() {
+            rows.add(new int[ALPHABET]);
+            verdicts.add(NONE);
+            return rows.size() - 1;
+        }
+
+        void add(String prefix, byte verdict) {
+            String internalPrefix = prefix.replace('.', '/');
+            if (internalPrefix.chars().anyMatch(c -> c >= ALPHABET)) {
+                (verdict == EXCLUDE ? excludedOutside : includedOutside).add(internalPrefix);
+                return;
+            }
+            int state = 0;
+            for (int i = 0; i < internalPrefix.length(); i++) {
+                int c = internalPrefix.charAt(i);
+                int next = rows.get(state)[c];
+                if (next == 0) {
+                    next = newState();
+                    rows.get(state)[c] = next;
+                }
+                state = next;
+            }
+            // A prefix both included and excluded is excluded
+            verdicts.set(state, (byte) Math.max(verdicts.get(state), verdict));
+        }
+
+        int[] transitions() {
+            int[] table = new int[rows.size() * ALPHABET];
+            for (int state = 0; state < rows.size(); state++) {
+                System.arraycopy(rows.get(state), 0, table, state * ALPHABET, ALPHABET);
+            }
+            return table;
+        }
+
+        String[] outside(byte verdict) {
+            List<String> prefixes = verdict == EXCLUDE ? excludedOutside : includedOutside;
+            return prefixes.isEmpty() ? NONE_OUTSIDE : prefixes.toArray(new String[0]);
+        }
+
+        byte[] verdicts() {
+            byte[] result = new byte[verdicts.size()];
+            for (int state = 0; state < result.length; state++) {
+                result[state] = verdicts.get(state);
+            }
+            return result;
+        }
+    }
+}
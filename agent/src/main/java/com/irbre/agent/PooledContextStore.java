@@ -0,0 +1,77 @@
+package com.irbre.agent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contexts are reused across requests and threads instead of being created
+ * per thread.
+ *
+ * The thread-local holds only a reference while a request runs; at the end
+ * of the request the entry is removed and the context, reset, goes back to a
+ * shared pool. The number of contexts therefore follows the number of
+ * requests in flight rather than the number of threads, which suits servers
+ * that run each request on its own virtual thread (such as Tomcat's
+ * virtual-thread executor): a virtual thread is left with an empty
+ * thread-local map, and the next request reuses a warm context with its
+ * span ID and clock ranges still reserved.
+ *
+ * Contexts are only ever touched by the thread that holds them. The pool
+ * hands them over with a happens-before edge, so no further synchronization is
+ * needed.
+ */
+class PooledContextStore implements TraceContextStore {
+    // Idle contexts kept for reuse; beyond this a burst's extra contexts are left to the GC
+    private static final int MAX_POOLED_CONTEXTS = 16_384;
+
+    private final ThreadLocal<TraceContext> current = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<TraceContext> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    @Override
+    public TraceContext get() {
+        TraceContext ctx = current.get();
+        if (ctx == null) {
+            ctx = pool.poll();
+            if (ctx != null) {
+                pooled.decrementAndGet();
+            } else {
+                ctx = new TraceContext();
+            }
+            current.set(ctx);
+        }
+        return ctx;
+    }
+
+    @Override
+    public void release() {
+        TraceContext ctx = current.get();
+        if (ctx == null) {
+            return;
+        }
+        current.remove();
+        ctx.reset();
+        if (pooled.incrementAndGet() > MAX_POOLED_CONTEXTS) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(ctx);
+    }
+
+    @Override
+    public void releaseIdle() {
+        release();
+    }
+
+    @Override
+    public boolean sharesContexts() {
+        return true;
+    }
+
+    /**
+     * Idle contexts waiting to be reused.
+     */
+    int pooledContexts() {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,99 @@
+package com.irbre.agent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.irbre.agent.model.RequestMetadata;
+import com.irbre.agent.util.IdGenerator;
+import com.irbre.agent.util.StringTable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Streams binary ring records as JSON events with the same shape the
+ * TraceEvent model serializes to, without materializing TraceEvent objects.
+ *
+ * Events are written inside trace sections ({"traceId", "events"}) of an
+ * enclosing array the caller opens; a new section starts whenever the trace
+ * changes. Call {@link #finish()} before closing the array.
+ */
+class RecordJsonWriter implements BinaryEventRing.RecordVisitor {
+
+    private final JsonGenerator gen;
+    private final StringTable strings;
+    private boolean sectionOpen;
+    private String sectionTraceId;
+
+    RecordJsonWriter(JsonGenerator gen, StringTable strings) {
+        this.gen = gen;
+        this.strings = strings;
+    }
+
+    @Override
+    public void onEvent(BinaryEventRing ring, int offset) throws IOException {
+        String traceId = ring.traceId();
+        if (!sectionOpen || !Objects.equals(sectionTraceId, traceId)) {
+            finish();
+            gen.writeStartObject();
+            gen.writeStringField("traceId", traceId);
+            gen.writeArrayFieldStart("events");
+            sectionOpen = true;
+            sectionTraceId = traceId;
+        }
+        gen.writeStartObject();
+        gen.writeStringField("traceId", traceId);
+        gen.writeStringField("eventType", ring.eventType(offset).name());
+        gen.writeNumberField("startNanos", ring.startNanos(offset));
+        gen.writeNumberField("durationNanos", ring.durationNanos(offset));
+        gen.writeStringField("outcome", ring.outcome(offset).name());
+        gen.writeNumberField("methodId", ring.methodId(offset));
+        gen.writeStringField("threadName", ring.threadName());
+        gen.writeNumberField("threadId", ring.threadId());
+        gen.writeNumberField("sequenceNumber", ring.sequenceNumber(offset));
+        writeOptional("exceptionType", strings.get(ring.exceptionTypeId(offset)));
+        writeOptional("exceptionMessage", ring.exceptionMessage(offset));
+        writeRequestMetadata(ring.requestMetadata());
+        writeOptional("spanId", IdGenerator.toHex(ring.spanId(offset)));
+        writeOptional("parentSpanId", IdGenerator.toHex(ring.parentSpanId(offset)));
+        gen.writeNumberField("lamportClock", ring.lamportClock(offset));
+        gen.writeEndObject();
+    }
+
+    /**
+     * Close the open trace section, if any.
+     */
+    void finish() throws IOException {
+        if (sectionOpen) {
+            gen.writeEndArray();
+            gen.writeEndObject();
+            sectionOpen = false;
+        }
+    }
+
+    /**
+     * Null fields are omitted, matching the sender's NON_NULL inclusion.
+     */
+    private void writeOptional(String field, String value) throws IOException {
+        if (value != null) {
+            gen.writeStringField(field, value);
+        }
+    }
+
+    private void writeRequestMetadata(RequestMetadata metadata) throws IOException {
+        if (metadata == null) {
+            return;
+        }
+        gen.writeObjectFieldStart("requestMetadata");
+        writeOptional("httpMethod", metadata.getHttpMethod());
+        writeOptional("requestUri", metadata.getRequestUri());
+        gen.writeObjectFieldStart("headers");
+        if (metadata.getHeaders() != null) {
+            for (Map.Entry<String, String> header : metadata.getHeaders().entrySet()) {
+                gen.writeStringField(header.getKey(), header.getValue());
+            }
+        }
+        gen.writeEndObject();
+        writeOptional("clientIp", metadata.getClientIp());
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,87 @@
+package com.irbre.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tail sampling: decides at the end of a request whether its buffered events are sent.
+ *
+ * A trace is kept if it took at least the latency threshold, if any span
+ * completed by throwing (when errors are kept), or while its endpoint still
+ * has quota left for the current second. Everything else is discarded.
+ *
+ * The number of events buffered across all in-flight requests is capped.
+ * When a request cannot reserve more room its trace is kept early: buffered
+ * events are forwarded and the rest of the request is recorded directly, so
+ * large traces (often the slow ones) are never lost to the cap.
+ */
+public class TailSamplingPolicy {
+
+    private final long latencyThresholdNanos;
+    private final boolean keepErrors;
+    private final List<TraceSampler.RateLimit> quotas = new ArrayList<>();
+    private final int maxBufferedEvents;
+    private final AtomicInteger bufferedEvents = new AtomicInteger();
+
+    public TailSamplingPolicy(long latencyThresholdMs, boolean keepErrors,
+                              Map<String, Integer> quotas, int maxBufferedEvents) {
+        this.latencyThresholdNanos = latencyThresholdMs * 1_000_000L;
+        this.keepErrors = keepErrors;
+        for (Map.Entry<String, Integer> quota : quotas.entrySet()) {
+            this.quotas.add(new TraceSampler.RateLimit(quota.getKey(), quota.getValue()));
+        }
+        this.maxBufferedEvents = maxBufferedEvents;
+    }
+
+    /**
+     * Decide whether a completed request's trace is sent to the collector.
+     */
+    public boolean keep(String requestUri, long durationNanos, boolean failed) {
+        if (failed && keepErrors) {
+            return true;
+        }
+        if (durationNanos >= latencyThresholdNanos) {
+            return true;
+        }
+        if (requestUri != null) {
+            for (TraceSampler.RateLimit quota : quotas) {
+                if (quota.matches(requestUri)) {
+                    return quota.tryAcquire(System.nanoTime());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserve room for one buffered event. Returns false once the cap is reached.
+     */
+    boolean reserve() {
+        if (bufferedEvents.incrementAndGet() > maxBufferedEvents) {
+            bufferedEvents.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back room for events that were forwarded or discarded.
+     */
+    void release(int events) {
+        bufferedEvents.addAndGet(-events);
+    }
+
+    int getBufferedEvents() {
+        return bufferedEvents.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TailSamplingPolicy{latencyThresholdMs=" + latencyThresholdNanos / 1_000_000L +
+                ", keepErrors=" + keepErrors +
+                ", quotas=" + quotas +
+                ", maxBufferedEvents=" + maxBufferedEvents + '}';
+    }
+}
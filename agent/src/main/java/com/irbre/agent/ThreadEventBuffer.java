@@ -0,0 +1,238 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.TraceEvent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+/**
+ * Single-producer/single-consumer ring of events owned by one application
+ * thread, or leased to one request at a time when contexts are pooled (see
+ * {@link EventBatcher#leaseBuffer}); the lease is handed over through a
+ * concurrent queue, so the producer-side state needs no further fencing.
+ * The producer appends with plain writes and a release store of the tail;
+ * the batch processor thread is the only consumer. No locks are involved.
+ *
+ * The buffer is bounded both by event count and by an estimate of the bytes
+ * its events retain, since exception messages make event sizes vary widely.
+ *
+ * For the drop-oldest policy the producer may also move the head forward
+ * ({@link #evictOldest}). The head is therefore advanced with a CAS on both
+ * sides: a drain whose CAS fails lost a race with an eviction and retries, and
+ * drained slots are cleared with a CAS so a slot the producer has already
+ * reused is left alone. The producer only pays for a CAS when it evicts.
+ */
+class ThreadEventBuffer {
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle BYTES_OUT;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(TraceEvent[].class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(ThreadEventBuffer.class, "head", long.class);
+            TAIL = lookup.findVarHandle(ThreadEventBuffer.class, "tail", long.class);
+            BYTES_OUT = lookup.findVarHandle(ThreadEventBuffer.class, "bytesOut", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Fixed overhead of a TraceEvent with its boxed fields, in bytes
+    private static final int EVENT_BASE_BYTES = 160;
+
+    private final TraceEvent[] ring;
+    private final int[] sizes;
+    private final int mask;
+    private final long maxBytes;
+    // Null for a leased buffer, which is reclaimed once retired instead
+    private final WeakReference<Thread> owner;
+    private volatile boolean retired;
+
+    // Advanced by the consumer, and by the producer when evicting
+    private volatile long head;
+    // Written by the producer only
+    private volatile long tail;
+    // Bytes of drained events, written by the consumer only
+    private volatile long bytesOut;
+    // Producer-local state: bytes of events offered minus bytes evicted, and
+    // copies of head and bytesOut refreshed only when the buffer looks full
+    private long bytesIn;
+    private long headCache;
+    private long bytesOutCache;
+    private int sampleCounter;
+
+    /**
+     * @param owner the thread that appends to the buffer, or null for a buffer leased per request
+     */
+    ThreadEventBuffer(int capacity, long maxBytes, Thread owner) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new TraceEvent[size];
+        this.sizes = new int[size];
+        this.mask = size - 1;
+        this.maxBytes = maxBytes;
+        this.owner = owner != null ? new WeakReference<>(owner) : null;
+    }
+
+    /**
+     * Rough heap footprint of an event: a fixed part plus its variable-length strings.
+     */
+    static int estimateBytes(TraceEvent event) {
+        int size = EVENT_BASE_BYTES;
+        String message = event.getExceptionMessage();
+        if (message != null) {
+            size += 24 + message.length();
+        }
+        if (event.getRequestMetadata() != null) {
+            size += 256;
+        }
+        return size;
+    }
+
+    /**
+     * Append an event. Must only be called by the producer.
+     *
+     * @param size the event's {@link #estimateBytes} estimate
+     * @return false if the buffer is full by count or by bytes
+     */
+    boolean offer(TraceEvent event, int size) {
+        long t = (long) TAIL.getOpaque(this);
+        if (isFull(t, size)) {
+            refresh();
+            if (isFull(t, size)) {
+                return false;
+            }
+        }
+        int index = (int) t & mask;
+        ring[index] = event;
+        sizes[index] = size;
+        bytesIn += size;
+        TAIL.setRelease(this, t + 1);
+        return true;
+    }
+
+    // An empty buffer takes one event of any size, so oversized events are not starved
+    private boolean isFull(long t, int size) {
+        return t - headCache >= ring.length
+                || (t != headCache && bytesIn - bytesOutCache + size > maxBytes);
+    }
+
+    private void refresh() {
+        // bytesOut is published after the head, so this may overstate the occupancy, never understate it
+        headCache = (long) HEAD.getAcquire(this);
+        bytesOutCache = (long) BYTES_OUT.getAcquire(this);
+    }
+
+    /**
+     * Whether the buffer is at least three quarters full, by count or by bytes.
+     * Producer only.
+     */
+    boolean isAboveHighWater() {
+        long t = (long) TAIL.getOpaque(this);
+        if (!aboveHighWater(t)) {
+            return false;
+        }
+        refresh();
+        return aboveHighWater(t);
+    }
+
+    private boolean aboveHighWater(long t) {
+        return (t - headCache) * 4 >= ring.length * 3L || (bytesIn - bytesOutCache) * 4 >= maxBytes * 3;
+    }
+
+    /**
+     * Keep one event in {@code keepEvery}. Producer only.
+     */
+    boolean sample(int keepEvery) {
+        return sampleCounter++ % keepEvery == 0;
+    }
+
+    /**
+     * Remove the oldest event to make room. Producer only.
+     *
+     * @return the evicted event; null if the buffer was empty or the consumer
+     *         freed space concurrently, in which case nothing was evicted
+     */
+    TraceEvent evictOldest() {
+        long h = (long) HEAD.getAcquire(this);
+        long t = (long) TAIL.getOpaque(this);
+        if (h == t) {
+            return null;
+        }
+        int index = (int) h & mask;
+        TraceEvent oldest = ring[index];
+        int size = sizes[index];
+        if (!HEAD.compareAndSet(this, h, h + 1)) {
+            return null;
+        }
+        bytesIn -= size;
+        headCache = h + 1;
+        return oldest;
+    }
+
+    /**
+     * Move up to {@code max} events into {@code out}. Consumer thread only.
+     *
+     * @return number of events drained
+     */
+    int drainTo(List<TraceEvent> out, int max) {
+        while (true) {
+            long h = (long) HEAD.getAcquire(this);
+            long available = (long) TAIL.getAcquire(this) - h;
+            int n = (int) Math.min(available, max);
+            if (n <= 0) {
+                return 0;
+            }
+            int start = out.size();
+            long bytes = 0;
+            for (int i = 0; i < n; i++) {
+                int index = (int) (h + i) & mask;
+                out.add(ring[index]);
+                bytes += sizes[index];
+            }
+            if (!HEAD.compareAndSet(this, h, h + n)) {
+                // The producer evicted the oldest events meanwhile; what was read may be stale
+                out.subList(start, out.size()).clear();
+                continue;
+            }
+            BYTES_OUT.setRelease(this, bytesOut + bytes);
+            for (int i = 0; i < n; i++) {
+                SLOT.compareAndSet(ring, (int) (h + i) & mask, out.get(start + i), null);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Number of events waiting to be drained.
+     */
+    int size() {
+        return (int) ((long) TAIL.getAcquire(this) - (long) HEAD.getAcquire(this));
+    }
+
+    boolean isEmpty() {
+        return (long) TAIL.getAcquire(this) == (long) HEAD.getAcquire(this);
+    }
+
+    /**
+     * Let a leased buffer be reclaimed once drained, rather than go back to the pool.
+     */
+    void retire() {
+        retired = true;
+    }
+
+    /**
+     * A buffer can be reclaimed once drained and no longer appended to: its
+     * thread has terminated or, for a leased buffer, it has been retired.
+     */
+    boolean isReclaimable() {
+        if (owner == null) {
+            return retired && isEmpty();
+        }
+        Thread thread = owner.get();
+        return (thread == null || !thread.isAlive()) && isEmpty();
+    }
+}
@@ -0,0 +1,21 @@
+package com.irbre.agent;
+
+/**
+ * A new context per thread, discarded when the request ends. Simple, but
+ * every request allocates a context, and with a virtual thread per request
+ * every thread does.
+ */
+class ThreadLocalContextStore implements TraceContextStore {
+
+    private final ThreadLocal<TraceContext> contexts = ThreadLocal.withInitial(TraceContext::new);
+
+    @Override
+    public TraceContext get() {
+        return contexts.get();
+    }
+
+    @Override
+    public void release() {
+        contexts.remove();
+    }
+}
@@ -0,0 +1,92 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.TraceEvent;
+import com.irbre.agent.util.HybridLogicalClock;
+import com.irbre.agent.util.IdGenerator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of the request running on a thread, kept by a {@link TraceContextStore}.
+ * Span hierarchy is tracked in a primitive stack to keep the hot path allocation-free.
+ *
+ * Only one thread uses a context at a time, but with {@link PooledContextStore}
+ * a context moves between threads from one request to the next, so nothing
+ * tied to a thread may survive {@link #reset()}.
+ */
+class TraceContext {
+    private static final int INITIAL_DEPTH = 8;
+    // A context that needed a deeper stack gives it back when pooled
+    private static final int MAX_RETAINED_DEPTH = 64;
+
+    String traceId;
+    int sequenceNumber;
+    // Replaces sequenceNumber once the request hands work to another thread, see nextSequence()
+    AtomicInteger sharedSequence;
+    long[] spanStack = new long[INITIAL_DEPTH];
+    int depth;
+    long distributedParentSpanId;  // For cross-service tracing (0 = none)
+    boolean sampled = true;  // Head sampling decision for the current request
+    // The trace belongs to a request, not to a bare thread, so tasks submitted from here carry it over
+    boolean requestTrace;
+    AsyncContext captured;  // Last snapshot handed to a task, reused while the span is unchanged
+    // The thread's event buffer or ring, or ones leased for the request when contexts are pooled
+    ThreadEventBuffer buffer;
+    BinaryEventRing ring;  // Binary recording mode
+    MethodStats.Counters counters;  // Cached per-thread call counters
+    // Tail sampling state for the current request
+    boolean tailBuffered;
+    List<TraceEvent> pending;  // Object mode buffer; binary mode defers ring publication instead
+    String requestUri;
+    long requestStartNanos;
+    boolean failed;
+    // Shared with the request's tasks while it is tail-buffered; in a task, the request's
+    AsyncContext.TailBuffer taskTail;
+    // Both reserve blocks of values and are not tied to a thread, so they are kept across requests
+    final IdGenerator.SpanAllocator spanIds = new IdGenerator.SpanAllocator();
+    final HybridLogicalClock.Ticker clock = new HybridLogicalClock.Ticker();
+
+    /**
+     * Sequence number of the next span: a plain counter until a task is
+     * handed off, then one shared with the tasks so their numbers never collide.
+     */
+    int nextSequence() {
+        AtomicInteger shared = sharedSequence;
+        return shared != null ? shared.getAndIncrement() : sequenceNumber++;
+    }
+
+    void pushSpan(long spanId) {
+        if (depth == spanStack.length) {
+            spanStack = Arrays.copyOf(spanStack, depth * 2);
+        }
+        spanStack[depth++] = spanId;
+    }
+
+    /**
+     * Return to the state of a new context, dropping the per-thread caches.
+     */
+    void reset() {
+        traceId = null;
+        sequenceNumber = 0;
+        sharedSequence = null;
+        if (spanStack.length > MAX_RETAINED_DEPTH) {
+            spanStack = new long[INITIAL_DEPTH];
+        }
+        depth = 0;
+        distributedParentSpanId = 0;
+        sampled = true;
+        requestTrace = false;
+        captured = null;
+        buffer = null;
+        ring = null;
+        counters = null;
+        tailBuffered = false;
+        pending = null;
+        requestUri = null;
+        requestStartNanos = 0;
+        failed = false;
+        taskTail = null;
+    }
+}
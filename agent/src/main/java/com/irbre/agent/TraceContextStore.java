@@ -0,0 +1,44 @@
+package com.irbre.agent;
+
+/**
+ * Where {@link EventCollector} keeps the {@link TraceContext} of the request
+ * running on the current thread.
+ */
+interface TraceContextStore {
+
+    String THREAD_LOCAL = "thread-local";
+    String POOLED = "pooled";
+
+    /**
+     * The current thread's context, created if it has none.
+     */
+    TraceContext get();
+
+    /**
+     * Drop the current thread's context at the end of a request.
+     */
+    void release();
+
+    /**
+     * The current thread finished a task propagated from another thread and
+     * has no request of its own. Stores that share contexts between threads
+     * take it back; a per-thread store keeps it for the thread's next task.
+     */
+    default void releaseIdle() {
+    }
+
+    /**
+     * Whether a context moves between threads from one request to the next,
+     * so that event buffers must be leased per request rather than kept per thread.
+     */
+    default boolean sharesContexts() {
+        return false;
+    }
+
+    /**
+     * @param kind {@link #THREAD_LOCAL} or {@link #POOLED}
+     */
+    static TraceContextStore create(String kind) {
+        return POOLED.equals(kind) ? new PooledContextStore() : new ThreadLocalContextStore();
+    }
+}
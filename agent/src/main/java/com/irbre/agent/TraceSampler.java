@@ -0,0 +1,89 @@
+package com.irbre.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Head sampling: decides once, when a request starts, whether its trace is recorded.
+ *
+ * A request is sampled with probability {@code irbre.sampling.rate}. Requests
+ * whose URI matches a rate-limit rule are additionally capped at that rule's
+ * number of sampled traces per second; the first matching rule wins.
+ * Patterns are exact URIs, or prefixes when they end with {@code *}.
+ */
+public class TraceSampler {
+
+    private final double rate;
+    private final List<RateLimit> limits = new ArrayList<>();
+
+    public TraceSampler(double rate, Map<String, Integer> rateLimits) {
+        this.rate = rate;
+        for (Map.Entry<String, Integer> limit : rateLimits.entrySet()) {
+            limits.add(new RateLimit(limit.getKey(), limit.getValue()));
+        }
+    }
+
+    /**
+     * Make the sampling decision for a new request.
+     */
+    public boolean sample(String requestUri) {
+        if (rate < 1.0 && (rate <= 0.0 || ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return false;
+        }
+        if (requestUri != null) {
+            for (RateLimit limit : limits) {
+                if (limit.matches(requestUri)) {
+                    return limit.tryAcquire(System.nanoTime());
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceSampler{rate=" + rate + ", limits=" + limits + '}';
+    }
+
+    /**
+     * Fixed one-second window counter for one URI pattern.
+     */
+    static final class RateLimit {
+        private static final long WINDOW_NANOS = 1_000_000_000L;
+
+        private final String pattern;
+        private final boolean prefix;
+        private final int perSecond;
+        private long windowStart = System.nanoTime();
+        private int count;
+
+        RateLimit(String pattern, int perSecond) {
+            this.prefix = pattern.endsWith("*");
+            this.pattern = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+            this.perSecond = perSecond;
+        }
+
+        boolean matches(String requestUri) {
+            return prefix ? requestUri.startsWith(pattern) : requestUri.equals(pattern);
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            if (now - windowStart >= WINDOW_NANOS) {
+                windowStart = now;
+                count = 0;
+            }
+            if (count < perSecond) {
+                count++;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return pattern + (prefix ? "*" : "") + "=" + perSecond + "/s";
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.irbre.agent;
+
+import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A task submitted from a traced request, wrapped so it runs in that
+ * request's trace on whichever thread picks it up. One subclass per
+ * functional interface accepted by executors and CompletableFuture, so the
+ * wrapper is only ever the type of the task it replaces.
+ */
+abstract class TracedTask {
+    private static final EventCollector COLLECTOR = EventCollector.getInstance();
+
+    private final AsyncContext context;
+
+    TracedTask(AsyncContext context) {
+        this.context = context;
+    }
+
+    final AsyncContext.Scope attach() {
+        return COLLECTOR.attachContext(context);
+    }
+
+    static void detach(AsyncContext.Scope scope) {
+        COLLECTOR.detachContext(scope);
+    }
+
+    static final class OfRunnable extends TracedTask implements Runnable {
+        private final Runnable task;
+
+        OfRunnable(Runnable task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            AsyncContext.Scope scope = attach();
+            try {
+                task.run();
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+
+    static final class OfCallable<V> extends TracedTask implements Callable<V> {
+        private final Callable<V> task;
+
+        OfCallable(Callable<V> task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public V call() throws Exception {
+            AsyncContext.Scope scope = attach();
+            try {
+                return task.call();
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+
+    static final class OfSupplier<T> extends TracedTask implements Supplier<T> {
+        private final Supplier<T> task;
+
+        OfSupplier(Supplier<T> task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public T get() {
+            AsyncContext.Scope scope = attach();
+            try {
+                return task.get();
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+
+    static final class OfFunction<T, R> extends TracedTask implements Function<T, R> {
+        private final Function<T, R> task;
+
+        OfFunction(Function<T, R> task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public R apply(T t) {
+            AsyncContext.Scope scope = attach();
+            try {
+                return task.apply(t);
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+
+    static final class OfConsumer<T> extends TracedTask implements Consumer<T> {
+        private final Consumer<T> task;
+
+        OfConsumer(Consumer<T> task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public void accept(T t) {
+            AsyncContext.Scope scope = attach();
+            try {
+                task.accept(t);
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+
+    static final class OfBiFunction<T, U, R> extends TracedTask implements BiFunction<T, U, R> {
+        private final BiFunction<T, U, R> task;
+
+        OfBiFunction(BiFunction<T, U, R> task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public R apply(T t, U u) {
+            AsyncContext.Scope scope = attach();
+            try {
+                return task.apply(t, u);
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+
+    static final class OfBiConsumer<T, U> extends TracedTask implements BiConsumer<T, U> {
+        private final BiConsumer<T, U> task;
+
+        OfBiConsumer(BiConsumer<T, U> task, AsyncContext context) {
+            super(context);
+            this.task = task;
+        }
+
+        @Override
+        public void accept(T t, U u) {
+            AsyncContext.Scope scope = attach();
+            try {
+                task.accept(t, u);
+            } finally {
+                detach(scope);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.irbre.agent.model;
+
+import java.time.Instant;
+
+/**
+ * A wall-clock reading paired with a {@link System#nanoTime()} reading taken
+ * at the same moment.
+ *
+ * Events record only nanoTime, which is cheap, monotonic and allocation-free.
+ * Each batch carries an anchor taken when it is encoded, and the collector
+ * turns an event's nanoTime into epoch time as
+ * {@code epochNanos + (startNanos - nanoTime)}. Re-anchoring every batch keeps
+ * the result in step with the wall clock on long-running JVMs.
+ */
+public class ClockAnchor {
+
+    private final long epochNanos;
+    private final long nanoTime;
+
+    public ClockAnchor(long epochNanos, long nanoTime) {
+        this.epochNanos = epochNanos;
+        this.nanoTime = nanoTime;
+    }
+
+    public static ClockAnchor now() {
+        Instant now = Instant.now();
+        return new ClockAnchor(now.getEpochSecond() * 1_000_000_000L + now.getNano(), System.nanoTime());
+    }
+
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * The nanoTime reading corresponding to an epoch time, for events that only carry a timestamp.
+     */
+    public long toNanoTime(Instant timestamp) {
+        return nanoTime + (timestamp.getEpochSecond() * 1_000_000_000L + timestamp.getNano() - epochNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "ClockAnchor{" +
+                "epochNanos=" + epochNanos +
+                ", nanoTime=" + nanoTime +
+                '}';
+    }
+}
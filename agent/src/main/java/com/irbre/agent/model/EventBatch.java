@@ -2,31 +2,83 @@ package com.irbre.agent.model;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Represents a batch of TraceEvent objects ready to be sent to the collector.
+ * Represents a batch of TraceEvent objects ready to be sent to the collector,
+ * grouped into one section per trace.
+ * Carries the method dictionary entries the collector has not acknowledged yet,
+ * scoped by the sending agent's instance ID, and now and then a summary of
+ * the agent's self-telemetry. Outgoing batches carry the {@link ClockAnchor}
+ * their events' nanoTime readings are resolved against.
  */
 public class EventBatch {
 
-    private final List<TraceEvent> events;
+    private final List<TraceSection> traces;
+    private final String agentId;
+    private final List<MethodInfo> methods;
+    private final Map<String, Long> agentStats;
+    private final ClockAnchor clockAnchor;
 
-    public EventBatch(List<TraceEvent> events) {
+    public EventBatch(List<TraceSection> traces) {
+        this(traces, null, Collections.emptyList());
+    }
+
+    public EventBatch(List<TraceSection> traces, String agentId, List<MethodInfo> methods) {
+        this(traces, agentId, methods, null);
+    }
+
+    public EventBatch(List<TraceSection> traces, String agentId, List<MethodInfo> methods,
+                      Map<String, Long> agentStats) {
+        this(traces, agentId, methods, agentStats, null);
+    }
+
+    public EventBatch(List<TraceSection> traces, String agentId, List<MethodInfo> methods,
+                      Map<String, Long> agentStats, ClockAnchor clockAnchor) {
         // Store an unmodifiable copy for thread safety
-        this.events = Collections.unmodifiableList(events);
+        this.traces = Collections.unmodifiableList(traces);
+        this.agentId = agentId;
+        this.methods = Collections.unmodifiableList(methods);
+        this.agentStats = agentStats != null ? Collections.unmodifiableMap(agentStats) : null;
+        this.clockAnchor = clockAnchor;
+    }
+
+    public List<TraceSection> getTraces() {
+        return traces;
+    }
+
+    public String getAgentId() {
+        return agentId;
+    }
+
+    public List<MethodInfo> getMethods() {
+        return methods;
+    }
+
+    /**
+     * Self-telemetry summary, or null for most batches.
+     */
+    public Map<String, Long> getAgentStats() {
+        return agentStats;
     }
 
-    public List<TraceEvent> getEvents() {
-        return events;
+    public ClockAnchor getClockAnchor() {
+        return clockAnchor;
     }
 
     public int size() {
-        return events.size();
+        int size = 0;
+        for (TraceSection trace : traces) {
+            size += trace.getEvents().size();
+        }
+        return size;
     }
 
     @Override
     public String toString() {
         return "EventBatch{" +
-                "size=" + events.size() +
+                "traces=" + traces.size() +
+                ", size=" + size() +
                 '}';
     }
 }
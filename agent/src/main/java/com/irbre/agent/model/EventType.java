@@ -8,6 +8,7 @@ public enum EventType {
     METHOD_EXIT,        // A method returns normally
     EXCEPTION,    // A method throws an exception
     REQUEST_START,       // Beginning of an incoming HTTP request
-    REQUEST_END          // End of an incoming HTTP request
+    REQUEST_END,         // End of an incoming HTTP request
+    SPAN                 // A completed method call: start, duration and outcome
 }
 
@@ -0,0 +1,46 @@
+package com.irbre.agent.model;
+
+/**
+ * Entry of the agent's method dictionary: a dense method ID assigned at
+ * transform time and the names it stands for.
+ */
+public class MethodInfo {
+
+    private final int methodId;
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+
+    public MethodInfo(int methodId, String className, String methodName, String descriptor) {
+        this.methodId = methodId;
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+    }
+
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    @Override
+    public String toString() {
+        return "MethodInfo{" +
+                "methodId=" + methodId +
+                ", className='" + className + '\'' +
+                ", methodName='" + methodName + '\'' +
+                ", descriptor='" + descriptor + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,9 @@
+package com.irbre.agent.model;
+
+/**
+ * How an instrumented method call completed.
+ */
+public enum SpanOutcome {
+    OK,           // Returned normally
+    EXCEPTION     // Completed by throwing
+}
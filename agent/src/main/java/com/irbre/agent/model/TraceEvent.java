@@ -1,5 +1,9 @@
 package com.irbre.agent.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.irbre.agent.util.SpanIdSerializer;
+
 import java.time.Instant;
 
 /**
@@ -9,6 +13,13 @@ public class TraceEvent {
     private String traceId;
     private EventType eventType;
     private Instant timestamp;
+    // System.nanoTime() at the start; made absolute with the batch's ClockAnchor (0 = use timestamp)
+    private long startNanos;
+    // For SPAN events: exact duration measured in the method's frame, and how it completed
+    private Long durationNanos;
+    private SpanOutcome outcome;
+    // Dense ID from the agent's method dictionary; names are resolved by the collector
+    private int methodId = -1;
     private String className;
     private String methodName;
     private String threadName;
@@ -17,11 +28,11 @@ public class TraceEvent {
     private String exceptionType;
     private String exceptionMessage;
     private RequestMetadata requestMetadata;
-    //Unique per event
-    private String spanId;
-    //For hierarchical traces
-    private String parentSpanId;
-    //Monotonic ordering across threads/machines.
+    //Unique per event (0 = none), serialized as hex
+    private long spanId;
+    //For hierarchical traces (0 = root)
+    private long parentSpanId;
+    //Monotonic ordering across threads/machines: a hybrid logical clock timestamp (see HybridLogicalClock)
     private Long lamportClock;
 
 
@@ -32,6 +43,10 @@ public class TraceEvent {
         this.traceId = builder.traceId;
         this.eventType = builder.eventType;
         this.timestamp = builder.timestamp;
+        this.startNanos = builder.startNanos;
+        this.durationNanos = builder.durationNanos;
+        this.outcome = builder.outcome;
+        this.methodId = builder.methodId;
         this.className = builder.className;
         this.methodName = builder.methodName;
         this.threadName = builder.threadName;
@@ -75,6 +90,39 @@ public class TraceEvent {
         this.timestamp = timestamp;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public void setStartNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public Long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public void setDurationNanos(Long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    public SpanOutcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(SpanOutcome outcome) {
+        this.outcome = outcome;
+    }
+
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public void setMethodId(int methodId) {
+        this.methodId = methodId;
+    }
+
     public String getClassName() {
         return className;
     }
@@ -138,19 +186,21 @@ public class TraceEvent {
     public void setRequestMetadata(RequestMetadata requestMetadata) {
         this.requestMetadata = requestMetadata;
     }
-    public String getSpanId() {
+    @JsonSerialize(using = SpanIdSerializer.class)
+    public long getSpanId() {
         return spanId;
     }
 
-    public void setSpanId(String spanId) {
+    public void setSpanId(long spanId) {
         this.spanId = spanId;
     }
 
-    public String getParentSpanId() {
+    @JsonSerialize(using = SpanIdSerializer.class)
+    public long getParentSpanId() {
         return parentSpanId;
     }
 
-    public void setParentSpanId(String parentSpanId) {
+    public void setParentSpanId(long parentSpanId) {
         this.parentSpanId = parentSpanId;
     }
 
@@ -167,6 +217,10 @@ public class TraceEvent {
         private String traceId;
         private EventType eventType;
         private Instant timestamp;
+        private long startNanos;
+        private Long durationNanos;
+        private SpanOutcome outcome;
+        private int methodId = -1;
         private String className;
         private String methodName;
         private String threadName;
@@ -191,6 +245,26 @@ public class TraceEvent {
             return this;
         }
 
+        public Builder startNanos(long startNanos) {
+            this.startNanos = startNanos;
+            return this;
+        }
+
+        public Builder durationNanos(Long durationNanos) {
+            this.durationNanos = durationNanos;
+            return this;
+        }
+
+        public Builder outcome(SpanOutcome outcome) {
+            this.outcome = outcome;
+            return this;
+        }
+
+        public Builder methodId(int methodId) {
+            this.methodId = methodId;
+            return this;
+        }
+
         public Builder className(String className) {
             this.className = className;
             return this;
@@ -230,16 +304,16 @@ public class TraceEvent {
             this.requestMetadata = requestMetadata;
             return this;
         }
-        private String spanId;
-        private String parentSpanId;
+        private long spanId;
+        private long parentSpanId;
         private Long lamportClock;
 
-        public Builder spanId(String spanId) {
+        public Builder spanId(long spanId) {
             this.spanId = spanId;
             return this;
         }
 
-        public Builder parentSpanId(String parentSpanId) {
+        public Builder parentSpanId(long parentSpanId) {
             this.parentSpanId = parentSpanId;
             return this;
         }
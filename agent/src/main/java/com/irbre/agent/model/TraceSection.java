@@ -0,0 +1,35 @@
+package com.irbre.agent.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The events of one trace within an {@link EventBatch}, so the collector
+ * resolves each trace once per batch rather than once per event.
+ */
+public class TraceSection {
+
+    private final String traceId;
+    private final List<TraceEvent> events;
+
+    public TraceSection(String traceId, List<TraceEvent> events) {
+        this.traceId = traceId;
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public List<TraceEvent> getEvents() {
+        return events;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceSection{" +
+                "traceId='" + traceId + '\'' +
+                ", size=" + events.size() +
+                '}';
+    }
+}
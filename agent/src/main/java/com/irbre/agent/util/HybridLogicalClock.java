@@ -0,0 +1,122 @@
+package com.irbre.agent.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock (HLC) ordering events across threads and services.
+ *
+ * A timestamp is one long: wall-clock milliseconds in the high 48 bits and a
+ * logical counter in the low {@value #LOGICAL_BITS}. Timestamps stay close to
+ * physical time, never go backwards, and are greater than every timestamp
+ * received from a caller ({@link #receive}), so a callee's events order after
+ * the caller's even when the two hosts' clocks disagree.
+ *
+ * The agent-wide high-water mark is a single AtomicLong, but events do not
+ * touch it: each thread reserves a range of {@value #RANGE_SIZE} timestamps at
+ * a time ({@link Ticker}) and only takes a new one when the range runs out or
+ * is a millisecond old. The wall clock is read only when reserving; a tick
+ * just compares the nanoTime the caller already took.
+ */
+public final class HybridLogicalClock {
+
+    public static final int LOGICAL_BITS = 16;
+    private static final int RANGE_SIZE = 256;
+    // Timestamps from callers further ahead of our wall clock than this are ignored
+    private static final long MAX_DRIFT_MILLIS = 60_000;
+    private static final long RANGE_MAX_AGE_NANOS = 1_000_000;
+
+    private static final AtomicLong latest = new AtomicLong();
+
+    private HybridLogicalClock() {
+    }
+
+    /**
+     * Wall-clock milliseconds of a timestamp.
+     */
+    public static long physical(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * Logical counter of a timestamp.
+     */
+    public static int logical(long timestamp) {
+        return (int) (timestamp & ((1L << LOGICAL_BITS) - 1));
+    }
+
+    /**
+     * Merge a timestamp received from another service, so later timestamps
+     * exceed it. Returns false if it was ignored as too far in the future.
+     */
+    public static boolean receive(long remote) {
+        if (remote <= 0 || physical(remote) - System.currentTimeMillis() > MAX_DRIFT_MILLIS) {
+            return false;
+        }
+        latest.accumulateAndGet(remote, Math::max);
+        return true;
+    }
+
+    /**
+     * Header representation of a timestamp.
+     */
+    public static String format(long timestamp) {
+        return Long.toString(timestamp);
+    }
+
+    /**
+     * Parse a timestamp received in a header. Returns 0 if the value is missing or malformed.
+     */
+    public static long parse(String value) {
+        if (value == null || value.isEmpty() || value.length() > 20) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Per-thread timestamp source. Not thread-safe: each thread owns one.
+     */
+    public static final class Ticker {
+        private long next;
+        private long limit;
+        private long reservedAtNanos;
+
+        public long tick() {
+            return tick(System.nanoTime());
+        }
+
+        /**
+         * @param nanoTime a current {@link System#nanoTime()} reading
+         */
+        public long tick(long nanoTime) {
+            if (next == limit || nanoTime - reservedAtNanos >= RANGE_MAX_AGE_NANOS) {
+                reserve(nanoTime);
+            }
+            return next++;
+        }
+
+        /**
+         * Take a fresh range on the next tick, e.g. after {@link #receive} on this thread.
+         */
+        public void reset() {
+            limit = next;
+        }
+
+        private void reserve(long nanoTime) {
+            long now = System.currentTimeMillis() << LOGICAL_BITS;
+            long current;
+            long start;
+            do {
+                current = latest.get();
+                start = Math.max(current + 1, now);
+            } while (!latest.compareAndSet(current, start + RANGE_SIZE - 1));
+            next = start;
+            limit = start + RANGE_SIZE;
+            reservedAtNanos = nanoTime;
+        }
+    }
+}
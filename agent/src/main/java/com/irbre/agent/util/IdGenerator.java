@@ -0,0 +1,99 @@
+package com.irbre.agent.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocation-free trace and span identifiers.
+ *
+ * Span IDs are 64-bit values made of a random per-agent prefix (high 24 bits)
+ * and a counter (low 40 bits). Each thread reserves a block of counter values
+ * at a time, so minting a span ID is a plain increment on the hot path.
+ * IDs are only turned into hex strings when a batch is serialized.
+ */
+public final class IdGenerator {
+
+    private static final int COUNTER_BITS = 40;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final int BLOCK_SIZE = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final SecureRandom SEED = new SecureRandom();
+    private static final long INSTANCE_PREFIX = (SEED.nextLong() & 0xFFFFFFL) << COUNTER_BITS;
+    private static final String AGENT_ID = toHex(SEED.nextLong() | 1);
+    // Block 0 is skipped so that a span ID is never 0 ("no span")
+    private static final AtomicLong nextBlock = new AtomicLong(1);
+
+    private IdGenerator() {
+    }
+
+    /**
+     * Random ID of this agent instance, used to scope its method dictionary at the collector.
+     */
+    public static String agentId() {
+        return AGENT_ID;
+    }
+
+    /**
+     * Mint a new 128-bit trace ID as 32 lowercase hex characters.
+     */
+    public static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] buf = new char[32];
+        writeHex(random.nextLong(), buf, 0);
+        writeHex(random.nextLong(), buf, 16);
+        return new String(buf);
+    }
+
+    /**
+     * Format a span ID as 16 lowercase hex characters, or null for 0.
+     */
+    public static String toHex(long spanId) {
+        if (spanId == 0) {
+            return null;
+        }
+        char[] buf = new char[16];
+        writeHex(spanId, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Parse a span ID received from another service. Returns 0 if the value
+     * is missing or not a 64-bit hex number.
+     */
+    public static long parseSpanId(String value) {
+        if (value == null || value.isEmpty() || value.length() > 16) {
+            return 0;
+        }
+        try {
+            return Long.parseUnsignedLong(value, 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeHex(long value, char[] buf, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            buf[offset + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Per-thread span ID source. Not thread-safe: each thread owns one.
+     */
+    public static final class SpanAllocator {
+        private long next;
+        private long limit;
+
+        public long nextSpanId() {
+            if (next == limit) {
+                long block = nextBlock.getAndIncrement();
+                next = (block * BLOCK_SIZE) & COUNTER_MASK;
+                limit = next + BLOCK_SIZE;
+            }
+            return INSTANCE_PREFIX | next++;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.irbre.agent.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes primitive span IDs as hex strings (null for 0), keeping the wire
+ * format the collector expects.
+ */
+public class SpanIdSerializer extends StdSerializer<Long> {
+
+    public SpanIdSerializer() {
+        super(Long.class);
+    }
+
+    @Override
+    public void serialize(Long value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        String hex = value == null ? null : IdGenerator.toHex(value);
+        if (hex == null) {
+            gen.writeNull();
+        } else {
+            gen.writeString(hex);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.irbre.agent.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns low-cardinality strings (class names, method names, exception types)
+ * to dense int IDs so binary records can reference them by number.
+ */
+public final class StringTable {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[256];
+    private int size;
+
+    /**
+     * Return the ID for {@code value}, registering it on first use.
+     * A lookup of an existing string does not allocate.
+     */
+    public int intern(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        return register(value);
+    }
+
+    private synchronized int register(String value) {
+        Integer existing = ids.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        String[] current = values;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        int id = size++;
+        current[id] = value;
+        values = current;
+        // Publish the value before the ID becomes visible to other threads
+        ids.put(value, id);
+        return id;
+    }
+
+    /**
+     * Resolve an ID back to its string, or null if unknown.
+     */
+    public String get(int id) {
+        String[] current = values;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,93 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compresses bodies with the reused deflater and inflates them with the
+ * JDK's streams, as the collector does.
+ */
+class BatchCompressorTest {
+
+    @Test
+    void gzipBodiesSpanningChunksRoundTrip() throws IOException {
+        BatchCompressor compressor = new BatchCompressor(BatchCompressor.GZIP, 1024);
+        byte[] original = json(3 * BodyBuffer.CHUNK_SIZE + 123);
+        BodyBuffer body = BodyBuffer.wrap(original);
+        // Several chunks in, as the encoder writes them
+        BodyBuffer chunked = new BodyBuffer();
+        chunked.write(original, 0, original.length);
+        assertTrue(chunked.chunkCount() > 1);
+
+        for (BodyBuffer input : new BodyBuffer[]{body, chunked, body}) {
+            BodyBuffer compressed = compressor.compress(input);
+            assertNotNull(compressed);
+            assertTrue(compressed.size() < original.length / 2);
+            assertArrayEquals(original, inflate(new GZIPInputStream(stream(compressed))));
+            compressed.release();
+        }
+    }
+
+    @Test
+    void deflateBodiesRoundTrip() throws IOException {
+        BatchCompressor compressor = new BatchCompressor(BatchCompressor.DEFLATE, 1024);
+        byte[] original = json(50_000);
+
+        BodyBuffer compressed = compressor.compress(BodyBuffer.wrap(original));
+
+        assertNotNull(compressed);
+        assertArrayEquals(original, inflate(new InflaterInputStream(stream(compressed))));
+    }
+
+    @Test
+    void smallAndIncompressibleBodiesAreSentAsIs() {
+        BatchCompressor compressor = new BatchCompressor(BatchCompressor.GZIP, 1024);
+        assertNull(compressor.compress(BodyBuffer.wrap(json(1000))));
+
+        byte[] random = new byte[20_000];
+        new Random(42).nextBytes(random);
+        assertNull(compressor.compress(BodyBuffer.wrap(random)));
+
+        // The compressor is still usable afterwards
+        assertNotNull(compressor.compress(BodyBuffer.wrap(json(20_000))));
+    }
+
+    @Test
+    void unknownEncodingsAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new BatchCompressor("br", 1024));
+    }
+
+    private static byte[] json(int length) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; json.length() < length; i++) {
+            json.append("{\"traceId\":\"trace-").append(i % 37).append("\",\"sequenceNumber\":").append(i).append("},");
+        }
+        return json.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStream stream(BodyBuffer body) {
+        return new ByteArrayInputStream(body.toByteArray());
+    }
+
+    private static byte[] inflate(InputStream in) throws IOException {
+        try (in) {
+            byte[] bytes = in.readAllBytes();
+            assertEquals(-1, in.read());
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that spooled batches come back in order, once, across restarts,
+ * and that the disk budget and failure count bound what the spool keeps.
+ */
+class BatchSpoolTest {
+
+    private static final int SEGMENT_BYTES = 256;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void batchesComeBackInOrderAndOnlyOnce() throws IOException {
+        BatchSpool spool = new BatchSpool(directory, 1 << 20, SEGMENT_BYTES);
+        assertTrue(spool.isEmpty());
+        // Enough to span several segments
+        for (int i = 0; i < 20; i++) {
+            spool.append(BatchSpool.FORMAT_BINARY, i, body("batch-" + i));
+        }
+        assertTrue(segmentFiles().size() > 1);
+
+        for (int i = 0; i < 20; i++) {
+            BatchSpool.Record record = spool.peek();
+            assertEquals("batch-" + i, new String(record.body, StandardCharsets.UTF_8));
+            assertEquals(i, record.dictionaryEnd);
+            assertEquals(BatchSpool.FORMAT_BINARY, record.format);
+            spool.advance(record);
+            // A second advance of the same record is ignored
+            spool.advance(record);
+        }
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+        // Replayed segments are deleted, except the one still being written
+        assertEquals(1, segmentFiles().size());
+    }
+
+    @Test
+    void replayResumesAfterARestart() throws IOException {
+        BatchSpool first = new BatchSpool(directory, 1 << 20, SEGMENT_BYTES);
+        for (int i = 0; i < 5; i++) {
+            first.append(BatchSpool.FORMAT_JSON, -1, body("batch-" + i));
+        }
+        first.advance(first.peek());
+        first.advance(first.peek());
+        first.force();
+
+        BatchSpool second = new BatchSpool(directory, 1 << 20, SEGMENT_BYTES);
+        for (int i = 2; i < 5; i++) {
+            BatchSpool.Record record = second.peek();
+            assertEquals("batch-" + i, new String(record.body, StandardCharsets.UTF_8));
+            second.advance(record);
+        }
+        assertTrue(second.isEmpty());
+    }
+
+    @Test
+    void aRecordCutOffByACrashIsNeverReplayed() throws IOException {
+        BatchSpool first = new BatchSpool(directory, 1 << 20, 4096);
+        first.append(BatchSpool.FORMAT_JSON, -1, body("complete"));
+        first.append(BatchSpool.FORMAT_JSON, -1, body("torn"));
+        first.force();
+
+        // The second record's length is written last; without it the record does not exist
+        int secondRecord = 8 + 9 + "complete".length();
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+            file.seek(secondRecord);
+            file.writeInt(0);
+        }
+
+        BatchSpool second = new BatchSpool(directory, 1 << 20, 4096);
+        BatchSpool.Record record = second.peek();
+        assertEquals("complete", new String(record.body, StandardCharsets.UTF_8));
+        second.advance(record);
+        assertNull(second.peek());
+        // New batches go where the torn one was
+        second.append(BatchSpool.FORMAT_JSON, -1, body("after"));
+        assertEquals("after", new String(second.peek().body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void oldestSegmentsAreEvictedOverTheDiskBudget() throws IOException {
+        BatchSpool spool = new BatchSpool(directory, 3 * SEGMENT_BYTES, SEGMENT_BYTES);
+        for (int i = 0; i < 100; i++) {
+            spool.append(BatchSpool.FORMAT_BINARY, -1, body("batch-" + i));
+        }
+
+        assertTrue(spool.getSizeBytes() <= 3 * SEGMENT_BYTES);
+        assertTrue(spool.getEvictedRecords() > 0);
+        BatchSpool.Record oldest = spool.peek();
+        int first = Integer.parseInt(new String(oldest.body, StandardCharsets.UTF_8).substring("batch-".length()));
+        assertEquals(spool.getEvictedRecords(), first);
+
+        // Whatever survived is still replayed in order up to the newest
+        int expected = first;
+        for (BatchSpool.Record record = spool.peek(); record != null; record = spool.peek()) {
+            assertEquals("batch-" + expected++, new String(record.body, StandardCharsets.UTF_8));
+            spool.advance(record);
+        }
+        assertEquals(100, expected);
+    }
+
+    @Test
+    void failuresAreCountedPerBatchAndSurviveARestart() throws IOException {
+        BatchSpool first = new BatchSpool(directory, 1 << 20, SEGMENT_BYTES);
+        first.append(BatchSpool.FORMAT_BINARY, -1, body("poison"));
+        first.append(BatchSpool.FORMAT_BINARY, -1, body("fine"));
+        BatchSpool.Record poison = first.peek();
+        assertEquals(1, first.recordFailure(poison));
+        assertEquals(2, first.recordFailure(poison));
+        first.force();
+
+        BatchSpool second = new BatchSpool(directory, 1 << 20, SEGMENT_BYTES);
+        BatchSpool.Record reopened = second.peek();
+        assertArrayEquals(poison.body, reopened.body);
+        assertEquals(3, second.recordFailure(reopened));
+
+        // The next batch starts from zero
+        second.advance(reopened);
+        assertEquals(1, second.recordFailure(second.peek()));
+        // A record that is no longer the head is not counted
+        assertEquals(0, second.recordFailure(reopened));
+        assertFalse(second.isEmpty());
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static BodyBuffer body(String text) {
+        return BodyBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,72 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.RequestMetadata;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that TRACE records round-trip, and that one carrying more request
+ * metadata than the ring holds is cut down instead of never fitting.
+ */
+class BinaryEventRingTest {
+
+    private static final int CAPACITY = 4096;
+
+    @Test
+    void traceRecordsRoundTrip() throws Exception {
+        BinaryEventRing ring = new BinaryEventRing(CAPACITY, Thread.currentThread());
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Accept", "application/json");
+        headers.put("X-Request-Id", "r-1");
+
+        assertTrue(ring.writeTrace("trace-a", new RequestMetadata("GET", "/orders", headers), 42, "http-nio-1"));
+        assertTrue(ring.writeSpan(1, 7, 1000, 2500, 0x10, 0, 1, -1, null));
+
+        List<String> traces = new ArrayList<>();
+        assertEquals(1, ring.drain((r, offset) -> traces.add(r.traceId()), 10));
+        assertEquals(List.of("trace-a"), traces);
+        assertEquals("http-nio-1", ring.threadName());
+        assertEquals(42, ring.threadId());
+        assertEquals("GET", ring.requestMetadata().getHttpMethod());
+        assertEquals("/orders", ring.requestMetadata().getRequestUri());
+        assertEquals(headers, ring.requestMetadata().getHeaders());
+    }
+
+    @Test
+    void oversizedTraceRecordsAreCutToHalfTheRing() throws Exception {
+        BinaryEventRing ring = new BinaryEventRing(CAPACITY, Thread.currentThread());
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            headers.put("X-Header-" + i, "value-" + "v".repeat(30));
+        }
+        String uri = "/search?q=" + "x".repeat(2000);
+        String traceId = "0123456789abcdef0123456789abcdef";
+
+        assertTrue(ring.writeTrace(traceId, new RequestMetadata("GET", uri, headers), 42, "http-nio-1"));
+        assertTrue(ring.pendingBytes() <= CAPACITY / 2, "TRACE record of " + ring.pendingBytes() + " bytes");
+        assertTrue(ring.writeSpan(1, 7, 1000, 2500, 0x10, 0, 1, -1, null));
+
+        List<String> traces = new ArrayList<>();
+        assertEquals(1, ring.drain((r, offset) -> traces.add(r.traceId()), 10));
+        assertEquals(List.of(traceId), traces);
+        assertEquals("http-nio-1", ring.threadName());
+        RequestMetadata metadata = ring.requestMetadata();
+        assertTrue(uri.startsWith(metadata.getRequestUri()));
+        // The headers kept are the first ones, whole
+        Map<String, String> kept = metadata.getHeaders();
+        assertTrue(kept.size() < headers.size());
+        int i = 0;
+        for (Map.Entry<String, String> header : kept.entrySet()) {
+            assertEquals("X-Header-" + i, header.getKey());
+            assertEquals(headers.get(header.getKey()), header.getValue());
+            i++;
+        }
+    }
+}
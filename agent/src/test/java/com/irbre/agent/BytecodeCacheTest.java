@@ -0,0 +1,183 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that instrumented classes survive a restart with the method IDs
+ * they embed, and prints the cost of a cache hit against running ASM.
+ */
+class BytecodeCacheTest {
+
+    private static final long MAX_BYTES = 1024 * 1024;
+    private static final String[] FIXTURES = {
+            "IrbreTransformerTest$Fixture.class",
+            "IrbreTransformerTest$AsyncFixture.class",
+            "IrbreTransformerTest$SumTask.class"
+    };
+    private static final int ASM_ROUNDS = 2_000;
+    // Hits are cheap enough that the digest needs many more calls to be compiled
+    private static final int HIT_ROUNDS = 20_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void restartedAgentGetsTheSameBytesAndMethodIds() throws IOException {
+        AgentConfiguration config = AgentConfiguration.load();
+        long fingerprint = BytecodeCache.fingerprint(config);
+
+        // First run: every class is instrumented and stored
+        MethodRegistry firstRegistry = new MethodRegistry();
+        BytecodeCache first = new BytecodeCache(directory, MAX_BYTES, fingerprint, firstRegistry);
+        IrbreTransformer firstTransformer = new IrbreTransformer(config, firstRegistry, first);
+        List<byte[]> instrumented = new ArrayList<>();
+        for (String fixture : FIXTURES) {
+            instrumented.add(transform(firstTransformer, fixture));
+        }
+        assertEquals(0, first.getHits());
+        assertEquals(FIXTURES.length, first.getMisses());
+        assertThrows(IOException.class, () -> new BytecodeCache(directory, MAX_BYTES, fingerprint, new MethodRegistry()));
+        first.close();
+
+        // Second run: the registry comes back before any class is transformed
+        MethodRegistry secondRegistry = new MethodRegistry();
+        BytecodeCache second = new BytecodeCache(directory, MAX_BYTES, fingerprint, secondRegistry);
+        assertEquals(firstRegistry.size(), secondRegistry.size());
+        for (int id = 0; id < firstRegistry.size(); id++) {
+            assertEquals(firstRegistry.get(id).getMethodName(), secondRegistry.get(id).getMethodName());
+            assertEquals(firstRegistry.get(id).getDescriptor(), secondRegistry.get(id).getDescriptor());
+        }
+        IrbreTransformer secondTransformer = new IrbreTransformer(config, secondRegistry, second);
+        for (int i = 0; i < FIXTURES.length; i++) {
+            assertArrayEquals(instrumented.get(i), transform(secondTransformer, FIXTURES[i]), FIXTURES[i]);
+        }
+        assertEquals(FIXTURES.length, second.getHits());
+        assertEquals(firstRegistry.size(), secondRegistry.size());
+
+        printHitCost(config, second, secondTransformer);
+        second.close();
+
+        // Another configuration: nothing is reused
+        MethodRegistry thirdRegistry = new MethodRegistry();
+        BytecodeCache third = new BytecodeCache(directory, MAX_BYTES, fingerprint + 1, thirdRegistry);
+        assertEquals(0, thirdRegistry.size());
+        assertNull(third.get(BytecodeCache.key(classBytes(FIXTURES[0]))));
+        third.close();
+    }
+
+    @Test
+    void onlyClassesWithExcludedMethodsBypassTheCache() throws IOException {
+        AgentConfiguration config = AgentConfiguration.load();
+        MethodRegistry registry = new MethodRegistry();
+        BytecodeCache cache = new BytecodeCache(directory, MAX_BYTES, BytecodeCache.fingerprint(config), registry);
+        IrbreTransformer transformer = new IrbreTransformer(config, registry, cache);
+        transform(transformer, "com/example/Cached", classBytes(FIXTURES[0]));
+        transform(transformer, "com/example/Other", classBytes(FIXTURES[1]));
+        assertEquals(2, cache.getMisses());
+
+        transformer.excludeMethod(0);
+        assertEquals("com.example.Cached", registry.get(0).getClassName());
+        transform(transformer, "com/example/Cached", classBytes(FIXTURES[0]));
+        transform(transformer, "com/example/Other", classBytes(FIXTURES[1]));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        cache.close();
+    }
+
+    @Test
+    void fullCacheIsClearedOnTheNextStart() throws IOException {
+        byte[] kept = classBytes(FIXTURES[0]);
+        byte[] overflowing = classBytes(FIXTURES[1]);
+        long fingerprint = 42L;
+        // Header, one entry and its end marker
+        long capacity = 20 + 24 + kept.length + 4;
+
+        BytecodeCache cache = new BytecodeCache(directory, capacity, fingerprint, new MethodRegistry());
+        cache.put(BytecodeCache.key(kept), kept, 0);
+        cache.put(BytecodeCache.key(overflowing), overflowing, 0);
+        assertNotNull(cache.get(BytecodeCache.key(kept)));
+        assertNull(cache.get(BytecodeCache.key(overflowing)));
+        cache.close();
+
+        BytecodeCache reopened = new BytecodeCache(directory, capacity, fingerprint, new MethodRegistry());
+        assertNull(reopened.get(BytecodeCache.key(kept)));
+        reopened.put(BytecodeCache.key(kept), kept, 0);
+        assertNotNull(reopened.get(BytecodeCache.key(kept)));
+        reopened.close();
+    }
+
+    private void printHitCost(AgentConfiguration config, BytecodeCache cache, IrbreTransformer cached)
+            throws IOException {
+        IrbreTransformer uncached = new IrbreTransformer(config, new MethodRegistry());
+        List<byte[]> originals = new ArrayList<>();
+        for (String fixture : FIXTURES) {
+            originals.add(classBytes(fixture));
+        }
+        // Timed apart: the garbage ASM leaves behind would otherwise be collected during the hits
+        int sink = 0;
+        long asmNanos = 0;
+        for (int round = 0; round < ASM_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (byte[] original : originals) {
+                sink += transform(uncached, original).length;
+            }
+            // Second half only, after warmup
+            if (round >= ASM_ROUNDS / 2) {
+                asmNanos += System.nanoTime() - start;
+            }
+        }
+        long cacheNanos = 0;
+        for (int round = 0; round < HIT_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (byte[] original : originals) {
+                sink += transform(cached, original).length;
+            }
+            if (round >= HIT_ROUNDS / 2) {
+                cacheNanos += System.nanoTime() - start;
+            }
+        }
+        long asmClasses = (long) (ASM_ROUNDS - ASM_ROUNDS / 2) * originals.size();
+        long hitClasses = (long) (HIT_ROUNDS - HIT_ROUNDS / 2) * originals.size();
+        System.out.printf("[IRBRE] transform, %d classes: ASM %.1f us/class, cache hit %.1f us/class (%d hits)%n",
+                originals.size(), asmNanos / 1000.0 / asmClasses, cacheNanos / 1000.0 / hitClasses,
+                cache.getHits());
+        assertTrue(sink > 0);
+    }
+
+    private static byte[] transform(IrbreTransformer transformer, String fixture) throws IOException {
+        return transform(transformer, classBytes(fixture));
+    }
+
+    private static byte[] transform(IrbreTransformer transformer, byte[] original) {
+        return transform(transformer, "com/example/Cached", original);
+    }
+
+    private static byte[] transform(IrbreTransformer transformer, String className, byte[] original) {
+        byte[] result = transformer.transform(BytecodeCacheTest.class.getClassLoader(),
+                className, null, null, original);
+        assertNotNull(result);
+        return result;
+    }
+
+    private static byte[] classBytes(String resource) throws IOException {
+        try (InputStream in = BytecodeCacheTest.class.getResourceAsStream(resource)) {
+            assertNotNull(in);
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Walks the breaker through its states: closed, open after enough failures
+ * in a row, one half-open trial once the open period is over, and back.
+ */
+class CircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 50;
+
+    @Test
+    void opensAfterConsecutiveFailuresOnly() {
+        CircuitBreaker breaker = new CircuitBreaker(3, OPEN_MILLIS);
+        breaker.onFailure();
+        breaker.onFailure();
+        // A success resets the count
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowsRetry());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable());
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.allowsRetry());
+    }
+
+    @Test
+    void aSuccessfulTrialClosesTheBreaker() throws InterruptedException {
+        CircuitBreaker breaker = opened();
+        Thread.sleep(OPEN_MILLIS * 2);
+
+        assertTrue(breaker.isAvailable());
+        // Checking does not claim the trial
+        assertTrue(breaker.isAvailable());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only one trial at a time, and it is not retried
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.isAvailable());
+        assertFalse(breaker.allowsRetry());
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void aFailedTrialOpensTheBreakerAgain() throws InterruptedException {
+        CircuitBreaker breaker = opened();
+        Thread.sleep(OPEN_MILLIS * 2);
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        // For a whole open period again
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(OPEN_MILLIS * 2);
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private static CircuitBreaker opened() {
+        CircuitBreaker breaker = new CircuitBreaker(1, OPEN_MILLIS);
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,138 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the thread-local and pooled context stores when every request
+ * runs on its own thread, as with a virtual-thread-per-request server.
+ * Virtual threads are used when the running JDK has them; otherwise a
+ * platform pool stands in. Requests run in waves, each request holding its
+ * context until the whole wave has one, so a wave's contexts are all leased
+ * at once. Prints time per request and how many contexts each store created.
+ */
+class ContextStoreBenchmarkTest {
+
+    private static final int REQUESTS = 100_000;
+    private static final int SPANS_PER_REQUEST = 12;
+    private static final int PLATFORM_THREADS = 64;
+    private static final int VIRTUAL_IN_FLIGHT = 1_000;
+
+    @Test
+    void pooledStoreCreatesFewerContextsThanThreadLocalStore() throws Exception {
+        Result threadLocal = run(new ThreadLocalContextStore());
+        Result pooled = run(new PooledContextStore());
+
+        System.out.printf("[IRBRE] context stores, %d requests, %d in flight on %s: thread-local %d ns/request, "
+                        + "%d contexts; pooled %d ns/request, %d contexts%n",
+                REQUESTS, pooled.inFlight, threadLocal.virtualThreads ? "virtual threads" : "platform threads",
+                threadLocal.nanos / REQUESTS, threadLocal.contexts,
+                pooled.nanos / REQUESTS, pooled.contexts);
+
+        assertEquals(0, threadLocal.dirty, "thread-local store handed out a used context");
+        assertEquals(0, pooled.dirty, "pooled store handed out a used context");
+        assertEquals(0, threadLocal.shared, "thread-local store handed one context to two requests in flight");
+        assertEquals(0, pooled.shared, "pooled store handed one context to two requests in flight");
+        // Each wave reuses the contexts the one before it returned
+        assertEquals(pooled.inFlight, pooled.contexts);
+        assertTrue(pooled.contexts <= threadLocal.contexts,
+                "pooled store should not create more contexts: " + pooled.contexts + " vs " + threadLocal.contexts);
+    }
+
+    private static Result run(TraceContextStore store) throws Exception {
+        TraceContext[] seen = new TraceContext[REQUESTS];
+        AtomicInteger dirty = new AtomicInteger();
+        ExecutorService executor = virtualThreadExecutor();
+        boolean virtualThreads = executor != null;
+        // A platform pool can hold no more requests than it has threads
+        int inFlight = virtualThreads ? VIRTUAL_IN_FLIGHT : PLATFORM_THREADS;
+        if (!virtualThreads) {
+            executor = Executors.newFixedThreadPool(PLATFORM_THREADS);
+        }
+
+        int shared = 0;
+        long t0 = System.nanoTime();
+        for (int first = 0; first < REQUESTS; first += inFlight) {
+            int wave = Math.min(inFlight, REQUESTS - first);
+            CountDownLatch leased = new CountDownLatch(wave);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(wave);
+            for (int r = first; r < first + wave; r++) {
+                int request = r;
+                executor.execute(() -> {
+                    try {
+                        TraceContext ctx = store.get();
+                        if (ctx.traceId != null || ctx.depth != 0) {
+                            dirty.incrementAndGet();
+                        }
+                        ctx.traceId = "trace-" + request;
+                        for (int s = 0; s < SPANS_PER_REQUEST; s++) {
+                            ctx.pushSpan(ctx.spanIds.nextSpanId());
+                        }
+                        seen[request] = ctx;
+                        leased.countDown();
+                        release.await();
+                        store.release();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            // Every request of the wave now holds its context
+            leased.await();
+            Set<TraceContext> held = Collections.newSetFromMap(new IdentityHashMap<>());
+            Collections.addAll(held, Arrays.copyOfRange(seen, first, first + wave));
+            shared += wave - held.size();
+            release.countDown();
+            done.await();
+        }
+        long nanos = System.nanoTime() - t0;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        Set<TraceContext> contexts = Collections.newSetFromMap(new IdentityHashMap<>());
+        Collections.addAll(contexts, seen);
+        return new Result(nanos, contexts.size(), dirty.get(), shared, inFlight, virtualThreads);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor, when the running JDK has it
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class Result {
+        final long nanos;
+        final int contexts;
+        final int dirty;
+        final int shared;
+        final int inFlight;
+        final boolean virtualThreads;
+
+        Result(long nanos, int contexts, int dirty, int shared, int inFlight, boolean virtualThreads) {
+            this.nanos = nanos;
+            this.contexts = contexts;
+            this.dirty = dirty;
+            this.shared = shared;
+            this.inFlight = inFlight;
+            this.virtualThreads = virtualThreads;
+        }
+    }
+}
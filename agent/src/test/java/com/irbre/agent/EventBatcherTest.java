@@ -0,0 +1,97 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.EventType;
+import com.irbre.agent.model.SpanOutcome;
+import com.irbre.agent.model.TraceEvent;
+import com.irbre.agent.util.StringTable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks when the batch processor sends: at once for a full batch, however
+ * long the batch interval, and not before the interval for a partial one.
+ * Also that every event added is counted once, as recorded or as shed.
+ */
+class EventBatcherTest {
+
+    private static final int BATCH_SIZE = 10;
+
+    private StubCollector collector;
+    private EventBatcher batcher;
+
+    @BeforeEach
+    void start() throws IOException {
+        collector = StubCollector.start();
+        AgentConfiguration config = collector.config()
+                .binaryRecording(false)
+                .batchSize(BATCH_SIZE)
+                .batchIntervalMs(60_000)
+                .build();
+        AgentMetrics metrics = new AgentMetrics();
+        MethodRegistry methods = new MethodRegistry();
+        batcher = new EventBatcher(config, new EventSender(config, methods, metrics), new StringTable(), metrics);
+    }
+
+    @AfterEach
+    void stop() {
+        batcher.shutdown();
+        collector.close();
+    }
+
+    @Test
+    void aFullBatchWakesTheBatchProcessor() throws InterruptedException {
+        for (int i = 0; i < BATCH_SIZE - 1; i++) {
+            batcher.addEvent(span(i));
+        }
+        // Less than a batch lingers for the interval
+        assertFalse(collector.awaitAnswered(1, 300, TimeUnit.MILLISECONDS));
+
+        // The buffer reaches a batch on its own whether or not a pass drained part of it already
+        for (int i = BATCH_SIZE - 1; i < 2 * BATCH_SIZE - 1; i++) {
+            batcher.addEvent(span(i));
+        }
+        assertTrue(collector.awaitAnswered(1, 5, TimeUnit.SECONDS), "full batch not sent before the batch interval");
+    }
+
+    @Test
+    void shedEventsAreNotCountedAsRecorded() {
+        AgentConfiguration config = collector.config()
+                .binaryRecording(false)
+                .threadBufferSize(8)
+                .backpressurePolicy(BackpressurePolicy.DROP_NEWEST)
+                .batchIntervalMs(60_000)
+                .build();
+        AgentMetrics metrics = new AgentMetrics();
+        EventBatcher small = new EventBatcher(config, new EventSender(config, new MethodRegistry(), metrics),
+                new StringTable(), metrics);
+        try {
+            for (int i = 0; i < 100; i++) {
+                small.addEvent(span(i));
+            }
+            long recorded = metrics.getEventsRecorded().get("SPAN");
+            long shed = small.getShedCount(BackpressurePolicy.DROP_NEWEST);
+            assertTrue(shed > 0, "the buffer never filled");
+            assertEquals(100, recorded + shed);
+        } finally {
+            small.shutdown();
+        }
+    }
+
+    private static TraceEvent span(int sequenceNumber) {
+        return TraceEvent.builder()
+                .traceId("trace")
+                .eventType(EventType.SPAN)
+                .outcome(SpanOutcome.OK)
+                .threadName("main")
+                .sequenceNumber(sequenceNumber)
+                .build();
+    }
+}
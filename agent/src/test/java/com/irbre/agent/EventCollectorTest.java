@@ -0,0 +1,236 @@
+package com.irbre.agent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs tail-sampled requests that hand work to other threads, and checks
+ * what reaches a stub collector: the tasks' spans share the request's fate
+ * and its sequence numbers. Tasks an executor's queue compares or matches
+ * by identity are handed over as they are.
+ */
+class EventCollectorTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final EventCollector collector = EventCollector.getInstance();
+    private StubCollector server;
+    private EventBatcher batcher;
+    private int methodId;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = StubCollector.start();
+        collector.setContextStore(new PooledContextStore());
+        useBatcher(false);
+        // Only failed requests are kept
+        collector.setTailSamplingPolicy(new TailSamplingPolicy(60_000, true, Map.of(), 10_000));
+        methodId = collector.getMethodRegistry().register("com/example/Orders", "find", "()V");
+    }
+
+    private void useBatcher(boolean binaryRecording) {
+        AgentConfiguration config = server.config()
+                .binaryRecording(binaryRecording)
+                .build();
+        AgentMetrics metrics = new AgentMetrics();
+        EventSender sender = new EventSender(config, collector.getMethodRegistry(), metrics);
+        batcher = new EventBatcher(config, sender, collector.getStringTable(), metrics);
+        collector.setBatcher(batcher);
+    }
+
+    @AfterEach
+    void stop() {
+        collector.setTailSamplingPolicy(null);
+        collector.setBatcher(null);
+        collector.setContextStore(new ThreadLocalContextStore());
+        server.close();
+    }
+
+    @Test
+    void taskSpansFollowTheRequestsTailDecision() throws Exception {
+        String dropped = request(false);
+        String kept = request(true);
+        batcher.flush();
+
+        assertTrue(events(dropped).isEmpty(), "dropped trace reached the collector");
+        List<JsonNode> events = events(kept);
+        // Two spans on the request thread, two in the task before the decision, two after it
+        assertEquals(6, events.size());
+        Set<Integer> sequenceNumbers = new HashSet<>();
+        Set<String> threads = new HashSet<>();
+        for (JsonNode event : events) {
+            assertTrue(sequenceNumbers.add(event.get("sequenceNumber").asInt()),
+                    "duplicate sequence number " + event.get("sequenceNumber"));
+            threads.add(event.get("threadName").asText());
+        }
+        assertEquals(Set.of(0, 1, 2, 3, 4, 5), sequenceNumbers);
+        assertEquals(3, threads.size());
+    }
+
+    @Test
+    void aKeptTracesTaskRunOnADiscardedRequestsThreadIsKept() throws Exception {
+        batcher.flush();
+        useBatcher(true);
+        // A failed request, kept, whose task runs after the decision
+        AsyncContext[] captured = new AsyncContext[1];
+        String[] kept = new String[1];
+        Thread other = new Thread(() -> {
+            collector.startRequest("GET", "/orders/1", Map.of());
+            kept[0] = collector.getCurrentTraceId();
+            captured[0] = collector.captureContext();
+            span(new IllegalStateException("failed"));
+            collector.endRequest();
+        });
+        other.start();
+        other.join();
+
+        // Run inline, as by a caller-runs executor, while this thread's request is deferred
+        collector.startRequest("GET", "/orders/2", Map.of());
+        String dropped = collector.getCurrentTraceId();
+        span(null);
+        new TracedTask.OfRunnable(() -> span(null), captured[0]).run();
+        span(null);
+        collector.endRequest();
+        batcher.flush();
+
+        assertTrue(events(dropped).isEmpty(), "dropped trace reached the collector");
+        assertEquals(2, events(kept[0]).size(), "the task's span went down with the dropped request");
+    }
+
+    @Test
+    void tasksAPriorityExecutorComparesAreNotWrapped() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        IrbreProbe.setEnabled(true);
+        collector.startRequest("GET", "/orders", Map.of());
+        try {
+            // Goes straight to the new worker, so it is never compared
+            Runnable blocker = IrbreProbe.wrap(() -> {
+                started.countDown();
+                await(release);
+            });
+            assertTrue(blocker instanceof TracedTask);
+            executor.execute(blocker);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            List<Runnable> queued = new ArrayList<>();
+            for (int priority : new int[]{3, 1, 2}) {
+                Runnable task = IrbreProbe.wrap(new PrioritizedTask(priority, ran));
+                assertTrue(task instanceof PrioritizedTask);
+                executor.execute(task);
+                queued.add(task);
+            }
+            Runnable future = IrbreProbe.wrap(new FutureTask<>(() -> ran.add(0), null));
+            assertTrue(future instanceof FutureTask);
+            // Removal matches by identity
+            assertTrue(executor.remove(queued.get(2)));
+        } finally {
+            collector.endRequest();
+            IrbreProbe.setEnabled(false);
+            release.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 3), ran);
+    }
+
+    /**
+     * A request with one span before and one after handing work to another
+     * thread: one task records two spans while the request runs, another two
+     * after it has ended.
+     */
+    private String request(boolean fail) throws Exception {
+        collector.startRequest("GET", "/orders", Map.of());
+        String traceId = collector.getCurrentTraceId();
+        span(null);
+
+        AsyncContext context = collector.captureContext();
+        Thread during = new Thread(new TracedTask.OfRunnable(() -> {
+            span(null);
+            span(fail ? new IllegalStateException("failed") : null);
+        }, context));
+        during.start();
+        during.join();
+
+        span(null);
+        collector.endRequest();
+
+        Thread after = new Thread(new TracedTask.OfRunnable(() -> {
+            span(null);
+            span(null);
+        }, context));
+        after.start();
+        after.join();
+        return traceId;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A task run in priority order, lowest first.
+     */
+    private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final int priority;
+        private final List<Integer> ran;
+
+        PrioritizedTask(int priority, List<Integer> ran) {
+            this.priority = priority;
+            this.ran = ran;
+        }
+
+        @Override
+        public void run() {
+            ran.add(priority);
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            return Integer.compare(priority, other.priority);
+        }
+    }
+
+    private void span(Throwable thrown) {
+        long start = collector.onMethodEntry(methodId);
+        collector.onMethodExit(methodId, start, thrown);
+    }
+
+    private List<JsonNode> events(String traceId) throws IOException {
+        List<JsonNode> events = new ArrayList<>();
+        for (StubCollector.Request request : server.requests()) {
+            for (JsonNode section : MAPPER.readTree(request.body).path("traces")) {
+                if (traceId.equals(section.path("traceId").asText())) {
+                    section.path("events").forEach(events::add);
+                }
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,329 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.EventBatch;
+import com.irbre.agent.model.EventType;
+import com.irbre.agent.model.TraceEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sends and replays batches against a stub collector that answers each
+ * batch with a status chosen by the test.
+ */
+class EventSenderTest {
+
+    @TempDir
+    Path spoolDir;
+
+    private StubCollector collector;
+    // Status per batch body; batches not listed are accepted
+    private final Map<String, Integer> statuses = new ConcurrentHashMap<>();
+    // Statuses for the next requests, whatever their body; used before the per-body ones
+    private final Queue<Integer> replies = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    void startCollector() throws IOException {
+        collector = StubCollector.start();
+        collector.respond(request -> {
+            Integer reply = replies.poll();
+            return reply != null ? reply : statuses.getOrDefault(request.text(), 200);
+        });
+    }
+
+    @AfterEach
+    void stopCollector() {
+        collector.close();
+    }
+
+    @Test
+    void retryableAnswersAreRetriedWithCappedBackoff() throws Exception {
+        replies.addAll(List.of(503, 500, 429, 408));
+        AgentMetrics metrics = new AgentMetrics();
+        AgentConfiguration config = builder()
+                .retryMaxAttempts(5)
+                .retryBackoffInitialMs(1000)
+                .retryBackoffMaxMs(100)
+                .build();
+        EventSender sender = new EventSender(config, new MethodRegistry(), metrics);
+
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+
+        assertEquals(5, collector.requestCount());
+        assertEquals(1, metrics.getBatchesSent());
+        assertEquals(0, metrics.getBatchesDropped());
+        // Uncapped, the delays would be drawn from up to 1, 2, 4 and 8 s
+        List<StubCollector.Request> requests = collector.requests();
+        for (int i = 1; i < requests.size(); i++) {
+            long gapMillis = TimeUnit.NANOSECONDS.toMillis(
+                    requests.get(i).arrivalNanos - requests.get(i - 1).arrivalNanos);
+            assertTrue(gapMillis < 500, "retry " + i + " waited " + gapMillis + " ms");
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreakerState());
+    }
+
+    @Test
+    void aBatchIsGivenUpAfterItsLastAttempt() throws Exception {
+        replies.addAll(List.of(500, 500, 500, 500));
+        AgentMetrics metrics = new AgentMetrics();
+        AgentConfiguration config = builder()
+                .retryMaxAttempts(3)
+                .retryBackoffInitialMs(1)
+                .build();
+        EventSender sender = new EventSender(config, new MethodRegistry(), metrics);
+
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, collector.requestCount());
+        assertEquals(1, metrics.getBatchesDropped());
+    }
+
+    @Test
+    void aRejectedBatchIsNotRetried() throws Exception {
+        replies.add(400);
+        AgentMetrics metrics = new AgentMetrics();
+        EventSender sender = new EventSender(builder().retryBackoffInitialMs(1).build(), new MethodRegistry(), metrics);
+
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, collector.requestCount());
+        assertEquals(1, metrics.getBatchesDropped());
+        // The collector answered, so it counts as reachable
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreakerState());
+    }
+
+    @Test
+    void anOpenBreakerStopsRetriesAndSends() throws Exception {
+        replies.addAll(List.of(503, 503, 503, 503, 503));
+        AgentMetrics metrics = new AgentMetrics();
+        AgentConfiguration config = builder()
+                .retryMaxAttempts(5)
+                .retryBackoffInitialMs(1)
+                .breakerFailureThreshold(2)
+                .breakerOpenMs(60_000)
+                .build();
+        EventSender sender = new EventSender(config, new MethodRegistry(), metrics);
+
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+        assertEquals(2, collector.requestCount());
+        assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreakerState());
+        assertFalse(sender.isAvailable());
+
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+        assertEquals(2, collector.requestCount());
+        assertEquals(2, metrics.getBatchesDropped());
+    }
+
+    @Test
+    void noMoreThanMaxInFlightRequestsAreOutstanding() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        collector.hold(gate);
+        EventSender sender = new EventSender(builder().maxInFlight(2).build(), new MethodRegistry(), new AgentMetrics());
+
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        sends.add(sender.sendBatch(batch()));
+        sends.add(sender.sendBatch(batch()));
+        // The third send waits for a permit on the calling thread
+        CompletableFuture<CompletableFuture<Void>> third = CompletableFuture.supplyAsync(() -> sender.sendBatch(batch()));
+        Thread.sleep(300);
+        assertFalse(third.isDone());
+        assertEquals(2, collector.requestCount());
+
+        gate.countDown();
+        sends.add(third.get(10, TimeUnit.SECONDS));
+        for (CompletableFuture<Void> send : sends) {
+            send.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(3, collector.requestCount());
+        assertEquals(2, collector.getMaxConcurrent());
+    }
+
+    @Test
+    void aCollectorWithoutTheBinaryFormatSwitchesTheSenderToJson() throws Exception {
+        // As a collector that predates the binary converter answers
+        collector.respond(request -> BinaryBatchEncoder.CONTENT_TYPE.equals(request.contentType) ? 415 : 200);
+        AgentMetrics metrics = new AgentMetrics();
+        AgentConfiguration config = builder()
+                .binaryWireFormat(true)
+                .retryBackoffInitialMs(1)
+                .build();
+        EventSender sender = new EventSender(config, new MethodRegistry(), metrics);
+
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+        sender.sendBatch(batch()).get(10, TimeUnit.SECONDS);
+
+        List<StubCollector.Request> requests = collector.requests();
+        assertEquals(2, requests.size(), "a 415 is not retried");
+        assertEquals(BinaryBatchEncoder.CONTENT_TYPE, requests.get(0).contentType);
+        assertEquals("application/json", requests.get(1).contentType);
+        assertEquals(1, metrics.getBatchesSent());
+        assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreakerState());
+    }
+
+    @Test
+    void aCollectorThatCannotReadCompressedBatchesGetsThemUncompressed() throws Exception {
+        // As a collector without request decompression answers: the body does not parse
+        collector.respond(request -> request.contentEncoding != null ? 400 : 200);
+        AgentMetrics metrics = new AgentMetrics();
+        AgentConfiguration config = builder()
+                .compression("gzip")
+                .compressionMinBytes(1)
+                .retryBackoffInitialMs(1)
+                .build();
+        EventSender sender = new EventSender(config, new MethodRegistry(), metrics);
+
+        sender.sendBatch(largeBatch()).get(10, TimeUnit.SECONDS);
+        sender.sendBatch(largeBatch()).get(10, TimeUnit.SECONDS);
+
+        List<StubCollector.Request> requests = collector.requests();
+        assertEquals(3, requests.size());
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        assertNull(requests.get(1).contentEncoding);
+        assertNull(requests.get(2).contentEncoding, "compression is off once the collector proved it cannot read it");
+        assertEquals(2, metrics.getBatchesSent());
+        assertEquals(0, metrics.getBatchesDropped());
+    }
+
+    @Test
+    void aBatchRejectedOnceCompressionWasAcceptedIsNotResent() throws Exception {
+        replies.addAll(List.of(200, 400));
+        AgentMetrics metrics = new AgentMetrics();
+        AgentConfiguration config = builder()
+                .compression("gzip")
+                .compressionMinBytes(1)
+                .build();
+        EventSender sender = new EventSender(config, new MethodRegistry(), metrics);
+
+        sender.sendBatch(largeBatch()).get(10, TimeUnit.SECONDS);
+        sender.sendBatch(largeBatch()).get(10, TimeUnit.SECONDS);
+
+        List<StubCollector.Request> requests = collector.requests();
+        assertEquals(2, requests.size());
+        assertEquals("gzip", requests.get(1).contentEncoding);
+        assertEquals(1, metrics.getBatchesDropped());
+    }
+
+    @Test
+    void aBatchTheCollectorKeepsFailingOnIsDroppedSoTheRestIsDelivered() throws IOException {
+        spool("poison", "first", "second");
+        statuses.put("poison", 500);
+        AgentMetrics metrics = new AgentMetrics();
+        EventSender sender = new EventSender(config(), new MethodRegistry(), metrics);
+
+        for (int run = 1; run < EventSender.REPLAY_MAX_FAILURES; run++) {
+            sender.replaySpool();
+            assertEquals(run, collector.requestCount());
+        }
+        sender.replaySpool();
+
+        assertEquals(EventSender.REPLAY_MAX_FAILURES, Collections.frequency(collector.bodies(), "poison"));
+        assertEquals(1, metrics.getBatchesDropped());
+        sender.replaySpool();
+        List<String> received = collector.bodies();
+        assertEquals(List.of("first", "second"), received.subList(received.size() - 2, received.size()));
+        assertEquals(0, countSpooled());
+    }
+
+    @Test
+    void aBatchTheCollectorRejectsIsDroppedAtOnce() throws IOException {
+        spool("malformed", "fine");
+        statuses.put("malformed", 400);
+        AgentMetrics metrics = new AgentMetrics();
+        EventSender sender = new EventSender(config(), new MethodRegistry(), metrics);
+
+        sender.replaySpool();
+
+        assertEquals(List.of("malformed", "fine"), collector.bodies());
+        assertEquals(1, metrics.getBatchesDropped());
+        assertEquals(0, countSpooled());
+    }
+
+    @Test
+    void anUnavailableCollectorNeverCostsTheBatch() throws IOException {
+        spool("waiting");
+        statuses.put("waiting", 503);
+        AgentMetrics metrics = new AgentMetrics();
+        EventSender sender = new EventSender(config(), new MethodRegistry(), metrics);
+
+        for (int run = 0; run < 3 * EventSender.REPLAY_MAX_FAILURES; run++) {
+            sender.replaySpool();
+        }
+        assertEquals(3 * EventSender.REPLAY_MAX_FAILURES, collector.requestCount());
+        assertEquals(0, metrics.getBatchesDropped());
+
+        statuses.remove("waiting");
+        sender.replaySpool();
+        assertEquals(0, countSpooled());
+        assertEquals(1, metrics.getBatchesSent());
+    }
+
+    private AgentConfiguration config() {
+        return builder()
+                .spoolDir(spoolDir.toString())
+                .spoolSegmentBytes(4096)
+                .build();
+    }
+
+    // Without a spool, and with the breaker out of the way unless a test sets its threshold
+    private AgentConfiguration.Builder builder() {
+        return collector.config().breakerFailureThreshold(1000);
+    }
+
+    private static EventBatch batch() {
+        return new EventBatch(List.of());
+    }
+
+    /**
+     * A batch large and repetitive enough to be compressed.
+     */
+    private static EventBatch largeBatch() {
+        List<TraceEvent> events = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            events.add(TraceEvent.builder()
+                    .traceId("trace-" + i % 4)
+                    .eventType(EventType.SPAN)
+                    .threadName("http-nio-8080-exec-1")
+                    .sequenceNumber(i)
+                    .build());
+        }
+        return new EventBatch(EventBatcher.groupByTrace(events));
+    }
+
+    private void spool(String... bodies) throws IOException {
+        BatchSpool spool = new BatchSpool(spoolDir, 1 << 20, 4096);
+        for (String body : bodies) {
+            spool.append(BatchSpool.FORMAT_JSON, -1, BodyBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+        }
+        spool.force();
+    }
+
+    private int countSpooled() throws IOException {
+        BatchSpool spool = new BatchSpool(spoolDir, 1 << 20, 4096);
+        int count = 0;
+        for (BatchSpool.Record record = spool.peek(); record != null; record = spool.peek()) {
+            spool.advance(record);
+            count++;
+        }
+        return count;
+    }
+}
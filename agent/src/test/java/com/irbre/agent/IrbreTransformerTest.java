@@ -0,0 +1,372 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the bytecode the transformer adds to each instrumented method.
+ */
+class IrbreTransformerTest {
+
+    // Entry: push of the method ID (1-3 bytes) + INVOKESTATIC enter (3) + LSTORE of the start (1-2)
+    private static final int MAX_ENTRY_BYTES = 8;
+    // Each normal return: push of the method ID + LLOAD of the start + INVOKESTATIC exit
+    private static final int MAX_EXIT_BYTES = 8;
+    // Catch-all handler: DUP + push + LLOAD + INVOKESTATIC exitExceptionally + ATHROW
+    private static final int MAX_HANDLER_BYTES = 10;
+    // Locals moved past the new start slot can lose their one-byte xLOAD_n/xSTORE_n forms
+    private static final int MAX_REMAP_BYTES = 4;
+    // Every fixture method has at most one return instruction
+    private static final int MAX_PROBE_BYTES =
+            MAX_ENTRY_BYTES + MAX_EXIT_BYTES + MAX_HANDLER_BYTES + MAX_REMAP_BYTES;
+
+    @Test
+    void probeBytecodeStaysWithinBudget() throws IOException {
+        // Exercise each constant-push form: ICONST, BIPUSH, SIPUSH and LDC
+        for (int preRegistered : new int[]{0, 100, 1_000, 40_000}) {
+            MethodRegistry registry = new MethodRegistry();
+            for (int i = 0; i < preRegistered; i++) {
+                registry.register("com.example.Other", "m" + i, "()V");
+            }
+
+            Map<String, Integer> probeSizes = probeSizes(registry);
+
+            assertTrue(probeSizes.keySet().containsAll(
+                    List.of("tiny()I", "loop(I)J", "wide(JJLjava/lang/String;)Ljava/lang/String;",
+                            "fails()V", "caught(Ljava/lang/String;)I")));
+            probeSizes.remove("<init>()V");
+            probeSizes.forEach((method, size) -> {
+                System.out.println("[probe] ids>=" + preRegistered + " " + method + ": +" + size + " bytes");
+                assertTrue(size > 0 && size <= MAX_PROBE_BYTES,
+                        method + " probe is " + size + " bytes, expected at most " + MAX_PROBE_BYTES);
+            });
+        }
+    }
+
+    @Test
+    void constructorsAreNotInstrumented() throws IOException {
+        Map<String, Integer> probeSizes = probeSizes(new MethodRegistry());
+        assertEquals(0, probeSizes.get("<init>()V"));
+    }
+
+    @Test
+    void excludedMethodsAreLeftUntouched() throws IOException {
+        MethodRegistry registry = new MethodRegistry();
+        IrbreTransformer transformer = new IrbreTransformer(AgentConfiguration.load(), registry);
+        byte[] original = fixtureBytes();
+        transformer.transform(getClass().getClassLoader(), "com/example/Fixture", null, null, original);
+
+        // Same IDs on retransform, so the excluded method is recognized
+        transformer.excludeMethod(registry.register("com.example.Fixture", "tiny", "()I"));
+        byte[] retransformed = transformer.transform(getClass().getClassLoader(),
+                "com/example/Fixture", null, null, original);
+
+        Map<String, Integer> before = codeLengths(original);
+        Map<String, Integer> after = codeLengths(retransformed);
+        assertEquals(before.get("tiny()I"), after.get("tiny()I"));
+        assertTrue(after.get("loop(I)J") > before.get("loop(I)J"));
+    }
+
+    @Test
+    void instrumentedMethodsRunAndBalanceTheSpanStack() throws Exception {
+        byte[] instrumented = new IrbreTransformer(AgentConfiguration.load(), new MethodRegistry())
+                .transform(getClass().getClassLoader(), "com/example/Fixture", null, null, fixtureBytes());
+        Class<?> fixtureClass = new FixtureLoader().define(instrumented);
+        Object fixture = fixtureClass.getDeclaredConstructor().newInstance();
+
+        EventCollector collector = EventCollector.getInstance();
+        IrbreProbe.setEnabled(true);
+        try {
+            assertEquals(45L, fixtureClass.getDeclaredMethod("loop", int.class).invoke(fixture, 10));
+            assertEquals(-1, fixtureClass.getDeclaredMethod("caught", String.class).invoke(fixture, "x"));
+            InvocationTargetException thrown = assertThrows(InvocationTargetException.class,
+                    () -> fixtureClass.getDeclaredMethod("fails").invoke(fixture));
+            assertTrue(thrown.getCause() instanceof IllegalStateException);
+            // Every entry was matched by exactly one exit
+            assertNull(collector.getCurrentSpanId());
+        } finally {
+            IrbreProbe.setEnabled(false);
+            collector.endRequest();
+        }
+    }
+
+    @Test
+    void tasksHandedToExecutorsRunInTheSubmittingSpan() throws Exception {
+        byte[] instrumented = new IrbreTransformer(AgentConfiguration.load(), new MethodRegistry())
+                .transform(getClass().getClassLoader(), "com/example/AsyncFixture", null, null,
+                        classBytes("IrbreTransformerTest$AsyncFixture.class"));
+        Class<?> fixtureClass = new FixtureLoader().define(instrumented);
+        Object fixture = fixtureClass.getDeclaredConstructor().newInstance();
+
+        EventCollector collector = EventCollector.getInstance();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        IrbreProbe.setEnabled(true);
+        try {
+            collector.startRequest("GET", "/async", Map.of());
+            @SuppressWarnings("unchecked")
+            List<String> seen = (List<String>) fixtureClass.getDeclaredMethod("handOver", ExecutorService.class)
+                    .invoke(fixture, executor);
+            String submitter = seen.get(0);
+            assertTrue(submitter.startsWith(collector.getCurrentTraceId() + "/"), submitter);
+            assertFalse(submitter.endsWith("/null"), "the fixture method should have a span");
+            // submit, execute, supplyAsync and thenApplyAsync
+            assertEquals(List.of(submitter, submitter, submitter + "|" + submitter), seen.subList(1, 4));
+            // Workers are left as they were found
+            assertEquals("null/null", executor.submit(() -> collector.getCurrentTraceId() + "/"
+                    + collector.getCurrentSpanId()).get());
+        } finally {
+            IrbreProbe.setEnabled(false);
+            collector.endRequest();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void forkJoinTasksComputeInTheTraceThatCreatedThem() throws Exception {
+        IrbreTransformer transformer = new IrbreTransformer(AgentConfiguration.load(), new MethodRegistry());
+        byte[] original = classBytes("IrbreTransformerTest$SumTask.class");
+        byte[] instrumented = transformer.transform(getClass().getClassLoader(), "com/example/SumTask",
+                null, null, original);
+        Class<?> taskClass = new FixtureLoader().define(instrumented);
+        assertTrue(AsyncInstrumentation.hasContextField(taskClass));
+
+        EventCollector collector = EventCollector.getInstance();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        IrbreProbe.setEnabled(true);
+        try {
+            collector.startRequest("GET", "/sum", Map.of());
+            Set<String> traces = ConcurrentHashMap.newKeySet();
+            Object task = taskClass.getDeclaredConstructor(int.class, int.class, Set.class)
+                    .newInstance(0, 1_000, traces);
+            @SuppressWarnings("unchecked")
+            long sum = pool.invoke((ForkJoinTask<Long>) task);
+            assertEquals(499_500L, sum);
+            assertEquals(Set.of(collector.getCurrentTraceId()), traces);
+        } finally {
+            IrbreProbe.setEnabled(false);
+            collector.endRequest();
+            pool.shutdown();
+        }
+
+        // Retransformation cannot drop the field, even once the class is no longer instrumented
+        AgentConfiguration excluding = AgentConfiguration.load();
+        excluding.setExcludedPackages(Set.of("com.example"));
+        byte[] retransformed = new IrbreTransformer(excluding, new MethodRegistry())
+                .transform(getClass().getClassLoader(), "com/example/SumTask", taskClass, null, original);
+        assertNotNull(retransformed);
+        assertTrue(AsyncInstrumentation.hasContextField(new FixtureLoader().define(retransformed)));
+        assertEquals(codeLengths(original), codeLengths(retransformed));
+    }
+
+    private Map<String, Integer> probeSizes(MethodRegistry registry) throws IOException {
+        byte[] original = fixtureBytes();
+        IrbreTransformer transformer = new IrbreTransformer(AgentConfiguration.load(), registry);
+        byte[] instrumented = transformer.transform(getClass().getClassLoader(),
+                "com/example/Fixture", null, null, original);
+        assertNotNull(instrumented, "fixture should be instrumented");
+
+        Map<String, Integer> before = codeLengths(original);
+        Map<String, Integer> after = codeLengths(instrumented);
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        before.forEach((method, length) -> sizes.put(method, after.get(method) - length));
+        return sizes;
+    }
+
+    private static byte[] fixtureBytes() throws IOException {
+        return classBytes("IrbreTransformerTest$Fixture.class");
+    }
+
+    private static byte[] classBytes(String resource) throws IOException {
+        try (InputStream in = IrbreTransformerTest.class.getResourceAsStream(resource)) {
+            assertNotNull(in);
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Minimal class file walk returning the Code attribute length of each method.
+     */
+    private static Map<String, Integer> codeLengths(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        in.readInt();
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        int poolCount = in.readUnsignedShort();
+        String[] utf8 = new String[poolCount];
+        for (int i = 1; i < poolCount; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[i] = in.readUTF();
+                case 7, 8, 16, 19, 20 -> in.skipBytes(2);
+                case 15 -> in.skipBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                case 5, 6 -> {
+                    in.skipBytes(8);
+                    i++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        in.skipBytes(6);
+        in.skipBytes(2 * in.readUnsignedShort());
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            in.skipBytes(6);
+            skipAttributes(in);
+        }
+        Map<String, Integer> lengths = new LinkedHashMap<>();
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            in.skipBytes(2);
+            String name = utf8[in.readUnsignedShort()];
+            String descriptor = utf8[in.readUnsignedShort()];
+            int attributeCount = in.readUnsignedShort();
+            for (int a = 0; a < attributeCount; a++) {
+                String attribute = utf8[in.readUnsignedShort()];
+                int length = in.readInt();
+                if ("Code".equals(attribute)) {
+                    in.skipBytes(4);
+                    int codeLength = in.readInt();
+                    lengths.put(name + descriptor, codeLength);
+                    in.skipBytes(length - 8);
+                } else {
+                    in.skipBytes(length);
+                }
+            }
+        }
+        return lengths;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static class Fixture {
+        private int value;
+
+        public int tiny() {
+            return value;
+        }
+
+        public long loop(int n) {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += i;
+            }
+            return sum;
+        }
+
+        public String wide(long a, long b, String c) {
+            return c + (a + b);
+        }
+
+        public void fails() {
+            throw new IllegalStateException("expected");
+        }
+
+        public int caught(String s) {
+            int result;
+            try {
+                result = Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                result = -1;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Hands work to an executor in each supported way; every task reports the
+     * trace and span it runs in. Lambdas are synthetic, so they add no span of their own.
+     */
+    @SuppressWarnings("unused")
+    public static class AsyncFixture {
+        public List<String> handOver(ExecutorService executor) throws Exception {
+            EventCollector collector = EventCollector.getInstance();
+            String submitter = collector.getCurrentTraceId() + "/" + collector.getCurrentSpanId();
+            Future<String> submitted = executor.submit((Callable<String>) () ->
+                    collector.getCurrentTraceId() + "/" + collector.getCurrentSpanId());
+            CompletableFuture<String> executed = new CompletableFuture<>();
+            executor.execute(() -> executed.complete(
+                    collector.getCurrentTraceId() + "/" + collector.getCurrentSpanId()));
+            String chained = CompletableFuture.supplyAsync(() ->
+                            collector.getCurrentTraceId() + "/" + collector.getCurrentSpanId(), executor)
+                    .thenApplyAsync(first -> first + "|"
+                            + collector.getCurrentTraceId() + "/" + collector.getCurrentSpanId(), executor)
+                    .get();
+            return List.of(submitter, submitted.get(), executed.get(), chained);
+        }
+    }
+
+    /**
+     * Sums a range by splitting it, recording the trace each leaf computes in.
+     */
+    public static class SumTask extends RecursiveTask<Long> {
+        private final int from;
+        private final int to;
+        private final Set<String> traces;
+
+        public SumTask(int from, int to, Set<String> traces) {
+            this.from = from;
+            this.to = to;
+            this.traces = traces;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= 10) {
+                traces.add(String.valueOf(EventCollector.getInstance().getCurrentTraceId()));
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += i;
+                }
+                return sum;
+            }
+            int middle = (from + to) >>> 1;
+            SumTask left = new SumTask(from, middle, traces);
+            left.fork();
+            long right = new SumTask(middle, to, traces).compute();
+            return left.join() + right;
+        }
+    }
+
+    private static class FixtureLoader extends ClassLoader {
+        FixtureLoader() {
+            super(IrbreTransformerTest.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+}
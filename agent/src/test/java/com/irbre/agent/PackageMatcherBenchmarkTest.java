@@ -0,0 +1,140 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the compiled package matcher against the plain prefix loops it
+ * replaces, on class names shaped like a Spring service's startup, and
+ * prints the cost of each per loaded class.
+ */
+class PackageMatcherBenchmarkTest {
+
+    private static final int CLASSES = 40_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+
+    private static final String[] PACKAGES = {
+            "java/util/concurrent/", "java/lang/invoke/", "javax/servlet/http/", "sun/nio/ch/",
+            "jdk/internal/misc/", "com/sun/proxy/", "org/springframework/beans/factory/support/",
+            "org/apache/catalina/core/", "com/fasterxml/jackson/databind/", "org/hibernate/engine/spi/",
+            "io/netty/buffer/", "com/zaxxer/hikari/pool/", "kotlin/collections/", "com/irbre/agent/",
+            "com/example/shop/", "com/example/shop/internal/", "com/examplecorp/billing/"
+    };
+
+    @Test
+    void matcherAgreesWithPrefixLoopsAndIsCheaper() {
+        Set<String> included = Set.of("com.example.", "org.hibernate.engine.");
+        Set<String> excluded = Set.of("java.", "javax.", "sun.", "com.sun.", "jdk.", "org.slf4j.",
+                "ch.qos.logback.", "com.irbre.agent.", "com.example.shop.internal.");
+        PackageMatcher matcher = new PackageMatcher(included, excluded);
+
+        List<String> names = classNames();
+        int instrumented = 0;
+        for (String name : names) {
+            boolean expected = prefixLoops(name, included, excluded);
+            assertEquals(expected, matcher.matches(name), name);
+            assertEquals(expected, matcher.matches(name.replace('/', '.')), name);
+            if (expected) {
+                instrumented++;
+            }
+        }
+        assertTrue(instrumented > 0 && instrumented < names.size());
+
+        long loopNanos = 0;
+        long matcherNanos = 0;
+        int sink = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            for (String name : names) {
+                sink += prefixLoops(name, included, excluded) ? 1 : 0;
+            }
+            long t1 = System.nanoTime();
+            for (String name : names) {
+                sink += matcher.matches(name) ? 1 : 0;
+            }
+            long t2 = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                loopNanos += t1 - t0;
+                matcherNanos += t2 - t1;
+            }
+        }
+
+        long perRound = (long) MEASURED_ROUNDS * names.size();
+        System.out.printf("[IRBRE] package matching, %d classes (%d instrumented): prefix loops %.1f ns/class, "
+                        + "matcher %.1f ns/class%n",
+                names.size(), instrumented, (double) loopNanos / perRound, (double) matcherNanos / perRound);
+        assertEquals(2 * instrumented * (WARMUP_ROUNDS + MEASURED_ROUNDS), sink);
+    }
+
+    @Test
+    void excludesWinAndProxiesAreNeverInstrumented() {
+        PackageMatcher matcher = new PackageMatcher(Set.of("com.example.", "java.util."), Set.of("com.example.gen"));
+        assertTrue(matcher.matches("com/example/Service"));
+        assertFalse(matcher.matches("com/example/generated/Service"));
+        assertFalse(matcher.matches("java/util/HashMap"));
+        assertFalse(matcher.matches("com/example/Service$$EnhancerBySpringCGLIB$$1f2e3d"));
+        assertTrue(matcher.matches("com/example/Service$$Other"));
+        assertFalse(matcher.matches("com/other/Service"));
+
+        PackageMatcher unicode = new PackageMatcher(Set.of("com.example.", "de.bücher."),
+                Set.of("com.example.ünsafe."));
+        assertTrue(unicode.matches("de/bücher/Katalog"));
+        assertFalse(unicode.matches("com/example/ünsafe/Service"));
+        assertTrue(unicode.matches("com/example/Service"));
+
+        // Never "instrument everything"
+        assertThrows(IllegalArgumentException.class, () -> new PackageMatcher(Set.of(), Set.of("com.example.")));
+    }
+
+    // What the transformer did per class before the matcher: a copy, the built-in list, then the configured sets
+    private static boolean prefixLoops(String internalName, Set<String> included, Set<String> excluded) {
+        String name = internalName.replace('/', '.');
+        for (String ignored : PackageMatcher.IGNORED_PACKAGES) {
+            if (name.startsWith(ignored)) {
+                return false;
+            }
+        }
+        if (name.contains("$$EnhancerBySpringCGLIB$$") || name.contains("$$FastClassBySpringCGLIB$$")) {
+            return false;
+        }
+        for (String prefix : excluded) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+        if (included.isEmpty()) {
+            return true;
+        }
+        for (String prefix : included) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> classNames() {
+        List<String> names = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++) {
+            String pkg = PACKAGES[i % PACKAGES.length];
+            String name = pkg + "Type" + i;
+            if (i % 7 == 0) {
+                name += "$Inner";
+            }
+            if (i % 53 == 0) {
+                name += "$$EnhancerBySpringCGLIB$$" + Integer.toHexString(i);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+}
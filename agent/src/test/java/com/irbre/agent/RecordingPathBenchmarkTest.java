@@ -0,0 +1,160 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs whole requests through the collector and batcher, startRequest, a
+ * run of spans and endRequest, each request on a thread of its own, as with
+ * a virtual-thread-per-request server. Virtual threads are used when the
+ * running JDK has them; otherwise every request starts a new platform thread,
+ * with a bounded number in flight. Prints time per request and how many
+ * event buffers or rings the requests wrote to.
+ */
+class RecordingPathBenchmarkTest {
+
+    private static final int VIRTUAL_REQUESTS = 100_000;
+    private static final int PLATFORM_REQUESTS = 10_000;
+    private static final int PLATFORM_THREADS = 64;
+    private static final int SPANS_PER_REQUEST = 12;
+
+    private StubCollector collector;
+
+    @BeforeEach
+    void startCollector() throws IOException {
+        collector = StubCollector.start();
+    }
+
+    @AfterEach
+    void stopCollector() {
+        EventCollector.getInstance().setBatcher(null);
+        EventCollector.getInstance().setContextStore(new ThreadLocalContextStore());
+        collector.close();
+    }
+
+    @Test
+    void pooledContextsLeaseBuffersInsteadOfAllocatingOnePerThread() throws Exception {
+        Result threadLocal = run(new ThreadLocalContextStore(), false);
+        Result pooled = run(new PooledContextStore(), false);
+        Result pooledBinary = run(new PooledContextStore(), true);
+
+        System.out.printf("[IRBRE] recording path, %d requests of %d spans on %s: "
+                        + "thread-local %d ns/request, %d buffers; pooled %d ns/request, %d buffers; "
+                        + "pooled binary %d ns/request, %d rings%n",
+                threadLocal.requests, SPANS_PER_REQUEST,
+                threadLocal.virtualThreads ? "virtual threads" : "new platform threads (no virtual threads in this JDK)",
+                threadLocal.nanos / threadLocal.requests, threadLocal.buffers,
+                pooled.nanos / pooled.requests, pooled.buffers,
+                pooledBinary.nanos / pooledBinary.requests, pooledBinary.buffers);
+
+        for (Result result : new Result[]{threadLocal, pooled, pooledBinary}) {
+            assertEquals((long) result.requests * SPANS_PER_REQUEST, result.spans, "every span accounted for");
+        }
+        assertEquals(threadLocal.requests, threadLocal.buffers, "one buffer per thread");
+        assertTrue(pooled.buffers < threadLocal.buffers,
+                "pooled contexts should reuse buffers: " + pooled.buffers + " vs " + threadLocal.buffers);
+        assertTrue(pooledBinary.buffers < threadLocal.buffers,
+                "pooled contexts should reuse rings: " + pooledBinary.buffers + " vs " + threadLocal.buffers);
+        assertTrue(collector.requestCount() > 0);
+    }
+
+    private Result run(TraceContextStore store, boolean binary) throws Exception {
+        AgentConfiguration config = collector.config()
+                .binaryRecording(binary)
+                .build();
+        EventCollector eventCollector = EventCollector.getInstance();
+        AgentMetrics metrics = new AgentMetrics();
+        EventSender sender = new EventSender(config, eventCollector.getMethodRegistry(), metrics);
+        EventBatcher batcher = new EventBatcher(config, sender, eventCollector.getStringTable(), metrics);
+        eventCollector.setContextStore(store);
+        eventCollector.setBatcher(batcher);
+        int methodId = eventCollector.getMethodRegistry().register("com/example/Orders", "find", "()V");
+
+        ExecutorService virtualThreads = virtualThreadExecutor();
+        int requests = virtualThreads != null ? VIRTUAL_REQUESTS : PLATFORM_REQUESTS;
+        Semaphore inFlight = new Semaphore(PLATFORM_THREADS);
+        Executor executor = virtualThreads != null ? virtualThreads : task -> new Thread(task).start();
+        Object[] written = new Object[requests];
+        CountDownLatch done = new CountDownLatch(requests);
+
+        long t0 = System.nanoTime();
+        for (int r = 0; r < requests; r++) {
+            int request = r;
+            if (virtualThreads == null) {
+                inFlight.acquire();
+            }
+            executor.execute(() -> {
+                try {
+                    eventCollector.startRequest("GET", "/orders", Map.of());
+                    for (int s = 0; s < SPANS_PER_REQUEST; s++) {
+                        long start = eventCollector.onMethodEntry(methodId);
+                        eventCollector.onMethodExit(methodId, start, null);
+                    }
+                    TraceContext ctx = store.get();
+                    written[request] = binary ? ctx.ring : ctx.buffer;
+                    eventCollector.endRequest();
+                } finally {
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long nanos = System.nanoTime() - t0;
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+            virtualThreads.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        batcher.flush();
+
+        Set<Object> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+        Collections.addAll(buffers, written);
+        // Both modes count what got into a buffer or ring and, separately, what was shed
+        long spans = metrics.getEventsRecorded().get("SPAN");
+        for (long shed : batcher.getShedCounts().values()) {
+            spans += shed;
+        }
+        return new Result(requests, nanos, buffers.size(), spans, virtualThreads != null);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor, when the running JDK has it
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class Result {
+        final int requests;
+        final long nanos;
+        final int buffers;
+        final long spans;
+        final boolean virtualThreads;
+
+        Result(int requests, long nanos, int buffers, long spans, boolean virtualThreads) {
+            this.requests = requests;
+            this.nanos = nanos;
+            this.buffers = buffers;
+            this.spans = spans;
+            this.virtualThreads = virtualThreads;
+        }
+    }
+}
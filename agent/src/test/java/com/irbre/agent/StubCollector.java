@@ -0,0 +1,146 @@
+package com.irbre.agent;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * The collector's ingest endpoint for tests, on a local ephemeral port.
+ * Records every request and answers it with the status the test chooses,
+ * 200 unless told otherwise.
+ */
+final class StubCollector implements AutoCloseable {
+
+    /**
+     * One request as the collector received it.
+     */
+    static final class Request {
+        final byte[] body;
+        final String contentType;
+        final String contentEncoding;
+        final long arrivalNanos;
+
+        Request(byte[] body, String contentType, String contentEncoding, long arrivalNanos) {
+            this.body = body;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.arrivalNanos = arrivalNanos;
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = new ArrayList<>();
+    private final Semaphore arrived = new Semaphore(0);
+    private volatile ToIntFunction<Request> responder = request -> 200;
+    // When set, requests are held until it opens
+    private volatile CountDownLatch gate;
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private StubCollector() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ingest", exchange -> {
+            Request request = new Request(exchange.getRequestBody().readAllBytes(),
+                    exchange.getRequestHeaders().getFirst("Content-Type"),
+                    exchange.getRequestHeaders().getFirst("Content-Encoding"),
+                    System.nanoTime());
+            synchronized (requests) {
+                requests.add(request);
+            }
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                CountDownLatch held = gate;
+                if (held != null) {
+                    held.await(10, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrent.decrementAndGet();
+            int status = responder.applyAsInt(request);
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            arrived.release();
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    static StubCollector start() throws IOException {
+        return new StubCollector();
+    }
+
+    /**
+     * A configuration sending uncompressed JSON batches here.
+     */
+    AgentConfiguration.Builder config() {
+        return AgentConfiguration.builder()
+                .collectorUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/ingest")
+                .compression(null)
+                .binaryWireFormat(false);
+    }
+
+    void respond(ToIntFunction<Request> responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Hold requests until {@code gate} opens; null lets them through again.
+     */
+    void hold(CountDownLatch gate) {
+        this.gate = gate;
+    }
+
+    List<Request> requests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    List<String> bodies() {
+        List<String> bodies = new ArrayList<>();
+        for (Request request : requests()) {
+            bodies.add(request.text());
+        }
+        return bodies;
+    }
+
+    int requestCount() {
+        synchronized (requests) {
+            return requests.size();
+        }
+    }
+
+    /**
+     * Wait until {@code count} more requests have been answered.
+     */
+    boolean awaitAnswered(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        return arrived.tryAcquire(count, timeout, unit);
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
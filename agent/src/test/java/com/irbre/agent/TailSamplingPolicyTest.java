@@ -0,0 +1,74 @@
+package com.irbre.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks which completed requests the tail sampling policy keeps, and that
+ * the cap on buffered events holds across reservations.
+ */
+class TailSamplingPolicyTest {
+
+    private static final long FAST_NANOS = 1_000_000L;
+    private static final long SLOW_NANOS = 600_000_000L;
+
+    @Test
+    void slowAndFailedRequestsAreKept() {
+        TailSamplingPolicy policy = new TailSamplingPolicy(500, true, Map.of(), 100);
+
+        assertTrue(policy.keep("/orders", SLOW_NANOS, false));
+        assertTrue(policy.keep("/orders", 500_000_000L, false), "threshold is inclusive");
+        assertTrue(policy.keep("/orders", FAST_NANOS, true));
+        assertFalse(policy.keep("/orders", FAST_NANOS, false));
+        assertFalse(policy.keep(null, FAST_NANOS, false));
+    }
+
+    @Test
+    void failuresAreOnlyKeptWhenConfigured() {
+        TailSamplingPolicy policy = new TailSamplingPolicy(500, false, Map.of(), 100);
+
+        assertFalse(policy.keep("/orders", FAST_NANOS, true));
+        assertTrue(policy.keep("/orders", SLOW_NANOS, true));
+    }
+
+    @Test
+    void endpointQuotasKeepFastRequestsUpToTheirRate() {
+        Map<String, Integer> quotas = new LinkedHashMap<>();
+        quotas.put("/orders/export", 0);
+        quotas.put("/orders*", 2);
+        TailSamplingPolicy policy = new TailSamplingPolicy(500, true, quotas, 100);
+
+        assertTrue(policy.keep("/orders/1", FAST_NANOS, false));
+        assertTrue(policy.keep("/orders", FAST_NANOS, false));
+        assertFalse(policy.keep("/orders/2", FAST_NANOS, false), "quota spent for this second");
+        // The first matching quota applies, even when it is zero
+        assertFalse(policy.keep("/orders/export", FAST_NANOS, false));
+        assertFalse(policy.keep("/users", FAST_NANOS, false));
+        // Slow and failed requests do not need the quota
+        assertTrue(policy.keep("/orders/3", SLOW_NANOS, false));
+        assertTrue(policy.keep("/orders/export", FAST_NANOS, true));
+    }
+
+    @Test
+    void reservationsStopAtTheCapUntilReleased() {
+        TailSamplingPolicy policy = new TailSamplingPolicy(500, true, Map.of(), 3);
+
+        assertTrue(policy.reserve());
+        assertTrue(policy.reserve());
+        assertTrue(policy.reserve());
+        assertFalse(policy.reserve());
+        assertEquals(3, policy.getBufferedEvents());
+
+        policy.release(2);
+        assertEquals(1, policy.getBufferedEvents());
+        assertTrue(policy.reserve());
+        assertTrue(policy.reserve());
+        assertFalse(policy.reserve());
+    }
+}
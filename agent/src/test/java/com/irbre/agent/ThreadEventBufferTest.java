@@ -0,0 +1,118 @@
+package com.irbre.agent;
+
+import com.irbre.agent.model.EventType;
+import com.irbre.agent.model.TraceEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the buffer's count and byte bounds, and that drop-oldest evictions
+ * racing a draining consumer lose or duplicate no event.
+ */
+class ThreadEventBufferTest {
+
+    private static final int EVENTS = 1_000_000;
+
+    @Test
+    void fullBufferEvictsOldestFirst() {
+        ThreadEventBuffer buffer = new ThreadEventBuffer(4, Long.MAX_VALUE, Thread.currentThread());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(event(i), 1));
+        }
+        assertFalse(buffer.offer(event(4), 1));
+
+        assertEquals(0, buffer.evictOldest().getSequenceNumber());
+        assertTrue(buffer.offer(event(4), 1));
+
+        List<TraceEvent> out = new ArrayList<>();
+        assertEquals(4, buffer.drainTo(out, 10));
+        assertEquals(List.of(1, 2, 3, 4), sequenceNumbers(out));
+        assertNull(buffer.evictOldest());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    void byteBoundStillTakesOneOversizedEvent() {
+        ThreadEventBuffer buffer = new ThreadEventBuffer(16, 100, Thread.currentThread());
+        assertTrue(buffer.offer(event(0), 60));
+        assertFalse(buffer.offer(event(1), 60));
+
+        // Evicting gives the bytes back
+        buffer.evictOldest();
+        assertTrue(buffer.offer(event(1), 60));
+        buffer.drainTo(new ArrayList<>(), 10);
+        assertTrue(buffer.offer(event(2), 1000), "an empty buffer takes any event");
+        assertFalse(buffer.offer(event(3), 1));
+    }
+
+    @Test
+    void evictionsRacingTheConsumerLoseAndDuplicateNothing() throws Exception {
+        ThreadEventBuffer buffer = new ThreadEventBuffer(64, Long.MAX_VALUE, null);
+        List<Integer> evicted = new ArrayList<>();
+        List<TraceEvent> drained = new ArrayList<>();
+        AtomicBoolean producing = new AtomicBoolean(true);
+
+        Thread consumer = new Thread(() -> {
+            while (producing.get() || !buffer.isEmpty()) {
+                if (buffer.drainTo(drained, 16) == 0) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+        consumer.start();
+        // As EventBatcher does under DROP_OLDEST, slowed down so the consumer keeps up often enough to race
+        for (int i = 0; i < EVENTS; i++) {
+            for (int spin = 0; spin < 50; spin++) {
+                Thread.onSpinWait();
+            }
+            TraceEvent event = event(i);
+            while (!buffer.offer(event, 1)) {
+                TraceEvent oldest = buffer.evictOldest();
+                if (oldest != null) {
+                    evicted.add(oldest.getSequenceNumber());
+                }
+            }
+        }
+        producing.set(false);
+        consumer.join();
+
+        assertEquals(EVENTS, drained.size() + evicted.size());
+        boolean[] seen = new boolean[EVENTS];
+        int last = -1;
+        for (TraceEvent event : drained) {
+            int sequenceNumber = event.getSequenceNumber();
+            assertTrue(sequenceNumber > last, "drained out of order: " + sequenceNumber + " after " + last);
+            last = sequenceNumber;
+            seen[sequenceNumber] = true;
+        }
+        for (int sequenceNumber : evicted) {
+            assertFalse(seen[sequenceNumber], "event " + sequenceNumber + " both drained and evicted");
+            seen[sequenceNumber] = true;
+        }
+        System.out.printf("[IRBRE] drop-oldest race: %d drained, %d evicted%n", drained.size(), evicted.size());
+    }
+
+    private static TraceEvent event(int sequenceNumber) {
+        return TraceEvent.builder()
+                .traceId("trace")
+                .eventType(EventType.SPAN)
+                .sequenceNumber(sequenceNumber)
+                .build();
+    }
+
+    private static List<Integer> sequenceNumbers(List<TraceEvent> events) {
+        List<Integer> numbers = new ArrayList<>();
+        for (TraceEvent event : events) {
+            numbers.add(event.getSequenceNumber());
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,121 @@
+package com.irbre.agent;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.irbre.agent.model.EventBatch;
+import com.irbre.agent.model.EventType;
+import com.irbre.agent.model.MethodInfo;
+import com.irbre.agent.model.RequestMetadata;
+import com.irbre.agent.model.SpanOutcome;
+import com.irbre.agent.model.TraceEvent;
+import com.irbre.agent.model.TraceSection;
+import com.irbre.agent.util.IdGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the JSON and binary batch encodings on a realistic batch: a few
+ * requests, each a tree of spans over a small set of methods, as the sender
+ * would see them. Prints bytes per event and encode time per batch; the
+ * collector's BinaryBatchDecodeBenchmarkTest compares the decoding side.
+ */
+class WireFormatBenchmarkTest {
+
+    private static final int REQUESTS = 20;
+    private static final int SPANS_PER_REQUEST = 50;
+    private static final int METHODS = 40;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 500;
+
+    @Test
+    void binaryBatchesAreSmallerThanJson() throws Exception {
+        List<MethodInfo> methods = new ArrayList<>();
+        for (int i = 0; i < METHODS; i++) {
+            methods.add(new MethodInfo(i, "com.example.shop.service.OrderService" + (i % 5),
+                    "handleStep" + i, "(Ljava/lang/String;J)Ljava/util/List;"));
+        }
+        List<TraceEvent> events = realisticEvents();
+        List<TraceSection> traces = EventBatcher.groupByTrace(events);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        byte[] json = objectMapper.writeValueAsBytes(new EventBatch(traces, IdGenerator.agentId(), methods));
+        byte[] binary = encode(traces, methods);
+
+        long jsonNanos = 0;
+        long binaryNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            objectMapper.writeValueAsBytes(new EventBatch(traces, IdGenerator.agentId(), methods));
+            long t1 = System.nanoTime();
+            encode(traces, methods);
+            long t2 = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                jsonNanos += t1 - t0;
+                binaryNanos += t2 - t1;
+            }
+        }
+
+        System.out.printf("[IRBRE] wire format, %d events: json %d bytes (%.1f/event, %d us/batch), "
+                        + "binary %d bytes (%.1f/event, %d us/batch)%n",
+                events.size(),
+                json.length, (double) json.length / events.size(), jsonNanos / MEASURED_ROUNDS / 1_000,
+                binary.length, (double) binary.length / events.size(), binaryNanos / MEASURED_ROUNDS / 1_000);
+
+        assertTrue(binary.length * 4 < json.length,
+                "binary batch should be under a quarter of the JSON size: " + binary.length + " vs " + json.length);
+    }
+
+    private static byte[] encode(List<TraceSection> traces, List<MethodInfo> methods) {
+        BinaryBatchEncoder encoder = new BinaryBatchEncoder(IdGenerator.agentId(), methods, null);
+        encoder.add(new EventBatch(traces));
+        return encoder.toByteArray();
+    }
+
+    private static List<TraceEvent> realisticEvents() {
+        List<TraceEvent> events = new ArrayList<>();
+        Instant start = Instant.parse("2026-01-15T10:00:00Z");
+        IdGenerator.SpanAllocator spanIds = new IdGenerator.SpanAllocator();
+        long lamport = 1;
+        for (int r = 0; r < REQUESTS; r++) {
+            String traceId = IdGenerator.newTraceId();
+            RequestMetadata metadata = new RequestMetadata("POST", "/api/orders/" + r,
+                    Map.of("User-Agent", "Mozilla/5.0", "Content-Type", "application/json"), "10.0.0.12");
+            long[] spans = new long[SPANS_PER_REQUEST];
+            for (int s = 0; s < SPANS_PER_REQUEST; s++) {
+                spans[s] = spanIds.nextSpanId();
+            }
+            // Spans complete children first, as they are recorded
+            for (int s = SPANS_PER_REQUEST - 1; s >= 0; s--) {
+                boolean failed = s % 17 == 16;
+                events.add(new TraceEvent.Builder()
+                        .traceId(traceId)
+                        .eventType(EventType.SPAN)
+                        .timestamp(start.plusNanos(r * 5_000_000L + s * 37_000L))
+                        .durationNanos(1_000L + (SPANS_PER_REQUEST - s) * 12_345L)
+                        .outcome(failed ? SpanOutcome.EXCEPTION : SpanOutcome.OK)
+                        .methodId((r + s) % METHODS)
+                        .threadName("http-nio-8080-exec-" + (r % 4))
+                        .threadId(40L + r % 4)
+                        .sequenceNumber(SPANS_PER_REQUEST - s)
+                        .exceptionType(failed ? "java.lang.IllegalStateException" : null)
+                        .exceptionMessage(failed ? "order " + r + " is locked" : null)
+                        .requestMetadata(s == 0 ? metadata : null)
+                        .spanId(spans[s])
+                        .parentSpanId(s == 0 ? 0 : spans[(s - 1) / 2])
+                        .lamportClock(lamport++)
+                        .build());
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,108 @@
+package com.irbre.agent.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that timestamps never go backwards on a thread, are never handed
+ * out twice across threads, and order after what a caller sent.
+ */
+class HybridLogicalClockTest {
+
+    private static final int THREADS = 8;
+    private static final int TICKS_PER_THREAD = 100_000;
+
+    @Test
+    void ticksIncreaseAcrossRangesAndResets() {
+        long startMillis = System.currentTimeMillis();
+        HybridLogicalClock.Ticker ticker = new HybridLogicalClock.Ticker();
+        long last = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (i % 1000 == 0) {
+                ticker.reset();
+            }
+            long timestamp = ticker.tick();
+            assertTrue(timestamp > last, "tick " + i + " went backwards");
+            last = timestamp;
+        }
+        // Never behind the wall clock; other tests may have moved it ahead
+        assertTrue(HybridLogicalClock.physical(last) >= startMillis);
+    }
+
+    @Test
+    void ticksFollowAReceivedTimestamp() {
+        HybridLogicalClock.Ticker ticker = new HybridLogicalClock.Ticker();
+        ticker.tick();
+        // A caller whose clock runs ten seconds ahead
+        long remote = ((System.currentTimeMillis() + 10_000) << HybridLogicalClock.LOGICAL_BITS) + 7;
+        assertTrue(HybridLogicalClock.receive(remote));
+        ticker.reset();
+
+        long first = ticker.tick();
+        assertTrue(first > remote);
+        // Other threads' new ranges start after it too
+        assertTrue(new HybridLogicalClock.Ticker().tick() > remote);
+        // An older timestamp does not move the clock back
+        assertTrue(HybridLogicalClock.receive(remote - 1000));
+        ticker.reset();
+        assertTrue(ticker.tick() > first);
+    }
+
+    @Test
+    void timestampsTooFarAheadAreIgnored() {
+        long farAhead = (System.currentTimeMillis() + 3_600_000) << HybridLogicalClock.LOGICAL_BITS;
+        assertFalse(HybridLogicalClock.receive(farAhead));
+        assertFalse(HybridLogicalClock.receive(0));
+        assertFalse(HybridLogicalClock.receive(-1));
+
+        long timestamp = new HybridLogicalClock.Ticker().tick();
+        assertTrue(timestamp < farAhead);
+    }
+
+    @Test
+    void threadsNeverShareATimestamp() throws InterruptedException {
+        List<long[]> ticks = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long[] own = new long[TICKS_PER_THREAD];
+            ticks.add(own);
+            threads.add(new Thread(() -> {
+                HybridLogicalClock.Ticker ticker = new HybridLogicalClock.Ticker();
+                for (int i = 0; i < own.length; i++) {
+                    own[i] = ticker.tick();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Long> seen = new HashSet<>();
+        for (long[] own : ticks) {
+            for (int i = 0; i < own.length; i++) {
+                assertTrue(i == 0 || own[i] > own[i - 1]);
+                assertTrue(seen.add(own[i]), "timestamp " + own[i] + " handed out twice");
+            }
+        }
+        assertEquals(THREADS * TICKS_PER_THREAD, seen.size());
+    }
+
+    @Test
+    void headerValuesRoundTrip() {
+        long timestamp = new HybridLogicalClock.Ticker().tick();
+        assertEquals(timestamp, HybridLogicalClock.parse(HybridLogicalClock.format(timestamp)));
+        assertEquals(0, HybridLogicalClock.parse(null));
+        assertEquals(0, HybridLogicalClock.parse(""));
+        assertEquals(0, HybridLogicalClock.parse("not-a-clock"));
+        assertEquals(0, HybridLogicalClock.parse("123456789012345678901"));
+    }
+}
@@ -0,0 +1,54 @@
+package com.irbre.collector.configuration;
+
+import com.irbre.collector.dto.EventBatchDto;
+import com.irbre.collector.mapper.BinaryBatchDecoder;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Reads request bodies in the agent's binary batch format into EventBatchDto,
+ * so the ingest endpoint accepts them alongside JSON. Spring Boot registers
+ * HttpMessageConverter beans with MVC automatically.
+ */
+@Component
+public class BinaryBatchMessageConverter extends AbstractHttpMessageConverter<EventBatchDto> {
+
+    private final BinaryBatchDecoder decoder;
+
+    public BinaryBatchMessageConverter(BinaryBatchDecoder decoder) {
+        super(MediaType.parseMediaType(BinaryBatchDecoder.CONTENT_TYPE));
+        this.decoder = decoder;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return EventBatchDto.class.equals(clazz);
+    }
+
+    @Override
+    protected boolean canWrite(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected EventBatchDto readInternal(Class<? extends EventBatchDto> clazz, HttpInputMessage inputMessage)
+            throws IOException {
+        try {
+            return decoder.decode(inputMessage.getBody().readAllBytes());
+        } catch (IllegalArgumentException e) {
+            throw new HttpMessageNotReadableException("Invalid binary batch: " + e.getMessage(), e, inputMessage);
+        }
+    }
+
+    @Override
+    protected void writeInternal(EventBatchDto batch, HttpOutputMessage outputMessage) {
+        throw new HttpMessageNotWritableException("Binary batches are only read");
+    }
+}
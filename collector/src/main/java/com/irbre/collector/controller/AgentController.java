@@ -0,0 +1,45 @@
+package com.irbre.collector.controller;
+
+import com.irbre.collector.dto.AgentStatsDto;
+import com.irbre.collector.service.AgentStatsService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * REST controller for the agents reporting to this collector.
+ */
+@RestController
+@RequestMapping("/api/v1/agents")
+public class AgentController {
+
+    private final AgentStatsService agentStatsService;
+
+    public AgentController(AgentStatsService agentStatsService) {
+        this.agentStatsService = agentStatsService;
+    }
+
+    /**
+     * Latest self-telemetry of every agent.
+     * GET /api/v1/agents/stats
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<List<AgentStatsDto>> listStats() {
+        return ResponseEntity.ok(agentStatsService.getAll());
+    }
+
+    /**
+     * Latest self-telemetry of one agent.
+     * GET /api/v1/agents/{agentId}/stats
+     */
+    @GetMapping("/{agentId}/stats")
+    public ResponseEntity<AgentStatsDto> getStats(@PathVariable String agentId) {
+        return agentStatsService.get(agentId)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+}
@@ -3,16 +3,22 @@ package com.irbre.collector.controller;
 import com.irbre.collector.dto.EventBatchDto;
 import com.irbre.collector.dto.TraceListDto;
 import com.irbre.collector.dto.TraceResponseDto;
+import com.irbre.collector.dto.TraceSectionDto;
 import com.irbre.collector.entity.Trace;
 import com.irbre.collector.entity.TraceEvent;
+import com.irbre.collector.mapper.BinaryBatchDecoder;
 import com.irbre.collector.service.EventIngestService;
 import com.irbre.collector.service.TraceIndexer;
 import com.irbre.collector.service.TraceService;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
@@ -34,17 +40,26 @@ public class TraceController {
     }
 
     /**
-     * Ingest a batch of trace events from agents.
+     * Ingest a batch of trace events from agents, as JSON or in the binary batch format.
      * POST /api/v1/traces/ingest
      */
-    @PostMapping("/ingest")
+    @PostMapping(value = "/ingest", consumes = {MediaType.APPLICATION_JSON_VALUE, BinaryBatchDecoder.CONTENT_TYPE})
     public ResponseEntity<String> ingestEvents(@Valid @RequestBody EventBatchDto batchDto) {
-        logger.info("Received batch with {} events",
-                batchDto.getEvents() != null ? batchDto.getEvents().size() : 0);
+        logger.info("Received batch with {} events", countEvents(batchDto));
 
         try {
             eventIngestService.ingestBatch(batchDto);
             return ResponseEntity.ok("Batch ingested successfully");
+        } catch (IllegalArgumentException e) {
+            // The batch itself is invalid; resending it would fail the same way
+            logger.warn("Rejecting invalid batch: {}", e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid batch: " + e.getMessage());
+        } catch (TransientDataAccessException | DataAccessResourceFailureException
+                 | CannotCreateTransactionException e) {
+            // Not the batch's fault: the agent keeps it and tries again later
+            logger.error("Database unavailable while ingesting batch", e);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body("Database unavailable: " + e.getMessage());
         } catch (Exception e) {
             logger.error("Error ingesting batch", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -81,7 +96,18 @@ public class TraceController {
         return ResponseEntity.ok(traces);
     }
 
-
-
-
-}
\ No newline at end of file
+    /**
+     * Events in a batch, across its per-trace sections and the flat list.
+     */
+    private static int countEvents(EventBatchDto batchDto) {
+        int count = batchDto.getEvents() != null ? batchDto.getEvents().size() : 0;
+        if (batchDto.getTraces() != null) {
+            for (TraceSectionDto section : batchDto.getTraces()) {
+                if (section.getEvents() != null) {
+                    count += section.getEvents().size();
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,50 @@
+package com.irbre.collector.dto;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latest self-telemetry summary reported by an agent.
+ * Counters are totals since the agent started; gauges are as of {@link #getReceivedAt()}.
+ */
+public class AgentStatsDto {
+
+    private String agentId;
+    private Instant receivedAt;
+    private Map<String, Long> stats = new LinkedHashMap<>();
+
+    public AgentStatsDto() {
+    }
+
+    public AgentStatsDto(String agentId, Instant receivedAt, Map<String, Long> stats) {
+        this.agentId = agentId;
+        this.receivedAt = receivedAt;
+        this.stats = stats != null ? new LinkedHashMap<>(stats) : new LinkedHashMap<>();
+    }
+
+    // Getters and Setters
+    public String getAgentId() {
+        return agentId;
+    }
+
+    public void setAgentId(String agentId) {
+        this.agentId = agentId;
+    }
+
+    public Instant getReceivedAt() {
+        return receivedAt;
+    }
+
+    public void setReceivedAt(Instant receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    public Map<String, Long> getStats() {
+        return stats;
+    }
+
+    public void setStats(Map<String, Long> stats) {
+        this.stats = stats;
+    }
+}
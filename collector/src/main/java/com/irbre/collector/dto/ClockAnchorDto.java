@@ -0,0 +1,47 @@
+package com.irbre.collector.dto;
+
+import java.time.Instant;
+
+/**
+ * A batch's clock anchor: the agent's wall clock and System.nanoTime() read
+ * at the same moment. Events carry only their nanoTime start; the collector
+ * turns it into an absolute timestamp against the anchor of its batch.
+ */
+public class ClockAnchorDto {
+
+    private long epochNanos;
+    private long nanoTime;
+
+    public ClockAnchorDto() {
+    }
+
+    public ClockAnchorDto(long epochNanos, long nanoTime) {
+        this.epochNanos = epochNanos;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * The absolute time of a nanoTime reading taken by the same agent JVM.
+     */
+    public Instant toInstant(long startNanos) {
+        long epoch = epochNanos + (startNanos - nanoTime);
+        return Instant.ofEpochSecond(Math.floorDiv(epoch, 1_000_000_000L), Math.floorMod(epoch, 1_000_000_000L));
+    }
+
+    // Getters and Setters
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public void setEpochNanos(long epochNanos) {
+        this.epochNanos = epochNanos;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public void setNanoTime(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+}
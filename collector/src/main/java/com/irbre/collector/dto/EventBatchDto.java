@@ -4,10 +4,14 @@ import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotNull;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * DTO for a batch of trace events received from agents.
  * Used in the POST /api/v1/traces/ingest endpoint.
+ *
+ * Agents send events grouped into per-trace sections ({@link #getTraces()});
+ * a flat {@link #getEvents()} list is still accepted and grouped on ingest.
  */
 public class EventBatchDto {
 
@@ -15,6 +19,21 @@ public class EventBatchDto {
     @Valid
     private List<TraceEventDto> events = new ArrayList<>();
 
+    @Valid
+    private List<TraceSectionDto> traces = new ArrayList<>();
+
+    // Sending agent instance; scopes the method IDs in this batch
+    private String agentId;
+
+    // Method dictionary entries the agent has not seen acknowledged yet
+    private List<MethodDefinitionDto> methods = new ArrayList<>();
+
+    // Agent self-telemetry summary, sent with a batch once per telemetry interval
+    private Map<String, Long> agentStats;
+
+    // Resolves the events' nanoTime starts to absolute timestamps
+    private ClockAnchorDto clockAnchor;
+
     public EventBatchDto() {
     }
 
@@ -31,10 +50,51 @@ public class EventBatchDto {
         this.events = events;
     }
 
+    public List<TraceSectionDto> getTraces() {
+        return traces;
+    }
+
+    public void setTraces(List<TraceSectionDto> traces) {
+        this.traces = traces;
+    }
+
+    public String getAgentId() {
+        return agentId;
+    }
+
+    public void setAgentId(String agentId) {
+        this.agentId = agentId;
+    }
+
+    public List<MethodDefinitionDto> getMethods() {
+        return methods;
+    }
+
+    public void setMethods(List<MethodDefinitionDto> methods) {
+        this.methods = methods;
+    }
+
+    public Map<String, Long> getAgentStats() {
+        return agentStats;
+    }
+
+    public void setAgentStats(Map<String, Long> agentStats) {
+        this.agentStats = agentStats;
+    }
+
+    public ClockAnchorDto getClockAnchor() {
+        return clockAnchor;
+    }
+
+    public void setClockAnchor(ClockAnchorDto clockAnchor) {
+        this.clockAnchor = clockAnchor;
+    }
+
     @Override
     public String toString() {
         return "EventBatchDto{" +
                 "events=" + (events != null ? events.size() : 0) +
+                ", traces=" + (traces != null ? traces.size() : 0) +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.irbre.collector.dto;
+
+/**
+ * DTO for one entry of an agent's method dictionary (method ID -> names).
+ */
+public class MethodDefinitionDto {
+
+    private Integer methodId;
+    private String className;
+    private String methodName;
+    private String descriptor;
+
+    public MethodDefinitionDto() {
+    }
+
+    // Getters and Setters
+    public Integer getMethodId() {
+        return methodId;
+    }
+
+    public void setMethodId(Integer methodId) {
+        this.methodId = methodId;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public void setMethodName(String methodName) {
+        this.methodName = methodName;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public void setDescriptor(String descriptor) {
+        this.descriptor = descriptor;
+    }
+}
@@ -15,9 +15,18 @@ public class TraceEventDto {
     @NotBlank(message = "Event type cannot be blank")
     private String eventType;
 
-    @NotNull(message = "Timestamp cannot be null")
+    // Absolute start time; agents usually send startNanos instead and it is rebuilt on ingest
     private Instant timestamp;
 
+    // Agent System.nanoTime() at the start, relative to the batch's clock anchor
+    private Long startNanos;
+
+    // SPAN events only
+    private Long durationNanos;
+    private String outcome;
+
+    // Resolved to className/methodName through the agent's method dictionary
+    private Integer methodId;
     private String className;
     private String methodName;
     private String threadName;
@@ -61,6 +70,38 @@ public class TraceEventDto {
         this.timestamp = timestamp;
     }
 
+    public Long getStartNanos() {
+        return startNanos;
+    }
+
+    public void setStartNanos(Long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public Long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public void setDurationNanos(Long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(String outcome) {
+        this.outcome = outcome;
+    }
+
+    public Integer getMethodId() {
+        return methodId;
+    }
+
+    public void setMethodId(Integer methodId) {
+        this.methodId = methodId;
+    }
+
     public String getClassName() {
         return className;
     }
@@ -125,12 +166,37 @@ public class TraceEventDto {
         this.requestMetadata = requestMetadata;
     }
 
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public void setSpanId(String spanId) {
+        this.spanId = spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public void setParentSpanId(String parentSpanId) {
+        this.parentSpanId = parentSpanId;
+    }
+
+    public Long getLamportClock() {
+        return lamportClock;
+    }
+
+    public void setLamportClock(Long lamportClock) {
+        this.lamportClock = lamportClock;
+    }
+
     @Override
     public String toString() {
         return "TraceEventDto{" +
                 "traceId='" + traceId + '\'' +
                 ", eventType='" + eventType + '\'' +
                 ", timestamp=" + timestamp +
+                ", durationNanos=" + durationNanos +
                 ", className='" + className + '\'' +
                 ", methodName='" + methodName + '\'' +
                 ", sequenceNumber=" + sequenceNumber +
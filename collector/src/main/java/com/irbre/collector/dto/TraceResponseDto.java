@@ -19,6 +19,96 @@ public class TraceResponseDto {
     private Boolean distributedTrace;
     private Integer traceDepth;
     private Map<String, List<String>> spanHierarchy;
+    // Span IDs from the longest root span down through the longest child at each level
+    private List<String> criticalPath;
 
-}
+    // Getters & Setters
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public void setEventCount(int eventCount) {
+        this.eventCount = eventCount;
+    }
+
+    public RequestMetadataDto getRequestMetadata() {
+        return requestMetadata;
+    }
+
+    public void setRequestMetadata(RequestMetadataDto requestMetadata) {
+        this.requestMetadata = requestMetadata;
+    }
+
+    public List<TraceEventDto> getEvents() {
+        return events;
+    }
 
+    public void setEvents(List<TraceEventDto> events) {
+        this.events = events;
+    }
+
+    public String getRootSpanId() {
+        return rootSpanId;
+    }
+
+    public void setRootSpanId(String rootSpanId) {
+        this.rootSpanId = rootSpanId;
+    }
+
+    public Boolean getDistributedTrace() {
+        return distributedTrace;
+    }
+
+    public void setDistributedTrace(Boolean distributedTrace) {
+        this.distributedTrace = distributedTrace;
+    }
+
+    public Integer getTraceDepth() {
+        return traceDepth;
+    }
+
+    public void setTraceDepth(Integer traceDepth) {
+        this.traceDepth = traceDepth;
+    }
+
+    public Map<String, List<String>> getSpanHierarchy() {
+        return spanHierarchy;
+    }
+
+    public void setSpanHierarchy(Map<String, List<String>> spanHierarchy) {
+        this.spanHierarchy = spanHierarchy;
+    }
+
+    public List<String> getCriticalPath() {
+        return criticalPath;
+    }
+
+    public void setCriticalPath(List<String> criticalPath) {
+        this.criticalPath = criticalPath;
+    }
+}
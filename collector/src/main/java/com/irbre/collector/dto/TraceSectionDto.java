@@ -0,0 +1,54 @@
+package com.irbre.collector.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DTO for the events of one trace within an EventBatchDto.
+ * Agents group each batch by trace, so the trace is resolved once per section.
+ */
+public class TraceSectionDto {
+
+    @NotBlank(message = "Trace ID cannot be blank")
+    private String traceId;
+
+    @NotNull(message = "Events list cannot be null")
+    @Valid
+    private List<TraceEventDto> events = new ArrayList<>();
+
+    public TraceSectionDto() {
+    }
+
+    public TraceSectionDto(String traceId, List<TraceEventDto> events) {
+        this.traceId = traceId;
+        this.events = events != null ? new ArrayList<>(events) : new ArrayList<>();
+    }
+
+    // Getters and Setters
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
+
+    public List<TraceEventDto> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<TraceEventDto> events) {
+        this.events = events;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceSectionDto{" +
+                "traceId='" + traceId + '\'' +
+                ", events=" + (events != null ? events.size() : 0) +
+                '}';
+    }
+}
@@ -0,0 +1,84 @@
+package com.irbre.collector.entity;
+
+import jakarta.persistence.*;
+
+/**
+ * Entity storing an agent's method dictionary entry, so events that only carry
+ * a method ID can be resolved to class and method names.
+ */
+@Entity
+@Table(name = "method_definitions",
+        uniqueConstraints = @UniqueConstraint(name = "uk_agent_method", columnNames = {"agent_id", "method_id"}))
+public class MethodDefinition {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "agent_id", nullable = false, length = 32)
+    private String agentId;
+
+    @Column(name = "method_id", nullable = false)
+    private Integer methodId;
+
+    @Column(length = 500)
+    private String className;
+
+    @Column(length = 200)
+    private String methodName;
+
+    @Column(length = 1000)
+    private String descriptor;
+
+    public MethodDefinition() {
+    }
+
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getAgentId() {
+        return agentId;
+    }
+
+    public void setAgentId(String agentId) {
+        this.agentId = agentId;
+    }
+
+    public Integer getMethodId() {
+        return methodId;
+    }
+
+    public void setMethodId(Integer methodId) {
+        this.methodId = methodId;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public void setMethodName(String methodName) {
+        this.methodName = methodName;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public void setDescriptor(String descriptor) {
+        this.descriptor = descriptor;
+    }
+}
@@ -49,6 +49,13 @@ public class Trace {
     @Column(name = "service_count")
     private Integer serviceCount = 1;  // Number of services involved
 
+    // Start of the earliest event and end of the latest span
+    @Column(name = "start_time")
+    private Instant startTime;
+
+    @Column(name = "end_time")
+    private Instant endTime;
+
     public Trace() {
         this.createdAt = Instant.now();
         this.updatedAt = Instant.now();
@@ -135,4 +142,44 @@ public class Trace {
     public void setEventCount(Integer eventCount) {
         this.eventCount = eventCount;
     }
+
+    public String getRootSpanId() {
+        return rootSpanId;
+    }
+
+    public void setRootSpanId(String rootSpanId) {
+        this.rootSpanId = rootSpanId;
+    }
+
+    public Boolean getDistributedTrace() {
+        return distributedTrace;
+    }
+
+    public void setDistributedTrace(Boolean distributedTrace) {
+        this.distributedTrace = distributedTrace;
+    }
+
+    public Integer getServiceCount() {
+        return serviceCount;
+    }
+
+    public void setServiceCount(Integer serviceCount) {
+        this.serviceCount = serviceCount;
+    }
+
+    public Instant getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(Instant startTime) {
+        this.startTime = startTime;
+    }
+
+    public Instant getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(Instant endTime) {
+        this.endTime = endTime;
+    }
 }
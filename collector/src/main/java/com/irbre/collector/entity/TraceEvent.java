@@ -33,6 +33,14 @@ public class TraceEvent {
     @Column(nullable = false)
     private Instant timestamp;
 
+    // SPAN events only: duration measured by the agent and how the call completed
+    @Column(name = "duration_nanos")
+    private Long durationNanos;
+
+    @Column(length = 20)
+    @Enumerated(EnumType.STRING)
+    private Outcome outcome;
+
     @Column(length = 500)
     private String className;
 
@@ -60,6 +68,7 @@ public class TraceEvent {
     @Column(name = "parent_span_id")
     private String parentSpanId;
 
+    // Hybrid logical clock of the agent: wall-clock millis << 16 | logical counter
     @Column(name = "lamport_clock")
     private Long lamportClock;
 
@@ -100,6 +109,22 @@ public class TraceEvent {
         this.timestamp = timestamp;
     }
 
+    public Long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public void setDurationNanos(Long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+
     public String getClassName() {
         return className;
     }
@@ -156,6 +181,30 @@ public class TraceEvent {
         this.exceptionMessage = exceptionMessage;
     }
 
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public void setSpanId(String spanId) {
+        this.spanId = spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public void setParentSpanId(String parentSpanId) {
+        this.parentSpanId = parentSpanId;
+    }
+
+    public Long getLamportClock() {
+        return lamportClock;
+    }
+
+    public void setLamportClock(Long lamportClock) {
+        this.lamportClock = lamportClock;
+    }
+
     /**
      * Event type enum for collector.
      */
@@ -163,6 +212,15 @@ public class TraceEvent {
         METHOD_ENTRY,
         METHOD_EXIT,
         EXCEPTION,
-        HTTP_REQUEST
+        HTTP_REQUEST,
+        SPAN
+    }
+
+    /**
+     * How a SPAN completed.
+     */
+    public enum Outcome {
+        OK,
+        EXCEPTION
     }
 }
\ No newline at end of file
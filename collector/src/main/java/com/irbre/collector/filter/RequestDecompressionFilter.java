@@ -0,0 +1,234 @@
+package com.irbre.collector.filter;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses agent batch bodies sent with {@code Content-Encoding: gzip}
+ * or {@code deflate} on the ingest endpoint. server.compression only covers
+ * responses, so request bodies are handled here before message conversion.
+ *
+ * Other encodings are rejected with 415 so agents fall back to sending
+ * uncompressed, and a gzip body without a valid header with 400. The
+ * decompressed size is capped to guard against compression bombs.
+ */
+@Component
+public class RequestDecompressionFilter extends OncePerRequestFilter {
+    private static final Logger logger = LoggerFactory.getLogger(RequestDecompressionFilter.class);
+
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String INGEST_PATH = "/api/v1/traces/ingest";
+
+    private final long maxDecompressedBytes;
+
+    public RequestDecompressionFilter(
+            @Value("${irbre.ingest.max-decompressed-bytes:67108864}") long maxDecompressedBytes) {
+        this.maxDecompressedBytes = maxDecompressedBytes;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !INGEST_PATH.equals(request.getRequestURI()) || request.getHeader(CONTENT_ENCODING) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String encoding = request.getHeader(CONTENT_ENCODING).trim().toLowerCase();
+        InputStream body;
+        switch (encoding) {
+            case "gzip", "x-gzip" -> {
+                try {
+                    // Reads and checks the gzip header
+                    body = new GZIPInputStream(request.getInputStream(), 8192);
+                } catch (IOException e) {
+                    logger.warn("Rejecting ingest request with malformed {} body: {}", encoding, e.toString());
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed " + encoding + " body");
+                    return;
+                }
+            }
+            case "deflate" -> body = new InflaterInputStream(request.getInputStream());
+            case "identity" -> {
+                chain.doFilter(request, response);
+                return;
+            }
+            default -> {
+                logger.warn("Rejecting ingest request with unsupported Content-Encoding: {}", encoding);
+                response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                        "Unsupported Content-Encoding: " + encoding);
+                return;
+            }
+        }
+        chain.doFilter(new DecompressedRequest(request, new LimitedInputStream(body, maxDecompressedBytes)), response);
+    }
+
+    /**
+     * Presents the decompressed body as the request body, without the encoding header
+     * or the (compressed) content length.
+     */
+    private static final class DecompressedRequest extends HttpServletRequestWrapper {
+        private final ServletInputStream body;
+
+        DecompressedRequest(HttpServletRequest request, InputStream body) {
+            super(request);
+            this.body = new DelegatingServletInputStream(body);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return body;
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            String charset = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(body,
+                    charset != null ? Charset.forName(charset) : StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (CONTENT_ENCODING.equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (CONTENT_ENCODING.equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)) {
+                return Collections.emptyEnumeration();
+            }
+            return super.getHeaders(name);
+        }
+    }
+
+    /**
+     * A blocking stream over the decompressed body. It is always ready, so a
+     * read listener is run to completion on the calling thread.
+     */
+    private static final class DelegatingServletInputStream extends ServletInputStream {
+        private final InputStream in;
+        private boolean finished;
+
+        DelegatingServletInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            finished = b < 0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            finished = n < 0;
+            return n;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            try {
+                readListener.onDataAvailable();
+                if (finished) {
+                    readListener.onAllDataRead();
+                }
+            } catch (Throwable t) {
+                readListener.onError(t);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Fails the read once more than {@code limit} decompressed bytes have been produced.
+     */
+    private static final class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private final long limit;
+        private long count;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            count += n;
+            if (count > limit) {
+                throw new IOException("Decompressed request body exceeds " + limit + " bytes");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.irbre.collector.mapper;
+
+import com.irbre.collector.dto.ClockAnchorDto;
+import com.irbre.collector.dto.EventBatchDto;
+import com.irbre.collector.dto.MethodDefinitionDto;
+import com.irbre.collector.dto.RequestMetadataDto;
+import com.irbre.collector.dto.TraceEventDto;
+import com.irbre.collector.dto.TraceSectionDto;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes event batches sent in the agent's compact binary wire format
+ * ({@value #CONTENT_TYPE}) into the same EventBatchDto the JSON body binds to.
+ *
+ * The layout is defined by the agent's BinaryBatchEncoder: varint integers,
+ * a per-batch string dictionary referenced by index, a request metadata
+ * table, and start times, sequence numbers, span IDs and Lamport clocks
+ * delta-encoded against the previous event. From version 2 start times are
+ * agent nanoTime readings, resolved on ingest against the clock anchor in
+ * the header; version 1 batches, e.g. replayed from an older agent's spool,
+ * carry epoch nanos. An event flagged TRACE opens a
+ * new trace section; the events after it belong to the same trace. Bytes
+ * after the last event, if any, hold the agent's self-telemetry summary.
+ */
+@Component
+public class BinaryBatchDecoder {
+
+    public static final String CONTENT_TYPE = "application/x-irbre-batch";
+
+    private static final int FLAG_PARENT = 1;
+    private static final int FLAG_DURATION = 1 << 1;
+    private static final int FLAG_OUTCOME = 1 << 2;
+    private static final int FLAG_THREAD = 1 << 3;
+    private static final int FLAG_EXCEPTION = 1 << 4;
+    private static final int FLAG_METADATA = 1 << 5;
+    private static final int FLAG_LAMPORT = 1 << 6;
+    private static final int FLAG_TRACE = 1 << 7;
+
+    private static final byte[] MAGIC = {'I', 'R', 'B', 'B'};
+    private static final int VERSION = 2;
+
+    /**
+     * Decode one batch body.
+     *
+     * @throws IllegalArgumentException if the body is not a well-formed batch
+     */
+    public EventBatchDto decode(byte[] body) {
+        Reader in = new Reader(body);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IllegalArgumentException("Not an IRBRE binary batch");
+            }
+        }
+        int version = in.readByte();
+        if (version != 1 && version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary batch version: " + version);
+        }
+
+        EventBatchDto batch = new EventBatchDto();
+        batch.setAgentId(in.readString());
+        ClockAnchorDto anchor = null;
+        if (version >= 2) {
+            long epochNanos = in.readZigzag();
+            anchor = new ClockAnchorDto(epochNanos, in.readZigzag());
+            batch.setClockAnchor(anchor);
+        }
+
+        int methodCount = in.readCount();
+        List<MethodDefinitionDto> methods = new ArrayList<>(methodCount);
+        for (int i = 0; i < methodCount; i++) {
+            MethodDefinitionDto method = new MethodDefinitionDto();
+            method.setMethodId((int) in.readVarint());
+            method.setClassName(in.readString());
+            method.setMethodName(in.readString());
+            method.setDescriptor(in.readString());
+            methods.add(method);
+        }
+        batch.setMethods(methods);
+
+        String[] strings = new String[in.readCount()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+
+        RequestMetadataDto[] metadata = new RequestMetadataDto[in.readCount()];
+        for (int i = 0; i < metadata.length; i++) {
+            RequestMetadataDto dto = new RequestMetadataDto();
+            dto.setHttpMethod(in.readRef(strings));
+            dto.setUrl(in.readRef(strings));
+            int headerCount = in.readCount();
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int h = 0; h < headerCount; h++) {
+                headers.put(in.readRef(strings), in.readRef(strings));
+            }
+            dto.setHeaders(headers);
+            in.readRef(strings); // client IP, not part of the collector's metadata
+            metadata[i] = dto;
+        }
+
+        int eventCount = in.readCount();
+        List<TraceSectionDto> traces = new ArrayList<>();
+        TraceSectionDto section = null;
+        long timestamp = anchor != null ? anchor.getNanoTime() : 0;
+        long sequence = 0;
+        long spanId = 0;
+        long lamport = 0;
+        for (int i = 0; i < eventCount; i++) {
+            int flags = in.readByte();
+            if ((flags & FLAG_TRACE) != 0) {
+                section = new TraceSectionDto(in.readRef(strings), null);
+                traces.add(section);
+            } else if (section == null) {
+                throw new IllegalArgumentException("First event of a binary batch has no trace ID");
+            }
+            TraceEventDto event = new TraceEventDto();
+            event.setTraceId(section.getTraceId());
+            event.setEventType(in.readRef(strings));
+            timestamp += in.readZigzag();
+            if (anchor != null) {
+                event.setStartNanos(timestamp);
+            } else {
+                event.setTimestamp(Instant.ofEpochSecond(Math.floorDiv(timestamp, 1_000_000_000L),
+                        Math.floorMod(timestamp, 1_000_000_000L)));
+            }
+            sequence += in.readZigzag();
+            event.setSequenceNumber((int) sequence);
+            int methodId = (int) in.readZigzag();
+            event.setMethodId(methodId >= 0 ? methodId : null);
+            spanId += in.readZigzag();
+            event.setSpanId(toHex(spanId));
+            if ((flags & FLAG_PARENT) != 0) {
+                event.setParentSpanId(toHex(spanId + in.readZigzag()));
+            }
+            if ((flags & FLAG_DURATION) != 0) {
+                event.setDurationNanos(in.readVarint());
+            }
+            if ((flags & FLAG_OUTCOME) != 0) {
+                event.setOutcome(in.readRef(strings));
+            }
+            if ((flags & FLAG_THREAD) != 0) {
+                event.setThreadName(in.readRef(strings));
+                event.setThreadId(in.readVarint());
+            }
+            if ((flags & FLAG_EXCEPTION) != 0) {
+                event.setExceptionType(in.readRef(strings));
+                event.setExceptionMessage(in.readRef(strings));
+            }
+            if ((flags & FLAG_METADATA) != 0) {
+                int index = in.readCount();
+                if (index >= metadata.length) {
+                    throw new IllegalArgumentException("Request metadata index out of range: " + index);
+                }
+                event.setRequestMetadata(metadata[index]);
+            }
+            if ((flags & FLAG_LAMPORT) != 0) {
+                lamport += in.readZigzag();
+                event.setLamportClock(lamport);
+            }
+            section.getEvents().add(event);
+        }
+        batch.setTraces(traces);
+
+        if (in.hasRemaining()) {
+            int statCount = in.readCount();
+            Map<String, Long> stats = new LinkedHashMap<>();
+            for (int i = 0; i < statCount; i++) {
+                stats.put(in.readString(), in.readZigzag());
+            }
+            batch.setAgentStats(stats);
+        }
+        return batch;
+    }
+
+    /**
+     * Span IDs travel as 16 hex characters in the JSON format; 0 means "no span".
+     */
+    private static String toHex(long spanId) {
+        return spanId == 0 ? null : String.format("%016x", spanId);
+    }
+
+    /**
+     * Bounds-checked cursor over the body.
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int pos;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasRemaining() {
+            return pos < bytes.length;
+        }
+
+        int readByte() {
+            if (pos >= bytes.length) {
+                throw new IllegalArgumentException("Truncated binary batch");
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in binary batch");
+        }
+
+        long readZigzag() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * A count or index, which can never exceed the remaining body.
+         */
+        int readCount() {
+            long value = readVarint();
+            if (value < 0 || value > bytes.length) {
+                throw new IllegalArgumentException("Invalid count in binary batch: " + value);
+            }
+            return (int) value;
+        }
+
+        String readString() {
+            int length = readCount();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > bytes.length - pos) {
+                throw new IllegalArgumentException("Truncated binary batch");
+            }
+            String value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        String readRef(String[] strings) {
+            int ref = readCount();
+            if (ref == 0) {
+                return null;
+            }
+            if (ref > strings.length) {
+                throw new IllegalArgumentException("String reference out of range: " + ref);
+            }
+            return strings[ref - 1];
+        }
+    }
+}
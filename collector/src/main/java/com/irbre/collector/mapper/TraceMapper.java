@@ -4,9 +4,11 @@ import com.irbre.collector.dto.*;
 import com.irbre.collector.entity.RequestMetadata;
 import com.irbre.collector.entity.Trace;
 import com.irbre.collector.entity.TraceEvent;
+import com.irbre.collector.service.TraceIndexer;
 import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Mapper for converting between entities and DTOs.
@@ -14,6 +16,12 @@ import java.util.HashMap;
 @Component
 public class TraceMapper {
 
+    private final TraceIndexer traceIndexer;
+
+    public TraceMapper(TraceIndexer traceIndexer) {
+        this.traceIndexer = traceIndexer;
+    }
+
     /**
      * Convert Trace entity to full TraceResponseDto.
      */
@@ -32,6 +40,14 @@ public class TraceMapper {
                 .map(this::toDto)
                 .toList());
 
+        // Span structure, rebuilt from the events' span and parent span IDs
+        List<TraceEvent> events = trace.getEvents();
+        dto.setRootSpanId(trace.getRootSpanId());
+        dto.setDistributedTrace(trace.getDistributedTrace());
+        dto.setTraceDepth(traceIndexer.calculateTraceDepth(events));
+        dto.setSpanHierarchy(traceIndexer.buildSpanHierarchy(events));
+        dto.setCriticalPath(traceIndexer.getCriticalPath(events));
+
         return dto;
     }
 
@@ -61,6 +77,8 @@ public class TraceMapper {
         dto.setTraceId(event.getTrace().getTraceId());
         dto.setEventType(event.getEventType().name());
         dto.setTimestamp(event.getTimestamp());
+        dto.setDurationNanos(event.getDurationNanos());
+        dto.setOutcome(event.getOutcome() != null ? event.getOutcome().name() : null);
         dto.setClassName(event.getClassName());
         dto.setMethodName(event.getMethodName());
         dto.setThreadName(event.getThreadName());
@@ -68,6 +86,9 @@ public class TraceMapper {
         dto.setSequenceNumber(event.getSequenceNumber());
         dto.setExceptionType(event.getExceptionType());
         dto.setExceptionMessage(event.getExceptionMessage());
+        dto.setSpanId(event.getSpanId());
+        dto.setParentSpanId(event.getParentSpanId());
+        dto.setLamportClock(event.getLamportClock());
         return dto;
     }
 
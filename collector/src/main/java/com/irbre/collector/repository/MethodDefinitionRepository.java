@@ -0,0 +1,37 @@
+package com.irbre.collector.repository;
+
+import com.irbre.collector.entity.MethodDefinition;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+/**
+ * Repository for agent method dictionary entries.
+ */
+@Repository
+public interface MethodDefinitionRepository extends JpaRepository<MethodDefinition, Long> {
+
+    /**
+     * Find a dictionary entry by agent instance and method ID.
+     */
+    Optional<MethodDefinition> findByAgentIdAndMethodId(String agentId, Integer methodId);
+
+    /**
+     * Insert a dictionary entry unless the agent already has one for this
+     * method ID. Concurrent batches from one agent may carry the same entries;
+     * the losing inserts do nothing instead of failing the transaction.
+     *
+     * @return the number of rows inserted, 0 or 1
+     */
+    @Modifying
+    @Query(value = "INSERT INTO method_definitions (agent_id, method_id, class_name, method_name, descriptor) "
+            + "VALUES (:agentId, :methodId, :className, :methodName, :descriptor) "
+            + "ON CONFLICT (agent_id, method_id) DO NOTHING", nativeQuery = true)
+    int insertIfAbsent(@Param("agentId") String agentId, @Param("methodId") Integer methodId,
+                       @Param("className") String className, @Param("methodName") String methodName,
+                       @Param("descriptor") String descriptor);
+}
@@ -39,10 +39,10 @@ public interface TraceEventRepository extends JpaRepository<TraceEvent, Long> {
     long countByTraceId(@Param("traceId") Long traceId);
 
     /**
-     * Find all exception events for a trace.
+     * Find all exception events for a trace, including spans that completed by throwing.
      * @param traceId The trace ID string
      * @return List of exception events
      */
-    @Query("SELECT te FROM TraceEvent te WHERE te.trace.traceId = :traceId AND te.eventType = 'EXCEPTION' ORDER BY te.sequenceNumber ASC")
+    @Query("SELECT te FROM TraceEvent te WHERE te.trace.traceId = :traceId AND (te.eventType = 'EXCEPTION' OR te.outcome = 'EXCEPTION') ORDER BY te.sequenceNumber ASC")
     List<TraceEvent> findExceptionEventsByTraceId(@Param("traceId") String traceId);
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package com.irbre.collector.service;
+
+import com.irbre.collector.dto.AgentStatsDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the most recent self-telemetry summary each agent sent with its batches,
+ * so agent overhead and data loss can be monitored from the collector.
+ */
+@Service
+public class AgentStatsService {
+    private static final Logger logger = LoggerFactory.getLogger(AgentStatsService.class);
+
+    // agentId -> latest summary; held in memory, agents resend every telemetry interval
+    private final Map<String, AgentStatsDto> latest = new ConcurrentHashMap<>();
+
+    public void record(String agentId, Map<String, Long> stats) {
+        if (agentId == null || stats == null || stats.isEmpty()) {
+            return;
+        }
+        latest.put(agentId, new AgentStatsDto(agentId, Instant.now(), stats));
+        logger.info("Agent {} stats: {}", agentId, stats);
+    }
+
+    public List<AgentStatsDto> getAll() {
+        List<AgentStatsDto> all = new ArrayList<>(latest.values());
+        all.sort(Comparator.comparing(AgentStatsDto::getAgentId));
+        return all;
+    }
+
+    public Optional<AgentStatsDto> get(String agentId) {
+        return Optional.ofNullable(latest.get(agentId));
+    }
+}
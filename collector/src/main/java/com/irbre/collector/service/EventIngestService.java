@@ -1,8 +1,10 @@
 package com.irbre.collector.service;
 
+import com.irbre.collector.dto.ClockAnchorDto;
 import com.irbre.collector.dto.EventBatchDto;
 import com.irbre.collector.dto.RequestMetadataDto;
 import com.irbre.collector.dto.TraceEventDto;
+import com.irbre.collector.dto.TraceSectionDto;
 import com.irbre.collector.entity.RequestMetadata;
 import com.irbre.collector.entity.Trace;
 import com.irbre.collector.entity.TraceEvent;
@@ -12,7 +14,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -23,11 +29,16 @@ public class EventIngestService {
     private static final Logger logger = LoggerFactory.getLogger(EventIngestService.class);
 
     private final TraceRepository traceRepository;
-    @Autowired
-    private TraceIndexer traceIndexer;
+    private final MethodDictionaryService methodDictionaryService;
+    private final TraceIndexer traceIndexer;
+    private final AgentStatsService agentStatsService;
 
-    public EventIngestService(TraceRepository traceRepository) {
+    public EventIngestService(TraceRepository traceRepository, MethodDictionaryService methodDictionaryService,
+                              TraceIndexer traceIndexer, AgentStatsService agentStatsService) {
         this.traceRepository = traceRepository;
+        this.methodDictionaryService = methodDictionaryService;
+        this.traceIndexer = traceIndexer;
+        this.agentStatsService = agentStatsService;
     }
 
     /**
@@ -84,25 +95,96 @@ public class EventIngestService {
 //    }
     @Transactional
     public void ingestBatch(EventBatchDto batchDto) {
-        String traceId = batchDto.getTraceId();
+        String agentId = batchDto.getAgentId();
 
-        // Find or create trace
+        // New dictionary entries first, so events in this batch can be resolved
+        methodDictionaryService.register(agentId, batchDto.getMethods());
+        agentStatsService.record(agentId, batchDto.getAgentStats());
+
+        Map<String, List<TraceEventDto>> traces = groupByTrace(batchDto);
+        int eventCount = 0;
+        for (Map.Entry<String, List<TraceEventDto>> entry : traces.entrySet()) {
+            ingestTrace(agentId, entry.getKey(), entry.getValue());
+            eventCount += entry.getValue().size();
+        }
+
+        logger.info("Ingested {} events into {} traces", eventCount, traces.size());
+    }
+
+    /**
+     * Merge the batch's trace sections, and any flat events from agents that
+     * do not group by trace, into one event list per trace ID. Timestamps are
+     * rebuilt from the batch's clock anchor on the way.
+     */
+    private Map<String, List<TraceEventDto>> groupByTrace(EventBatchDto batchDto) {
+        ClockAnchorDto anchor = batchDto.getClockAnchor();
+        Map<String, List<TraceEventDto>> traces = new LinkedHashMap<>();
+        if (batchDto.getTraces() != null) {
+            for (TraceSectionDto section : batchDto.getTraces()) {
+                List<TraceEventDto> events = traces.computeIfAbsent(section.getTraceId(), id -> new ArrayList<>());
+                for (TraceEventDto eventDto : section.getEvents()) {
+                    if (resolveTimestamp(eventDto, anchor)) {
+                        events.add(eventDto);
+                    }
+                }
+            }
+        }
+        if (batchDto.getEvents() != null) {
+            for (TraceEventDto eventDto : batchDto.getEvents()) {
+                String traceId = eventDto.getTraceId();
+                if (traceId == null || traceId.isEmpty()) {
+                    logger.warn("Skipping event with null/empty traceId");
+                    continue;
+                }
+                if (resolveTimestamp(eventDto, anchor)) {
+                    traces.computeIfAbsent(traceId, id -> new ArrayList<>()).add(eventDto);
+                }
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * Turn the event's nanoTime start into an absolute timestamp, unless it
+     * already has one. Returns false for an event with neither.
+     */
+    private boolean resolveTimestamp(TraceEventDto eventDto, ClockAnchorDto anchor) {
+        if (eventDto.getTimestamp() != null) {
+            return true;
+        }
+        if (eventDto.getStartNanos() == null || anchor == null) {
+            logger.warn("Skipping event without timestamp in trace {}", eventDto.getTraceId());
+            return false;
+        }
+        eventDto.setTimestamp(anchor.toInstant(eventDto.getStartNanos()));
+        return true;
+    }
+
+    /**
+     * Append one trace's events with a single trace lookup and save.
+     */
+    private void ingestTrace(String agentId, String traceId, List<TraceEventDto> eventDtos) {
         Trace trace = traceRepository.findByTraceId(traceId)
-                .orElseGet(() -> createNewTrace(batchDto));
-
-        // Save events
-        List<TraceEvent> events = new ArrayList<>();
-        for (TraceEventDto eventDto : batchDto.getEvents()) {
-            TraceEvent event = traceMapper.toEntity(eventDto);
-            event.setTrace(trace);
-            events.add(event);
+                .orElseGet(() -> {
+                    logger.debug("Creating new trace: {}", traceId);
+                    return new Trace(traceId);
+                });
+
+        for (TraceEventDto eventDto : eventDtos) {
+            methodDictionaryService.resolve(agentId, eventDto);
+            trace.addEvent(convertToEntity(eventDto));
+
+            // Set request metadata if present and not already set
+            if (eventDto.getRequestMetadata() != null && trace.getRequestMetadata() == null) {
+                trace.setRequestMetadata(convertMetadataToEntity(eventDto.getRequestMetadata()));
+            }
         }
-        traceEventRepository.saveAll(events);
 
         // Update trace metadata using indexer
-        updateTraceMetadata(trace, traceEventRepository.findByTrace(trace));
+        updateTraceMetadata(trace, new ArrayList<>(trace.getEvents()));
 
         traceRepository.save(trace);
+        logger.debug("Saved trace {} with {} events", traceId, trace.getEventCount());
     }
 
     private void updateTraceMetadata(Trace trace, List<TraceEvent> allEvents) {
@@ -122,10 +204,13 @@ public class EventIngestService {
         boolean isDistributed = traceIndexer.isDistributedTrace(allEvents);
         trace.setDistributedTrace(isDistributed);
 
-        // Update timestamps
+        // Update timestamps; a SPAN ends at its start plus its duration
         allEvents.sort(Comparator.comparing(TraceEvent::getTimestamp));
         trace.setStartTime(allEvents.get(0).getTimestamp());
-        trace.setEndTime(allEvents.get(allEvents.size() - 1).getTimestamp());
+        trace.setEndTime(allEvents.stream()
+                .map(traceIndexer::endTime)
+                .max(Comparator.naturalOrder())
+                .orElse(allEvents.get(allEvents.size() - 1).getTimestamp()));
     }
     /**
      * Convert TraceEventDto to TraceEvent entity.
@@ -134,6 +219,8 @@ public class EventIngestService {
         TraceEvent event = new TraceEvent();
         event.setEventType(convertEventType(dto.getEventType()));
         event.setTimestamp(dto.getTimestamp());
+        event.setDurationNanos(dto.getDurationNanos());
+        event.setOutcome(convertOutcome(dto.getOutcome()));
         event.setClassName(dto.getClassName());
         event.setMethodName(dto.getMethodName());
         event.setThreadName(dto.getThreadName());
@@ -141,6 +228,9 @@ public class EventIngestService {
         event.setSequenceNumber(dto.getSequenceNumber());
         event.setExceptionType(dto.getExceptionType());
         event.setExceptionMessage(dto.getExceptionMessage());
+        event.setSpanId(dto.getSpanId());
+        event.setParentSpanId(dto.getParentSpanId());
+        event.setLamportClock(dto.getLamportClock());
         return event;
     }
 
@@ -159,6 +249,21 @@ public class EventIngestService {
         }
     }
 
+    /**
+     * Convert span outcome string to enum, or null if absent.
+     */
+    private TraceEvent.Outcome convertOutcome(String outcomeStr) {
+        if (outcomeStr == null) {
+            return null;
+        }
+        try {
+            return TraceEvent.Outcome.valueOf(outcomeStr);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown span outcome: {}", outcomeStr);
+            return null;
+        }
+    }
+
     /**
      * Convert RequestMetadataDto to RequestMetadata entity.
      */
@@ -0,0 +1,137 @@
+package com.irbre.collector.service;
+
+import com.irbre.collector.dto.MethodDefinitionDto;
+import com.irbre.collector.dto.TraceEventDto;
+import com.irbre.collector.entity.MethodDefinition;
+import com.irbre.collector.repository.MethodDefinitionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the method dictionaries agents send incrementally with their batches
+ * and resolves the method IDs carried by events back to class and method names.
+ *
+ * Entries registered or read inside a transaction only reach the shared cache
+ * once it commits; until then they are kept with the transaction, so a batch
+ * that rolls back does not leave the cache claiming entries the database lacks.
+ */
+@Service
+public class MethodDictionaryService {
+    private static final Logger logger = LoggerFactory.getLogger(MethodDictionaryService.class);
+
+    private final MethodDefinitionRepository methodDefinitionRepository;
+    // agentId -> methodId -> definition; backed by the database across restarts
+    private final Map<String, Map<Integer, MethodDefinition>> cache = new ConcurrentHashMap<>();
+
+    public MethodDictionaryService(MethodDefinitionRepository methodDefinitionRepository) {
+        this.methodDefinitionRepository = methodDefinitionRepository;
+    }
+
+    /**
+     * Store new dictionary entries received from an agent. Entries may be
+     * re-sent if the agent did not see an earlier acknowledgement.
+     */
+    @Transactional
+    public void register(String agentId, List<MethodDefinitionDto> methods) {
+        if (agentId == null || methods == null || methods.isEmpty()) {
+            return;
+        }
+        Map<Integer, MethodDefinition> agentMethods = cache.computeIfAbsent(agentId, k -> new ConcurrentHashMap<>());
+        Map<Integer, MethodDefinition> pending = pending(agentId);
+        int added = 0;
+        for (MethodDefinitionDto dto : methods) {
+            Integer methodId = dto.getMethodId();
+            if (methodId == null || agentMethods.containsKey(methodId) || pending.containsKey(methodId)) {
+                continue;
+            }
+            // An upsert: another batch of the same agent may be inserting this entry concurrently
+            added += methodDefinitionRepository.insertIfAbsent(agentId, methodId,
+                    dto.getClassName(), dto.getMethodName(), dto.getDescriptor());
+            pending.put(methodId, toEntity(agentId, dto));
+        }
+        logger.debug("Registered {} method definitions for agent {}", added, agentId);
+    }
+
+    /**
+     * Fill in className/methodName of an event that only carries a method ID.
+     */
+    public void resolve(String agentId, TraceEventDto event) {
+        if (agentId == null || event.getMethodId() == null || event.getClassName() != null) {
+            return;
+        }
+        MethodDefinition definition = lookup(agentId, event.getMethodId());
+        if (definition == null) {
+            logger.warn("Unknown method ID {} for agent {}", event.getMethodId(), agentId);
+            return;
+        }
+        event.setClassName(definition.getClassName());
+        event.setMethodName(definition.getMethodName());
+    }
+
+    private MethodDefinition lookup(String agentId, Integer methodId) {
+        Map<Integer, MethodDefinition> agentMethods = cache.computeIfAbsent(agentId, k -> new ConcurrentHashMap<>());
+        MethodDefinition definition = agentMethods.get(methodId);
+        if (definition != null) {
+            return definition;
+        }
+        Map<Integer, MethodDefinition> pending = pending(agentId);
+        definition = pending.get(methodId);
+        if (definition == null) {
+            definition = methodDefinitionRepository.findByAgentIdAndMethodId(agentId, methodId).orElse(null);
+            if (definition != null) {
+                pending.put(methodId, definition);
+            }
+        }
+        return definition;
+    }
+
+    /**
+     * Entries of the agent registered or read in the current transaction,
+     * moved into the cache after it commits. Outside a transaction, the cache itself.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Integer, MethodDefinition> pending(String agentId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return cache.computeIfAbsent(agentId, k -> new ConcurrentHashMap<>());
+        }
+        Map<String, Map<Integer, MethodDefinition>> pending =
+                (Map<String, Map<Integer, MethodDefinition>>) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            Map<String, Map<Integer, MethodDefinition>> created = new HashMap<>();
+            TransactionSynchronizationManager.bindResource(this, created);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    created.forEach((agent, methods) ->
+                            cache.computeIfAbsent(agent, k -> new ConcurrentHashMap<>()).putAll(methods));
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(MethodDictionaryService.this);
+                }
+            });
+            pending = created;
+        }
+        return pending.computeIfAbsent(agentId, k -> new HashMap<>());
+    }
+
+    private MethodDefinition toEntity(String agentId, MethodDefinitionDto dto) {
+        MethodDefinition definition = new MethodDefinition();
+        definition.setAgentId(agentId);
+        definition.setMethodId(dto.getMethodId());
+        definition.setClassName(dto.getClassName());
+        definition.setMethodName(dto.getMethodName());
+        definition.setDescriptor(dto.getDescriptor());
+        return definition;
+    }
+}
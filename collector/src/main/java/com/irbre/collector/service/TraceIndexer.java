@@ -3,6 +3,8 @@ package com.irbre.collector.service;
 import com.irbre.collector.entity.Trace;
 import com.irbre.collector.entity.TraceEvent;
 import org.springframework.stereotype.Service;
+
+import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -41,17 +43,11 @@ public class TraceIndexer {
                 .filter(Objects::nonNull)
                 .collect(Collectors.toSet());
 
-        Set<String> childSpans = events.stream()
-                .map(TraceEvent::getParentSpanId)
-                .filter(Objects::nonNull)
-                .filter(allSpans::contains)  // Parent exists in this trace
-                .collect(Collectors.toSet());
-
-        // Root spans are those that are not children of any span in this trace
+        // Root spans are those whose parent is absent or not in this trace
         return events.stream()
+                .filter(event -> event.getSpanId() != null)
+                .filter(event -> event.getParentSpanId() == null || !allSpans.contains(event.getParentSpanId()))
                 .map(TraceEvent::getSpanId)
-                .filter(Objects::nonNull)
-                .filter(spanId -> !childSpans.contains(spanId))
                 .distinct()
                 .collect(Collectors.toList());
     }
@@ -112,31 +108,42 @@ public class TraceIndexer {
     }
 
     /**
-     * Get critical path (longest duration path through the trace).
+     * Get critical path: starting from the longest root span, repeatedly
+     * descend into the child span with the largest duration.
+     * Durations come straight from SPAN events, so no entry/exit pairing is needed.
      */
     public List<String> getCriticalPath(List<TraceEvent> events) {
-        // Group events by span
-        Map<String, List<TraceEvent>> eventsBySpan = events.stream()
-                .filter(e -> e.getSpanId() != null)
-                .collect(Collectors.groupingBy(TraceEvent::getSpanId));
-
-        // Calculate span durations
         Map<String, Long> spanDurations = new HashMap<>();
-        for (Map.Entry<String, List<TraceEvent>> entry : eventsBySpan.entrySet()) {
-            List<TraceEvent> spanEvents = entry.getValue();
-            if (spanEvents.size() >= 2) {
-                spanEvents.sort(Comparator.comparing(TraceEvent::getTimestamp));
-                long duration = spanEvents.get(spanEvents.size() - 1).getTimestamp().toEpochMilli()
-                        - spanEvents.get(0).getTimestamp().toEpochMilli();
-                spanDurations.put(entry.getKey(), duration);
+        for (TraceEvent event : events) {
+            if (event.getSpanId() != null && event.getDurationNanos() != null) {
+                spanDurations.put(event.getSpanId(), event.getDurationNanos());
             }
         }
+        Map<String, List<String>> hierarchy = buildSpanHierarchy(events);
 
-        // Find path with maximum total duration (simplified - just longest span)
-        return spanDurations.entrySet().stream()
-                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-                .limit(1)
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+        List<String> path = new ArrayList<>();
+        String current = longest(findRootSpans(events), spanDurations);
+        while (current != null) {
+            path.add(current);
+            current = longest(hierarchy.getOrDefault(current, Collections.emptyList()), spanDurations);
+        }
+        return path;
+    }
+
+    private String longest(List<String> spanIds, Map<String, Long> spanDurations) {
+        return spanIds.stream()
+                .filter(spanDurations::containsKey)
+                .max(Comparator.comparing(spanDurations::get))
+                .orElse(null);
+    }
+
+    /**
+     * End time of an event: start plus duration for a SPAN, otherwise its timestamp.
+     */
+    public Instant endTime(TraceEvent event) {
+        Long durationNanos = event.getDurationNanos();
+        return durationNanos != null
+                ? event.getTimestamp().plusNanos(durationNanos)
+                : event.getTimestamp();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package com.irbre.collector.configuration;
+
+import com.irbre.collector.dto.EventBatchDto;
+import com.irbre.collector.exception.GlobalExceptionHandler;
+import com.irbre.collector.mapper.BinaryBatchDecoder;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads binary batch bodies through the converter, and checks that a
+ * malformed one ends as a 400, which the agent drops, not a 500 it retries.
+ */
+class BinaryBatchMessageConverterTest {
+
+    private static final MediaType BINARY = MediaType.parseMediaType(BinaryBatchDecoder.CONTENT_TYPE);
+
+    // Version 2, agent "a", zero clock anchor, no methods, strings, metadata or events
+    private static final byte[] EMPTY_BATCH = {'I', 'R', 'B', 'B', 2, 2, 'a', 0, 0, 0, 0, 0, 0};
+
+    private final BinaryBatchMessageConverter converter = new BinaryBatchMessageConverter(new BinaryBatchDecoder());
+
+    @Test
+    void binaryBodiesAreReadIntoABatch() throws Exception {
+        assertTrue(converter.canRead(EventBatchDto.class, BINARY));
+        assertFalse(converter.canRead(EventBatchDto.class, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canWrite(EventBatchDto.class, BINARY));
+
+        EventBatchDto batch = converter.read(EventBatchDto.class, new MockHttpInputMessage(EMPTY_BATCH));
+
+        assertEquals("a", batch.getAgentId());
+        assertTrue(batch.getTraces().isEmpty());
+    }
+
+    @Test
+    void malformedBodiesAreAnswered400() {
+        byte[] truncated = Arrays.copyOf(EMPTY_BATCH, EMPTY_BATCH.length - 1);
+        HttpMessageNotReadableException e = assertThrows(HttpMessageNotReadableException.class,
+                () -> converter.read(EventBatchDto.class, new MockHttpInputMessage(truncated)));
+
+        assertEquals(400, new GlobalExceptionHandler().handleUnreadableBody(e).getStatusCode().value());
+    }
+}
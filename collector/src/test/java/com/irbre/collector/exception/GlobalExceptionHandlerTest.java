@@ -0,0 +1,25 @@
+package com.irbre.collector.exception;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.HttpMediaTypeNotSupportedException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the statuses agents act on: a body format the collector cannot
+ * read is a 415, which switches the agent to JSON, not a 500 it retries.
+ */
+class GlobalExceptionHandlerTest {
+
+    private final GlobalExceptionHandler handler = new GlobalExceptionHandler();
+
+    @Test
+    void unsupportedBodyFormatsAreAnswered415() {
+        ResponseEntity<GlobalExceptionHandler.ErrorResponse> response = handler.handleUnsupportedMediaType(
+                new HttpMediaTypeNotSupportedException("Content-Type 'application/x-irbre-batch' is not supported"));
+
+        assertEquals(415, response.getStatusCode().value());
+        assertEquals(415, response.getBody().getStatus());
+    }
+}
@@ -0,0 +1,178 @@
+package com.irbre.collector.filter;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sends compressed ingest requests through the filter and reads the body
+ * the way message conversion does, including one that inflates past the cap,
+ * malformed ones, and through a read listener.
+ */
+class RequestDecompressionFilterTest {
+
+    private static final String INGEST_PATH = "/api/v1/traces/ingest";
+    private static final long MAX_BYTES = 64 * 1024;
+
+    private final RequestDecompressionFilter filter = new RequestDecompressionFilter(MAX_BYTES);
+
+    @Test
+    void gzipAndDeflateBodiesAreDecompressed() throws Exception {
+        byte[] body = "{\"traces\":[]}".getBytes(StandardCharsets.UTF_8);
+        for (String encoding : new String[]{"gzip", "x-gzip", "deflate"}) {
+            MockFilterChain chain = new MockFilterChain();
+            filter.doFilter(request(encoding, compress(encoding, body)), new MockHttpServletResponse(), chain);
+
+            ServletRequest passed = chain.getRequest();
+            assertArrayEquals(body, passed.getInputStream().readAllBytes(), encoding);
+            assertEquals(-1, passed.getContentLength());
+            assertNull(((HttpServletRequest) passed).getHeader("Content-Encoding"));
+        }
+    }
+
+    @Test
+    void bodiesInflatingPastTheCapFailTheRead() throws Exception {
+        // Megabytes of zeros compress to a few kilobytes
+        byte[] bomb = compress("gzip", new byte[(int) MAX_BYTES * 16]);
+        assertTrue(bomb.length < MAX_BYTES);
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request("gzip", bomb), new MockHttpServletResponse(), chain);
+
+        IOException e = assertThrows(IOException.class, () -> chain.getRequest().getInputStream().readAllBytes());
+        assertTrue(e.getMessage().contains(String.valueOf(MAX_BYTES)), e.getMessage());
+    }
+
+    @Test
+    void bodiesWithinTheCapAreReadWhole() throws Exception {
+        byte[] body = new byte[(int) MAX_BYTES];
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request("gzip", compress("gzip", body)), new MockHttpServletResponse(), chain);
+
+        assertEquals(MAX_BYTES, chain.getRequest().getInputStream().readAllBytes().length);
+    }
+
+    @Test
+    void unsupportedEncodingsAreRejected() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request("br", new byte[]{1, 2, 3}), response, chain);
+
+        assertEquals(415, response.getStatus());
+        assertNull(chain.getRequest());
+    }
+
+    @Test
+    void bodiesThatAreNotGzipAreAnswered400() throws Exception {
+        for (byte[] body : new byte[][]{"{\"traces\":[]}".getBytes(StandardCharsets.UTF_8), new byte[0]}) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            MockFilterChain chain = new MockFilterChain();
+
+            filter.doFilter(request("gzip", body), response, chain);
+
+            assertEquals(400, response.getStatus());
+            assertNull(chain.getRequest());
+        }
+    }
+
+    @Test
+    void malformedDeflateBodiesFailTheRead() throws Exception {
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request("deflate", new byte[]{1, 2, 3, 4}), new MockHttpServletResponse(), chain);
+
+        assertThrows(IOException.class, () -> chain.getRequest().getInputStream().readAllBytes());
+    }
+
+    @Test
+    void readListenersAreRunToCompletion() throws Exception {
+        byte[] body = "{\"traces\":[]}".getBytes(StandardCharsets.UTF_8);
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request("gzip", compress("gzip", body)), new MockHttpServletResponse(), chain);
+        ServletInputStream in = chain.getRequest().getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        List<String> calls = new ArrayList<>();
+
+        in.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                calls.add("data");
+                byte[] buffer = new byte[4];
+                while (in.isReady() && !in.isFinished()) {
+                    int n = in.read(buffer);
+                    if (n > 0) {
+                        read.write(buffer, 0, n);
+                    }
+                }
+            }
+
+            @Override
+            public void onAllDataRead() {
+                calls.add("done");
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                calls.add("error");
+            }
+        });
+
+        assertEquals(List.of("data", "done"), calls);
+        assertArrayEquals(body, read.toByteArray());
+    }
+
+    @Test
+    void otherPathsAndUncompressedBodiesPassThrough() throws Exception {
+        MockHttpServletRequest otherPath = request("gzip", new byte[]{1, 2, 3});
+        otherPath.setRequestURI("/api/v1/traces");
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(otherPath, new MockHttpServletResponse(), chain);
+        assertSame(otherPath, chain.getRequest());
+
+        MockHttpServletRequest plain = new MockHttpServletRequest("POST", INGEST_PATH);
+        plain.setContent(new byte[]{1, 2, 3});
+        chain = new MockFilterChain();
+        filter.doFilter(plain, new MockHttpServletResponse(), chain);
+        assertSame(plain, chain.getRequest());
+    }
+
+    private static MockHttpServletRequest request(String encoding, byte[] body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", INGEST_PATH);
+        request.addHeader("Content-Encoding", encoding);
+        request.setContentType("application/json");
+        request.setContent(body);
+        return request;
+    }
+
+    private static byte[] compress(String encoding, byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream compressed = encoding.equals("deflate")
+                ? new DeflaterOutputStream(out)
+                : new GZIPOutputStream(out)) {
+            compressed.write(body);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+package com.irbre.collector.mapper;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.irbre.collector.dto.EventBatchDto;
+import com.irbre.collector.dto.TraceSectionDto;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_DURATION;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_EXCEPTION;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_LAMPORT;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_METADATA;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_OUTCOME;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_PARENT;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_THREAD;
+import static com.irbre.collector.mapper.BinaryBatchDecoderTest.FLAG_TRACE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The decoding side of the agent's WireFormatBenchmarkTest: the same shape of
+ * batch, a few requests each a tree of spans, read from the binary body by
+ * BinaryBatchDecoder and from the equivalent JSON body by Jackson, as the
+ * ingest endpoint would. Prints decode time per batch for both.
+ */
+class BinaryBatchDecodeBenchmarkTest {
+
+    private static final int REQUESTS = 20;
+    private static final int SPANS_PER_REQUEST = 50;
+    private static final int METHODS = 40;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 500;
+
+    @Test
+    void binaryAndJsonBatchDecodeTimes() throws Exception {
+        BinaryBatchDecoder decoder = new BinaryBatchDecoder();
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        byte[] binary = realisticBatch();
+        byte[] json = objectMapper.writeValueAsBytes(decoder.decode(binary));
+        assertEquals(eventCount(decoder.decode(binary)), eventCount(objectMapper.readValue(json, EventBatchDto.class)));
+
+        long jsonNanos = 0;
+        long binaryNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            objectMapper.readValue(json, EventBatchDto.class);
+            long t1 = System.nanoTime();
+            decoder.decode(binary);
+            long t2 = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                jsonNanos += t1 - t0;
+                binaryNanos += t2 - t1;
+            }
+        }
+
+        System.out.printf("[IRBRE] wire format decode, %d events: json %d bytes (%d us/batch), "
+                        + "binary %d bytes (%d us/batch)%n",
+                REQUESTS * SPANS_PER_REQUEST,
+                json.length, jsonNanos / MEASURED_ROUNDS / 1_000,
+                binary.length, binaryNanos / MEASURED_ROUNDS / 1_000);
+    }
+
+    private static int eventCount(EventBatchDto batch) {
+        int count = 0;
+        for (TraceSectionDto section : batch.getTraces()) {
+            count += section.getEvents().size();
+        }
+        return count;
+    }
+
+    /**
+     * Spans complete children first, as the agent records them; the root
+     * carries the request metadata and every seventeenth span failed.
+     */
+    private static byte[] realisticBatch() {
+        List<String> strings = new ArrayList<>(List.of("SPAN", "OK", "EXCEPTION", "POST",
+                "java.lang.IllegalStateException", "User-Agent", "Mozilla/5.0",
+                "Content-Type", "application/json", "10.0.0.12"));
+        for (int t = 0; t < 4; t++) {
+            strings.add("http-nio-8080-exec-" + t);
+        }
+        for (int r = 0; r < REQUESTS; r++) {
+            strings.add(String.format("%032x", 0xABCDEF00L + r));
+            strings.add("/api/orders/" + r);
+            strings.add("order " + r + " is locked");
+        }
+
+        BinaryBatchDecoderTest.Writer out = new BinaryBatchDecoderTest.Writer();
+        out.bytes('I', 'R', 'B', 'B', 2);
+        out.string("agent-1");
+        out.zigzag(1_768_471_200_000_000_000L);
+        out.zigzag(9_000_000_000L);
+        out.varint(METHODS);
+        for (int i = 0; i < METHODS; i++) {
+            out.varint(i);
+            out.string("com.example.shop.service.OrderService" + (i % 5));
+            out.string("handleStep" + i);
+            out.string("(Ljava/lang/String;J)Ljava/util/List;");
+        }
+        out.varint(strings.size());
+        strings.forEach(out::string);
+
+        out.varint(REQUESTS);
+        for (int r = 0; r < REQUESTS; r++) {
+            out.ref(strings, "POST");
+            out.ref(strings, "/api/orders/" + r);
+            out.varint(2);
+            out.ref(strings, "User-Agent");
+            out.ref(strings, "Mozilla/5.0");
+            out.ref(strings, "Content-Type");
+            out.ref(strings, "application/json");
+            out.ref(strings, "10.0.0.12");
+        }
+
+        out.varint(REQUESTS * SPANS_PER_REQUEST);
+        long start = 0;
+        long sequence = 0;
+        long spanId = 0;
+        for (int r = 0; r < REQUESTS; r++) {
+            long firstSpan = r * SPANS_PER_REQUEST + 1;
+            for (int s = SPANS_PER_REQUEST - 1; s >= 0; s--) {
+                boolean failed = s % 17 == 16;
+                int flags = FLAG_DURATION | FLAG_OUTCOME | FLAG_THREAD | FLAG_LAMPORT;
+                flags |= s == SPANS_PER_REQUEST - 1 ? FLAG_TRACE : 0;
+                flags |= s > 0 ? FLAG_PARENT : FLAG_METADATA;
+                flags |= failed ? FLAG_EXCEPTION : 0;
+                out.bytes(flags);
+                if (s == SPANS_PER_REQUEST - 1) {
+                    out.ref(strings, String.format("%032x", 0xABCDEF00L + r));
+                }
+                out.ref(strings, "SPAN");
+                long spanStart = r * 5_000_000L + s * 37_000L;
+                out.zigzag(spanStart - start);
+                start = spanStart;
+                out.zigzag(SPANS_PER_REQUEST - s - sequence);
+                sequence = SPANS_PER_REQUEST - s;
+                out.zigzag((r + s) % METHODS);
+                long span = firstSpan + s;
+                out.zigzag(span - spanId);
+                spanId = span;
+                if (s > 0) {
+                    out.zigzag(firstSpan + (s - 1) / 2 - span);
+                }
+                out.varint(1_000L + (SPANS_PER_REQUEST - s) * 12_345L);
+                out.ref(strings, failed ? "EXCEPTION" : "OK");
+                out.ref(strings, "http-nio-8080-exec-" + (r % 4));
+                out.varint(40L + r % 4);
+                if (failed) {
+                    out.ref(strings, "java.lang.IllegalStateException");
+                    out.ref(strings, "order " + r + " is locked");
+                }
+                if (s == 0) {
+                    out.varint(r);
+                }
+                out.zigzag(1);                   // Lamport clock
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,298 @@
+package com.irbre.collector.mapper;
+
+import com.irbre.collector.dto.EventBatchDto;
+import com.irbre.collector.dto.TraceEventDto;
+import com.irbre.collector.dto.TraceSectionDto;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Decodes bodies laid out as the agent's BinaryBatchEncoder writes them,
+ * built here with a writer that mirrors its format, and checks that
+ * truncated or corrupt bodies are rejected rather than half-read.
+ */
+class BinaryBatchDecoderTest {
+
+    private static final long EPOCH_NANOS = 1_700_000_000_123_456_789L;
+    private static final long NANO_TIME = 5_000_000_000L;
+
+    static final int FLAG_PARENT = 1;
+    static final int FLAG_DURATION = 1 << 1;
+    static final int FLAG_OUTCOME = 1 << 2;
+    static final int FLAG_THREAD = 1 << 3;
+    static final int FLAG_EXCEPTION = 1 << 4;
+    static final int FLAG_METADATA = 1 << 5;
+    static final int FLAG_LAMPORT = 1 << 6;
+    static final int FLAG_TRACE = 1 << 7;
+
+    private final BinaryBatchDecoder decoder = new BinaryBatchDecoder();
+
+    @Test
+    void version2BatchesRoundTrip() {
+        EventBatchDto batch = decoder.decode(sampleBatch(2, true));
+
+        assertEquals("agent-1", batch.getAgentId());
+        assertEquals(EPOCH_NANOS, batch.getClockAnchor().getEpochNanos());
+        assertEquals(NANO_TIME, batch.getClockAnchor().getNanoTime());
+        assertEquals(1, batch.getMethods().size());
+        assertEquals(7, batch.getMethods().get(0).getMethodId());
+        assertEquals("com.example.Service", batch.getMethods().get(0).getClassName());
+        assertEquals("handle", batch.getMethods().get(0).getMethodName());
+        assertNull(batch.getMethods().get(0).getDescriptor());
+
+        List<TraceSectionDto> traces = batch.getTraces();
+        assertEquals(List.of("trace-a", "trace-b"), traces.stream().map(TraceSectionDto::getTraceId).toList());
+        assertEquals(2, traces.get(0).getEvents().size());
+        assertEquals(1, traces.get(1).getEvents().size());
+
+        TraceEventDto root = traces.get(0).getEvents().get(0);
+        assertEquals("trace-a", root.getTraceId());
+        assertEquals("SPAN", root.getEventType());
+        assertEquals(NANO_TIME + 1000, root.getStartNanos());
+        assertEquals(Instant.ofEpochSecond(1_700_000_000L, 123_457_789L),
+                batch.getClockAnchor().toInstant(root.getStartNanos()));
+        assertEquals(1, root.getSequenceNumber());
+        assertEquals(7, root.getMethodId());
+        assertEquals("0000000000000010", root.getSpanId());
+        assertNull(root.getParentSpanId());
+        assertEquals(2500, root.getDurationNanos());
+        assertEquals("OK", root.getOutcome());
+        assertEquals("http-nio-1", root.getThreadName());
+        assertEquals(42, root.getThreadId());
+        assertEquals("GET", root.getRequestMetadata().getHttpMethod());
+        assertEquals("/orders", root.getRequestMetadata().getUrl());
+        assertEquals(Map.of("X-Request-Id", "r-1"), root.getRequestMetadata().getHeaders());
+        assertEquals(100, root.getLamportClock());
+
+        TraceEventDto child = traces.get(0).getEvents().get(1);
+        assertEquals("trace-a", child.getTraceId());
+        assertEquals(NANO_TIME + 1500, child.getStartNanos());
+        assertEquals(2, child.getSequenceNumber());
+        assertNull(child.getMethodId());
+        assertEquals("0000000000000011", child.getSpanId());
+        assertEquals("0000000000000010", child.getParentSpanId());
+        assertEquals("java.lang.IllegalStateException", child.getExceptionType());
+        // A null string reference stays null
+        assertNull(child.getExceptionMessage());
+        assertNull(child.getOutcome());
+        assertNull(child.getRequestMetadata());
+        assertNull(child.getLamportClock());
+
+        TraceEventDto other = traces.get(1).getEvents().get(0);
+        assertEquals("trace-b", other.getTraceId());
+        assertEquals(NANO_TIME + 900, other.getStartNanos());
+        assertEquals(101, other.getLamportClock());
+        // Metadata written once is shared by index
+        assertEquals(root.getRequestMetadata(), other.getRequestMetadata());
+
+        assertEquals(Map.of("eventsDropped", 3L, "clockSkewNanos", -12L), batch.getAgentStats());
+    }
+
+    @Test
+    void version1BatchesCarryEpochTimestamps() {
+        EventBatchDto batch = decoder.decode(sampleBatch(1, false));
+
+        assertNull(batch.getClockAnchor());
+        assertNull(batch.getAgentStats());
+        TraceEventDto root = batch.getTraces().get(0).getEvents().get(0);
+        assertNull(root.getStartNanos());
+        assertEquals(Instant.ofEpochSecond(0, 1000), root.getTimestamp());
+        assertEquals(Instant.ofEpochSecond(0, 1500), batch.getTraces().get(0).getEvents().get(1).getTimestamp());
+    }
+
+    @Test
+    void truncatedBodiesAreRejected() {
+        byte[] body = sampleBatch(2, true);
+        // The trailing stats are optional, so a body cut exactly after the
+        // last event is still whole; every other prefix is malformed
+        int eventsEnd = sampleBatch(2, false).length;
+        for (int length = 0; length < body.length; length++) {
+            byte[] truncated = Arrays.copyOf(body, length);
+            if (length == eventsEnd) {
+                assertNull(decoder.decode(truncated).getAgentStats());
+            } else {
+                assertThrows(IllegalArgumentException.class, () -> decoder.decode(truncated), "length " + length);
+            }
+        }
+    }
+
+    @Test
+    void corruptBodiesAreRejected() {
+        byte[] badMagic = sampleBatch(2, false);
+        badMagic[0] = 'X';
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(badMagic));
+
+        byte[] badVersion = sampleBatch(2, false);
+        badVersion[4] = 9;
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(badVersion));
+
+        // A string reference past the dictionary
+        Writer out = header(2);
+        out.varint(0);                       // methods
+        out.varint(0);                       // strings
+        out.varint(0);                       // metadata
+        out.varint(1);                       // events
+        out.bytes(FLAG_TRACE);
+        out.varint(5);
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(out.toByteArray()));
+
+        // An event before any trace section
+        Writer orphan = header(2);
+        orphan.varint(0);
+        orphan.varint(0);
+        orphan.varint(0);
+        orphan.varint(1);
+        orphan.bytes(0);
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(orphan.toByteArray()));
+
+        // A count larger than the body
+        Writer huge = header(2);
+        huge.varint(Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(huge.toByteArray()));
+
+        // A varint that never ends
+        Writer endless = header(2);
+        for (int i = 0; i < 11; i++) {
+            endless.bytes(0xFF);
+        }
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(endless.toByteArray()));
+    }
+
+    /**
+     * Two traces, three events, one metadata entry and, if asked, trailing stats.
+     */
+    static byte[] sampleBatch(int version, boolean stats) {
+        Writer out = header(version);
+        out.varint(1);
+        out.varint(7);
+        out.string("com.example.Service");
+        out.string("handle");
+        out.string(null);
+
+        List<String> strings = List.of("trace-a", "SPAN", "OK", "http-nio-1", "GET", "/orders",
+                "X-Request-Id", "r-1", "java.lang.IllegalStateException", "trace-b");
+        out.varint(strings.size());
+        strings.forEach(out::string);
+
+        out.varint(1);
+        out.ref(strings, "GET");
+        out.ref(strings, "/orders");
+        out.varint(1);
+        out.ref(strings, "X-Request-Id");
+        out.ref(strings, "r-1");
+        out.ref(strings, null);              // client IP
+
+        out.varint(3);
+        out.bytes(FLAG_TRACE | FLAG_DURATION | FLAG_OUTCOME | FLAG_THREAD | FLAG_METADATA | FLAG_LAMPORT);
+        out.ref(strings, "trace-a");
+        out.ref(strings, "SPAN");
+        out.zigzag(1000);                    // start, from the anchor (v2) or zero (v1)
+        out.zigzag(1);                       // sequence number
+        out.zigzag(7);                       // method ID
+        out.zigzag(0x10);                    // span ID
+        out.varint(2500);
+        out.ref(strings, "OK");
+        out.ref(strings, "http-nio-1");
+        out.varint(42);
+        out.varint(0);                       // metadata index
+        out.zigzag(100);
+
+        out.bytes(FLAG_PARENT | FLAG_EXCEPTION);
+        out.ref(strings, "SPAN");
+        out.zigzag(500);
+        out.zigzag(1);
+        out.zigzag(-1);                      // no method
+        out.zigzag(1);
+        out.zigzag(-1);                      // parent is the previous span
+        out.ref(strings, "java.lang.IllegalStateException");
+        out.ref(strings, null);
+
+        out.bytes(FLAG_TRACE | FLAG_METADATA | FLAG_LAMPORT);
+        out.ref(strings, "trace-b");
+        out.ref(strings, "SPAN");
+        out.zigzag(-600);                    // start times are not monotonic across threads
+        out.zigzag(1);
+        out.zigzag(7);
+        out.zigzag(1);
+        out.varint(0);
+        out.zigzag(1);
+
+        if (stats) {
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("eventsDropped", 3L);
+            values.put("clockSkewNanos", -12L);
+            out.varint(values.size());
+            values.forEach((name, value) -> {
+                out.string(name);
+                out.zigzag(value);
+            });
+        }
+        return out.toByteArray();
+    }
+
+    private static Writer header(int version) {
+        Writer out = new Writer();
+        out.bytes('I', 'R', 'B', 'B', version);
+        out.string("agent-1");
+        if (version >= 2) {
+            out.zigzag(EPOCH_NANOS);
+            out.zigzag(NANO_TIME);
+        }
+        return out;
+    }
+
+    /**
+     * The agent encoder's primitives: LEB128 varints, zigzag for signed
+     * values, length+1 prefixed strings and index+1 dictionary references.
+     */
+    static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void bytes(int... values) {
+            for (int value : values) {
+                out.write(value);
+            }
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void string(String value) {
+            if (value == null) {
+                varint(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length + 1L);
+            out.write(utf8, 0, utf8.length);
+        }
+
+        void ref(List<String> strings, String value) {
+            varint(value == null ? 0 : strings.indexOf(value) + 1);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
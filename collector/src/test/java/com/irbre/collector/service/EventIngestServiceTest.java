@@ -0,0 +1,85 @@
+package com.irbre.collector.service;
+
+import com.irbre.collector.dto.EventBatchDto;
+import com.irbre.collector.dto.TraceEventDto;
+import com.irbre.collector.dto.TraceResponseDto;
+import com.irbre.collector.dto.TraceSectionDto;
+import com.irbre.collector.entity.Trace;
+import com.irbre.collector.mapper.TraceMapper;
+import com.irbre.collector.repository.TraceRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Ingests a nested SPAN batch and checks that the span tree survives into
+ * the stored trace and the API response.
+ */
+class EventIngestServiceTest {
+
+    private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+
+    private final TraceRepository traceRepository = mock(TraceRepository.class);
+    private final TraceIndexer traceIndexer = new TraceIndexer();
+    private final EventIngestService service = new EventIngestService(traceRepository,
+            mock(MethodDictionaryService.class), traceIndexer, mock(AgentStatsService.class));
+
+    @Test
+    void nestedSpansKeepTheirTreeAndCriticalPath() {
+        when(traceRepository.findByTraceId(anyString())).thenReturn(Optional.empty());
+
+        // handle -> (load -> query, render); load is the slower child
+        EventBatchDto batch = new EventBatchDto();
+        batch.setAgentId("agent-1");
+        batch.setTraces(List.of(new TraceSectionDto("trace-1", List.of(
+                span("query", "load", 3, 4_000_000L),
+                span("load", "handle", 2, 6_000_000L),
+                span("render", "handle", 9, 2_000_000L),
+                span("handle", null, 1, 12_000_000L)))));
+
+        service.ingestBatch(batch);
+
+        ArgumentCaptor<Trace> saved = ArgumentCaptor.forClass(Trace.class);
+        verify(traceRepository).save(saved.capture());
+        Trace trace = saved.getValue();
+        assertEquals("handle", trace.getRootSpanId());
+        assertFalse(trace.getDistributedTrace());
+        assertEquals(START.plusMillis(1), trace.getStartTime());
+        assertEquals(START.plusMillis(13), trace.getEndTime());
+        assertEquals(List.of("handle", "load", "query"), traceIndexer.getCriticalPath(trace.getEvents()));
+
+        TraceResponseDto response = new TraceMapper(traceIndexer).toDto(trace);
+        assertEquals("handle", response.getRootSpanId());
+        assertEquals(3, response.getTraceDepth());
+        assertEquals(List.of("handle", "load", "query"), response.getCriticalPath());
+        assertEquals(List.of("load", "render"), response.getSpanHierarchy().get("handle").stream().sorted().toList());
+        TraceEventDto query = response.getEvents().stream()
+                .filter(event -> "query".equals(event.getSpanId()))
+                .findFirst()
+                .orElseThrow();
+        assertEquals("load", query.getParentSpanId());
+    }
+
+    private static TraceEventDto span(String spanId, String parentSpanId, long startMillis, long durationNanos) {
+        TraceEventDto event = new TraceEventDto();
+        event.setEventType("SPAN");
+        event.setTimestamp(START.plusMillis(startMillis));
+        event.setDurationNanos(durationNanos);
+        event.setOutcome("OK");
+        event.setSpanId(spanId);
+        event.setParentSpanId(parentSpanId);
+        event.setClassName("com.example.Handler");
+        event.setMethodName(spanId);
+        return event;
+    }
+}
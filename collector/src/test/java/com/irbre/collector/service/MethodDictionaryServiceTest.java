@@ -0,0 +1,97 @@
+package com.irbre.collector.service;
+
+import com.irbre.collector.dto.MethodDefinitionDto;
+import com.irbre.collector.dto.TraceEventDto;
+import com.irbre.collector.repository.MethodDefinitionRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Checks that dictionary entries are upserted, resolve within the batch's
+ * transaction, and only reach the shared cache once it commits.
+ */
+class MethodDictionaryServiceTest {
+
+    private static final String AGENT = "agent-1";
+
+    private final MethodDefinitionRepository repository = mock(MethodDefinitionRepository.class);
+    private final MethodDictionaryService service = new MethodDictionaryService(repository);
+
+    @AfterEach
+    void clearTransaction() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void committedEntriesAreCached() {
+        TransactionSynchronizationManager.initSynchronization();
+        service.register(AGENT, List.of(method(7)));
+        // Re-sent in the same transaction: not inserted twice
+        service.register(AGENT, List.of(method(7)));
+        assertEquals("find", resolve(7).getMethodName());
+        complete(true);
+
+        service.register(AGENT, List.of(method(7)));
+        assertEquals("find", resolve(7).getMethodName());
+        verify(repository, times(1)).insertIfAbsent(AGENT, 7, "com.example.Orders", "find", "()V");
+        verify(repository, never()).findByAgentIdAndMethodId(anyString(), anyInt());
+    }
+
+    @Test
+    void rolledBackEntriesAreRegisteredAgain() {
+        TransactionSynchronizationManager.initSynchronization();
+        service.register(AGENT, List.of(method(7)));
+        assertEquals("find", resolve(7).getMethodName());
+        complete(false);
+
+        // The agent re-sends the unacknowledged entry with its next batch
+        service.register(AGENT, List.of(method(7)));
+        verify(repository, times(2)).insertIfAbsent(any(), any(), any(), any(), any());
+    }
+
+    private TraceEventDto resolve(int methodId) {
+        TraceEventDto event = new TraceEventDto();
+        event.setMethodId(methodId);
+        service.resolve(AGENT, event);
+        return event;
+    }
+
+    private static void complete(boolean commit) {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        for (TransactionSynchronization synchronization : synchronizations) {
+            if (commit) {
+                synchronization.afterCommit();
+            }
+        }
+        for (TransactionSynchronization synchronization : synchronizations) {
+            synchronization.afterCompletion(commit
+                    ? TransactionSynchronization.STATUS_COMMITTED
+                    : TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    private static MethodDefinitionDto method(int methodId) {
+        MethodDefinitionDto dto = new MethodDefinitionDto();
+        dto.setMethodId(methodId);
+        dto.setClassName("com.example.Orders");
+        dto.setMethodName("find");
+        dto.setDescriptor("()V");
+        return dto;
+    }
+}